@@ -5,7 +5,6 @@
 
 package bluetoothgateway;
 
-import java.util.Date;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Vector;
@@ -59,6 +58,41 @@ public class FrameParser extends Observable implements StreamDecoder {
    
    private byte[] m_frame;  // keeps the frame data
    private byte[] m_header; // keeps the header format
+
+   // decode plan, compiled from the format by setFormat()
+   private char[] m_plan;   // internal datatype of each field
+   private char[] m_types;  // DataPacket.TYPE_* of each field, shared by all packets
+
+   // header search (Knuth-Morris-Pratt) over the incoming bytes
+   private int[] m_failure; // length of the longest proper border of header[0..i]
+   private int   m_match;   // number of header bytes matched so far
+
+   // ring buffer holding the last bytes of the stream, enough for one frame
+   private byte[] m_ring;
+   private int    m_ringMask;
+   private long   m_streamPos; // number of bytes received so far
+
+   // stream positions of detected headers whose frame is not complete yet
+   private long[] m_starts;
+   private int    m_startHead;
+   private int    m_startCount;
+
+   // frames decoded during one call of read(), the packets are reused
+   private DataPacket[] m_batch = new DataPacket[16];
+   private int m_batchCount;
+   private Vector m_frameListeners = new Vector();
+
+   /**
+    * Receives all frames decoded from the bytes passed to one call of read().
+    */
+   public interface FrameListener {
+      /**
+       * @param frames the decoded frames - the array and the frames are reused,
+       *               they are only valid during the call
+       * @param count  number of frames in the array
+       */
+      public void framesDecoded(DataPacket[] frames, int count);
+   }
    
    private int m_error; // stores an error, in case it occurred. Possible values are:
    public static final int ERROR_NONE = 0;
@@ -77,6 +111,18 @@ public class FrameParser extends Observable implements StreamDecoder {
    public int getLastError() {
       return m_error;
    }
+
+   /**
+    * Adds a listener that gets the decoded frames in batches. Observers still
+    * get every frame on its own, in a packet of its own they may keep.
+    */
+   public void addFrameListener(FrameListener l) {
+      m_frameListeners.add(l);
+   }
+
+   public void removeFrameListener(FrameListener l) {
+      m_frameListeners.remove(l);
+   }
    
    /**
     * Parses the format string and initializes buffers
@@ -142,8 +188,46 @@ public class FrameParser extends Observable implements StreamDecoder {
       
       System.out.println("FrameParser: format read successfully: " + m_format);
 
+      // compile the decode plan
+      m_plan = m_format.toCharArray();
+      m_types = new char[m_plan.length];
+      for (int i=0; i<m_plan.length; i++) {
+         switch (m_plan[i]) {
+            case CHAR_8BIT_SIGNED:
+            case CHAR_8BIT_UNSIGNED:
+               m_types[i] = DataPacket.TYPE_CHAR;
+               break;
+            case INT_32BIT_LITTLE_ENDIAN_SIGNED:
+            case INT_32BIT_BIG_ENDIAN_SIGNED:
+            case INT_32BIT_LITTLE_ENDIAN_UNSIGNED:
+            case INT_32BIT_BIG_ENDIAN_UNSIGNED:
+               m_types[i] = DataPacket.TYPE_INT;
+               break;
+            default:
+               m_types[i] = DataPacket.TYPE_SHORT;
+         }
+      }
+
+      m_failure = new int[m_header.length];
+      for (int i=1, k=0; i<m_header.length; i++) {
+         while (k > 0 && m_header[i] != m_header[k]) {
+            k = m_failure[k-1];
+         }
+         if (m_header[i] == m_header[k]) {
+            k++;
+         }
+         m_failure[i] = k;
+      }
+
       // initialize data buffers
       m_frame = new byte[framebytes];
+      int ringsize = 1;
+      while (ringsize < framebytes) {
+         ringsize <<= 1;
+      }
+      m_ring = new byte[ringsize];
+      m_ringMask = ringsize - 1;
+      m_starts = new long[ringsize];
    }
    
    
@@ -151,126 +235,135 @@ public class FrameParser extends Observable implements StreamDecoder {
     * Reports bytes read from a stream. This function will try to synchronize to 
     * establish a frame, which is then decoded.
     * 
+    * A frame is decoded for every occurrence of the header in the stream, as 
+    * soon as the bytes of the complete frame have arrived.
+    * 
     * @param b the byte read.
     */
    public void read(byte[] bytes) {
 
       // only decode if there was never an error
       if (m_error != 0) return;
+
+      // remember time the packets have been detected
+      long recTime = System.currentTimeMillis();
       
       for (int i=0; i<bytes.length; i++) {
+         byte b = bytes[i];
+         m_ring[(int)m_streamPos & m_ringMask] = b;
 
-         // shift through the data byte by byte
-         shiftFrame(bytes[i]);
-         if ( ! isHeaderLeading() ) continue;
-         
-         // remember time the packet has been detected
-         Date recDate = new Date();
-         
-         // we got a frame - decode it by the format we have stored
-         Vector framedata = new Vector(m_format.length());
-         int framepos = m_header.length;
-         for(int j=0; j<m_format.length(); j++) {
-            
-            switch(m_format.charAt(j)) {
-               case CHAR_8BIT_SIGNED:
-                  framedata.add(new Character((char)m_frame[framepos++]));
-                  break;
-               case SHORT_16BIT_LITTLE_ENDIAN_SIGNED: {
-                  short a = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short b = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  framedata.add(new Short( (short)(a | (b<<8) ))  );
-                  break;
-               }
-               case SHORT_16BIT_BIG_ENDIAN_SIGNED: {
-                  short a = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short b = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  framedata.add(new Short( (short)( b | (a<<8) ) )  );
-                  break;
-               }
-               case INT_32BIT_LITTLE_ENDIAN_SIGNED: {
-                  short a = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short b = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short c = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short d = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  framedata.add(new Integer(  a | (b<<8) | (c<<16) | (d<<24)  )  );
-                  break;
-               }
-               case INT_32BIT_BIG_ENDIAN_SIGNED: {
-                  short a = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short b = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short c = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short d = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  framedata.add(new Integer(  d | (c<<8) | (b<<16) | (a<<24)  )  );
-                  break;
-               }
-               case CHAR_8BIT_UNSIGNED:
-                  framedata.add(new Character((char)m_frame[framepos++]));
-                  break;
-               case SHORT_16BIT_LITTLE_ENDIAN_UNSIGNED: {
-                  short a = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short b = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  framedata.add(new Short( (short)( a | (b<<8) ) )  );
-                  break;
-               }
-               case SHORT_16BIT_BIG_ENDIAN_UNSIGNED: {
-                  short a = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short b = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  framedata.add(new Short( (short)( b | (a<<8) ) )  );
-                  break;
-               }
-               case INT_32BIT_LITTLE_ENDIAN_UNSIGNED: {
-                  short a = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short b = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short c = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short d = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  framedata.add(new Integer(  a | (b<<8) | (c<<16) | (d<<24)  )  );
-                  break;
-               }
-               case INT_32BIT_BIG_ENDIAN_UNSIGNED: {
-                  short a = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short b = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short c = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  short d = (short) ((short)0xFF & (short)m_frame[framepos++]);
-                  framedata.add(new Integer(  d | (c<<8) | (b<<16) | (a<<24)  )  );
-                  break;
-               }
-               default:
-                  System.out.println("PANIC: Encountered unknown symbol in frame format. Exiting");
-                  System.exit(-1);
-               
-            }
-         } // for j
-         
-         // create packet
-         DataPacket dp = new DataPacket(recDate, framedata, m_sensorname, m_channels);
-         
-         setChanged();
-         notifyObservers(dp);
-         
-         
+         // advance the header search
+         while (m_match > 0 && m_header[m_match] != b) {
+            m_match = m_failure[m_match-1];
+         }
+         if (m_header[m_match] == b) {
+            m_match++;
+         }
+         if (m_match == m_header.length) {
+            // header starts a frame, the queue cannot overflow as the
+            // frames of all pending headers overlap
+            m_starts[(m_startHead + m_startCount) & m_ringMask] = m_streamPos - m_header.length + 1;
+            m_startCount++;
+            m_match = m_failure[m_match-1];
+         }
+         m_streamPos++;
+
+         // starts are ordered, so at most the oldest frame is complete
+         if (m_startCount > 0 && m_streamPos - m_starts[m_startHead] == m_frame.length) {
+            decode(m_starts[m_startHead], nextFrame(recTime).getValueArray());
+            m_startHead = (m_startHead + 1) & m_ringMask;
+            m_startCount--;
+         }
       } // for i
-      
-   }
-   
-   private void shiftFrame(byte b) {
-      for(int i=0; i<m_frame.length-1;i++) {
-         m_frame[i] = m_frame[i+1];
+
+      if (m_batchCount > 0) {
+         notifyFrames();
       }
-      m_frame[m_frame.length-1] = b;
    }
-   
+
    /**
-    * Checks whether m_frame starts with a 
-    * @return
+    * @return the packet of the batch the next frame is decoded into
     */
-   private boolean isHeaderLeading() {
-      for(int i=0; i<m_header.length; i++) {
-         if (m_header[i] != m_frame[i]) {
-            return false;
+   private DataPacket nextFrame(long recTime) {
+      if (m_batchCount == m_batch.length) {
+         DataPacket[] batch = new DataPacket[2*m_batch.length];
+         System.arraycopy(m_batch, 0, batch, 0, m_batchCount);
+         m_batch = batch;
+      }
+      DataPacket dp = m_batch[m_batchCount];
+      if (dp == null) {
+         dp = new DataPacket(recTime, new int[m_plan.length], m_types, m_sensorname, m_channels);
+         m_batch[m_batchCount] = dp;
+      } else {
+         dp.reuse(recTime);
+      }
+      m_batchCount++;
+      return dp;
+   }
+
+   private void notifyFrames() {
+      for (int i=0; i<m_frameListeners.size(); i++) {
+         ((FrameListener)m_frameListeners.get(i)).framesDecoded(m_batch, m_batchCount);
+      }
+
+      if (countObservers() > 0) {
+         for (int i=0; i<m_batchCount; i++) {
+            setChanged();
+            notifyObservers(m_batch[i].copy());
          }
       }
-      return true;
+
+      m_batchCount = 0;
+   }
+
+   /**
+    * Decodes the frame starting at stream position start by the format we have 
+    * stored into values.
+    */
+   private void decode(long start, int [] values) {
+      // copy the frame out of the ring, in at most two pieces
+      int from = (int)start & m_ringMask;
+      int first = Math.min(m_frame.length, m_ring.length - from);
+      System.arraycopy(m_ring, from, m_frame, 0, first);
+      System.arraycopy(m_ring, 0, m_frame, first, m_frame.length - first);
+
+      byte[] f = m_frame;
+      int framepos = m_header.length;
+      for(int j=0; j<m_plan.length; j++) {
+         
+         switch(m_plan[j]) {
+            case CHAR_8BIT_SIGNED:
+            case CHAR_8BIT_UNSIGNED:
+               values[j] = (char)f[framepos];
+               framepos += 1;
+               break;
+            case SHORT_16BIT_LITTLE_ENDIAN_SIGNED:
+            case SHORT_16BIT_LITTLE_ENDIAN_UNSIGNED:
+               values[j] = (short)( (f[framepos] & 0xFF) | ((f[framepos+1] & 0xFF) << 8) );
+               framepos += 2;
+               break;
+            case SHORT_16BIT_BIG_ENDIAN_SIGNED:
+            case SHORT_16BIT_BIG_ENDIAN_UNSIGNED:
+               values[j] = (short)( (f[framepos+1] & 0xFF) | ((f[framepos] & 0xFF) << 8) );
+               framepos += 2;
+               break;
+            case INT_32BIT_LITTLE_ENDIAN_SIGNED:
+            case INT_32BIT_LITTLE_ENDIAN_UNSIGNED:
+               values[j] =  (f[framepos] & 0xFF)          | ((f[framepos+1] & 0xFF) << 8)
+                         | ((f[framepos+2] & 0xFF) << 16) | ((f[framepos+3] & 0xFF) << 24);
+               framepos += 4;
+               break;
+            case INT_32BIT_BIG_ENDIAN_SIGNED:
+            case INT_32BIT_BIG_ENDIAN_UNSIGNED:
+               values[j] =  (f[framepos+3] & 0xFF)        | ((f[framepos+2] & 0xFF) << 8)
+                         | ((f[framepos+1] & 0xFF) << 16) | ((f[framepos] & 0xFF) << 24);
+               framepos += 4;
+               break;
+            default:
+               System.out.println("PANIC: Encountered unknown symbol in frame format. Exiting");
+               System.exit(-1);
+         }
+      } // for j
    }
 
    /**
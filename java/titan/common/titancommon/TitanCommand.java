@@ -27,10 +27,12 @@
  */
 package titancommon;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import net.tinyos.message.Message;
@@ -43,7 +45,10 @@ import titancommon.applications.Farkle;
 import titancommon.applications.Dice;
 import titancommon.execution.*;
 import titancommon.messages.*;
+import titancommon.node.LinkCredits;
+import titancommon.node.NodeConfigCache;
 import titancommon.node.TitanLocalNode;
+import titancommon.node.TitanTCP;
 import titancommon.route.TitanCommunicateRouter;
 import titancommon.route.TitanLocalRouter;
 import titancommon.route.TitanMasterRouter;
@@ -80,6 +85,10 @@ public class TitanCommand implements MessageListener {
    static public final short TITANCOMM_CFGSTART = 9;
    static public final short TITANCOMM_CACHE_START =10;
    static public final short TITANCOMM_CACHE_STORE =11;
+   static public final short TITANCOMM_BATCH = 12;   // TCP only: negotiates batch frames, see TitanTCP
+   static public final short TITANCOMM_CREDIT = 13;  // flow control between local nodes, see LinkCredits
+   static public final short TITANCOMM_STATS = 14;   // task statistics of local nodes, see TaskStats
+   static public final short TITANCOMM_CACHE_REPORT = 15; // cached configurations of local nodes, see NodeConfigCache
    
    // task identifiers, copied from TitanTaskUIDs.h
    static public final int TITAN_COMM_MODULE = 0;
@@ -102,8 +111,12 @@ public class TitanCommand implements MessageListener {
       "ERROR_NOT_IMPLEMENTED",
       "ERROR_OUT_FIFO_FULL",
       "ERROR_IN_FIFO_EMPTY",
-      "ERROR_NO_CONTEXT"
+      "ERROR_NO_CONTEXT",
+      "ERROR_OUTBUF_FULL",
+      "ERROR_NO_CACHE_ENTRY",
+      "ERROR_CACHE"
    };
+   static public final int ERROR_NO_CACHE_ENTRY = 14;
    
    public static final int TOSH_DATA_LENGTH = 50;//28;
    public static final int TITAN_PACKET_HEADER_SIZE = 5; // 28-sizeof(uint16_t) - 3*sizeof(uint8_t)
@@ -141,6 +154,7 @@ public class TitanCommand implements MessageListener {
         "usage: titan COMMAND NUMBER\n" +
         "Where COMMAND has the following effect:\n" +
         "   start        starts up the Titan framework. With parameter SIM, it starts a simulation.\n" + 
+        "                A trailing NIO routes all local router connections through one thread.\n" + 
         "   load         loads the file in the parameter PATH and instantiates a network manager\n" +
         "   clear        removes all configurations from mote NUMBER\n" +
         "   get          downloads the application with name NAME\n" +
@@ -149,6 +163,7 @@ public class TitanCommand implements MessageListener {
         "   stop         stops the execution of network manager with configuration number ID\n" +
         "   help         Prints this message screen\n" +
         "   node         start / stop local execution nodes\n" +
+        "   stats        requests the task statistics of local node NUMBER [RUNID]\n" +
         " Test commands:\n" + 
         "   adctest      Loads a ADC test config onto node NUMBER\n" +
         "   ledtest      Loads a LED test config onto node NUMBER\n" +
@@ -172,6 +187,15 @@ public class TitanCommand implements MessageListener {
       } 
       
       if (args[1].compareTo("start") == 0) {
+         // serve the local router connections from one selector thread
+         boolean nio = false;
+         if ((args.length > 2) && (args[args.length - 1].compareToIgnoreCase("nio") == 0)) {
+           nio = true;
+           String[] a = new String[args.length - 1];
+           System.arraycopy(args, 0, a, 0, a.length);
+           args = a;
+         }
+
          if ((args.length > 2) && (args[2].compareToIgnoreCase("sim")==0)) {
            System.out.println("Starting Titan in SIMULATION MODE");
            m_Comm = new TitanCommunicateRouter(TitanCommunicate.SIM, null);
@@ -182,13 +206,13 @@ public class TitanCommand implements MessageListener {
            //m_Comm.SimAddChannel("TitanComm"); //cl debug 
          } else if ((args.length > 2) && (args[2].compareToIgnoreCase("bt")==0 || args[2].compareToIgnoreCase("bluetooth")==0)) {
            System.out.println("Starting Titan in BLUETOOTH MODE");
-           m_MasterRouter = new TitanMasterRouter(TitanCommunicate.BLUETOOTH);
+           m_MasterRouter = new TitanMasterRouter(TitanCommunicate.BLUETOOTH, nio);
          } else if ((args.length > 2) && (args[2].compareToIgnoreCase("tmote")==0)){
            System.out.println("Starting Titan in TMOTE MODE");
-           m_MasterRouter = new TitanMasterRouter(TitanCommunicate.TMOTE);
+           m_MasterRouter = new TitanMasterRouter(TitanCommunicate.TMOTE, nio);
          } else if ((args.length == 2) || (args[2].compareToIgnoreCase("tcp")==0)){
            System.out.println("Starting Titan in TCP_ONLY MODE");
-           m_MasterRouter = new TitanMasterRouter(TitanCommunicate.TCP_ONLY);
+           m_MasterRouter = new TitanMasterRouter(TitanCommunicate.TCP_ONLY, nio);
          } else {
            System.err.println("Unknown communication interface");
            return 0;
@@ -444,6 +468,31 @@ public class TitanCommand implements MessageListener {
             System.out.println("failed");
          }
 
+      ////////////////////////////////////////////////////////////////////////
+      // STATS - task statistics of a local node
+      } else if (args[1].compareTo("stats") == 0) {
+
+         if (args.length != 3 && args.length != 4) {
+            System.out.println("Usage: titan stats NODEID [RUNID]");
+            return -1;
+         }
+
+         short[] fwdconfig = {
+            (short) ((TC_VERSION << 4) | TITANCOMM_STATS), // msg type
+            0, 0, // reply to the master
+            (short) ((args.length == 4) ? Integer.parseInt(args[3]) : 0xFF) // task, 0xFF: all
+         };
+
+         SerialMsg msg = new SerialMsg(fwdconfig.length + SerialMsg.DEFAULT_MESSAGE_SIZE);
+
+         msg.set_length((short) fwdconfig.length);
+         msg.set_address(Integer.parseInt(args[2]));
+         msg.set_data(fwdconfig);
+
+         if (!m_Comm.send(0, msg)) {
+            System.out.println("failed");
+         }
+
       ////////////////////////////////////////////////////////////////////////
       // SERVICES - list 
       } else if (args[1].compareTo("services") == 0) {
@@ -645,7 +694,7 @@ public class TitanCommand implements MessageListener {
       // NODE - titan local node commands
       } else if (args[1].compareTo("node") == 0 ) {
         if (args.length < 3) {
-          System.out.println("Usage: titan node COMMAND\n\nWhere COMMAND can be:\n   start [<node_id> <tcp_port>]\n   stop [<node_id>]");
+          System.out.println("Usage: titan node COMMAND\n\nWhere COMMAND can be:\n   start [<node_id> <tcp_port>] [diff] [pooled] [batch[:<bytes>[:<ms>]]] [cache:<file>] [credits:<window>] [stats]\n   stop [<node_id>]");
           return -1;
         }
 
@@ -653,8 +702,62 @@ public class TitanCommand implements MessageListener {
         else if (args[2].compareTo("start") == 0) {
           int node_id = -1;
           int tcp_port = -1;
+          int exec_mode = TitanLocalNode.EXEC_THREADED;
+          int reconfig_mode = TitanLocalNode.RECONFIG_FULL;
+          int batch_size = 0;
+          int batch_ms = 0;
+          File cache_file = null;
+          int credit_window = LinkCredits.DEFAULT_WINDOW;
+          boolean stats = false;
+          int argc = args.length;
+
+          // keep task statistics, readable over JMX and with "titan stats"
+          if (args[argc - 1].compareToIgnoreCase("stats") == 0) {
+            stats = true;
+            argc--;
+          }
+
+          // packets other nodes may send ahead to a port of the node, 0: no flow control
+          if (args[argc - 1].toLowerCase().startsWith("credits:")) {
+            credit_window = Integer.parseInt(args[argc - 1].substring(8), 10);
+            if (credit_window < 0 || credit_window > LinkCredits.MAX_GRANT) {
+              System.err.println("invalid credit window (0-" + LinkCredits.MAX_GRANT + ")");
+              return -1;
+            }
+            argc--;
+          }
+
+          // keep the configuration cache of the node in a file
+          if (args[argc - 1].toLowerCase().startsWith("cache:")) {
+            cache_file = new File(args[argc - 1].substring(6));
+            argc--;
+          }
+
+          // pack data messages to and from the node into batch frames
+          if (args[argc - 1].toLowerCase().startsWith("batch")) {
+            String[] opt = args[argc - 1].split(":");
+            batch_size = (opt.length > 1) ? Integer.parseInt(opt[1], 10) : TitanTCP.BATCH_FLUSH_SIZE_DEFAULT;
+            batch_ms = (opt.length > 2) ? Integer.parseInt(opt[2], 10) : TitanTCP.BATCH_FLUSH_MS_DEFAULT;
+            if (batch_size <= 0 || batch_size > TitanTCP.BATCH_MAX_SIZE) {
+              System.err.println("invalid batch size (1-" + TitanTCP.BATCH_MAX_SIZE + ")");
+              return -1;
+            }
+            argc--;
+          }
 
-          if (args.length < 4) {
+          // run all tasks of the node on a shared worker pool
+          if (args[argc - 1].compareToIgnoreCase("pooled") == 0) {
+            exec_mode = TitanLocalNode.EXEC_POOLED;
+            argc--;
+          }
+
+          // keep unchanged tasks running when a new configuration arrives
+          if (args[argc - 1].compareToIgnoreCase("diff") == 0) {
+            reconfig_mode = TitanLocalNode.RECONFIG_DIFFERENTIAL;
+            argc--;
+          }
+
+          if (argc < 4) {
             node_id = TitanLocalNode.LOCAL_NODE_ID_BASE + m_TitanLocalNodes.size();
             if (m_LocalRouter != null)
               node_id += m_LocalRouter.getNetID() << TitanLocalRouter.CLIENT_BITS;
@@ -663,7 +766,7 @@ public class TitanCommand implements MessageListener {
             node_id = Integer.parseInt(args[3], 10);
           }
 
-          if (args.length < 5) {
+          if (argc < 5) {
             int addp = node_id;
             // uncomment for normal operation, when each router has its own ip,
             // i.e. same ports possible for same local node client id
@@ -676,12 +779,18 @@ public class TitanCommand implements MessageListener {
           }
 
           if (TitanLocalNode.getNodeById(m_TitanLocalNodes, node_id) == null) {
-            TitanLocalNode tln = new TitanLocalNode(node_id, tcp_port);
+            TitanLocalNode tln = new TitanLocalNode(node_id, tcp_port, exec_mode);
+            tln.setReconfigMode(reconfig_mode);
+            tln.setCreditWindow(credit_window);
+            tln.setStatsEnabled(stats);
+            if (cache_file != null) {
+              tln.setConfigCache(new NodeConfigCache(NodeConfigCache.DEFAULT_CAPACITY, cache_file));
+            }
             if (tln.start()) {
               m_TitanLocalNodes.add(tln);
               Thread.yield();  // let server thread go into accept(), if it is not already
               System.out.println("started local node (" + node_id + ") on tcp port " + tcp_port);
-              m_Comm.TCPConnect(node_id, "localhost", tcp_port);
+              m_Comm.TCPConnect(node_id, "localhost", tcp_port, batch_size, batch_ms);
             }
             else {
               System.err.println("start of local node failed!");
@@ -790,6 +899,15 @@ public class TitanCommand implements MessageListener {
    public String toString() {
       return "titan";
    }
+
+   /** reads a big endian value of the given number of bytes from a message */
+   private static long getUnsigned(SerialMsg msg, int off, int bytes) {
+      long value = 0;
+      for (int b = 0; b < bytes; b++) {
+         value = (value << 8) | msg.getElement_data(off + b);
+      }
+      return value;
+   }
    ////////////////////////////////////////////////////////////////////////////
    // MessageListener argument
    /**
@@ -813,6 +931,15 @@ public class TitanCommand implements MessageListener {
         return;
       }
 
+      handleMessage(addr, SMsg);
+   }
+
+   /**
+    * Handles a message addressed to the master. Routers deliver to it from
+    * the threads of their connections, so the handlers run one at a time.
+    */
+   private synchronized void handleMessage(int addr, SerialMsg SMsg) {
+
       switch ((SMsg.getElement_data(0) & 0xF)) {
          case TITANCOMM_CONFIG: // this message should not be received
             System.out.println("Configuration message received!");
@@ -838,6 +965,11 @@ public class TitanCommand implements MessageListener {
 
             // print on console
             System.out.println("Configuration " + iConfig + " successfully loaded onto node " + iNodeAddr );
+            if (SMsg.get_length() >= 7) {
+               // differential reconfiguration of a local node
+               int iPauseUs = (SMsg.getElement_data(4) << 16) + (SMsg.getElement_data(5) << 8) + SMsg.getElement_data(6);
+               System.out.println("Data flow on node " + iNodeAddr + " paused for " + iPauseUs + " us during the swap");
+            }
 
             // notify the service directory about what node is alive
             m_ServiceDirectory.nodeIsAlive(iNodeAddr);
@@ -853,6 +985,61 @@ public class TitanCommand implements MessageListener {
          case TITANCOMM_DICS_REP: // forward to service directory
             m_ServiceDirectory.messageReceived(addr, SMsg);
             break;
+         case TITANCOMM_CACHE_REPORT: // a node reports a cached configuration
+            {
+               int iCacheNode = (SMsg.getElement_data(1) << 8) + SMsg.getElement_data(2);
+               int iCacheConfig = SMsg.getElement_data(3);
+               int iSignature = (SMsg.getElement_data(4) << 8) + SMsg.getElement_data(5);
+               m_ServiceDirectory.nodeCachedConfig(iCacheNode, iCacheConfig, iSignature);
+            }
+            break;
+         case TITANCOMM_STATS: // statistics of a task on a local node
+            {
+               int iStatsNode = (SMsg.getElement_data(1) << 8) + SMsg.getElement_data(2);
+               TaskStatsMsg smsg = new TaskStatsMsg(iStatsNode, SMsg.getElement_data(3), SMsg.getElement_data(4),
+                                                    (SMsg.getElement_data(5) << 8) + SMsg.getElement_data(6));
+               if (SMsg.get_length() >= 30) {
+                  smsg.packetsIn      = getUnsigned(SMsg, 7, 4);
+                  smsg.packetsOut     = getUnsigned(SMsg, 11, 4);
+                  smsg.packetsDropped = getUnsigned(SMsg, 15, 4);
+                  smsg.queueHighWater = (int) getUnsigned(SMsg, 19, 2);
+                  smsg.serviceMeanUs  = getUnsigned(SMsg, 21, 3);
+                  smsg.serviceP99Us   = getUnsigned(SMsg, 24, 3);
+                  smsg.serviceMaxUs   = getUnsigned(SMsg, 27, 3);
+                  System.out.println("Node " + iStatsNode + " task " + smsg.runID + " (" + smsg.taskID + "): in " + smsg.packetsIn
+                          + " out " + smsg.packetsOut + " dropped " + smsg.packetsDropped + " queue max " + smsg.queueHighWater
+                          + " service mean " + smsg.serviceMeanUs + " us p99 " + smsg.serviceP99Us + " us max " + smsg.serviceMaxUs + " us");
+               } else {
+                  System.out.println("Node " + iStatsNode + " task " + smsg.runID + " (" + smsg.taskID + "): no statistics");
+               }
+
+               m_ServiceDirectory.nodeIsAlive(iStatsNode);
+               m_msgDispatcher.sendMessage(smsg);
+            }
+            break;
+         case TITANCOMM_CREDIT: // a node grants credits, forward them to the node sending to its port
+            {
+               int iCreditNode = (SMsg.getElement_data(1) << 8) + SMsg.getElement_data(2);
+               int iCreditPort = SMsg.getElement_data(3);
+               int iSender = -1;
+               for (Iterator nmiter = m_NetworkManagers.values().iterator(); nmiter.hasNext() && iSender == -1;) {
+                  iSender = ((NetworkManager) nmiter.next()).getNodeAddrByPort(iCreditNode, iCreditPort);
+               }
+               if (iSender <= 0) {
+                  break;  // the master itself or no sender, data to the master is not limited
+               }
+
+               short[] fwd = new short[SMsg.get_length()];
+               for (int i = 0; i < fwd.length; i++) {
+                  fwd[i] = SMsg.getElement_data(i);
+               }
+               SerialMsg cmsg = new SerialMsg(fwd.length + SerialMsg.DEFAULT_MESSAGE_SIZE);
+               cmsg.set_length((short) fwd.length);
+               cmsg.set_address(iSender);
+               cmsg.set_data(fwd);
+               m_Comm.send(0, cmsg);
+            }
+            break;
          case TITANCOMM_DATAMSG:
 
             // extract message content and send to DataComm
@@ -892,6 +1079,9 @@ public class TitanCommand implements MessageListener {
             }
 
             m_ServiceDirectory.nodeIsAlive(iNodeID);
+            if (iErrType == ERROR_NO_CACHE_ENTRY) {
+               m_ServiceDirectory.nodeUncachedConfig(iNodeID, iConfigID);
+            }
 
             ErrorMsg emsg = new ErrorMsg(iNodeID, iConfigID, iErrSource, iErrType);
             m_msgDispatcher.sendMessage(emsg);
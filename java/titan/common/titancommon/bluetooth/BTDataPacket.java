@@ -10,23 +10,75 @@ import java.util.Date;
 import java.util.Vector;
 
 /**
+ * The values of a packet are either given as a Vector of Character, Short
+ * and Integer objects, or as an int array together with the type of each
+ * value (TYPE_*), as decoded by the FrameParser. In the latter case, the
+ * Vector is only created if getValues() is called.
  *
  * @author Clemens Lombriser <lombriser@ife.ee.ethz.ch>
  */
 public class BTDataPacket {
 
-   private Date   m_timestamp;
-   private Date   m_original_timestamp;
+   public static final char TYPE_CHAR  = 'c';
+   public static final char TYPE_SHORT = 's';
+   public static final char TYPE_INT   = 'i';
+
+   private long   m_timestamp;
+   private long   m_original_timestamp;
    private Vector m_data;
+   private int [] m_values; // null if the packet has been created from a Vector
+   private char[] m_types;
    private String m_sensorname;
    private String[]m_channels;
    
    public BTDataPacket(Date timestamp, Vector data, String sensorname, String [] channels) {
-      m_original_timestamp = m_timestamp = timestamp;
+      m_original_timestamp = m_timestamp = timestamp.getTime();
       m_data = data;
       m_sensorname = sensorname;
       m_channels = channels;
    }
+
+   /**
+    * Creates a packet backed by primitive arrays.
+    * @param values the values, characters and shorts are stored as their 16 bit value
+    * @param types  TYPE_* of each value, may be shared between packets
+    */
+   public BTDataPacket(long timestamp, int [] values, char [] types, String sensorname, String [] channels) {
+      m_original_timestamp = m_timestamp = timestamp;
+      m_values = values;
+      m_types = types;
+      m_sensorname = sensorname;
+      m_channels = channels;
+   }
+
+   /**
+    * Prepares a packet backed by primitive arrays for the next frame, the 
+    * FrameParser decodes into the values returned by getValueArray().
+    */
+   void reuse(long timestamp) {
+      m_original_timestamp = m_timestamp = timestamp;
+      m_data = null;
+   }
+
+   int [] getValueArray() {
+      return m_values;
+   }
+
+   /**
+    * @return a packet backed by primitive arrays with its own copy of the values
+    */
+   BTDataPacket copy() {
+      BTDataPacket dp = new BTDataPacket(m_original_timestamp, (int [])m_values.clone(), m_types, m_sensorname, m_channels);
+      dp.m_timestamp = m_timestamp;
+      return dp;
+   }
+
+   /**
+    * @return number of values in this packet
+    */
+   public int getValueCount() {
+      return (m_values != null)? m_values.length : m_data.size();
+   }
    
    public String getSensorname() {
       return m_sensorname;
@@ -37,14 +89,28 @@ public class BTDataPacket {
    }
    
    public Vector getValues() {
+      if (m_data == null) {
+         m_data = new Vector(m_values.length);
+         for (int i=0; i<m_values.length; i++) {
+            switch (m_types[i]) {
+               case TYPE_CHAR:  m_data.add(new Character((char)m_values[i])); break;
+               case TYPE_SHORT: m_data.add(new Short((short)m_values[i]));    break;
+               default:         m_data.add(new Integer(m_values[i]));
+            }
+         }
+      }
       return m_data;
    }
    
    public long getTimestamp() {
-      return m_timestamp.getTime();
+      return m_timestamp;
    }
    
    public void setTimestamp(Date timestamp) {
+      m_timestamp = timestamp.getTime();
+   }
+
+   public void setTimestamp(long timestamp) {
       m_timestamp = timestamp;
    }
 
@@ -52,8 +118,8 @@ public class BTDataPacket {
     * @return short data which are saved in the BTDataPacket
     */
    public short[] getShortArray() {
-       short m_short[] = new short[m_data.size()];
-       for( int i=0; i<m_data.size(); i++) {
+       short m_short[] = new short[getValueCount()];
+       for( int i=0; i<m_short.length; i++) {
            try {
                m_short[i] = getShortValue(i);
             } catch(IndexOutOfBoundsException e) {
@@ -72,7 +138,7 @@ public class BTDataPacket {
     * @return
     */
    public Date getOriginalTimestamp() {
-      return m_original_timestamp;
+      return new Date(m_original_timestamp);
    }
    
    /**
@@ -80,18 +146,30 @@ public class BTDataPacket {
     * @return data contained within the packet
     */
    public String toString() {
-      String strMessage = printDigits(m_timestamp.getTime(),12,true);
+      StringBuffer strMessage = new StringBuffer(printDigits(m_timestamp,12,true));
       
       // print individual values - special handling for Characters
+      if (m_values != null) {
+         for(int i=0; i < m_values.length;i++) {
+            strMessage.append(' ');
+            if ( m_types[i] == TYPE_CHAR ) {
+               strMessage.append(Character.getNumericValue((char)m_values[i]));
+            } else {
+               strMessage.append(m_values[i]);
+            }
+         }
+         return strMessage.toString();
+      }
+
       for(int i=0; i < m_data.size();i++) {
          if ( m_data.get(i) instanceof Character) {
-            strMessage += " " + Character.getNumericValue(((Character)m_data.get(i)).charValue());
+            strMessage.append(" " + Character.getNumericValue(((Character)m_data.get(i)).charValue()));
          } else {
-            strMessage += " " + m_data.get(i);
+            strMessage.append(" " + m_data.get(i));
          }
       }
       
-      return strMessage;
+      return strMessage.toString();
    }
 
    /**
@@ -102,7 +180,14 @@ public class BTDataPacket {
     * @throws java.io.InvalidClassException thrown if data does not contain any known data type
     */
    public short getShortValue(int index) throws IndexOutOfBoundsException, InvalidClassException {
-      if ( index >= m_data.size()) throw new IndexOutOfBoundsException();
+      if ( index >= getValueCount()) throw new IndexOutOfBoundsException();
+
+      if (m_values != null) {
+         if (m_types[index] == TYPE_INT) {
+            throw new InvalidClassException("Unkown data type within DataPacket value");
+         }
+         return (short) m_values[index];
+      }
 
       Object obj = m_data.get(index);
 
@@ -127,7 +212,11 @@ public class BTDataPacket {
     * @throws java.io.InvalidClassException thrown if data does not contain any known data type
     */
    public int getIntValue(int index) throws IndexOutOfBoundsException, InvalidClassException {
-      if ( index >= m_data.size()) throw new IndexOutOfBoundsException();
+      if ( index >= getValueCount()) throw new IndexOutOfBoundsException();
+
+      if (m_values != null) {
+         return m_values[index];
+      }
       
       Object obj = m_data.get(index);
       
@@ -146,6 +235,41 @@ public class BTDataPacket {
       return value;
    }
    
+   /**
+    * Retrieves the bits the element at position index has in the frame. 
+    * Signed values are sign extended when decoded, masking them gives the 
+    * raw counter: 8 bits for chars, 16 bits for shorts and 32 bits for ints.
+    * @param index
+    * @return the mask of the bits of the field
+    * @throws java.lang.IndexOutOfBoundsException thrown when index is too high
+    * @throws java.io.InvalidClassException thrown if data does not contain any known data type
+    */
+   public long getWidthMask(int index) throws IndexOutOfBoundsException, InvalidClassException {
+      if ( index >= getValueCount()) throw new IndexOutOfBoundsException();
+
+      char type;
+      if (m_values != null) {
+         type = m_types[index];
+      } else {
+         Object obj = m_data.get(index);
+         if (obj instanceof Character) {
+            type = TYPE_CHAR;
+         } else if (obj instanceof Short) {
+            type = TYPE_SHORT;
+         } else if (obj instanceof Integer) {
+            type = TYPE_INT;
+         } else {
+            throw new InvalidClassException("Unkown data type within DataPacket value");
+         }
+      }
+
+      switch (type) {
+         case TYPE_CHAR:  return 0xFFL;
+         case TYPE_SHORT: return 0xFFFFL;
+         default:         return 0xFFFFFFFFL;
+      }
+   }
+   
    /**
     * Retrieves the maximal value for the element at position index.
     * @param index
@@ -154,7 +278,15 @@ public class BTDataPacket {
     * @throws java.io.InvalidClassException thrown if data does not contain any known data type
     */
    public long getMaxValue(int index) throws IndexOutOfBoundsException, InvalidClassException {
-      if ( index >= m_data.size()) throw new IndexOutOfBoundsException();
+      if ( index >= getValueCount()) throw new IndexOutOfBoundsException();
+
+      if (m_values != null) {
+         switch (m_types[index]) {
+            case TYPE_CHAR:  return Character.MAX_VALUE;
+            case TYPE_SHORT: return Short.MAX_VALUE;
+            default:         return Integer.MAX_VALUE;
+         }
+      }
       
       Object obj = m_data.get(index);
       
@@ -164,7 +296,7 @@ public class BTDataPacket {
          value = Character.MAX_VALUE;
       } else if (obj instanceof Short) {
          value = Short.MAX_VALUE;
-      } if (obj instanceof Integer) {
+      } else if (obj instanceof Integer) {
          value = Integer.MAX_VALUE;
       } else {
          throw new InvalidClassException("Unkown data type within DataPacket value");
@@ -13,12 +13,163 @@ import java.util.Vector;
  * This class realigns DataPackets for continuous streams. This evens out bursts
  * of packets occurring during wireless transmission.
  * 
+ * An instance aligns the packets of one sensor while they arrive. It fits a 
+ * line through the arrival times over the sequence numbers of the last 
+ * packets, which follows the drift of the sensor clock against the local 
+ * one, and gives every packet the time on that line. The static realign() 
+ * works on a complete list of packets instead.
+ * 
  * @author Clemens Lombriser <lombriser@ife.ee.ethz.ch>
  */
 public class PacketAligner {
 
    private static final int TIMESTAMPINDEX = 0;
    
+   /** number of packets the drift is estimated from by default */
+   public static final int DEFAULT_WINDOW = 128;
+   
+   /** the estimate is restarted if a packet arrives that far off the line (ms) */
+   public static final long RESET_DEVIATION = 5000;
+   
+   // arrival times over unwrapped sequence numbers, relative to m_baseSeq and m_baseTime
+   private long[]   m_seqs;
+   private double[] m_times;
+   private int      m_head;
+   private int      m_count;
+   
+   private long     m_baseSeq;
+   private long     m_baseTime;
+   private long     m_lastSeq;     // last unwrapped sequence number
+   private long     m_wrap;        // added to the sequence numbers after overflows
+   private boolean  m_bStarted;
+   
+   // current line: time = m_offset + m_slope * (seq - m_baseSeq) + m_baseTime
+   private double   m_offset;
+   private double   m_slope;
+   private boolean  m_bFitted;
+   
+   public PacketAligner() {
+      this(DEFAULT_WINDOW);
+   }
+   
+   /**
+    * @param window number of packets the drift is estimated from
+    */
+   public PacketAligner(int window) {
+      m_seqs  = new long[window];
+      m_times = new double[window];
+   }
+   
+   /**
+    * Adds the arrival of a packet to the estimate and sets its timestamp to 
+    * the one on the estimated line. The first value of the packet must be 
+    * its sequence number.
+    * @param packet packet with its arrival time as timestamp
+    * @return the aligned timestamp
+    */
+   public long align(BTDataPacket packet) {
+      long arrival = packet.getTimestamp();
+      long seq;
+      try {
+         seq = unwrap(packet.getIntValue(TIMESTAMPINDEX), packet.getWidthMask(TIMESTAMPINDEX));
+      } catch (IndexOutOfBoundsException ex) {
+         return arrival;
+      } catch (InvalidClassException ex) {
+         return arrival;
+      }
+      
+      if (!m_bStarted) {
+         reset(seq, arrival);
+      } else if (m_bFitted && Math.abs(estimate(seq) - arrival) > RESET_DEVIATION) {
+         // sensor restarted or lost a lot of packets
+         System.out.println("WARNING: PacketAligner: packet " + seq + " far off the estimated time, restarting alignment");
+         reset(seq, arrival);
+      }
+      
+      // late duplicates and out-of-sequence packets do not move the line
+      if (seq > m_lastSeq || m_count == 0) {
+         int slot = (m_head + m_count) % m_seqs.length;
+         if (m_count == m_seqs.length) {
+            m_head = (m_head + 1) % m_seqs.length;
+         } else {
+            m_count++;
+         }
+         m_seqs[slot]  = seq - m_baseSeq;
+         m_times[slot] = arrival - m_baseTime;
+         m_lastSeq = seq;
+         fit();
+      }
+      
+      long aligned = m_bFitted ? estimate(seq) : arrival;
+      packet.setTimestamp(aligned);
+      return aligned;
+   }
+   
+   /** @return the estimated time between two packets of the sensor in ms, 0 if unknown */
+   public double getPeriod() {
+      return m_bFitted ? m_slope : 0;
+   }
+   
+   private void reset(long seq, long arrival) {
+      m_baseSeq  = seq;
+      m_baseTime = arrival;
+      m_lastSeq  = seq;
+      m_head     = 0;
+      m_count    = 0;
+      m_bFitted  = false;
+      m_bStarted = true;
+   }
+   
+   /**
+    * @param rawSeq sequence number as decoded, signed counters are sign extended
+    * @param mask   bits of the sequence number in the frame, see BTDataPacket.getWidthMask()
+    */
+   private long unwrap(int rawSeq, long mask) {
+      long seq = (rawSeq & mask) + m_wrap;
+      if (m_bStarted && seq < m_lastSeq - mask/2) {
+         // the sequence number overflowed
+         m_wrap += mask + 1;
+         seq += mask + 1;
+      }
+      return seq;
+   }
+   
+   private long estimate(long seq) {
+      return m_baseTime + Math.round(m_offset + m_slope * (seq - m_baseSeq));
+   }
+   
+   /** least squares fit of the line through the packets in the window */
+   private void fit() {
+      if (m_count < 3) {
+         m_bFitted = false;
+         return;
+      }
+      
+      // relative to the oldest packet to keep the sums small
+      int  oldest = m_head;
+      long x0 = m_seqs[oldest];
+      double y0 = m_times[oldest];
+      double sx = 0, sy = 0, sxx = 0, sxy = 0;
+      for (int i=0; i<m_count; i++) {
+         int slot = (m_head + i) % m_seqs.length;
+         double x = m_seqs[slot] - x0;
+         double y = m_times[slot] - y0;
+         sx  += x;
+         sy  += y;
+         sxx += x*x;
+         sxy += x*y;
+      }
+      
+      double denom = m_count*sxx - sx*sx;
+      if (denom <= 0) {
+         m_bFitted = false;
+         return;
+      }
+      m_slope  = (m_count*sxy - sx*sy) / denom;
+      m_offset = y0 + (sy - m_slope*sx)/m_count - m_slope*x0;
+      m_bFitted = true;
+   }
+   
    /**
     * Takes a list of packets and realigns all packets between the first and 
     * last packet to be in a line. This assumes that the first value of the 
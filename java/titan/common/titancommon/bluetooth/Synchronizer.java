@@ -5,6 +5,7 @@
 
 package titancommon.bluetooth;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Observable;
@@ -15,17 +16,164 @@ import java.util.Vector;
 
 /**
  * Generates a synchronized sampling of multiple datachannels
- * 
- * 
+ *
+ * The packets of every sensor are aligned by a PacketAligner when they
+ * arrive, which corrects the drift of the sensor clock, and their values are
+ * kept in a ring buffer of fixed size. Every sample period, the values of all
+ * sensors are interpolated for the time delayPeriod ago into one frame. The
+ * buffers and the frame are only allocated when a sensor is added, so the
+ * memory used does not grow while running.
+ *
+ * FrameListeners get the frame in a buffer that is reused for the next
+ * frame. Observers get a BTDataPacket for every frame.
+ *
  * @author Clemens Lombriser <lombriser@ife.ee.ethz.ch>
  */
 public class Synchronizer extends TimerTask implements Observer {
 
-   private HashMap m_channels;
+   /** packets kept per sensor by default */
+   public static final int DEFAULT_CAPACITY = 256;
+
+   /**
+    * Receives the synchronized frames without creating a packet for every
+    * frame.
+    */
+   public interface FrameListener {
+      /**
+       * @param timestamp time of the frame
+       * @param values    values of all channels, only valid during the call
+       * @param types     BTDataPacket.TYPE_* of every value
+       * @param channels  names of the channels
+       */
+      public void frameReceived(long timestamp, int[] values, char[] types, String[] channels);
+   }
+
+   /** aligned packets of one sensor */
+   private class Channel {
+      String        name;
+      PacketAligner aligner = new PacketAligner();
+      int           numValues;
+      char[]        types;
+      long[]        times;
+      int[]         values;   // numValues per packet
+      int           head;
+      int           size;
+      long          dropped;  // packets dropped because the buffer was full
+
+      Channel(String sensorname, int iNumValues) {
+         name = sensorname;
+         numValues = iNumValues;
+         types  = new char[numValues];
+         times  = new long[m_capacity];
+         values = new int[m_capacity*numValues];
+      }
+
+      int index(int i) {
+         return (head + i) % times.length;
+      }
+
+      void add(BTDataPacket packet) {
+         long timestamp = packet.getTimestamp();
+
+         // drop the oldest packet if the buffer is full
+         if (size == times.length) {
+            head = index(1);
+            size--;
+            dropped++;
+         }
+
+         // aligned packets arrive in order, unless the alignment restarted
+         int pos = size;
+         while (pos > 0 && times[index(pos-1)] > timestamp) {
+            copy(index(pos-1), index(pos));
+            pos--;
+         }
+
+         int slot = index(pos);
+         times[slot] = timestamp;
+         int count = Math.min(numValues, packet.getValueCount());
+         for (int i=0; i<count; i++) {
+            try {
+               values[slot*numValues+i] = packet.getIntValue(i);
+            } catch (java.io.InvalidClassException ex) {
+               values[slot*numValues+i] = 0;
+            }
+         }
+         for (int i=count; i<numValues; i++) {
+            values[slot*numValues+i] = 0;
+         }
+         size++;
+      }
+
+      private void copy(int from, int to) {
+         times[to] = times[from];
+         System.arraycopy(values, from*numValues, values, to*numValues, numValues);
+      }
+
+      /**
+       * Writes the values for the time into frame, dropping the packets that
+       * are not needed anymore.
+       * @return false if there are no packets
+       */
+      boolean sample(long sampleTime, int[] frame, int off) {
+         if (size == 0) return false;
+
+         // retrieve as many packets until one is older and one is newer than sampleTime
+         while(true) {
+            int older = index(0);
+            if ( size == 1 || sampleTime <= times[older] ) { // only one value left in the queue - copy that one
+               System.arraycopy(values, older*numValues, frame, off, numValues);
+               return true;
+            }
+            int newer = index(1);
+            if ( times[older] < sampleTime && sampleTime < times[newer] ) {
+               subsample(sampleTime, older, newer, frame, off);
+               return true;
+            }
+
+            // remove one element
+            head = newer;
+            size--;
+         }
+      }
+
+      /**
+       * Subsamples two consecutive values and weighs them according to the distance
+       * to the point in time requested.
+       */
+      private void subsample(long timepoint, int older, int newer, int[] frame, int off) {
+
+         // compute weights
+         long diffold = timepoint - times[older];
+         long diffnew = times[newer] - timepoint;
+         double oldweight = (double)diffnew / (double) (diffold+diffnew);
+         double newweight = (double)diffold / (double) (diffold+diffnew);
+
+         for (int i=0; i<numValues; i++) {
+            double value = (double)values[older*numValues+i]*oldweight + (double)values[newer*numValues+i]*newweight;
+            switch (types[i]) {
+               case BTDataPacket.TYPE_CHAR:  frame[off+i] = (char)value;  break;
+               case BTDataPacket.TYPE_SHORT: frame[off+i] = (short)value; break;
+               default:                      frame[off+i] = (int)value;
+            }
+         }
+      }
+   }
+
+   private HashMap/*<String,Channel>*/ m_channels;
+   private ArrayList/*<Channel>*/ m_channelList; ///< sensors in the order their values appear in the frame
    private int m_samplePeriod;
    private int m_delayPeriod;
+   private int m_capacity = DEFAULT_CAPACITY;
    private Timer m_timer;
-   
+
+   // the frame, reallocated when a sensor is added
+   private int[]    m_frame       = new int[0];
+   private char[]   m_frameTypes  = new char[0];
+   private String[] m_frameChannels = new String[0];
+
+   private ArrayList/*<FrameListener>*/ m_listeners = new ArrayList();
+
    private class SyncObs extends Observable {
       public void reportValues(BTDataPacket dp) {
          setChanged();
@@ -33,163 +181,151 @@ public class Synchronizer extends TimerTask implements Observer {
       }
    }
    private SyncObs m_obs = new SyncObs();
-   
-   
+
+
    public Synchronizer() {
       m_channels = new HashMap();
+      m_channelList = new ArrayList();
    }
-   
+
    public Synchronizer(int delayPeriod, int samplePeriod) {
-      m_channels = new HashMap();
+      this();
       m_samplePeriod = samplePeriod;
       m_delayPeriod  = delayPeriod;
    }
-   
+
+   /**
+    * @param capacity packets kept per sensor, should cover delayPeriod
+    */
+   public Synchronizer(int delayPeriod, int samplePeriod, int capacity) {
+      this(delayPeriod, samplePeriod);
+      m_capacity = capacity;
+   }
+
    public void addObserver(Observer obs) {
       m_obs.addObserver(obs);
    }
-   
+
    public void deleteObserver(Observer obs) {
       m_obs.deleteObserver(obs);
    }
-   
+
+   public synchronized void addFrameListener(FrameListener listener) {
+      m_listeners.add(listener);
+   }
+
+   public synchronized void removeFrameListener(FrameListener listener) {
+      m_listeners.remove(listener);
+   }
+
+   /** @return the estimated time between two packets of the sensor in ms, 0 if unknown */
+   public synchronized double getPacketPeriod(String sensorname) {
+      Channel ch = (Channel)m_channels.get(sensorname);
+      return (ch != null)? ch.aligner.getPeriod() : 0;
+   }
+
+   /** @return the number of packets of the sensor dropped because its buffer was full */
+   public synchronized long getDroppedPackets(String sensorname) {
+      Channel ch = (Channel)m_channels.get(sensorname);
+      return (ch != null)? ch.dropped : 0;
+   }
+
    /**
-    * Expects incoming packets coming e.g. from a StreamDecoder.
-    * 
+    * Expects incoming packets coming e.g. from a StreamDecoder. The timestamp
+    * of the packets is replaced by the aligned one.
+    *
     * @param obs the observable object
-    * @param arg the 
+    * @param arg the
     */
    public void update(Observable obs, Object arg) {
       if (arg instanceof BTDataPacket) {
          BTDataPacket packet = (BTDataPacket)arg;
-         PacketQueue pq = (PacketQueue)m_channels.get(packet.getSensorname());
-         
-         // create new packet queue if not existing yet
-         if (pq==null) {
-            System.out.println("Synchronizer: adding new channel: " + packet.getSensorname());
-            pq = new PacketQueue();
-            m_channels.put(packet.getSensorname(), pq );
-            if (m_channels.size() == 1) {
-               m_timer = new Timer();
-               m_timer.scheduleAtFixedRate(this, m_delayPeriod, m_samplePeriod); // schedule first after the buffer delay
+         boolean bStartTimer = false;
+
+         synchronized (this) {
+            Channel ch = (Channel)m_channels.get(packet.getSensorname());
+
+            // create new channel if not existing yet
+            if (ch == null) {
+               System.out.println("Synchronizer: adding new channel: " + packet.getSensorname());
+               ch = addChannel(packet);
+               bStartTimer = (m_channels.size() == 1);
             }
+
+            ch.aligner.align(packet);
+            ch.add(packet);
          }
-         
-         // insert packet into queue
-         pq.offer( packet );
-         
+
          // start timer if this was the first packet
-         
+         if (bStartTimer) {
+            m_timer = new Timer();
+            m_timer.scheduleAtFixedRate(this, m_delayPeriod, m_samplePeriod); // schedule first after the buffer delay
+         }
+
       } else {
          System.out.println("Synchronizer: got unknown update");
       }
    }
 
-   
+   private Channel addChannel(BTDataPacket packet) {
+      Channel ch = new Channel(packet.getSensorname(), packet.getValueCount());
+      for (int i=0; i<ch.numValues; i++) {
+         try {
+            long max = packet.getMaxValue(i);
+            ch.types[i] = (max == Character.MAX_VALUE)? BTDataPacket.TYPE_CHAR :
+                          (max == Short.MAX_VALUE)? BTDataPacket.TYPE_SHORT : BTDataPacket.TYPE_INT;
+         } catch (java.io.InvalidClassException ex) {
+            ch.types[i] = BTDataPacket.TYPE_INT;
+         }
+      }
+      m_channels.put(ch.name, ch);
+      m_channelList.add(ch);
+
+      // concat channels
+      int size = m_frame.length + ch.numValues;
+      int[]    frame    = new int[size];
+      char[]   types    = new char[size];
+      String[] channels = new String[size];
+      System.arraycopy(m_frameTypes, 0, types, 0, m_frameTypes.length);
+      System.arraycopy(m_frameChannels, 0, channels, 0, m_frameChannels.length);
+      String[] names = packet.getChannels();
+      for (int j=0; j<ch.numValues; j++) {
+         types[m_frame.length+j] = ch.types[j];
+         channels[m_frame.length+j] = ch.name + "_" + ((names != null && j < names.length)? names[j] : String.valueOf(j));
+      }
+      m_frame = frame;
+      m_frameTypes = types;
+      m_frameChannels = channels;
+      return ch;
+   }
+
+
    /**
     * This function is called by the timer - do here the resampling.
     */
-   public void run() {
-      
-      Date sampleTime = new Date((new Date()).getTime() - m_delayPeriod);
-      Vector values = new Vector();
-      String sensorname = "Synchronizer";
-      String [] channels = new String[0];
-      
-      // get all the packetqueues
-      Object[] queues = m_channels.values().toArray();
-      //PacketQueue[] queues = (PacketQueue[]) obs;
-
-      // go through each of the queues and subsample the data
-      for(int i=0; i<queues.length; i++) {
-         
-         // realign datapackets - update timestamps
-         PacketAligner.realign(((PacketQueue)queues[i]).getAllPackets());
-         
-         // Java does not allow direct casting (at runtime)
-         Object [] objpkts = ((PacketQueue)queues[i]).peekN(2);
-         BTDataPacket [] pkts = new BTDataPacket[2];
-         pkts[0] = (BTDataPacket)objpkts[0];
-         pkts[1] = (BTDataPacket)objpkts[1];
-
-         if (pkts[0] == null) {
+   public synchronized void run() {
+
+      long sampleTime = System.currentTimeMillis() - m_delayPeriod;
+
+      // go through each of the sensors and subsample the data
+      int off = 0;
+      for(int i=0; i<m_channelList.size(); i++) {
+         Channel ch = (Channel)m_channelList.get(i);
+         if (!ch.sample(sampleTime, m_frame, off)) {
             System.out.println("ERROR: Synchronizer: Empty queue found!");
-            continue;
-         }
-         
-         // concat channels
-         String [] newChannels = new String[channels.length + pkts[0].getChannels().length];
-         for (int j=channels.length;j<newChannels.length;j++) {
-            newChannels[j] = pkts[0].getSensorname() + "_" + pkts[0].getChannels()[j-channels.length];
          }
-         channels = newChannels;
-         
-         // retrieve as many DataPackets from the queue until one is older and 
-         // one is newer than timepoint
-         while(true) {
-            if ( pkts[1] == null || sampleTime.getTime() <= pkts[0].getTimestamp() ) { // only one value left in the queue - copy that one
-               values.addAll(pkts[0].getValues());
-               break;
-            } else if (  pkts[0].getTimestamp() < sampleTime.getTime() && sampleTime.getTime() < pkts[1].getTimestamp() ) {
-               values.addAll(subsample(sampleTime.getTime(),pkts[0],pkts[1]));
-               break;
-            }
-            
-            // remove one element and update pkts
-            ((PacketQueue)queues[i]).poll();
-            objpkts = ((PacketQueue)queues[i]).peekN(2);
-            pkts = new BTDataPacket[2];
-            pkts[0] = (BTDataPacket)objpkts[0];
-            pkts[1] = (BTDataPacket)objpkts[1];
-         }
-            
+         off += ch.numValues;
       } // for i
-      
-      BTDataPacket outPacket = new BTDataPacket(sampleTime,values,sensorname,channels);
-      m_obs.reportValues(outPacket);
-      
-   }
-   
-   /**
-    * Subsamples two consecutive values and weighs them according to the distance 
-    * to the point in time requested.
-    * @param timepoint
-    * @param pktOlder
-    * @param pktNewer
-    * @return
-    */
-   public Vector subsample(long timepoint, BTDataPacket pktOlder, BTDataPacket pktNewer) {
-      
-      // compute weights
-      long diffold = timepoint - pktOlder.getTimestamp();
-      long diffnew = pktNewer.getTimestamp() - timepoint;
-      double oldweight = (double)diffnew / (double) (diffold+diffnew);
-      double newweight = (double)diffold / (double) (diffold+diffnew);
-      
-      Vector olddata = pktOlder.getValues();
-      Vector newdata = pktNewer.getValues();
-      
-      Vector subsampled = new Vector(olddata.size());
-
-      for(int i=0; i<olddata.size(); i++) {
-         Object testvalue = olddata.get(i);
-         if (testvalue instanceof Integer) {
-            Integer oldvalue = (Integer)olddata.get(i);
-            Integer newvalue = (Integer)newdata.get(i);
-            subsampled.add(i, new Integer( (int)((double)oldvalue.intValue()*oldweight + (double)newvalue.intValue()*newweight)));
-         } else if (testvalue instanceof Short) {
-            Short oldvalue = (Short)olddata.get(i);
-            Short newvalue = (Short)newdata.get(i);
-            subsampled.add(i, new Short( (short)((double)oldvalue.shortValue()*oldweight + (double)newvalue.shortValue()*newweight)));
-         } else if (testvalue instanceof Character ) {
-            Character oldvalue = (Character)olddata.get(i);
-            Character newvalue = (Character)newdata.get(i);
-            subsampled.add(i, new Character( (char)((double)oldvalue.charValue()*oldweight + (double)newvalue.charValue()*newweight)));
-         }
-         
+
+      for (int i=0; i<m_listeners.size(); i++) {
+         ((FrameListener)m_listeners.get(i)).frameReceived(sampleTime, m_frame, m_frameTypes, m_frameChannels);
+      }
+
+      if (m_obs.countObservers() > 0) {
+         BTDataPacket outPacket = new BTDataPacket(sampleTime, (int[])m_frame.clone(), m_frameTypes, "Synchronizer", m_frameChannels);
+         m_obs.reportValues(outPacket);
       }
-      
-      return subsampled;
+
    }
 
    /**
@@ -197,7 +333,7 @@ public class Synchronizer extends TimerTask implements Observer {
     * @param args
     */
    public static void main(String [] args ){
-      
+
       System.out.println("Testing Synchronizer class");
       int delayPeriod =  400;
       int samplePeriod = 300;
@@ -207,8 +343,8 @@ public class Synchronizer extends TimerTask implements Observer {
             System.out.println( ((BTDataPacket)arg));
          }
       });
-      
-      // create datapackets
+
+      // create datapackets, the first value is the sequence number
       Vector a1 = new Vector();
       Vector a2 = new Vector();
       Vector a3 = new Vector();
@@ -219,11 +355,11 @@ public class Synchronizer extends TimerTask implements Observer {
       a1.add(new Integer(  1));
       a2.add(new Integer(  2));
       a3.add(new Integer(  3));
-      
+
       a1.add(new Short((short)  1));
       a2.add(new Short((short)  2));
       a3.add(new Short((short)  3));
-      
+
       a1.add(new Character((char)  1));
       a2.add(new Character((char)  2));
       a3.add(new Character((char)  3));
@@ -257,6 +393,6 @@ public class Synchronizer extends TimerTask implements Observer {
       System.out.println("Packet B2 at: " + dpB2.getTimestamp());
       System.out.println("Packet B3 at: " + dpB3.getTimestamp());
    }
-   
-   
+
+
 }
@@ -0,0 +1,301 @@
+/*
+    This file is part of Titan.
+
+    Titan is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of
+    the License, or (at your option) any later version.
+
+    Titan is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Titan. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package titancommon.compiler;
+
+import java.util.HashMap;
+
+import titancommon.Connection;
+import titancommon.execution.TaskNetwork;
+import titancommon.services.NodeInfo;
+import titancommon.services.ServiceDirectory;
+import titancommon.tasks.Communicator;
+import titancommon.tasks.Task;
+
+/**
+ * Compact representation of a template task network for the compilers. The
+ * compilers search on allocation vectors, which give the node address of
+ * every task, and only convert the final allocation into a TaskNetwork.
+ *
+ * The connections are stored in flat arrays, and the connections of every
+ * task in compressed sparse row form: the connections of task i are
+ * m_AdjConn[m_AdjOffset[i]] to m_AdjConn[m_AdjOffset[i+1]-1], in template
+ * order. Datarates do not depend on the allocation, so they are propagated
+ * once. The metrics of the tasks are computed once per node type.
+ *
+ * The object is not changed after construction and may be shared between
+ * threads.
+ */
+public class AllocationProblem {
+
+    /** task number of the broadcast address in connections */
+    private static final int BROADCAST_TASK = 255;
+
+    ServiceDirectory m_ServiceDirectory;
+    TaskNetwork      m_TemplateNetwork;
+
+    Task[]       m_Tasks;        ///< template tasks with propagated datarates
+    int[]        m_ForcedNode;   ///< node a task is fixed to, -1 if free
+    NodeInfo[][] m_Candidates;   ///< nodes providing the task, null if none
+
+    // task to task connections
+    int[]     m_ConnStart;
+    int[]     m_ConnEnd;
+    boolean[] m_bRated;          ///< whether the Communicator gets a datarate for the connection
+    float[]   m_Rate;
+    int[]     m_Size;
+    boolean   m_bBroadcast;      ///< template has connections from or to the broadcast address
+
+    // connections of every task
+    int[]     m_AdjOffset;
+    int[]     m_AdjConn;
+
+    private HashMap/*<Integer,NodeMetrics>*/   m_NodeMetrics = new HashMap();
+    private HashMap/*<Integer,TaskMetrics[]>*/ m_TaskMetrics = new HashMap();
+
+    /**
+     * @param sd              Fixed view of the network
+     * @param templateNetwork Task network on a single node with address -1
+     */
+    public AllocationProblem(ServiceDirectory sd, TaskNetwork templateNetwork) throws Exception {
+        m_ServiceDirectory = sd;
+        m_TemplateNetwork = templateNetwork;
+
+        TaskNetwork.NodeConfiguration tnet = (TaskNetwork.NodeConfiguration)(templateNetwork.m_Nodes.get(0));
+        if ( tnet.address != -1 ) throw new Exception("First node has not address -1: don't know what to do");
+
+        m_Tasks = new Task[tnet.tasks.length];
+        m_ForcedNode = new int[m_Tasks.length];
+        m_Candidates = new NodeInfo[m_Tasks.length][];
+        for (int i=0; i<m_Tasks.length; i++) {
+            m_Tasks[i] = (Task)tnet.tasks[i].clone();
+            String strNode = tnet.tasks[i].getAttribute("nodeID");
+            m_ForcedNode[i] = (strNode != null)? Integer.parseInt(strNode) : -1;
+            m_Candidates[i] = sd.queryTask(m_Tasks[i].getID());
+        }
+
+        // keep the connections between tasks
+        Connection[] connections = (tnet.connections != null)? tnet.connections : new Connection[0];
+        int iConns = 0;
+        for (int i=0; i<connections.length; i++) {
+            if (connections[i].StartTask == BROADCAST_TASK || connections[i].EndTask == BROADCAST_TASK) {
+                m_bBroadcast = true;
+            } else {
+                iConns++;
+            }
+        }
+        m_ConnStart = new int[iConns];
+        m_ConnEnd   = new int[iConns];
+        int[] startPorts = new int[iConns];
+        int[] endPorts   = new int[iConns];
+        for (int i=0, j=0; i<connections.length; i++) {
+            if (connections[i].StartTask == BROADCAST_TASK || connections[i].EndTask == BROADCAST_TASK) continue;
+            m_ConnStart[j] = connections[i].StartTask;
+            m_ConnEnd[j]   = connections[i].EndTask;
+            startPorts[j]  = connections[i].StartPort;
+            endPorts[j]    = connections[i].EndPort;
+            j++;
+        }
+
+        // count the connections per task, then fill them in
+        m_AdjOffset = new int[m_Tasks.length+1];
+        for (int j=0; j<iConns; j++) {
+            m_AdjOffset[m_ConnStart[j]+1]++;
+            m_AdjOffset[m_ConnEnd[j]+1]++;
+        }
+        for (int i=0; i<m_Tasks.length; i++) {
+            m_AdjOffset[i+1] += m_AdjOffset[i];
+        }
+        m_AdjConn = new int[m_AdjOffset[m_Tasks.length]];
+        int[] fill = (int[])m_AdjOffset.clone();
+        for (int j=0; j<iConns; j++) {
+            m_AdjConn[fill[m_ConnStart[j]]++] = j;
+            m_AdjConn[fill[m_ConnEnd[j]]++] = j;
+        }
+
+        propagateDatarates(startPorts, endPorts);
+
+        // metrics for all types of nodes the tasks can go to
+        for (int i=0; i<m_Candidates.length; i++) {
+            if (m_Candidates[i] == null) continue;
+            for (int j=0; j<m_Candidates[i].length; j++) {
+                Integer type = new Integer(m_Candidates[i][j].nodeType);
+                if (m_NodeMetrics.containsKey(type)) continue;
+
+                NodeMetrics nm = m_Candidates[i][j].getNodeMetrics();
+                TaskMetrics[] tms = new TaskMetrics[m_Tasks.length];
+                for (int k=0; k<m_Tasks.length; k++) {
+                    tms[k] = m_Tasks[k].getMetrics(nm);
+                }
+                m_NodeMetrics.put(type, nm);
+                m_TaskMetrics.put(type, tms);
+            }
+        }
+    }
+
+    /**
+     * Propagates the datarates from the sources to the sinks. Every connection
+     * is visited once in topological order of its start task. Cyclic task
+     * networks are iterated until the datarates do not change anymore.
+     */
+    private void propagateDatarates(int[] startPorts, int[] endPorts) {
+
+        // order the tasks topologically
+        int[] inDegree = new int[m_Tasks.length];
+        for (int j=0; j<m_ConnEnd.length; j++) {
+            inDegree[m_ConnEnd[j]]++;
+        }
+        int[] order = new int[m_Tasks.length];
+        int iOrdered = 0;
+        for (int i=0; i<m_Tasks.length; i++) {
+            if (inDegree[i] == 0) order[iOrdered++] = i;
+        }
+        for (int i=0; i<iOrdered; i++) {
+            for (int k=m_AdjOffset[order[i]]; k<m_AdjOffset[order[i]+1]; k++) {
+                int j = m_AdjConn[k];
+                if (m_ConnStart[j] != order[i]) continue;
+                if (--inDegree[m_ConnEnd[j]] == 0) {
+                    order[iOrdered++] = m_ConnEnd[j];
+                }
+            }
+        }
+
+        if (iOrdered == m_Tasks.length) {
+            for (int i=0; i<order.length; i++) {
+                for (int k=m_AdjOffset[order[i]]; k<m_AdjOffset[order[i]+1]; k++) {
+                    int j = m_AdjConn[k];
+                    if (m_ConnStart[j] == order[i]) propagate(j, startPorts[j], endPorts[j]);
+                }
+            }
+        } else {
+            boolean bChanged;
+            do {
+                bChanged = false;
+                for (int j=0; j<m_ConnStart.length; j++) {
+                    bChanged |= propagate(j, startPorts[j], endPorts[j]);
+                }
+            } while (bChanged);
+        }
+
+        // the rates the Communicators would get
+        m_bRated = new boolean[m_ConnStart.length];
+        m_Rate   = new float[m_ConnStart.length];
+        m_Size   = new int[m_ConnStart.length];
+        for (int j=0; j<m_ConnStart.length; j++) {
+            Task tstart = m_Tasks[m_ConnStart[j]];
+            TaskMetrics tm = tstart.getMetrics(null);
+            if ( (tm == null) || (tm.datapackets == null) || (tm.packetsizes == null) || (tstart instanceof Communicator) ) continue;
+            m_bRated[j] = true;
+            m_Rate[j] = tm.datapackets[startPorts[j]];
+            m_Size[j] = tm.packetsizes[startPorts[j]];
+        }
+    }
+
+    private boolean propagate(int iConn, int iStartPort, int iEndPort) {
+        Task tstart = m_Tasks[m_ConnStart[iConn]];
+        TaskMetrics tm = tstart.getMetrics(null);
+        if ( (tm == null) || (tm.datapackets == null) || (tm.packetsizes == null) || (tstart instanceof Communicator) ) return false;
+
+        return m_Tasks[m_ConnEnd[iConn]].setInputPortDatarate(iEndPort, tm.datapackets[iStartPort], tm.packetsizes[iStartPort]);
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Queries
+
+    /** @return number of tasks, which is the length of the allocation vectors */
+    public int getTaskCount() {
+        return m_Tasks.length;
+    }
+
+    /** @return the template task with propagated datarates */
+    public Task getTask(int iTask) {
+        return m_Tasks[iTask];
+    }
+
+    /** @return the node the task is fixed to, -1 if it may go anywhere */
+    public int getForcedNode(int iTask) {
+        return m_ForcedNode[iTask];
+    }
+
+    /** @return the nodes providing the task, null if there are none */
+    public NodeInfo[] getCandidates(int iTask) {
+        return m_Candidates[iTask];
+    }
+
+    /** @return the tasks connected to a task, once per connection */
+    public int[] getNeighbours(int iTask) {
+        int[] neighbours = new int[m_AdjOffset[iTask+1]-m_AdjOffset[iTask]];
+        for (int k=0; k<neighbours.length; k++) {
+            int j = m_AdjConn[m_AdjOffset[iTask]+k];
+            neighbours[k] = (m_ConnStart[j] == iTask)? m_ConnEnd[j] : m_ConnStart[j];
+        }
+        return neighbours;
+    }
+
+    /** @return whether the template uses the broadcast address */
+    public boolean hasBroadcast() {
+        return m_bBroadcast;
+    }
+
+    /** Same checks as TaskNetworkConverter.VectorToTaskNetwork() */
+    public boolean isPlaceable(int iTask, int iNode) {
+        if (m_ForcedNode[iTask] != -1 && m_ForcedNode[iTask] != iNode) return false;
+        return m_ServiceDirectory.hasTask(iNode, m_Tasks[iTask].getID());
+    }
+
+    /** @return the metrics of the node, null if it is unknown */
+    public NodeMetrics getNodeMetrics(int iNode) {
+        NodeInfo ni = m_ServiceDirectory.getNodeInfo(iNode);
+        if (ni == null) return null;
+
+        NodeMetrics nm = (NodeMetrics)m_NodeMetrics.get(new Integer(ni.nodeType));
+        return (nm != null)? nm : ni.getNodeMetrics();
+    }
+
+    /**
+     * @return the metrics of all tasks when running on the node, indexed by
+     *         task number. Must not be changed.
+     */
+    public TaskMetrics[] getTaskMetrics(int iNode) {
+        NodeInfo ni = m_ServiceDirectory.getNodeInfo(iNode);
+        if (ni == null) return null;
+
+        TaskMetrics[] tms = (TaskMetrics[])m_TaskMetrics.get(new Integer(ni.nodeType));
+        if (tms == null) {
+            // no task of the template is provided there
+            NodeMetrics nm = ni.getNodeMetrics();
+            tms = new TaskMetrics[m_Tasks.length];
+            for (int k=0; k<m_Tasks.length; k++) {
+                tms[k] = m_Tasks[k].getMetrics(nm);
+            }
+        }
+        return tms;
+    }
+
+    /**
+     * Creates the task network for an allocation
+     * @return the task network, null if the allocation is not feasible
+     */
+    public TaskNetwork materialize(int[] allocVector) {
+        try {
+            return new TaskNetworkConverter(m_ServiceDirectory).VectorToTaskNetwork(m_TemplateNetwork, allocVector);
+        } catch (Exception e) {
+            System.err.println("ERROR: Allocation vector is wrong! ("+e.getMessage()+")");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/*
+    This file is part of Titan.
+
+    Titan is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of
+    the License, or (at your option) any later version.
+
+    Titan is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Titan. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package titancommon.compiler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import titancommon.Connection;
+import titancommon.TitanCommand;
+import titancommon.execution.TaskNetwork;
+import titancommon.services.NodeInfo;
+import titancommon.services.ServiceDirectory;
+import titancommon.services.ServiceNotices.NoticeInfo;
+import titancommon.services.ServiceNotices.NoticeReason;
+import titancommon.tasks.Task;
+
+/**
+ * Remembers the allocations of compiled task networks, such that the same
+ * application redeployed onto an unchanged network does not need to be
+ * compiled again.
+ *
+ * The key of an entry is a hash over the template network (tasks, their
+ * attributes and configuration, connections) and over the service directory
+ * entries of all nodes providing one of its tasks (address, type, tasks). A
+ * change of any of these nodes thus leads to a different key. Entries are
+ * additionally dropped when the service directory reports a node as added
+ * or removed, which would change their key anyway.
+ *
+ * The least recently used entries are dropped when the cache is full. The
+ * entries can be kept in a file, so that they survive a restart.
+ */
+public class CompilationCache implements Observer {
+
+    /** number of allocations kept by default */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    /** system property giving the file the shared caches are stored to */
+    public static final String STORE_PROPERTY = "titan.compilationcache";
+
+    /** size of the configuration messages hashed for the tasks */
+    private static final int CONFIG_MSG_SIZE = TitanCommand.TOSH_DATA_LENGTH;
+
+    /** a compiled allocation */
+    private static class Entry {
+        int[] alloc;   ///< node address of every template task
+        int[] nodes;   ///< addresses of the nodes in the directory fingerprint
+        int[] taskIDs; ///< task IDs used by the template
+
+        Entry(int[] a, int[] n, int[] t) {
+            alloc = a;
+            nodes = n;
+            taskIDs = t;
+        }
+    }
+
+    /** the key of a template on the current network */
+    private static class Key {
+        String strHash;
+        int[]  nodes;
+        int[]  taskIDs;
+    }
+
+    private ServiceDirectory m_ServiceDirectory;
+    private GreedyCompiler   m_Builder;      ///< creates the task networks of cached allocations
+    private LinkedHashMap/*<String,Entry>*/ m_Entries;
+    private File             m_StoreFile;
+    private int              m_iHits;
+    private int              m_iMisses;
+
+    public boolean m_bDebugOutput = false;
+
+    /**
+     * @param sd        Service directory the allocations are valid for
+     * @param iCapacity Maximum number of allocations kept
+     */
+    public CompilationCache(ServiceDirectory sd, final int iCapacity) {
+        m_ServiceDirectory = sd;
+        m_Builder = new GreedyCompiler(sd);
+        m_Entries = new LinkedHashMap(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > iCapacity;
+            }
+        };
+        sd.addObserver(this);
+    }
+
+    public CompilationCache(ServiceDirectory sd) {
+        this(sd, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Returns the cache shared by all users of the service directory. If the
+     * system property titan.compilationcache is set, the cache is stored to
+     * the file it names. The cache is kept by the service directory, so it
+     * goes away with it.
+     */
+    public static synchronized CompilationCache getSharedCache(ServiceDirectory sd) {
+        CompilationCache cache = sd.getCompilationCache();
+        if (cache == null) {
+            cache = new CompilationCache(sd);
+            String strFile = System.getProperty(STORE_PROPERTY);
+            if (strFile != null) {
+                cache.setStoreFile(new File(strFile));
+            }
+            sd.setCompilationCache(cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Keeps the entries in a file. The entries already in the file are loaded,
+     * and the file is rewritten on every change.
+     * @param file The file to store the entries to, null to keep them in memory only
+     */
+    public synchronized void setStoreFile(File file) {
+        m_StoreFile = file;
+        if (file != null && file.exists()) {
+            load();
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Lookup
+
+    /**
+     * Looks up the allocation of the template network on the current network.
+     * @param templateNetwork The application task graph on one node
+     * @return The compiled task network, null if it is not known
+     */
+    public TaskNetwork lookup(TaskNetwork templateNetwork) {
+        Key key = getKey(templateNetwork);
+        if (key == null) return null;
+
+        Entry entry;
+        synchronized (this) {
+            entry = (Entry)m_Entries.get(key.strHash);
+            if (entry == null || entry.alloc.length != getTemplate(templateNetwork).tasks.length) {
+                m_iMisses++;
+                return null;
+            }
+            m_iHits++;
+        }
+
+        if (m_bDebugOutput) {
+            System.out.println("CompilationCache: reusing allocation " + key.strHash);
+        }
+        return m_Builder.createTaskNetwork(templateNetwork, entry.alloc);
+    }
+
+    /**
+     * Stores the allocation of a compiled task network
+     * @param templateNetwork The application task graph on one node
+     * @param compiledNetwork The network compiled from it
+     */
+    public void store(TaskNetwork templateNetwork, TaskNetwork compiledNetwork) {
+        int[] alloc = compiledNetwork.getAllocVector();
+        if (alloc == null) return;
+
+        Key key = getKey(templateNetwork);
+        if (key == null) return;
+
+        synchronized (this) {
+            m_Entries.put(key.strHash, new Entry(alloc, key.nodes, key.taskIDs));
+            save();
+        }
+    }
+
+    /** Drops all allocations */
+    public synchronized void clear() {
+        m_Entries.clear();
+        save();
+    }
+
+    public synchronized int size() {
+        return m_Entries.size();
+    }
+
+    /** @return the number of lookups answered from the cache */
+    public synchronized int getHits() {
+        return m_iHits;
+    }
+
+    /** @return the number of lookups that needed a compilation */
+    public synchronized int getMisses() {
+        return m_iMisses;
+    }
+
+    /**
+     * Drops the allocations affected by a node popping up or perishing in the
+     * service directory.
+     */
+    public void update(Observable obs, Object param) {
+        if (!(param instanceof NoticeInfo)) return;
+        NoticeInfo notice = (NoticeInfo)param;
+
+        int[] newTasks = null;
+        if (notice.reason == NoticeReason.NODE_ADDED) {
+            NodeInfo ni = m_ServiceDirectory.getNodeInfo(notice.address);
+            if (ni == null) return;
+            newTasks = ni.tasks;
+        } else if (notice.reason != NoticeReason.NODE_REMOVED) {
+            return;
+        }
+
+        synchronized (this) {
+            boolean bChanged = false;
+            Iterator iter = m_Entries.values().iterator();
+            while (iter.hasNext()) {
+                Entry entry = (Entry)iter.next();
+                boolean bAffected = (newTasks != null)? providesAny(newTasks, entry.taskIDs)
+                                                      : contains(entry.nodes, notice.address);
+                if (bAffected) {
+                    iter.remove();
+                    bChanged = true;
+                }
+            }
+            if (bChanged) save();
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Keys
+
+    private static TaskNetwork.NodeConfiguration getTemplate(TaskNetwork templateNetwork) {
+        return (TaskNetwork.NodeConfiguration)(templateNetwork.m_Nodes.get(0));
+    }
+
+    /**
+     * Computes the key of the template network on the current network
+     * @return the key, null if the template cannot be cached
+     */
+    private Key getKey(TaskNetwork templateNetwork) {
+        if (templateNetwork.m_Nodes.size() != 1) return null;
+        TaskNetwork.NodeConfiguration tnet = getTemplate(templateNetwork);
+        if (tnet.address != -1) return null;
+
+        StringBuffer strCanon = new StringBuffer();
+
+        // the template tasks
+        TreeSet/*<Integer>*/ taskIDs = new TreeSet();
+        for (int i=0; i<tnet.tasks.length; i++) {
+            Task task = tnet.tasks[i];
+            taskIDs.add(new Integer(task.getID()));
+            strCanon.append("T").append(task.getID()).append(':').append(task.getName());
+
+            TreeSet/*<String>*/ names = new TreeSet(task.getAttributeNames());
+            Iterator iter = names.iterator();
+            while (iter.hasNext()) {
+                String strName = (String)iter.next();
+                strCanon.append(';').append(strName).append('=').append(task.getAttribute(strName));
+            }
+
+            short[][] config = task.getConfigBytes(CONFIG_MSG_SIZE);
+            if (config != null) {
+                for (int j=0; j<config.length; j++) {
+                    strCanon.append(';').append(Arrays.toString(config[j]));
+                }
+            }
+            strCanon.append('\n');
+        }
+
+        // the template connections
+        Connection[] connections = (tnet.connections != null)? tnet.connections : new Connection[0];
+        for (int i=0; i<connections.length; i++) {
+            strCanon.append("C").append(connections[i].StartTask).append(',').append(connections[i].StartPort)
+                    .append(',').append(connections[i].EndTask).append(',').append(connections[i].EndPort).append('\n');
+        }
+
+        // all nodes that could run a task of the template, forced nodes
+        // which do not provide the task fail compilation anyway
+        ServiceDirectory sd = m_ServiceDirectory.getSnapshot();
+        TreeMap/*<Integer,NodeInfo>*/ nodes = new TreeMap();
+        Iterator iter = taskIDs.iterator();
+        while (iter.hasNext()) {
+            NodeInfo[] nis = sd.queryTask(((Integer)iter.next()).intValue());
+            if (nis == null) return null;
+            for (int j=0; j<nis.length; j++) {
+                nodes.put(new Integer(nis[j].address), nis[j]);
+            }
+        }
+
+        Key key = new Key();
+        key.nodes = new int[nodes.size()];
+        int iNode = 0;
+        iter = nodes.values().iterator();
+        while (iter.hasNext()) {
+            NodeInfo ni = (NodeInfo)iter.next();
+            int[] tasks = (int[])ni.tasks.clone();
+            Arrays.sort(tasks);
+            strCanon.append("N").append(ni.address).append(':').append(ni.nodeType).append(':')
+                    .append(ni.bForeign).append(':').append(Arrays.toString(tasks)).append('\n');
+            key.nodes[iNode++] = ni.address;
+        }
+
+        key.taskIDs = new int[taskIDs.size()];
+        int iTask = 0;
+        iter = taskIDs.iterator();
+        while (iter.hasNext()) {
+            key.taskIDs[iTask++] = ((Integer)iter.next()).intValue();
+        }
+
+        key.strHash = hash(strCanon.toString());
+        return (key.strHash != null)? key : null;
+    }
+
+    private static String hash(String strCanon) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(strCanon.getBytes("UTF-8"));
+            StringBuffer strHex = new StringBuffer();
+            for (int i=0; i<digest.length; i++) {
+                strHex.append(Integer.toHexString((digest[i] >> 4) & 0xF)).append(Integer.toHexString(digest[i] & 0xF));
+            }
+            return strHex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            System.err.println("CompilationCache: cannot hash template: " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("CompilationCache: cannot hash template: " + e.getMessage());
+        }
+        return null;
+    }
+
+    private static boolean contains(int[] values, int iValue) {
+        for (int i=0; i<values.length; i++) {
+            if (values[i] == iValue) return true;
+        }
+        return false;
+    }
+
+    private static boolean providesAny(int[] tasks, int[] taskIDs) {
+        for (int i=0; i<tasks.length; i++) {
+            if (contains(taskIDs, tasks[i])) return true;
+        }
+        return false;
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Storage
+    //
+    // One entry per line, least recently used first:
+    //   key;alloc,...;node,...;taskID,...
+
+    private void load() {
+        BufferedReader input = null;
+        try {
+            input = new BufferedReader(new FileReader(m_StoreFile));
+            String strLine;
+            while ((strLine = input.readLine()) != null) {
+                String[] fields = strLine.split(";", -1);
+                if (fields.length != 4) {
+                    System.err.println("CompilationCache: skipping malformed line in " + m_StoreFile);
+                    continue;
+                }
+                m_Entries.put(fields[0], new Entry(parseInts(fields[1]), parseInts(fields[2]), parseInts(fields[3])));
+            }
+        } catch (IOException e) {
+            System.err.println("CompilationCache: could not read " + m_StoreFile + ": " + e.getMessage());
+        } catch (NumberFormatException e) {
+            System.err.println("CompilationCache: could not parse " + m_StoreFile + ": " + e.getMessage());
+        } finally {
+            if (input != null) {
+                try { input.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    private void save() {
+        if (m_StoreFile == null) return;
+
+        BufferedWriter output = null;
+        try {
+            output = new BufferedWriter(new FileWriter(m_StoreFile));
+            Iterator iter = m_Entries.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry mapEntry = (Map.Entry)iter.next();
+                Entry entry = (Entry)mapEntry.getValue();
+                output.write(mapEntry.getKey() + ";" + formatInts(entry.alloc) + ";"
+                             + formatInts(entry.nodes) + ";" + formatInts(entry.taskIDs));
+                output.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("CompilationCache: could not write " + m_StoreFile + ": " + e.getMessage());
+        } finally {
+            if (output != null) {
+                try { output.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    private static String formatInts(int[] values) {
+        StringBuffer str = new StringBuffer();
+        for (int i=0; i<values.length; i++) {
+            if (i > 0) str.append(',');
+            str.append(values[i]);
+        }
+        return str.toString();
+    }
+
+    private static int[] parseInts(String str) {
+        ArrayList/*<String>*/ tokens = new ArrayList();
+        StringTokenizer tok = new StringTokenizer(str, ",");
+        while (tok.hasMoreTokens()) {
+            tokens.add(tok.nextToken());
+        }
+        int[] values = new int[tokens.size()];
+        for (int i=0; i<values.length; i++) {
+            values[i] = Integer.parseInt(((String)tokens.get(i)).trim());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+    This file is part of Titan.
+
+    Titan is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of
+    the License, or (at your option) any later version.
+
+    Titan is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Titan. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package titancommon.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import titancommon.execution.TaskNetwork;
+
+/**
+ * Evaluates allocations of a template task network incrementally. It computes
+ * the same cost as NetworkEvaluator.evaluateNet() on the task network created
+ * by TaskNetworkConverter.VectorToTaskNetwork(), but without building it.
+ *
+ * The datarates and metrics come from an AllocationProblem. The cost of every
+ * node is kept for the current allocation. Moving a task only changes the nodes
+ * it is moved from and to, and the nodes of the tasks connected to it, so only
+ * their cost is computed again, from the tasks on the node and their
+ * connections.
+ *
+ * The node costs are summed in the same order as NetworkEvaluator does, which
+ * gives exactly the same result.
+ */
+public class DeltaEvaluator {
+
+    /** Cost and tasks of one node for the current allocation */
+    private static class NodeCost {
+        int     address;
+        int     stamp;       ///< marks the node while summing up
+        NodeMetrics   nm;
+        TaskMetrics[] tms;
+        int[]   tasks = new int[4]; ///< tasks on the node in template order
+        int     iTasks;
+        boolean bTooMany;    ///< more tasks or connections than the node can host
+        double  processing;  ///< processing energy
+        double  communication;
+
+        void copy(NodeCost nc) {
+            bTooMany      = nc.bTooMany;
+            processing    = nc.processing;
+            communication = nc.communication;
+        }
+
+        void addTask(int iTask) {
+            if (iTasks == tasks.length) {
+                int[] newTasks = new int[tasks.length*2];
+                System.arraycopy(tasks, 0, newTasks, 0, iTasks);
+                tasks = newTasks;
+            }
+            int i = iTasks++;
+            while (i > 0 && tasks[i-1] > iTask) {
+                tasks[i] = tasks[i-1];
+                i--;
+            }
+            tasks[i] = iTask;
+        }
+
+        void removeTask(int iTask) {
+            int i = 0;
+            while (i < iTasks && tasks[i] != iTask) i++;
+            if (i == iTasks) return;
+            System.arraycopy(tasks, i+1, tasks, i, iTasks-i-1);
+            iTasks--;
+        }
+    }
+
+    private NetworkEvaluator  m_NetworkEvaluator;
+    private AllocationProblem m_Problem;
+
+    private int[]     m_Alloc;
+    private boolean[] m_bPlaceable;      ///< whether the task can run on its node
+    private int       m_iUnplaceable;
+    private HashMap/*<Integer,NodeCost>*/ m_NodeCosts = new HashMap();
+    private int       m_iStamp;
+    private int[]     m_ConnBuffer;      ///< connections of the node being evaluated
+
+    /**
+     * @param ne              Evaluator providing the cost functions
+     * @param templateNetwork Task network on a single node with address -1
+     */
+    public DeltaEvaluator(NetworkEvaluator ne, TaskNetwork templateNetwork) throws Exception {
+        this(ne, new AllocationProblem(ne.m_ServiceDirectory, templateNetwork));
+    }
+
+    /**
+     * @param ne Evaluator providing the cost functions
+     * @param ap Template network to allocate, may be shared with other evaluators
+     */
+    public DeltaEvaluator(NetworkEvaluator ne, AllocationProblem ap) throws Exception {
+        // the TaskNetworkConverter cannot allocate broadcast connections either
+        if ( ap.hasBroadcast() ) throw new Exception("DeltaEvaluator: broadcast connections are not supported");
+
+        m_NetworkEvaluator = ne;
+        m_Problem = ap;
+        m_ConnBuffer = new int[ap.m_AdjConn.length];
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Evaluation
+
+    /**
+     * Sets the allocation of the tasks and returns its cost. Only the nodes
+     * affected by tasks allocated differently than before are evaluated again.
+     * @param allocVector node address for every task
+     * @return the cost as returned by NetworkEvaluator.evaluateNet()
+     */
+    public double evaluate(int[] allocVector) {
+
+        if (m_Alloc == null) {
+            m_Alloc = (int[])allocVector.clone();
+            m_bPlaceable = new boolean[m_Alloc.length];
+            m_iUnplaceable = 0;
+            for (int i=0; i<m_Alloc.length; i++) {
+                m_bPlaceable[i] = m_Problem.isPlaceable(i, m_Alloc[i]);
+                if (!m_bPlaceable[i]) m_iUnplaceable++;
+                NodeCost nc = getNodeCost(m_Alloc[i]);
+                if (nc != null) nc.addTask(i);
+            }
+            ArrayList/*<Integer>*/ nodes = new ArrayList();
+            for (int i=0; i<m_Alloc.length; i++) {
+                addNode(nodes, m_Alloc[i]);
+            }
+            for (int i=0; i<nodes.size(); i++) {
+                updateNode(((Integer)nodes.get(i)).intValue());
+            }
+            return getCost();
+        }
+
+        ArrayList/*<Integer>*/ affected = new ArrayList();
+        for (int i=0; i<m_Alloc.length; i++) {
+            if (m_Alloc[i] != allocVector[i]) {
+                collectAffected(affected, i, allocVector[i]);
+                setTask(i, allocVector[i]);
+            }
+        }
+        for (int i=0; i<affected.size(); i++) {
+            updateNode(((Integer)affected.get(i)).intValue());
+        }
+        return getCost();
+    }
+
+    /**
+     * Returns the cost of the current allocation with a single task moved to
+     * another node. The current allocation is not changed.
+     */
+    public double evaluateMove(int iTask, int iNode) {
+        int iOldNode = m_Alloc[iTask];
+        if (iOldNode == iNode) return getCost();
+
+        ArrayList/*<Integer>*/ affected = new ArrayList();
+        collectAffected(affected, iTask, iNode);
+
+        // remember the costs of the affected nodes to restore them
+        NodeCost[] saved = new NodeCost[affected.size()];
+        for (int i=0; i<saved.length; i++) {
+            NodeCost nc = (NodeCost)m_NodeCosts.get(affected.get(i));
+            if (nc == null) continue;
+            saved[i] = new NodeCost();
+            saved[i].copy(nc);
+        }
+
+        setTask(iTask, iNode);
+        for (int i=0; i<affected.size(); i++) {
+            updateNode(((Integer)affected.get(i)).intValue());
+        }
+        double cost = getCost();
+
+        setTask(iTask, iOldNode);
+        for (int i=0; i<saved.length; i++) {
+            NodeCost nc = (NodeCost)m_NodeCosts.get(affected.get(i));
+            if (saved[i] != null) nc.copy(saved[i]);
+        }
+        return cost;
+    }
+
+    /**
+     * Moves a task to another node
+     * @return the cost of the new allocation
+     */
+    public double applyMove(int iTask, int iNode) {
+        int[] alloc = (int[])m_Alloc.clone();
+        alloc[iTask] = iNode;
+        return evaluate(alloc);
+    }
+
+    /** @return the current allocation */
+    public int[] getAllocVector() {
+        return (m_Alloc != null)? (int[])m_Alloc.clone() : null;
+    }
+
+    private void setTask(int iTask, int iNode) {
+        boolean bPlaceable = m_Problem.isPlaceable(iTask, iNode);
+        if (bPlaceable != m_bPlaceable[iTask]) {
+            m_iUnplaceable += bPlaceable? -1 : 1;
+            m_bPlaceable[iTask] = bPlaceable;
+        }
+
+        NodeCost nc = (NodeCost)m_NodeCosts.get(new Integer(m_Alloc[iTask]));
+        if (nc != null) nc.removeTask(iTask);
+        nc = getNodeCost(iNode);
+        if (nc != null) nc.addTask(iTask);
+
+        m_Alloc[iTask] = iNode;
+    }
+
+    /** @return the cost entry of the node, null if the node is unknown */
+    private NodeCost getNodeCost(int iNode) {
+        Integer key = new Integer(iNode);
+        NodeCost nc = (NodeCost)m_NodeCosts.get(key);
+        if (nc == null) {
+            NodeMetrics nm = m_Problem.getNodeMetrics(iNode);
+            if (nm == null) return null; // task not placeable there anyway
+            nc = new NodeCost();
+            nc.address = iNode;
+            nc.nm = nm;
+            nc.tms = m_Problem.getTaskMetrics(iNode);
+            m_NodeCosts.put(key, nc);
+        }
+        return nc;
+    }
+
+    /** Adds the nodes whose cost changes when the task is moved to iNode */
+    private void collectAffected(ArrayList affected, int iTask, int iNode) {
+        addNode(affected, m_Alloc[iTask]);
+        addNode(affected, iNode);
+        for (int k=m_Problem.m_AdjOffset[iTask]; k<m_Problem.m_AdjOffset[iTask+1]; k++) {
+            int j = m_Problem.m_AdjConn[k];
+            addNode(affected, m_Alloc[m_Problem.m_ConnStart[j]]);
+            addNode(affected, m_Alloc[m_Problem.m_ConnEnd[j]]);
+        }
+    }
+
+    private static void addNode(ArrayList nodes, int iNode) {
+        Integer key = new Integer(iNode);
+        if (!nodes.contains(key)) nodes.add(key);
+    }
+
+    /**
+     * Sums up the cost of the nodes in the order they appear in the allocation
+     * vector, which is the order of the nodes in the converted task network.
+     */
+    private double getCost() {
+        if (m_iUnplaceable > 0) return Double.MAX_VALUE;
+
+        m_iStamp++;
+        double costTotal = 0;
+        for (int i=0; i<m_Alloc.length; i++) {
+            NodeCost nc = (NodeCost)m_NodeCosts.get(new Integer(m_Alloc[i]));
+            if (nc.stamp == m_iStamp) continue;
+            nc.stamp = m_iStamp;
+
+            if (nc.bTooMany) return Double.MAX_VALUE;
+            costTotal += nc.processing;
+            costTotal += nc.communication;
+
+            // don't run unneccessarily
+            if ( costTotal >= Double.MAX_VALUE ) break;
+        }
+        return costTotal;
+    }
+
+    /**
+     * Computes the cost of a node like NetworkEvaluator.evaluateNet() does,
+     * in the same order of operations.
+     */
+    private void updateNode(int iNode) {
+        NodeCost nc = (NodeCost)m_NodeCosts.get(new Integer(iNode));
+        if (nc == null) return; // task not placeable there anyway
+        NodeMetrics nm = nc.nm;
+        AllocationProblem ap = m_Problem;
+
+        // collect the connections of the tasks in template order
+        int iConns = 0;
+        for (int i=0; i<nc.iTasks; i++) {
+            int iTask = nc.tasks[i];
+            for (int k=ap.m_AdjOffset[iTask]; k<ap.m_AdjOffset[iTask+1]; k++) {
+                m_ConnBuffer[iConns++] = ap.m_AdjConn[k];
+            }
+        }
+        Arrays.sort(m_ConnBuffer, 0, iConns);
+
+        // count tasks and connections, including the Communicator
+        int iDistinct = 0;
+        boolean bCommunicator = false;
+        boolean bRated = false;
+        for (int i=0; i<iConns; i++) {
+            int j = m_ConnBuffer[i];
+            if (iDistinct > 0 && m_ConnBuffer[iDistinct-1] == j) continue; // both ends on the node
+            m_ConnBuffer[iDistinct++] = j;
+
+            boolean bStart = (m_Alloc[ap.m_ConnStart[j]] == iNode);
+            boolean bEnd   = (m_Alloc[ap.m_ConnEnd[j]] == iNode);
+            if (bStart != bEnd) bCommunicator = true;
+            if (bStart && !bEnd && ap.m_bRated[j]) bRated = true;
+        }
+        int iTasks = nc.iTasks + (bCommunicator? 1 : 0);
+
+        nc.bTooMany = ( iTasks > nm.maxTasks || iDistinct > nm.maxConnections );
+        if (nc.bTooMany) return;
+
+        double costProcessing = 0;
+        double costCommunication = 0;
+        for (int i=0; i<nc.iTasks; i++) {
+            TaskMetrics tm = nc.tms[nc.tasks[i]];
+
+            // estimate computation cost on this node
+            costProcessing += m_NetworkEvaluator.evaluateTask( tm, nm );
+
+            // add cost of internal communication
+            if (tm.datapackets != null) {
+                for ( int k=0; k< tm.datapackets.length; k++ ) {
+                    costProcessing += tm.datapackets[k] * nm.transferTime*nm.cyclesPerSecond;
+                }
+            }
+        }
+
+        // the Communicator comes last, it has no datarates if none of its inputs got one
+        if (bRated) {
+            for (int i=0; i<iDistinct; i++) {
+                int j = m_ConnBuffer[i];
+                int iDest = m_Alloc[ap.m_ConnEnd[j]];
+                if (m_Alloc[ap.m_ConnStart[j]] != iNode || iDest == iNode) continue;
+
+                costCommunication += m_NetworkEvaluator.evaluateConnection( iNode, iDest, ap.m_Rate[j], ap.m_Size[j], nm );
+                costProcessing += ap.m_Rate[j]*nm.cyclesTransmit;
+            }
+        }
+
+        if (costProcessing*NetworkEvaluator.PROCESSING_MULTIPLICATOR >= nm.cyclesPerSecond ){
+            costProcessing = Double.MAX_VALUE;
+        }
+
+        nc.processing = costProcessing/nm.cyclesPerSecond*nm.powerProcessing; // convert to energy
+        nc.communication = costCommunication;
+    }
+}
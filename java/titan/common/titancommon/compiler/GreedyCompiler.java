@@ -18,6 +18,7 @@
 package titancommon.compiler;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import titancommon.services.NodeInfo;
 import titancommon.services.ServiceDirectory;
@@ -55,12 +56,12 @@ public class GreedyCompiler implements Compiler {
      *  specified requirements plus whether the node actually contains that task.
      */
     
-    private int getNextNode(TaskNetwork.NodeConfiguration tnet, NodeInfo[] nis, int curNodeAddr, HashMap tasksPerNode, int iCurTask) throws Exception
+    private int getNextNode(AllocationProblem ap, NodeInfo[] nis, int curNodeAddr, HashMap tasksPerNode, int iCurTask) throws Exception
     {
-        if (tnet.tasks[iCurTask].getAttribute("nodeID") != null)
+        if (ap.getForcedNode(iCurTask) != -1)
         {
             // get the required nodeID
-            int iNodeAddress = Integer.parseInt(tnet.tasks[iCurTask].getAttribute("nodeID"));
+            int iNodeAddress = ap.getForcedNode(iCurTask);
             
             // check whether the service directory knows the node and the task
             boolean bContainsTask = false;
@@ -93,9 +94,9 @@ public class GreedyCompiler implements Compiler {
             // Select a new node, if curNodeAddr cannot be used
             if ((curNodeAddr == -1) ||
                     ( ! NetworkEvaluator.isExecutable(
-                            tnet.tasks[iCurTask].getMetrics(m_ServiceDirectory.getNodeInfo(curNodeAddr).getNodeMetrics()),
+                            ap.getTaskMetrics(curNodeAddr)[iCurTask],
                             (ArrayList)tasksPerNode.get(new Integer(curNodeAddr)),
-                            m_ServiceDirectory.getNodeInfo(curNodeAddr).getNodeMetrics())) ||
+                            ap.getNodeMetrics(curNodeAddr))) ||
                     (curNodeIndex == -1))
             {
                 
@@ -108,9 +109,9 @@ public class GreedyCompiler implements Compiler {
                     if (tasksPerNode.containsKey(new Integer(nis[j].address)))
                     {
                         if ( NetworkEvaluator.isExecutable(
-                                tnet.tasks[iCurTask].getMetrics(m_ServiceDirectory.getNodeInfo(nis[j].address).getNodeMetrics()),
+                                ap.getTaskMetrics(nis[j].address)[iCurTask],
                                 (ArrayList)tasksPerNode.get(new Integer(nis[j].address)),
-                                m_ServiceDirectory.getNodeInfo(nis[j].address).getNodeMetrics()))
+                                ap.getNodeMetrics(nis[j].address)))
                         {
                             curNodeAddr = nis[j].address;
                             break;
@@ -145,49 +146,73 @@ public class GreedyCompiler implements Compiler {
     
     public TaskNetwork compileNetwork( TaskNetwork taskNetwork ) throws Exception {
         
-        // up to now, we only understand an initial task network
-        if ( ((TaskNetwork.NodeConfiguration)(taskNetwork.m_Nodes.get(0))).address != -1) {
-            throw new Exception("First node has not address -1: don't know what to do");
-        }
-        
         // get an initial cost estimation
 //        NetworkEvaluator ne = new NetworkEvaluator(m_ServiceDirectory);
 //        ne.evaluateNet(taskNetwork);
         
-        // Get the task network to distribute
-        TaskNetwork.NodeConfiguration tnet = (TaskNetwork.NodeConfiguration)(taskNetwork.m_Nodes.get(0));
+        AllocationProblem ap = new AllocationProblem(m_ServiceDirectory, taskNetwork);
+        
+        return createTaskNetwork(taskNetwork, allocate(ap));
+    }
+    
+    /**
+     * Places the tasks one after the other, filling up a node before going to 
+     * the next one.
+     * @param ap The task network to distribute
+     * @return allocation vector giving the node address of every task
+     */
+    public int[] allocate( AllocationProblem ap ) throws Exception {
         
         // evaluate which tasks are located where and store information in 
         // taskToNodes
         HashMap tasksPerNode = new HashMap();
         int curNodeAddr = -1; // address of the node currently to be filled
-        NetTaskToNodeTask[] nttnt = new NetTaskToNodeTask[tnet.tasks.length]; // shows which task goes on which node
-        int [] allocVector = new int[tnet.tasks.length];
+        int [] allocVector = new int[ap.getTaskCount()];
 		
-        for(int i=0; i<tnet.tasks.length; i++ ) {
+        for(int i=0; i<allocVector.length; i++ ) {
             allocVector[i] = -1;
             
             // search the service directory for the task
-            NodeInfo[] nis = m_ServiceDirectory.queryTask( tnet.tasks[i].getID()  );
+            NodeInfo[] nis = ap.getCandidates(i);
             
             // task not found?
             if ( nis == null ) {
-                throw new Exception("No node has task "+tnet.tasks[i].getID() + "("+ tnet.tasks[i].getName() +"). Cannot compile task network");
+                throw new Exception("No node has task "+ap.getTask(i).getID() + "("+ ap.getTask(i).getName() +"). Cannot compile task network");
             }
             
             // check whether there is a special location to put the node
-            curNodeAddr = getNextNode(tnet,nis, curNodeAddr, tasksPerNode, i);
+            curNodeAddr = getNextNode(ap, nis, curNodeAddr, tasksPerNode, i);
             
             // the new task will be placed on curNodeAddr
-            nttnt[i] = new NetTaskToNodeTask();
-            nttnt[i].nodeAddress = curNodeAddr;
             allocVector[i] = curNodeAddr;
             if (tasksPerNode.containsKey(new Integer(curNodeAddr)) == false) {
                 tasksPerNode.put(new Integer(curNodeAddr), new ArrayList());
             }
             ArrayList taskList = (ArrayList)tasksPerNode.get(new Integer(curNodeAddr));
-            nttnt[i].taskNumber = taskList.size();
-            taskList.add(tnet.tasks[i].getMetrics(m_ServiceDirectory.getNodeInfo(curNodeAddr).getNodeMetrics()));
+            taskList.add(ap.getTaskMetrics(curNodeAddr)[i]);
+        }
+        
+        return allocVector;
+    }
+    
+    /**
+     * Creates the task network of an allocation. Other than the 
+     * TaskNetworkConverter, this also connects broadcast channels.
+     */
+    public TaskNetwork createTaskNetwork( TaskNetwork taskNetwork, int[] allocVector ) {
+        
+        // Get the task network to distribute
+        TaskNetwork.NodeConfiguration tnet = (TaskNetwork.NodeConfiguration)(taskNetwork.m_Nodes.get(0));
+        
+        // number the tasks on every node
+        HashMap tasksPerNode = new HashMap();
+        NetTaskToNodeTask[] nttnt = new NetTaskToNodeTask[tnet.tasks.length]; // shows which task goes on which node
+        for(int i=0; i<tnet.tasks.length; i++ ) {
+            Integer iTasks = (Integer)tasksPerNode.get(new Integer(allocVector[i]));
+            nttnt[i] = new NetTaskToNodeTask();
+            nttnt[i].nodeAddress = allocVector[i];
+            nttnt[i].taskNumber  = (iTasks != null)? iTasks.intValue() : 0;
+            tasksPerNode.put(new Integer(allocVector[i]), new Integer(nttnt[i].taskNumber+1));
         }
         
         // place the tasks on the nodes
@@ -196,18 +221,13 @@ public class GreedyCompiler implements Compiler {
         tno.m_bDebugOutput = taskNetwork.m_bDebugOutput;
         for(int i=0; i<tnet.tasks.length; i++) {
             
-            // check whether there is any task on the node at all
-            if (tasksPerNode.containsKey(new Integer(nttnt[i].nodeAddress)) == false) continue;
-    		
-            if (((ArrayList)tasksPerNode.get(new Integer(nttnt[i].nodeAddress))).size() == 0) continue;
-            
             NodeConfiguration nc = tno.getNode( nttnt[i].nodeAddress );
             
             // not instantiated yet?
             if ( nc == null ) {
                 
                 nc = tno.addNode(m_ServiceDirectory.getNodeInfo(nttnt[i].nodeAddress));
-                nc.tasks   = new Task[((ArrayList)tasksPerNode.get(new Integer(nttnt[i].nodeAddress))).size()];
+                nc.tasks   = new Task[((Integer)tasksPerNode.get(new Integer(nttnt[i].nodeAddress))).intValue()];
             }
             
             // copy the task to the node configuration
@@ -373,11 +393,151 @@ public class GreedyCompiler implements Compiler {
     }
 
     /**
-     * The update is solved easily be recomputing a new distribution of the 
-     * task network.
+     * Repairs the current network after nodes have been lost. Only the tasks 
+     * of lost nodes are placed again, all other tasks stay where they are. 
+     * Falls back to compiling the whole network if this is not possible.
+     * @return the repaired network, currentNetwork if nothing has been lost
      */
     public TaskNetwork updateNetwork(TaskNetwork templateNetwork, TaskNetwork currentNetwork) throws Exception {
-        return compileNetwork(templateNetwork);
+        
+        int[] allocVector = (currentNetwork != null)? currentNetwork.getAllocVector() : null;
+        if (allocVector == null) {
+            return compileNetwork(templateNetwork);
+        }
+        
+        AllocationProblem ap = new AllocationProblem(m_ServiceDirectory, templateNetwork);
+        if (allocVector.length != ap.getTaskCount()) {
+            return compileNetwork(templateNetwork);
+        }
+        
+        int[] repaired = repair(ap, allocVector);
+        if (repaired == null) {
+            System.out.println("GreedyCompiler: could not repair task network, recompiling");
+            return compileNetwork(templateNetwork);
+        }
+        if (Arrays.equals(repaired, allocVector)) {
+            return currentNetwork;
+        }
+        
+        return createTaskNetwork(templateNetwork, repaired);
+    }
+    
+    /**
+     * Moves the tasks that cannot stay on their node to the surviving nodes. 
+     * A task goes to the node which can still execute it and hosts most of 
+     * the tasks it is connected to. Without broadcast connections, the moved 
+     * tasks are then placed on the node giving the lowest cost.
+     * @param ap          The task network to distribute
+     * @param allocVector Current node address of every task
+     * @return the repaired allocation, null if a task cannot be placed
+     */
+    public int[] repair( AllocationProblem ap, int[] allocVector ) {
+        
+        int[] alloc = (int[])allocVector.clone();
+        boolean[] bLost = new boolean[alloc.length];
+        
+        // the tasks staying on their nodes
+        HashMap tasksPerNode = new HashMap();
+        ArrayList lostTasks = new ArrayList();
+        for (int i=0; i<alloc.length; i++) {
+            if (ap.isPlaceable(i, alloc[i])) {
+                getTaskList(tasksPerNode, alloc[i]).add(ap.getTaskMetrics(alloc[i])[i]);
+            } else {
+                bLost[i] = true;
+                lostTasks.add(new Integer(i));
+            }
+        }
+        if (lostTasks.size() == 0) return alloc;
+        
+        // place the lost tasks next to their neighbours
+        for (int l=0; l<lostTasks.size(); l++) {
+            int iTask = ((Integer)lostTasks.get(l)).intValue();
+            NodeInfo[] nis = ap.getCandidates(iTask);
+            if (nis == null) return null;
+            
+            int[] neighbours = ap.getNeighbours(iTask);
+            int iBestNode = -1;
+            int iBestNeighbours = Integer.MIN_VALUE;
+            int iBestTasks = 0;
+            for (int j=0; j<nis.length; j++) {
+                int iNode = nis[j].address;
+                if (!isFeasible(ap, tasksPerNode, iTask, iNode)) continue;
+                
+                int iNeighbours = 0;
+                for (int k=0; k<neighbours.length; k++) {
+                    if (!bLost[neighbours[k]] && alloc[neighbours[k]] == iNode) iNeighbours++;
+                }
+                int iTasks = getTaskList(tasksPerNode, iNode).size();
+                
+                // prefer nodes of the own cluster
+                if (nis[j].bForeign) iNeighbours--;
+                
+                if (iNeighbours > iBestNeighbours || (iNeighbours == iBestNeighbours && iTasks < iBestTasks)) {
+                    iBestNode = iNode;
+                    iBestNeighbours = iNeighbours;
+                    iBestTasks = iTasks;
+                }
+            }
+            if (iBestNode == -1) return null;
+            
+            alloc[iTask] = iBestNode;
+            bLost[iTask] = false;
+            getTaskList(tasksPerNode, iBestNode).add(ap.getTaskMetrics(iBestNode)[iTask]);
+        }
+        
+        if (ap.hasBroadcast()) return alloc;
+        
+        // move the tasks to the cheapest node still executing them
+        try {
+            DeltaEvaluator de = new DeltaEvaluator(new NetworkEvaluator(m_ServiceDirectory), ap);
+            double cost = de.evaluate(alloc);
+            for (int l=0; l<lostTasks.size(); l++) {
+                int iTask = ((Integer)lostTasks.get(l)).intValue();
+                int iCurNode = alloc[iTask];
+                TaskMetrics tm = ap.getTaskMetrics(iCurNode)[iTask];
+                getTaskList(tasksPerNode, iCurNode).remove(tm);
+                
+                NodeInfo[] nis = ap.getCandidates(iTask);
+                int iBestNode = iCurNode;
+                for (int j=0; j<nis.length; j++) {
+                    int iNode = nis[j].address;
+                    if (iNode == iCurNode || !isFeasible(ap, tasksPerNode, iTask, iNode)) continue;
+                    
+                    double newCost = de.evaluateMove(iTask, iNode);
+                    if (newCost < cost) {
+                        cost = newCost;
+                        iBestNode = iNode;
+                    }
+                }
+                
+                if (iBestNode != iCurNode) {
+                    de.applyMove(iTask, iBestNode);
+                    alloc[iTask] = iBestNode;
+                }
+                getTaskList(tasksPerNode, iBestNode).add(ap.getTaskMetrics(iBestNode)[iTask]);
+            }
+        } catch (Exception e) {
+            System.err.println("GreedyCompiler: could not evaluate repaired network: " + e.getMessage());
+        }
+        
+        return alloc;
+    }
+    
+    private static ArrayList getTaskList(HashMap tasksPerNode, int iNode) {
+        ArrayList taskList = (ArrayList)tasksPerNode.get(new Integer(iNode));
+        if (taskList == null) {
+            taskList = new ArrayList();
+            tasksPerNode.put(new Integer(iNode), taskList);
+        }
+        return taskList;
+    }
+    
+    /** Whether the node may run the task in addition to the tasks already placed there */
+    private static boolean isFeasible(AllocationProblem ap, HashMap tasksPerNode, int iTask, int iNode) {
+        if (!ap.isPlaceable(iTask, iNode)) return false;
+        return NetworkEvaluator.isExecutable(ap.getTaskMetrics(iNode)[iTask], 
+                                             getTaskList(tasksPerNode, iNode), 
+                                             ap.getNodeMetrics(iNode));
     }
     
  
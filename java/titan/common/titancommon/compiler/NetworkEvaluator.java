@@ -41,7 +41,7 @@ public class NetworkEvaluator {
     protected ServiceDirectory m_ServiceDirectory;
     
     /** Multiplicator for the processing cost estimation, assumes 66% underestimation */
-    private final double PROCESSING_MULTIPLICATOR = 1.5;
+    static final double PROCESSING_MULTIPLICATOR = 1.5;
     
     public NetworkEvaluator(ServiceDirectory sd) {
         m_ServiceDirectory = sd;
@@ -0,0 +1,286 @@
+/*
+    This file is part of Titan.
+
+    Titan is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of
+    the License, or (at your option) any later version.
+
+    Titan is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Titan. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package titancommon.execution;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Observable;
+import java.util.Observer;
+
+import titan.TitanCommunicate;
+import titan.messages.SerialMsg;
+import titancommon.messages.ConfigurationSuccessMsg;
+import titancommon.messages.ErrorMsg;
+import titancommon.messages.MessageDispatcher;
+
+/**
+ * Sends the configuration messages of a task network to the nodes and waits
+ * for them to be acknowledged.
+ *
+ * Up to m_iWindow nodes are configured at the same time. Their messages are
+ * interleaved, such that a single node receives at most one message every
+ * m_iMsgGap ms, while the other nodes in the window use the time in between.
+ * A node leaves the window when it confirms its configuration with a
+ * ConfigurationSuccessMsg. If it reports an error or does not answer within
+ * m_iAckTimeout ms, all its messages are sent again: the nodes only
+ * acknowledge complete configurations, and the first message resets the
+ * configuration on the node.
+ */
+public class ConfigDisseminator implements Observer {
+
+    /** Dissemination state of the configuration of one node */
+    private class NodeState {
+        int       address;
+        ArrayList/*<short[]>*/ messages = new ArrayList();
+        ArrayList/*<short[]>*/ fullMessages; ///< sent instead if starting from the cache fails
+        int       next;           ///< index of the next message to send
+        long      lastSend;       ///< time the last message has been sent
+        long      firstSend = -1; ///< time the first message has been sent in the first attempt
+        long      latency = -1;   ///< time until the configuration has been confirmed
+        int       retries;
+        boolean   bError;         ///< node reported an error for the current attempt
+        boolean   bFailed;
+    }
+
+    private TitanCommunicate  m_Comm;
+    private MessageDispatcher m_MessageDispatcher;
+    private short             m_ConfigID;
+
+    private ArrayList/*<NodeState>*/ m_Nodes = new ArrayList();
+    private HashMap/*<Integer,NodeState>*/ m_NodeMap = new HashMap();
+    private ArrayList/*<NodeState>*/ m_Active = new ArrayList();
+    private HashMap/*<Integer,short[]>*/ m_CacheStarts = new HashMap();
+
+    /** number of nodes configured at the same time */
+    public int m_iWindow = 8;
+    /** minimum time between two messages to the same node in ms */
+    public int m_iMsgGap = 50;
+    /** time to wait for the acknowledgement of a configuration in ms */
+    public int m_iAckTimeout = 2000;
+    /** number of times a configuration is sent again before giving up */
+    public int m_iMaxRetries = 3;
+
+    public boolean m_bDebugOutput = false;
+
+    public ConfigDisseminator(TitanCommunicate comm, MessageDispatcher md, short configID) {
+        m_Comm = comm;
+        m_MessageDispatcher = md;
+        m_ConfigID = configID;
+    }
+
+    /**
+     * Starts the configuration of a node from its cache. The configuration 
+     * messages of the node are only sent if the node does not confirm it.
+     * @param nodeAddr address of the node
+     * @param cfgData  TITANCOMM_CACHE_START message in the format of TaskNetwork
+     */
+    public void setCacheStart(int nodeAddr, short[] cfgData) {
+        m_CacheStarts.put(new Integer(nodeAddr), cfgData);
+    }
+
+    /**
+     * Sends the configuration messages and waits until every node has
+     * acknowledged its configuration or has run out of retries.
+     * @param msgList configuration messages as created by TaskNetwork
+     * @return whether all nodes have confirmed their configuration
+     */
+    public boolean disseminate(ArrayList/*<short[]>*/ msgList) {
+
+        // messages keep their order per node
+        for (int i = 0; i < msgList.size(); i++) {
+            short[] cfgData = (short[]) msgList.get(i);
+
+            if (cfgData[0] != 1) {
+                System.err.println("ERROR: Cannot handle multihop messages!");
+                return false;
+            }
+
+            Integer addr = new Integer(cfgData[2] * 256 + cfgData[3]);
+            NodeState ns = (NodeState) m_NodeMap.get(addr);
+            if (ns == null) {
+                ns = new NodeState();
+                ns.address = addr.intValue();
+                m_NodeMap.put(addr, ns);
+                m_Nodes.add(ns);
+            }
+            ns.messages.add(cfgData);
+        }
+
+        // nodes holding their configuration in the cache only get one message
+        for (int i = 0; i < m_Nodes.size(); i++) {
+            NodeState ns = (NodeState) m_Nodes.get(i);
+            short[] cacheStart = (short[]) m_CacheStarts.get(new Integer(ns.address));
+            if (cacheStart != null) {
+                ns.fullMessages = ns.messages;
+                ns.messages = new ArrayList();
+                ns.messages.add(cacheStart);
+            }
+        }
+
+        m_MessageDispatcher.addObserver(this);
+
+        try {
+            int iNextNode = 0;
+            ArrayList/*<short[]>*/ toSend = new ArrayList();
+
+            while (true) {
+                toSend.clear();
+
+                synchronized (this) {
+                    long now = System.currentTimeMillis();
+
+                    // slide the window
+                    while (m_Active.size() < m_iWindow && iNextNode < m_Nodes.size()) {
+                        m_Active.add(m_Nodes.get(iNextNode++));
+                    }
+                    if (m_Active.isEmpty()) {
+                        break;
+                    }
+
+                    long wakeup = now + m_iAckTimeout;
+                    for (int i = 0; i < m_Active.size(); i++) {
+                        NodeState ns = (NodeState) m_Active.get(i);
+
+                        // an error or a missing acknowledgement resends the whole configuration
+                        if (ns.bError || (ns.next == ns.messages.size() && now - ns.lastSend >= m_iAckTimeout)) {
+                            if (!retry(ns)) {
+                                m_Active.remove(i--);
+                                continue;
+                            }
+                        }
+
+                        if (ns.next < ns.messages.size()) {
+                            if (now - ns.lastSend >= m_iMsgGap) {
+                                if (ns.firstSend == -1) ns.firstSend = now;
+                                toSend.add(ns.messages.get(ns.next++));
+                                ns.lastSend = now;
+                            }
+                            wakeup = Math.min(wakeup, ns.lastSend + m_iMsgGap);
+                        } else {
+                            wakeup = Math.min(wakeup, ns.lastSend + m_iAckTimeout);
+                        }
+                    }
+
+                    if (toSend.isEmpty() && wakeup > now) {
+                        try {
+                            wait(wakeup - now);
+                        } catch (InterruptedException e) {
+                            return false;
+                        }
+                    }
+                }
+
+                // send outside the lock, acknowledgements arrive in the meantime.
+                // Pacing is done here, so the messages are not delayed
+                for (int i = 0; i < toSend.size(); i++) {
+                    m_Comm.send(0, TaskNetwork.cfgToMsg((short[]) toSend.get(i)), false);
+                }
+            }
+        } finally {
+            m_MessageDispatcher.deleteObserver(this);
+        }
+
+        boolean bSuccess = true;
+        for (int i = 0; i < m_Nodes.size(); i++) {
+            bSuccess &= !((NodeState) m_Nodes.get(i)).bFailed;
+        }
+        return bSuccess;
+    }
+
+    /** prepares the node to send its configuration again */
+    private boolean retry(NodeState ns) {
+        if (ns.fullMessages != null) {
+            // not in the cache (anymore), does not count as a retry
+            if (m_bDebugOutput) {
+                System.out.println("ConfigDisseminator: node " + ns.address + " could not start configuration from its cache");
+            }
+            ns.messages = ns.fullMessages;
+            ns.fullMessages = null;
+            ns.next = 0;
+            ns.bError = false;
+            return true;
+        }
+        if (ns.retries == m_iMaxRetries) {
+            System.err.println("ConfigDisseminator: node " + ns.address + " did not accept configuration " + m_ConfigID);
+            ns.bFailed = true;
+            return false;
+        }
+        if (m_bDebugOutput) {
+            System.out.println("ConfigDisseminator: resending configuration to node " + ns.address);
+        }
+        ns.retries++;
+        ns.next = 0;
+        ns.bError = false;
+        return true;
+    }
+
+    /**
+     * Receives the acknowledgements from the nodes
+     */
+    public synchronized void update(Observable obs, Object param) {
+        if (param instanceof ConfigurationSuccessMsg) {
+            ConfigurationSuccessMsg csm = (ConfigurationSuccessMsg) param;
+            NodeState ns = getActiveNode(csm.nodeID, csm.configID);
+
+            // only a complete configuration can be confirmed
+            if (ns != null && ns.next == ns.messages.size()) {
+                ns.latency = System.currentTimeMillis() - ns.firstSend;
+                m_Active.remove(ns);
+                notifyAll();
+            }
+        } else if (param instanceof ErrorMsg) {
+            ErrorMsg em = (ErrorMsg) param;
+            NodeState ns = getActiveNode(em.nodeID, em.configID);
+            if (ns != null) {
+                ns.bError = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private NodeState getActiveNode(int nodeAddr, int configID) {
+        // nodes only keep 4 bits of the configuration ID
+        if ((configID & 0xF) != (m_ConfigID & 0xF)) return null;
+
+        NodeState ns = (NodeState) m_NodeMap.get(new Integer(nodeAddr));
+        return (ns != null && m_Active.contains(ns)) ? ns : null;
+    }
+
+    /**
+     * @return the time in ms from sending the first message to a node until
+     *         it confirmed its configuration, -1 if it did not
+     */
+    public long getLatency(int nodeAddr) {
+        NodeState ns = (NodeState) m_NodeMap.get(new Integer(nodeAddr));
+        return (ns != null) ? ns.latency : -1;
+    }
+
+    /** prints the deployment latency of every node */
+    public void printLatencies() {
+        System.out.println("Deployment of configuration " + m_ConfigID + ":");
+        for (int i = 0; i < m_Nodes.size(); i++) {
+            NodeState ns = (NodeState) m_Nodes.get(i);
+            System.out.print("  node " + ns.address + ": " + ns.messages.size() + " messages, ");
+            if (ns.bFailed) {
+                System.out.println("failed");
+            } else {
+                System.out.println(ns.latency + " ms" + ((ns.retries > 0) ? " (" + ns.retries + " retransmissions)" : ""));
+            }
+        }
+    }
+}
@@ -34,15 +34,19 @@ import java.util.Observer;
 import titancommon.Performance;
 import titancommon.TitanCommand;
 import titan.TitanCommunicate;
+import titancommon.compiler.CompilationCache;
 import titancommon.compiler.Compiler;
 import titancommon.compiler.GreedyCompiler;
 import titancommon.messages.MessageDispatcher;
 import titan.messages.SerialMsg;
 import titancommon.services.ServiceDirectory;
+import titancommon.services.ServiceNotices.NoticeInfo;
+import titancommon.services.ServiceNotices.NoticeReason;
 
 public class NetworkManager implements Observer {
 
    private Compiler m_Compiler;       ///< Compiler for the task network
+   private CompilationCache m_CompilationCache; ///< Allocations of previously compiled task networks
    private TaskNetwork m_TaskNetwork;    ///< The original task network
    private TaskNetwork m_RunningNetwork; ///< The currently running task network
    private TitanCommunicate m_Comm;         ///< Connection to the sensor network
@@ -50,6 +54,7 @@ public class NetworkManager implements Observer {
    private ServiceDirectory m_ServiceDirectory;
    private int m_configID;
    public boolean m_bDebugOutput = true; ///< turns on/off debug output
+   private boolean m_bDifferentialSwitch = false; ///< nodes replace their configuration without being cleared
    private RecoverNode [] m_nodeObservers; ///< used to check whether all nodes keep their configuration
 
    /**
@@ -61,6 +66,7 @@ public class NetworkManager implements Observer {
       m_MessageDispatcher = md;
       m_ServiceDirectory = sd;
       m_Compiler = new GreedyCompiler(sd);
+      m_CompilationCache = CompilationCache.getSharedCache(sd);
       m_Comm = comm;
    }
 
@@ -102,7 +108,7 @@ public class NetworkManager implements Observer {
       Performance.printEvent("NetworkManager: Starting compilation");
       
       // compile it onto the current network
-      m_RunningNetwork = m_Compiler.compileNetwork(m_TaskNetwork);
+      m_RunningNetwork = compile(m_TaskNetwork);
 
       // check whether compilation was successfull
       if (m_RunningNetwork == null) {
@@ -111,6 +117,7 @@ public class NetworkManager implements Observer {
       }
       
       m_RunningNetwork.setConfigID((short)m_configID);
+      m_RunningNetwork.useNodeCaches(m_ServiceDirectory);
 
       if (m_bDebugOutput) {
          m_RunningNetwork.printTaskNetwork();
@@ -123,7 +130,7 @@ public class NetworkManager implements Observer {
       }
 
       Performance.printEvent("NetworkManager: Done compiling");
-      if (m_RunningNetwork.configureNetwork(m_Comm)) {
+      if (m_RunningNetwork.configureNetwork(m_Comm, m_MessageDispatcher)) {
          // disable reconfig timeout for now
          //for (int i=0; i < m_nodeObservers.length; i++) m_nodeObservers[i].start();
 
@@ -140,19 +147,103 @@ public class NetworkManager implements Observer {
       }
    }
 
+   /**
+    * Compiles the task network, unless the same template has already been 
+    * compiled onto the same nodes.
+    */
+   private TaskNetwork compile(TaskNetwork tn) throws Exception {
+      TaskNetwork tnCompiled = m_CompilationCache.lookup(tn);
+      if (tnCompiled != null) {
+         Performance.printEvent("NetworkManager: Reusing cached compilation");
+         return tnCompiled;
+      }
+
+      tnCompiled = m_Compiler.compileNetwork(tn);
+      if (tnCompiled != null) {
+         m_CompilationCache.store(tn, tnCompiled);
+      }
+      return tnCompiled;
+   }
+
    /**
     * Receives updates about changes in the service directory. This might affect 
     * the execution on the nodes and need rearrangements. 
     */
    public void update(Observable obs, Object param) {
 
+      if (!(param instanceof NoticeInfo)) return;
+      NoticeInfo notice = (NoticeInfo)param;
+
+      if (notice.reason == NoticeReason.NODE_REMOVED) {
+         // notices come from the timer of the service directory, which 
+         // must not wait for the nodes to be configured again
+         new RepairThread(notice.address).start();
+      }
+   }
+
+   /** Repairs the network after a node has been lost */
+   private class RepairThread extends Thread {
+      private int m_iNodeAddr;
+
+      public RepairThread(int nodeAddr) {
+         super("NetworkManager repair " + nodeAddr);
+         m_iNodeAddr = nodeAddr;
+         setDaemon(true);
+      }
+
+      public void run() {
+         repairNetwork(m_iNodeAddr);
+      }
+   }
+
+   /**
+    * Moves the tasks of a lost node to the remaining nodes. Only the nodes 
+    * whose configuration changes are configured again.
+    * @param nodeAddr Address of the node that has been lost
+    */
+   private synchronized void repairNetwork(int nodeAddr) {
+
+      if (m_RunningNetwork == null || !m_RunningNetwork.containsNode(nodeAddr)) return;
+
+      Performance.printEvent("NetworkManager: Repairing network after loss of node " + nodeAddr);
+
+      TaskNetwork tnRepaired;
+      try {
+         tnRepaired = m_Compiler.updateNetwork(m_TaskNetwork, m_RunningNetwork);
+      } catch (Exception e) {
+         System.err.println("NetworkManager: could not repair network after loss of node " + nodeAddr + ": " + e.getMessage());
+         return;
+      }
+      if (tnRepaired == null || tnRepaired == m_RunningNetwork) return;
+
+      tnRepaired.setConfigID((short)m_configID);
+      tnRepaired.m_bDebugOutput = m_bDebugOutput;
+      tnRepaired.useNodeCaches(m_ServiceDirectory);
+      int[] changedNodes = tnRepaired.getChangedNodes(m_RunningNetwork);
+
+      if (m_bDebugOutput) {
+         System.out.println("NetworkManager: reconfiguring " + changedNodes.length + " of " + tnRepaired.m_Nodes.size() + " nodes");
+      }
+
+      for (int i=0; i<m_nodeObservers.length; i++) {
+         m_nodeObservers[i].stop();
+      }
+      m_RunningNetwork = tnRepaired;
+      m_nodeObservers = new RecoverNode[m_RunningNetwork.m_Nodes.size()];
+      for (int i=0; i < m_nodeObservers.length; i++) {
+         m_nodeObservers[i] = new RecoverNode(m_Comm, m_RunningNetwork, m_MessageDispatcher, 
+                                              ((TaskNetwork.NodeConfiguration)m_RunningNetwork.m_Nodes.get(i)).address);
+      }
+
+      m_RunningNetwork.configureNodes(m_Comm, m_MessageDispatcher, changedNodes);
+      Performance.printEvent("NetworkManager: Done repairing");
    }
 
    /**
     * Stops the execution of the task network and deregister from getting messages.
     * @return whether successful
     */
-   public boolean stop(Observable msgDispatcher) {
+   public synchronized boolean stop(Observable msgDispatcher) {
       msgDispatcher.deleteObserver(this);
       m_ServiceDirectory.deleteObserver(this);
       m_TaskNetwork = null;
@@ -190,16 +281,28 @@ public class NetworkManager implements Observer {
       return res;
    }
 
+   /**
+    * When set, switchTaskNetwork() only clears the nodes that are not used by 
+    * the new task network. The other nodes must run in differential 
+    * reconfiguration mode (see TitanLocalNode.setReconfigMode()), so that tasks 
+    * both networks have in common keep running with their state.
+    */
+   public void setDifferentialSwitch(boolean bDifferential) {
+      m_bDifferentialSwitch = bDifferential;
+   }
+
    /** Switches the task network currently running. Returns the template for the old task network 
     * @throws Exception */
-   public TaskNetwork switchTaskNetwork(TaskNetwork tnNew) throws Exception {
+   public synchronized TaskNetwork switchTaskNetwork(TaskNetwork tnNew) throws Exception {
       TaskNetwork tnOld = m_TaskNetwork;
-      m_RunningNetwork.clearConfig(m_Comm);
+      TaskNetwork tnOldRunning = m_RunningNetwork;
       m_RunningNetwork = null;
       m_TaskNetwork = tnNew;
 
-      m_RunningNetwork = m_Compiler.compileNetwork(m_TaskNetwork);
-      m_RunningNetwork.configureNetwork(m_Comm);
+      m_RunningNetwork = compile(m_TaskNetwork);
+      m_RunningNetwork.useNodeCaches(m_ServiceDirectory);
+      tnOldRunning.clearConfig(m_Comm, m_bDifferentialSwitch ? m_RunningNetwork : null);
+      m_RunningNetwork.configureNetwork(m_Comm, m_MessageDispatcher);
 
       return tnOld;
    }
@@ -213,6 +316,18 @@ public class NetworkManager implements Observer {
 
    }
 
+   /**
+    * @return address of the node sending data to the port of a node in the
+    *         running network, or -1
+    */
+   public int getNodeAddrByPort(int nodeAddr, int port) {
+
+      if (m_RunningNetwork == null) {
+         return -1;
+      }
+      return m_RunningNetwork.getNodeAddrByPort(nodeAddr, port);
+   }
+
    public int getConfigID() {
       return m_configID;
    }
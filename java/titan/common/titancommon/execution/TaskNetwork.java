@@ -18,13 +18,17 @@
 package titancommon.execution;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import titancommon.Connection;
 import titancommon.TitanCommand;
 import titan.TitanCommunicate;
 import titancommon.compiler.NodeMetrics;
+import titancommon.messages.MessageDispatcher;
 import titan.messages.SerialMsg;
+import titancommon.node.NodeConfigTemplate;
 import titancommon.services.NodeInfo;
+import titancommon.services.ServiceDirectory;
 import titancommon.tasks.Communicator;
 import titancommon.tasks.Task;
 
@@ -169,6 +173,8 @@ public class TaskNetwork {
     private int [] m_AllocVector;
     /** Configuration is only started after a configuration start message has been sent */
     private boolean m_bDelayedReconfig = true;
+    /** Knows which nodes have cached which configurations, null to always send the full configuration */
+    private ServiceDirectory m_CacheDirectory;
 	
     /** returns a vector displaying the allocation created during the last run */
     public void setAllocVector(int[] allocVector) {
@@ -189,6 +195,7 @@ public class TaskNetwork {
     	newTN.m_ConfigID = m_ConfigID;
     	newTN.m_iMasterAddr = m_iMasterAddr;
     	newTN.m_bDebugOutput = m_bDebugOutput;
+    	newTN.m_CacheDirectory = m_CacheDirectory;
 
     	newTN.setAllocVector(m_AllocVector);
 
@@ -197,6 +204,16 @@ public class TaskNetwork {
     
     public TaskNetwork() {}
     
+    /**
+     * Lets the configuration of the nodes start configurations they have 
+     * cached with a single TITANCOMM_CACHE_START message. The service directory 
+     * collects the cache reports of the nodes.
+     * @param sd Service directory, or null to always send the full configuration
+     */
+    public void useNodeCaches(ServiceDirectory sd) {
+        m_CacheDirectory = sd;
+    }
+    
     public void setConfigID(short iConfigID) {
     	m_ConfigID = iConfigID;
     }
@@ -328,7 +345,7 @@ public class TaskNetwork {
     // TODO: MAX_CFGFWD_PAYLOAD_SIZE depends on hopcount
     final static int MAX_CFGFWD_PAYLOAD_SIZE = TitanCommand.TOSH_DATA_LENGTH-FWD_HEADER_SIZE;
     
-    public boolean configureNetwork(TitanCommunicate comm) {
+    private void createMessages() {
         
         m_MsgList = new ArrayList();
         
@@ -341,7 +358,211 @@ public class TaskNetwork {
             connsToMsg(m_MsgList, nc);
             
         } // foreach node
+    }
+    
+    /** Returns the configuration messages of a single node */
+    private ArrayList createNodeMessages(NodeConfiguration nc) {
+        ArrayList/*<short[]>*/ msgList = new ArrayList();
+        tasksToMsg(msgList, nc);
+        connsToMsg(msgList, nc);
+        return msgList;
+    }
+    
+    /**
+     * Compares the configuration of the nodes with another task network.
+     * @param tnOld The task network currently running
+     * @return the addresses of the nodes which are new or would get other 
+     *         configuration messages than in tnOld
+     */
+    public int[] getChangedNodes(TaskNetwork tnOld) {
+        
+        ArrayList/*<Integer>*/ changed = new ArrayList();
+        for (int i=0; i<m_Nodes.size(); i++) {
+            NodeConfiguration nc = (NodeConfiguration)m_Nodes.get(i);
+            NodeConfiguration ncOld = (tnOld != null)? tnOld.getNode(nc.address) : null;
+            
+            boolean bChanged = (ncOld == null);
+            if (!bChanged) {
+                ArrayList msgs    = createNodeMessages(nc);
+                ArrayList msgsOld = tnOld.createNodeMessages(ncOld);
+                bChanged = (msgs.size() != msgsOld.size());
+                for (int j=0; !bChanged && j<msgs.size(); j++) {
+                    bChanged = !Arrays.equals((short[])msgs.get(j), (short[])msgsOld.get(j));
+                }
+            }
+            
+            if (bChanged) changed.add(new Integer(nc.address));
+        }
+        
+        int[] nodeAddrs = new int[changed.size()];
+        for (int i=0; i<nodeAddrs.length; i++) {
+            nodeAddrs[i] = ((Integer)changed.get(i)).intValue();
+        }
+        return nodeAddrs;
+    }
+    
+    /**
+     * Configures only some of the nodes of the network, e.g. those returned 
+     * by getChangedNodes(). The other nodes keep running.
+     * @param comm      Communication object to connect to the sensor network
+     * @param md        Dispatcher delivering the acknowledgements of the nodes, may be null
+     * @param nodeAddrs Addresses of the nodes to configure
+     * @return whether all nodes have confirmed their configuration
+     */
+    public boolean configureNodes(TitanCommunicate comm, MessageDispatcher md, int[] nodeAddrs) {
+        
+        // keep all messages for later reconfigurations of single nodes
+        createMessages();
+        if (comm == null) return false;
+        
+        ArrayList/*<short[]>*/ msgList = new ArrayList();
+        for (int i=0; i<m_MsgList.size(); i++) {
+            short[] cfgData = (short[])m_MsgList.get(i);
+            int msgDest = cfgData[2]*256 + cfgData[3];
+            for (int j=0; j<nodeAddrs.length; j++) {
+                if (nodeAddrs[j] == msgDest) {
+                    msgList.add(cfgData);
+                    break;
+                }
+            }
+        }
+        
+        boolean bSuccess = true;
+        if (md == null || comm.isSimulation()) {
+            for (int i=0; i<msgList.size(); i++) {
+                comm.send(0, cfgToMsg((short[])msgList.get(i)));
+            }
+        } else {
+            ConfigDisseminator cd = new ConfigDisseminator(comm, md, m_ConfigID);
+            cd.m_bDebugOutput = m_bDebugOutput;
+            setCacheStarts(cd, nodeAddrs);
+            bSuccess = cd.disseminate(msgList);
+        }
+        
+        if (m_bDelayedReconfig) {
+            for (int i=0; i<nodeAddrs.length; i++) {
+                sendStartConfigMsg(comm, nodeAddrs[i]);
+            }
+        }
         
+        return bSuccess;
+    }
+    
+    /**
+     * Lets the ConfigDisseminator start the configuration from the cache of 
+     * the nodes that have reported to hold it.
+     */
+    private void setCacheStarts(ConfigDisseminator cd, int[] nodeAddrs) {
+        if (m_CacheDirectory == null) return;
+        
+        for (int i=0; i<nodeAddrs.length; i++) {
+            NodeConfiguration nc = getNode(nodeAddrs[i]);
+            if (nc == null) continue;
+            
+            int iSignature = getConfigSignature(nc);
+            if (m_CacheDirectory.hasCachedConfig(nc.address, m_ConfigID, iSignature)) {
+                cd.setCacheStart(nc.address, createCacheStartMessage(nc, iSignature));
+            }
+        }
+    }
+    
+    /**
+     * Computes the signature a node computes over the task descriptions and 
+     * connections of its configuration, see NodeConfigTemplate.
+     */
+    public int getConfigSignature(NodeConfiguration nc) {
+        int iSignature = NodeConfigTemplate.SIGNATURE_INIT;
+        
+        ArrayList configPackets = getConfigPackets(nc);
+        for (int i=0; i<configPackets.size(); i++) {
+            short[] curPacket = (short[])configPackets.get(i);
+            for (int k=0; k<curPacket.length; k++) {
+                iSignature = NodeConfigTemplate.updateSignature(iSignature, curPacket[k]);
+            }
+        }
+        for (int i=0; i<nc.connections.length; i++) {
+            iSignature = NodeConfigTemplate.updateSignature(iSignature, nc.connections[i].StartTask);
+            iSignature = NodeConfigTemplate.updateSignature(iSignature, nc.connections[i].StartPort);
+            iSignature = NodeConfigTemplate.updateSignature(iSignature, nc.connections[i].EndTask);
+            iSignature = NodeConfigTemplate.updateSignature(iSignature, nc.connections[i].EndPort);
+        }
+        return iSignature;
+    }
+    
+    /**
+     * Creates the message starting a cached configuration on a node. It has 
+     * the header of the CONFIG message, followed by the signature.
+     */
+    private short[] createCacheStartMessage(NodeConfiguration nc, int iSignature) {
+        short[] cfgData = {
+            // CFGFORWARD header
+            1, 9, (short)((nc.address>>8)&0xFF), (short)(nc.address&0xFF),
+            (short)((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_CACHE_START),
+            (short)((short)(m_bDelayedReconfig? 0x80 : 0x00) | (short)nc.tasks.length),
+            (short)nc.connections.length,
+            (short)((m_iMasterAddr>>8)&0xFF), (short)((m_iMasterAddr)&0xFF),
+            (short)(m_ConfigID<<4), 0,
+            (short)((iSignature>>8)&0xFF), (short)(iSignature&0xFF)
+        };
+        return cfgData;
+    }
+    
+    /** Converts a message of m_MsgList into a message to be sent */
+    static SerialMsg cfgToMsg(short[] cfgData) {
+        SerialMsg msg = new SerialMsg(cfgData.length-4+SerialMsg.DEFAULT_MESSAGE_SIZE);
+        msg.set_length( cfgData[1] );
+        msg.set_address( cfgData[2]*256 + cfgData[3] );
+        
+        short[] msgData = new short[cfgData.length-4];
+        for( int j=0; j<msgData.length; j++ ) {
+            msgData[j] = cfgData[j+4];
+        }
+        msg.set_data(msgData);
+        return msg;
+    }
+    
+    /**
+     * Configures the network and waits for the nodes to acknowledge their 
+     * configuration. The nodes are configured in parallel by a 
+     * ConfigDisseminator, which resends the configuration to nodes reporting 
+     * errors or not answering. Falls back to configureNetwork(comm) if no 
+     * acknowledgements can be received.
+     * @param comm Communication object to connect to the sensor network
+     * @param md   Dispatcher delivering the ConfigurationSuccessMsg and ErrorMsg of the nodes
+     * @return whether all nodes have confirmed their configuration
+     */
+    public boolean configureNetwork(TitanCommunicate comm, MessageDispatcher md) {
+        
+        // the simulation only runs while sending
+        if (comm == null || md == null || comm.isSimulation()) {
+            return configureNetwork(comm);
+        }
+        
+        createMessages();
+        
+        ConfigDisseminator cd = new ConfigDisseminator(comm, md, m_ConfigID);
+        cd.m_bDebugOutput = m_bDebugOutput;
+        int[] nodeAddrs = new int[m_Nodes.size()];
+        for (int i=0; i<nodeAddrs.length; i++) {
+            nodeAddrs[i] = ((NodeConfiguration)m_Nodes.get(i)).address;
+        }
+        setCacheStarts(cd, nodeAddrs);
+        boolean bSuccess = cd.disseminate(m_MsgList);
+        if (m_bDebugOutput) {
+            cd.printLatencies();
+        }
+        
+        // nodes that confirmed their configuration can start in any case
+        if (m_bDelayedReconfig) {
+           sendStartConfigMsg(comm,65535); // broadcast start configuration
+        }
+        
+        return bSuccess;
+    }
+    
+    public boolean configureNetwork(TitanCommunicate comm) {
+        
+        createMessages();
         
         // now actually send the configuration to the motes
         if (comm == null) return false;
@@ -469,6 +690,47 @@ public class TaskNetwork {
     
     private boolean tasksToMsg(ArrayList MsgList, NodeConfiguration nc) {
 
+        ArrayList/*<short[]>*/ configPackets = getConfigPackets(nc);
+        
+        // now fit packets into messages. First message contains 
+        // additional configuration data
+        int iMsgSize = FWD_CONFIG_MSG_HEADER_SIZE+FWD_HEADER_SIZE;
+        int iFirstPacket = 0;
+        boolean bFirstMessage = true;
+        for (int iCurCfgPacket=0; iCurCfgPacket < configPackets.size(); iCurCfgPacket++ ) {
+            
+            // check whether the packet is full, or it is the last
+            if ( iMsgSize + ((short[])configPackets.get(iCurCfgPacket)).length > MAX_CFGFWD_PAYLOAD_SIZE ) {
+                
+                createMessage(MsgList, nc, configPackets, iMsgSize, iFirstPacket, bFirstMessage, iCurCfgPacket);
+                
+                bFirstMessage = false;
+                
+                // set data for next iteration
+                iFirstPacket = iCurCfgPacket;
+                iMsgSize = FWD_HEADER_SIZE+FWD_CFGTASK_MSG_HEADER_SIZE + ((short[])configPackets.get(iCurCfgPacket)).length;
+
+            } else {
+                iMsgSize += ((short[])configPackets.get(iCurCfgPacket)).length;
+            }
+            
+        }
+
+        // send also the last message
+        if ( configPackets.size() > 0 ) {
+            createMessage(MsgList, nc, configPackets, iMsgSize, iFirstPacket, bFirstMessage, configPackets.size());
+        }
+        
+        return true;
+        
+    }
+
+    /**
+     * Collects the task descriptions of a node: task ID, run ID, and one 
+     * packet of configuration data each
+     */
+    private ArrayList getConfigPackets(NodeConfiguration nc) {
+
         ArrayList/*<short[]>*/ configPackets = new ArrayList();
         
         int iMaxCfgSize = MAX_CFGFWD_PAYLOAD_SIZE-4-FWD_CFGTASK_MSG_HEADER_SIZE;
@@ -505,37 +767,7 @@ public class TaskNetwork {
             }
         } // for: get configuration packets
         
-        // now fit packets into messages. First message contains 
-        // additional configuration data
-        int iMsgSize = FWD_CONFIG_MSG_HEADER_SIZE+FWD_HEADER_SIZE;
-        int iFirstPacket = 0;
-        boolean bFirstMessage = true;
-        for (int iCurCfgPacket=0; iCurCfgPacket < configPackets.size(); iCurCfgPacket++ ) {
-            
-            // check whether the packet is full, or it is the last
-            if ( iMsgSize + ((short[])configPackets.get(iCurCfgPacket)).length > MAX_CFGFWD_PAYLOAD_SIZE ) {
-                
-                createMessage(MsgList, nc, configPackets, iMsgSize, iFirstPacket, bFirstMessage, iCurCfgPacket);
-                
-                bFirstMessage = false;
-                
-                // set data for next iteration
-                iFirstPacket = iCurCfgPacket;
-                iMsgSize = FWD_HEADER_SIZE+FWD_CFGTASK_MSG_HEADER_SIZE + ((short[])configPackets.get(iCurCfgPacket)).length;
-
-            } else {
-                iMsgSize += ((short[])configPackets.get(iCurCfgPacket)).length;
-            }
-            
-        }
-
-        // send also the last message
-        if ( configPackets.size() > 0 ) {
-            createMessage(MsgList, nc, configPackets, iMsgSize, iFirstPacket, bFirstMessage, configPackets.size());
-        }
-        
-        return true;
-        
+        return configPackets;
     }
 
     private void createMessage(ArrayList MsgList, NodeConfiguration nc, ArrayList configPackets, int iMsgSize, int iFirstPacket, boolean bFirstMessage, int iCurCfgPacket) {
@@ -690,9 +922,21 @@ public class TaskNetwork {
      *
      */
     public boolean clearConfig(TitanCommunicate comm) {
+        return clearConfig(comm, null);
+    }
+
+    /**
+     * Clears the node configurations on the nodes in the task network that 
+     * are not used by the next task network. Nodes running in differential 
+     * reconfiguration mode replace their configuration themselves.
+     * @param tnNext Task network configured next, or null to clear all nodes
+     */
+    public boolean clearConfig(TitanCommunicate comm, TaskNetwork tnNext) {
         
         for(int i=0; i< m_Nodes.size(); i++) {
             
+            if (tnNext != null && tnNext.containsNode(((NodeConfiguration)m_Nodes.get(i)).address)) continue;
+
             short [] fwdconfig = { 
                     (short)((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_CONFIG), // msg type
                     0, 0, 0, 0,     // task num, conn num, master ID
@@ -0,0 +1,44 @@
+/*
+    This file is part of Titan.
+
+    Titan is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as 
+    published by the Free Software Foundation, either version 3 of 
+    the License, or (at your option) any later version.
+
+    Titan is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Titan. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package titancommon.messages;
+
+/**
+ * Statistics of a task on a local node, as reported in a TITANCOMM_STATS
+ * message. The counters are -1 if the task does not keep statistics.
+ */
+public class TaskStatsMsg {
+    public int nodeID;
+    public int configID;
+    public int runID;
+    public int taskID;
+    public long packetsIn = -1;
+    public long packetsOut = -1;
+    public long packetsDropped = -1;
+    public int queueHighWater = -1;
+    public long serviceMeanUs = -1;
+    public long serviceP99Us = -1;
+    public long serviceMaxUs = -1;
+
+    public TaskStatsMsg(int nodeID, int configID, int runID, int taskID) {
+        this.nodeID = nodeID;
+        this.configID = configID;
+        this.runID = runID;
+        this.taskID = taskID;
+    }
+}
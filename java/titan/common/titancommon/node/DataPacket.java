@@ -1,6 +1,22 @@
 package titancommon.node;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
+ * Data exchanged between Titan tasks.
+ *
+ * The payload is kept in sdata, one byte per element. Besides direct array
+ * access, the typed accessors read and write 16/32 bit integers and floats
+ * in either byte order without any allocation. A packet can also be a
+ * slice view onto a region of another packet's array; views must only be
+ * read through the typed accessors (see TypedDataTask).
+ *
+ * Packets obtained from a DataPacketPool are reference counted: the
+ * creator holds one reference, every queued delivery holds one, and the
+ * packet returns to its pool when the last reference is released. A task
+ * that keeps a packet beyond inDataHandler() has to retain() it and
+ * release() it when done. For packets created with the constructors, the
+ * reference counting calls do nothing.
  *
  * @author Jeremy Constantin <jeremyc@student.ethz.ch>
  */
@@ -16,6 +32,16 @@ public class DataPacket {
     public double[] ddata = null;
     private long timestamp = -1;
 
+    // view and reference counting state, see class comment
+    private int offset = 0;
+    private int viewLength = -1;      // -1: whole sdata array
+    private DataPacket parent = null;  // packet owning sdata of a view
+    private DataPacketPool pool = null;
+    private volatile int refCount = 0;
+
+    private static final AtomicIntegerFieldUpdater REFS =
+            AtomicIntegerFieldUpdater.newUpdater(DataPacket.class, "refCount");
+
   public DataPacket() { mode = DP_UNDEFINED; }
   public DataPacket(short[] d)  { sdata = d; mode = DP_SHORT_ARRAY; }
   public DataPacket(int[] d)    { idata = d; mode = DP_INT_ARRAY; }
@@ -31,12 +57,194 @@ public class DataPacket {
     public void setTimestamp(long timestamp) {
         this.timestamp = timestamp;
     }
+    /** creates a pooled packet, only used by DataPacketPool */
+    DataPacket(DataPacketPool p, int length) {
+        this(new short[length]);
+        pool = p;
+    }
+
+    /** creates a view onto sdata of the given packet */
+    private DataPacket(DataPacket src, int off, int len) {
+        this(src.sdata);
+        parent = (src.parent != null) ? src.parent : src;
+        offset = src.offset + off;
+        viewLength = len;
+        timestamp = src.timestamp;
+        refCount = 1;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // reference counting
+
+    private boolean isCounted() {
+        return (pool != null) || (parent != null);
+    }
+
+    /** resets a recycled packet before it is handed out again */
+    void reuse() {
+        timestamp = -1;
+        refCount = 1;
+    }
+
+    /**
+     * Takes an additional reference, needed to keep the packet after
+     * inDataHandler() returns.
+     * @return this packet
+     */
+    public DataPacket retain() {
+        if (isCounted()) {
+            REFS.incrementAndGet(this);
+        }
+        return this;
+    }
+
+    /**
+     * Drops a reference. Pooled packets return to their pool when the last
+     * reference is gone, views release the packet they look at.
+     */
+    public void release() {
+        if (!isCounted()) {
+            return;
+        }
+        if (REFS.decrementAndGet(this) == 0) {
+            if (parent != null) {
+                parent.release();
+            }
+            else {
+                pool.recycle(this);
+            }
+        }
+    }
+
+    public boolean isPooled() { return pool != null; }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // views
+
+    public boolean isView() {
+        return (offset != 0) || ((viewLength >= 0) && (viewLength != sdata.length));
+    }
+
+    /** @return number of bytes in this packet or view */
+    public int getLength() {
+        return (viewLength >= 0) ? viewLength : sdata.length;
+    }
+
+    /** @return number of 16 bit values in this packet or view */
+    public int getInt16Count() {
+        return getLength() >> 1;
+    }
+
+    /**
+     * Creates a view onto len bytes starting at off, without copying. The
+     * view holds a reference to this packet until it is released.
+     */
+    public DataPacket slice(int off, int len) {
+        if (off < 0 || len < 0 || off + len > getLength()) {
+            throw new IndexOutOfBoundsException("slice " + off + "+" + len + " of " + getLength());
+        }
+        ((parent != null) ? parent : this).retain();
+        return new DataPacket(this, off, len);
+    }
+
+    /**
+     * Adapter for tasks working on the raw sdata array: returns this packet
+     * if it covers its whole array, otherwise a plain copy of the viewed
+     * bytes. The view is released in that case.
+     */
+    public DataPacket compact() {
+        if (!isView()) {
+            return this;
+        }
+        short[] d = new short[getLength()];
+        System.arraycopy(sdata, offset, d, 0, d.length);
+        DataPacket dp = new DataPacket(d);
+        dp.setTimestamp(timestamp);
+        release();
+        return dp;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // typed accessors, idx is the byte index within the packet or view
+
+    /** little endian 16 bit value (signed) */
+    public short getInt16(int idx) {
+        int i = offset + idx;
+        return (short) (sdata[i] + (sdata[i + 1] << 8));
+    }
+
+    /** big endian 16 bit value (signed) */
+    public short getInt16BE(int idx) {
+        int i = offset + idx;
+        return (short) ((sdata[i] << 8) + sdata[i + 1]);
+    }
+
+    public int getInt32(int idx) {
+        int i = offset + idx;
+        return  (sdata[i]     & 0xFF)
+             | ((sdata[i + 1] & 0xFF) << 8)
+             | ((sdata[i + 2] & 0xFF) << 16)
+             | ((sdata[i + 3] & 0xFF) << 24);
+    }
+
+    public int getInt32BE(int idx) {
+        int i = offset + idx;
+        return ((sdata[i]     & 0xFF) << 24)
+             | ((sdata[i + 1] & 0xFF) << 16)
+             | ((sdata[i + 2] & 0xFF) << 8)
+             |  (sdata[i + 3] & 0xFF);
+    }
+
+    public float getFloat(int idx)   { return Float.intBitsToFloat(getInt32(idx)); }
+    public float getFloatBE(int idx) { return Float.intBitsToFloat(getInt32BE(idx)); }
+
+    /** copies len bytes starting at idx into dst, without allocating */
+    public void getBytes(int idx, short[] dst, int dstOff, int len) {
+        System.arraycopy(sdata, offset + idx, dst, dstOff, len);
+    }
+
+    public void setInt16(int idx, int val) {
+        int i = offset + idx;
+        sdata[i]     = (short) ( val       & 0xFF);
+        sdata[i + 1] = (short) ((val >> 8) & 0xFF);
+    }
+
+    public void setInt16BE(int idx, int val) {
+        int i = offset + idx;
+        sdata[i]     = (short) ((val >> 8) & 0xFF);
+        sdata[i + 1] = (short) ( val       & 0xFF);
+    }
+
+    public void setInt32(int idx, int val) {
+        int i = offset + idx;
+        sdata[i]     = (short) ( val        & 0xFF);
+        sdata[i + 1] = (short) ((val >> 8)  & 0xFF);
+        sdata[i + 2] = (short) ((val >> 16) & 0xFF);
+        sdata[i + 3] = (short) ((val >> 24) & 0xFF);
+    }
+
+    public void setInt32BE(int idx, int val) {
+        int i = offset + idx;
+        sdata[i]     = (short) ((val >> 24) & 0xFF);
+        sdata[i + 1] = (short) ((val >> 16) & 0xFF);
+        sdata[i + 2] = (short) ((val >> 8)  & 0xFF);
+        sdata[i + 3] = (short) ( val        & 0xFF);
+    }
+
+    public void setFloat(int idx, float val)   { setInt32(idx, Float.floatToRawIntBits(val)); }
+    public void setFloatBE(int idx, float val) { setInt32BE(idx, Float.floatToRawIntBits(val)); }
+
     public short[] getDataArray() {
       switch(mode) {
             case DP_UNDEFINED:
                 return null;
 
             case DP_SHORT_ARRAY:
+                if (isView()) {
+                    short[] d = new short[getLength()];
+                    System.arraycopy(sdata, offset, d, 0, d.length);
+                    return d;
+                }
                 return sdata;
 
             case DP_INT_ARRAY: {
@@ -0,0 +1,61 @@
+package titancommon.node;
+
+/**
+ * Recycles DataPackets of one fixed payload length, so that tasks emitting
+ * a result per window do not allocate a new packet for every output.
+ *
+ * Packets are handed out with one reference held by the caller, which has
+ * to release() it after sending. The pool is filled by packets whose last
+ * reference is released, possibly on another task's thread, and keeps at
+ * most the given number of idle packets.
+ */
+public class DataPacketPool {
+  public static final int DEFAULT_SIZE = 64;
+
+  private final int length;
+  private final DataPacket[] free;
+  private int count;
+  private long created;
+
+  public DataPacketPool(int len) {
+    this(len, DEFAULT_SIZE);
+  }
+
+  public DataPacketPool(int len, int size) {
+    length = len;
+    free = new DataPacket[size];
+    count = 0;
+    created = 0;
+  }
+
+  public int getLength() { return length; }
+
+  /** @return number of packets this pool had to allocate so far */
+  public synchronized long getCreated() { return created; }
+
+  /** @return a packet with length bytes of (stale) data and no timestamp */
+  public DataPacket obtain() {
+    DataPacket dp = null;
+    synchronized (this) {
+      if (count > 0) {
+        dp = free[--count];
+        free[count] = null;
+      }
+      else {
+        created++;
+      }
+    }
+
+    if (dp == null) {
+      dp = new DataPacket(this, length);
+    }
+    dp.reuse();
+    return dp;
+  }
+
+  synchronized void recycle(DataPacket dp) {
+    if (count < free.length) {
+      free[count++] = dp;
+    }
+  }
+}
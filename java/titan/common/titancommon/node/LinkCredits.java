@@ -0,0 +1,127 @@
+package titancommon.node;
+
+/**
+ * Receiving side of the credit based flow control between nodes. Every
+ * port of the communication task grants the node sending to it a window
+ * of packets, at most the free space in the input queues the port feeds.
+ * The ECommunicator of the sender stops forwarding once its credits are
+ * used up, so a slow consumer holds back the producer instead of filling
+ * socket buffers and queues on the way.
+ *
+ * Credits are granted with TITANCOMM_CREDIT messages to the master, which
+ * forwards them to the node sending to the port. A port takes part once
+ * it receives data; senders that never got credits are not limited.
+ */
+public class LinkCredits {
+  public static final boolean DEBUG_MSGS = false;
+
+  public static final int DEFAULT_WINDOW = 64;   // packets
+  public static final int MAX_GRANT      = 255;  // one byte in the message
+  public static final int CHECK_MS       = 20;   // look for drained queues
+  public static final int STALL_MS       = 1000; // credits considered lost
+
+  private static final int NUM_PORTS = 256;
+
+  private final TitanLocalNode localNode;
+  private final int window;
+  private final int[] outstanding;   // credits the sender still holds, per port
+  private final long[] lastReceived; // ms, 0: port not in use
+  private final boolean[] regranted; // credits granted again since the last packet
+  private TimingWheel.Task checkTask;
+
+  public LinkCredits(TitanLocalNode lnode, int win) {
+    localNode = lnode;
+    window = Math.min(Math.max(win, 2), MAX_GRANT);
+    outstanding = new int[NUM_PORTS];
+    lastReceived = new long[NUM_PORTS];
+    regranted = new boolean[NUM_PORTS];
+    checkTask = null;
+  }
+
+  public int getWindow() { return window; }
+
+  /**
+   * accounts a data message received on a port of the communication task,
+   * called after it has been delivered
+   */
+  public synchronized void received(int port, TitanTask commTask) {
+    outstanding[port]--;
+    lastReceived[port] = System.currentTimeMillis();
+    regranted[port] = false;
+
+    if (outstanding[port] <= window / 2) {
+      grant(port, commTask);
+    }
+
+    if (checkTask == null) {
+      // queues drain without any message coming in, check them periodically
+      checkTask = new CheckTask();
+      localNode.getTimingWheel().schedule(checkTask, CHECK_MS, CHECK_MS);
+    }
+  }
+
+  /** forgets all ports, e.g. when a new configuration is installed */
+  public synchronized void reset() {
+    for (int p = 0; p < NUM_PORTS; p++) {
+      outstanding[p] = 0;
+      lastReceived[p] = 0;
+      regranted[p] = false;
+    }
+  }
+
+  public synchronized void stop() {
+    if (checkTask != null) {
+      checkTask.cancel();
+      checkTask = null;
+    }
+  }
+
+  /**
+   * tops up the credits of the sender to the free space behind the port,
+   * small grants are held back until they are worth a message
+   */
+  private void grant(int port, TitanTask commTask) {
+    int held = Math.max(outstanding[port], 0);
+    int free = Math.min(commTask.getCredits(port), window);
+    int credits = free - held;
+    if (credits <= 0 || (held > 0 && credits < window / 4)) {
+      return;
+    }
+
+    if (DEBUG_MSGS) {
+      System.out.println("LinkCredits: granting " + credits + " credits on port " + port);
+    }
+    outstanding[port] = held + credits;
+    localNode.sendCreditMsg(port, credits);
+  }
+
+  private synchronized void check() {
+    NodeConfig cfg = localNode.getRunningConfig();
+    if (cfg == null || !cfg.isRunning()) {
+      return;
+    }
+    TitanTask commTask = cfg.getCommTask();
+
+    long now = System.currentTimeMillis();
+    for (int p = 0; p < NUM_PORTS; p++) {
+      if (lastReceived[p] == 0) {
+        continue;
+      }
+      if (outstanding[p] > 0 && !regranted[p] && now - lastReceived[p] > STALL_MS) {
+        // a grant got lost or the sender restarted, this happens once per
+        // idle period so the sender holds at most two windows
+        outstanding[p] = 0;
+        regranted[p] = true;
+      }
+      if (outstanding[p] <= window / 2) {
+        grant(p, commTask);
+      }
+    }
+  }
+
+  private class CheckTask extends TimingWheel.Task {
+    public void run() {
+      check();
+    }
+  }
+}
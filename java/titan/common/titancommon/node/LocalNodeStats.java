@@ -0,0 +1,149 @@
+package titancommon.node;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers a TitanLocalNode and the statistics of the tasks it runs with
+ * the platform MBean server, as
+ *
+ *   titancommon.node:type=LocalNode,node=<node id>
+ *   titancommon.node:type=Task,node=<node id>,runID=<run id>
+ *
+ * The task beans follow the running configuration, see updateTasks().
+ */
+public class LocalNodeStats implements LocalNodeStatsMBean {
+  public static final String DOMAIN = "titancommon.node";
+
+  private final TitanLocalNode localNode;
+  private final MBeanServer server;
+  private ObjectName name;
+  private ArrayList/*<ObjectName>*/ taskNames;
+
+  public LocalNodeStats(TitanLocalNode lnode) {
+    localNode = lnode;
+    server = ManagementFactory.getPlatformMBeanServer();
+    name = null;
+    taskNames = new ArrayList/*<ObjectName>*/();
+  }
+
+  public synchronized void register() {
+    try {
+      name = new ObjectName(DOMAIN + ":type=LocalNode,node=" + localNode.getNodeId());
+      unregister(name);  // left over by an earlier node with this id
+      server.registerMBean(this, name);
+    }
+    catch (JMException jme) {
+      System.err.println("LN(" + localNode.getNodeId() + "): could not register MBean: " + jme.getMessage());
+      name = null;
+    }
+  }
+
+  public synchronized void unregister() {
+    updateTasks(null);
+    if (name != null) {
+      unregister(name);
+      name = null;
+    }
+  }
+
+  /**
+   * replaces the registered task beans by the ones of the tasks of a
+   * configuration that keep statistics
+   */
+  public synchronized void updateTasks(NodeConfig cfg) {
+    for (int i = 0; i < taskNames.size(); i++) {
+      unregister((ObjectName) taskNames.get(i));
+    }
+    taskNames.clear();
+
+    if (cfg == null || name == null) {
+      return;
+    }
+    TitanTask[] tasks = cfg.getTasks();
+    for (int i = 0; i < tasks.length; i++) {
+      TaskStats st = tasks[i].getStats();
+      if (st == null) {
+        continue;
+      }
+      try {
+        ObjectName tn = new ObjectName(DOMAIN + ":type=Task,node=" + localNode.getNodeId() + ",runID=" + tasks[i].getRunID());
+        unregister(tn);
+        server.registerMBean(st, tn);
+        taskNames.add(tn);
+      }
+      catch (JMException jme) {
+        System.err.println("LN(" + localNode.getNodeId() + "): could not register MBean of task " + tasks[i].getRunID() + ": " + jme.getMessage());
+      }
+    }
+  }
+
+  private void unregister(ObjectName on) {
+    try {
+      if (server.isRegistered(on)) {
+        server.unregisterMBean(on);
+      }
+    }
+    catch (JMException jme) { }
+  }
+
+  public int getNodeId() { return localNode.getNodeId(); }
+
+  public int getConfigId() {
+    NodeConfig cfg = localNode.getRunningConfig();
+    return (cfg != null) ? cfg.getConfigID() : -1;
+  }
+
+  public int getTaskCount() {
+    NodeConfig cfg = localNode.getRunningConfig();
+    return (cfg != null) ? cfg.getTasks().length : 0;
+  }
+
+  public boolean isStatsEnabled()             { return localNode.isStatsEnabled(); }
+  public void    setStatsEnabled(boolean en)  { localNode.setStatsEnabled(en); }
+
+  public long getSendBytes() { TitanTCP t = localNode.getTCP(); return (t != null) ? t.getSendBytes() : 0; }
+  public long getRecvBytes() { TitanTCP t = localNode.getTCP(); return (t != null) ? t.getRecvBytes() : 0; }
+  public long getSendMsgs()  { TitanTCP t = localNode.getTCP(); return (t != null) ? t.getSendMsgs() : 0; }
+  public long getRecvMsgs()  { TitanTCP t = localNode.getTCP(); return (t != null) ? t.getRecvMsgs() : 0; }
+
+  public int  getCreditWindow()      { return localNode.getCreditWindow(); }
+  public long getLastSwapPauseNs()   { return localNode.getLastSwapPauseNs(); }
+
+  public String[] getTaskSummaries() {
+    NodeConfig cfg = localNode.getRunningConfig();
+    if (cfg == null) {
+      return new String[0];
+    }
+    TitanTask[] tasks = cfg.getTasks();
+    String[] lines = new String[tasks.length];
+    for (int i = 0; i < tasks.length; i++) {
+      TaskStats st = tasks[i].getStats();
+      lines[i] = "run " + tasks[i].getRunID() + " task " + tasks[i].getTaskID();
+      if (st != null) {
+        lines[i] += ": in " + st.getPacketsInTotal() + " out " + st.getPacketsOutTotal()
+                + " dropped " + st.getPacketsDroppedTotal() + " queue max " + st.getQueueHighWaterMax()
+                + " service mean " + st.getMeanServiceNs() + " ns p99 " + st.getP99ServiceNs()
+                + " ns max " + st.getMaxServiceNs() + " ns";
+      }
+    }
+    return lines;
+  }
+
+  public void resetStats() {
+    NodeConfig cfg = localNode.getRunningConfig();
+    if (cfg == null) {
+      return;
+    }
+    TitanTask[] tasks = cfg.getTasks();
+    for (int i = 0; i < tasks.length; i++) {
+      TaskStats st = tasks[i].getStats();
+      if (st != null) {
+        st.reset();
+      }
+    }
+  }
+}
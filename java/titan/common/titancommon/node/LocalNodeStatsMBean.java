@@ -0,0 +1,30 @@
+package titancommon.node;
+
+/**
+ * JMX view of a TitanLocalNode, the statistics of its tasks are registered
+ * as TaskStatsMBean next to it.
+ */
+public interface LocalNodeStatsMBean {
+  public int getNodeId();
+  /** ID of the running configuration, or -1 */
+  public int getConfigId();
+  public int getTaskCount();
+
+  public boolean isStatsEnabled();
+  public void setStatsEnabled(boolean enabled);
+
+  public long getSendBytes();
+  public long getRecvBytes();
+  public long getSendMsgs();
+  public long getRecvMsgs();
+
+  public int getCreditWindow();
+
+  /** data flow pause of the last differential swap, -1 if the configuration was started anew */
+  public long getLastSwapPauseNs();
+
+  /** one line per task: run id, task id, packets, queue and service time */
+  public String[] getTaskSummaries();
+
+  public void resetStats();
+}
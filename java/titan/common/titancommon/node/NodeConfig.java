@@ -1,5 +1,7 @@
 package titancommon.node;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import titan.messages.SerialMsg;
 import titancommon.tasks.Communicator;
 
@@ -16,6 +18,9 @@ public class NodeConfig {
   private int taskIdx;
   private int connCountTotal;
   private int connIdx;
+  private int[] conns;  // 4 entries per connection: out task, out port, in task, in port
+  private ArrayList/*<short[]>*/ taskDescs;  // task descriptions as received, for the template
+  private long swapPauseNs;
   private int masterAddr;
   private boolean bComplete;
   private boolean bRunnable;
@@ -32,6 +37,9 @@ public class NodeConfig {
     taskIdx = 0;
     connCountTotal = num_conns;
     connIdx = 0;
+    conns = new int[4 * num_conns];
+    taskDescs = new ArrayList/*<short[]>*/();
+    swapPauseNs = -1;
     masterAddr = maddr;
     bComplete = false;
     bRunnable = false;
@@ -40,6 +48,23 @@ public class NodeConfig {
     errSource = -1;
   }
 
+  /**
+   * Creates a configuration from a cached template, which does not need
+   * any further configuration messages.
+   */
+  public NodeConfig(TitanLocalNode lnode, NodeConfigTemplate tmpl, boolean auto_start, int maddr) {
+    this(lnode, tmpl.getConfigID(), auto_start, tmpl.getNumTasks(), tmpl.getNumConns(), maddr);
+
+    for (int i = 0; i < tmpl.getNumTaskDesc(); i++) {
+      addTask(tmpl.getTaskID(i), tmpl.getRunID(i), tmpl.getParam(i));
+    }
+    int[] c = tmpl.getConns();
+    for (int i = 0; i < c.length; i += 4) {
+      addConnection(c[i], c[i + 1], c[i + 2], c[i + 3]);
+    }
+    checkConfigComplete();
+  }
+
   public int       getConfigID()   { return cfgID; }
   public boolean   isAutoStart()   { return bAutoStart; }
   public int       getMasterAddr() { return masterAddr; }
@@ -50,6 +75,38 @@ public class NodeConfig {
   public int       getErrType()    { return errType; }
   public TitanTask getCommTask()   { return tasks[commTaskIdx]; }
 
+  /**
+   * @return nanoseconds data flow was interrupted when this configuration
+   *         took over from the previous one, or -1 if it was started anew
+   */
+  public long getSwapPauseNs() { return swapPauseNs; }
+
+  /** @return the tasks configured so far */
+  public TitanTask[] getTasks() {
+    TitanTask[] t = new TitanTask[taskIdx];
+    System.arraycopy(tasks, 0, t, 0, taskIdx);
+    return t;
+  }
+
+  public void setStatsEnabled(boolean enabled) {
+    for (int t = 0; t < taskIdx; t++) {
+      tasks[t].setStatsEnabled(enabled);
+    }
+  }
+
+  /**
+   * @return the task with the given run id, or null if it has not been
+   *         configured (yet)
+   */
+  public TitanTask getTask(int runID) {
+    for (int t = 0; t < taskIdx; t++) {
+      if (tasks[t].getRunID() == runID) {
+        return tasks[t];
+      }
+    }
+    return null;
+  }
+
   public int addTasks(SerialMsg msg, int idx) {
     int cid = msg.getElement_data(idx) >> 4;
     int task_cnt = msg.getElement_data(idx) & 0x0F;
@@ -70,29 +127,8 @@ public class NodeConfig {
       }
       idx += param.length;
 
-      if (taskID == Communicator.TASKID) {
-        if (commTaskIdx == -1) {
-          commTaskIdx = taskIdx;
-        }
-        else {
-          System.err.println("error: more than one COM task");
-          return -1;
-        }
-      }
-      
-      if ( runID >= tasks.length ) {
-         System.err.println("error: trying to configure too high runID: " + runID + " (taskID="+taskID+")");
-         continue;
-      }
-      
-      if ( tasks[runID] != null ) {
-         if ( tasks[runID].getTaskID() != taskID ) {
-            System.err.println("Error configuring task RunID="+runID+" taskID=" + taskID + ": differing existing taskID " + tasks[runID].getTaskID());
-         }
-         
-         tasks[runID].addParameters(param);
-      } else {
-         tasks[taskIdx++] = new TitanTask(localNode, taskID, runID, param);
+      if (!addTask(taskID, runID, param)) {
+        return -1;
       }
     }
 
@@ -101,6 +137,43 @@ public class NodeConfig {
     return idx;
   }
 
+  private boolean addTask(int taskID, int runID, short[] param) {
+    short[] desc = new short[4 + param.length];
+    desc[0] = (short) ((taskID >> 8) & 0xFF);
+    desc[1] = (short) (taskID & 0xFF);
+    desc[2] = (short) runID;
+    desc[3] = (short) param.length;
+    System.arraycopy(param, 0, desc, 4, param.length);
+    taskDescs.add(desc);
+
+    if ( runID >= tasks.length ) {
+       System.err.println("error: trying to configure too high runID: " + runID + " (taskID="+taskID+")");
+       return true;
+    }
+
+    if ( tasks[runID] != null ) {
+       if ( tasks[runID].getTaskID() != taskID ) {
+          System.err.println("Error configuring task RunID="+runID+" taskID=" + taskID + ": differing existing taskID " + tasks[runID].getTaskID());
+       }
+
+       tasks[runID].addParameters(param);
+       return true;
+    }
+
+    if (taskID == Communicator.TASKID) {
+      if (commTaskIdx == -1) {
+        commTaskIdx = taskIdx;
+      }
+      else {
+        System.err.println("error: more than one COM task");
+        return false;
+      }
+    }
+
+    tasks[taskIdx++] = new TitanTask(localNode, taskID, runID, param);
+    return true;
+  }
+
   public int addConnections(SerialMsg msg, int idx) {
     int cid = msg.getElement_data(idx) >> 4;
     int conn_cnt = msg.getElement_data(idx) & 0x0F;
@@ -121,38 +194,91 @@ public class NodeConfig {
       int ti_id = msg.getElement_data(idx++);
       int ti_port = msg.getElement_data(idx++);
 
-      TitanTask outTask = null;
-      TitanTask inTask = null;
-      for (int t = 0; t < taskIdx; t++) {
-        int rid = tasks[t].getRunID();
-        if (rid == to_id) {
-          outTask = tasks[t];
-        }
-        else if (rid == ti_id) {
-          inTask = tasks[t];
-        }
+      if (!addConnection(to_id, to_port, ti_id, ti_port)) {
+        return -1;
       }
+    }
 
-      if (outTask == null || inTask == null) {
-        System.err.println("invalid conection (task not found)");
-        return -1;
+    checkConfigComplete();
+
+    return idx;
+  }
+
+  private boolean addConnection(int to_id, int to_port, int ti_id, int ti_port) {
+    TitanTask outTask = null;
+    TitanTask inTask = null;
+    for (int t = 0; t < taskIdx; t++) {
+      int rid = tasks[t].getRunID();
+      if (rid == to_id) {
+        outTask = tasks[t];
+      }
+      else if (rid == ti_id) {
+        inTask = tasks[t];
       }
+    }
 
-      outTask.addPortOut(to_port, inTask, ti_port);
-      inTask.addPortIn(ti_port, outTask, to_port);
+    if (outTask == null || inTask == null) {
+      System.err.println("invalid conection (task not found)");
+      return false;
+    }
+
+    outTask.addPortOut(to_port, inTask, ti_port);
+    inTask.addPortIn(ti_port, outTask, to_port);
 
-      connIdx++;
+    conns[4 * connIdx]     = to_id;
+    conns[4 * connIdx + 1] = to_port;
+    conns[4 * connIdx + 2] = ti_id;
+    conns[4 * connIdx + 3] = ti_port;
+    connIdx++;
+    return true;
+  }
+
+  /**
+   * @return the template to cache this configuration, or null if it is not
+   *         complete and runnable
+   */
+  public NodeConfigTemplate getTemplate() {
+    if (!bComplete || !bRunnable) {
+      return null;
     }
 
-    checkConfigComplete();
+    int sig = NodeConfigTemplate.SIGNATURE_INIT;
+    int[] tids = new int[taskDescs.size()];
+    int[] rids = new int[tids.length];
+    short[][] prm = new short[tids.length][];
+    for (int i = 0; i < tids.length; i++) {
+      short[] desc = (short[]) taskDescs.get(i);
+      for (int b = 0; b < desc.length; b++) {
+        sig = NodeConfigTemplate.updateSignature(sig, desc[b]);
+      }
+      tids[i] = (desc[0] << 8) + desc[1];
+      rids[i] = desc[2];
+      prm[i] = new short[desc[3]];
+      System.arraycopy(desc, 4, prm[i], 0, prm[i].length);
+    }
+    for (int i = 0; i < conns.length; i++) {
+      sig = NodeConfigTemplate.updateSignature(sig, conns[i]);
+    }
 
-    return idx;
+    return new NodeConfigTemplate(cfgID, sig, tasks.length, tids, rids, prm, (int[]) conns.clone());
   }
 
   private void checkConfigComplete() {
     if ((taskIdx == tasks.length) && (connIdx == connCountTotal)) {
       bComplete = true;
       bRunnable = checkRunnable();
+      if (bRunnable) {
+        compileWiring();
+      }
+    }
+  }
+
+  /**
+   * resolves the connections of all tasks into direct send tables
+   */
+  private void compileWiring() {
+    for (int i = 0; i < tasks.length; i++) {
+      tasks[i].compileWiring();
     }
   }
 
@@ -184,4 +310,84 @@ public class NodeConfig {
     }
     bRunning = false;
   }
+
+  /**
+   * Starts this configuration in place of a running one. Tasks of the old
+   * configuration with the same run id, task id and parameters are taken
+   * over with their state and buffered data, and only rewired. The other
+   * old tasks are stopped, and the new ones started.
+   *
+   * @return nanoseconds data flow was interrupted by the swap, -1 if
+   *         there was no running configuration to take over from
+   */
+  public long takeOver(NodeConfig old) {
+    if (bRunning) return swapPauseNs;
+    if (old == null || !old.bRunning) {
+      swapPauseNs = -1;
+      start();
+      return swapPauseNs;
+    }
+
+    // match tasks of both configurations
+    boolean[] fresh = new boolean[tasks.length];
+    boolean[] kept = new boolean[old.tasks.length];
+    for (int i = 0; i < tasks.length; i++) {
+      fresh[i] = true;
+      for (int j = 0; j < old.tasks.length; j++) {
+        if (!kept[j] && isSameTask(tasks[i], old.tasks[j])) {
+          tasks[i] = old.tasks[j];
+          kept[j] = true;
+          fresh[i] = false;
+          break;
+        }
+      }
+    }
+
+    long t0 = System.nanoTime();
+
+    for (int j = 0; j < old.tasks.length; j++) {
+      if (!kept[j]) {
+        old.tasks[j].stop();
+      }
+    }
+    old.bRunning = false;
+
+    // connect the tasks again, queues of unchanged connections are kept
+    for (int i = 0; i < tasks.length; i++) {
+      tasks[i].stagePorts();
+    }
+    for (int c = 0; c < connIdx; c++) {
+      TitanTask outTask = getTask(conns[4 * c]);
+      TitanTask inTask = getTask(conns[4 * c + 2]);
+      outTask.addPortOut(conns[4 * c + 1], inTask, conns[4 * c + 3]);
+      inTask.addPortIn(conns[4 * c + 3], outTask, conns[4 * c + 1]);
+    }
+    for (int i = 0; i < tasks.length; i++) {
+      tasks[i].rewirePorts();
+    }
+    compileWiring();
+
+    for (int i = 0; i < tasks.length; i++) {
+      if (fresh[i]) {
+        tasks[i].start();
+      }
+    }
+    bRunning = true;
+
+    swapPauseNs = System.nanoTime() - t0;
+    return swapPauseNs;
+  }
+
+  /**
+   * @return whether a running task can be reused for a new one, tasks with
+   *         and without inputs are not interchangeable as a task without
+   *         inputs ends its thread after init()
+   */
+  private static boolean isSameTask(TitanTask t, TitanTask running) {
+    return t.getRunID() == running.getRunID()
+            && t.getTaskID() == running.getTaskID()
+            && running.isRunning()
+            && (t.getPortsInNum() == 0) == (running.getPortsInNum() == 0)
+            && Arrays.equals(t.getParam(), running.getParam());
+  }
 }
@@ -0,0 +1,200 @@
+package titancommon.node;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the templates of the configurations a local node has run, so that
+ * the master can start one again with a single TITANCOMM_CACHE_START
+ * message instead of all configuration messages.
+ *
+ * The cache holds templates up to a total size in bytes and evicts the
+ * least recently used ones first. If it has a file, the templates are
+ * written to it whenever they change and read back when the cache is
+ * created, so they survive restarts of the node.
+ */
+public class NodeConfigCache {
+  public static final boolean DEBUG_MSGS = false;
+
+  public static final int DEFAULT_CAPACITY = 64 * 1024;  // bytes
+
+  private static final int FILE_MAGIC = 0x54434331;  // "TCC1"
+
+  private final int capacity;
+  private final File file;
+  private final LinkedHashMap/*<Integer,NodeConfigTemplate>*/ templates;
+  private int size;
+
+  public NodeConfigCache() {
+    this(DEFAULT_CAPACITY, null);
+  }
+
+  /**
+   * @param cap  maximum total size of the templates in bytes
+   * @param f    file the templates are kept in, or null
+   */
+  public NodeConfigCache(int cap, File f) {
+    capacity = cap;
+    file = f;
+    templates = new LinkedHashMap(16, 0.75f, true);  // access order
+    size = 0;
+
+    if (file != null && file.exists()) {
+      load();
+    }
+  }
+
+  public synchronized int getCount() { return templates.size(); }
+  public synchronized int getSize()  { return size; }
+
+  /**
+   * @return the template stored under the configuration ID and signature,
+   *         or null
+   */
+  public synchronized NodeConfigTemplate get(int cfgID, int signature) {
+    return (NodeConfigTemplate) templates.get(new Integer(NodeConfigTemplate.getKey(cfgID, signature)));
+  }
+
+  /**
+   * Looks up a template like get(cfgID, signature), but only returns it if
+   * it also has the given size. The signature is only 16 bits, this keeps
+   * a colliding template of another configuration from being installed.
+   *
+   * @return the matching template, or null
+   */
+  public synchronized NodeConfigTemplate get(int cfgID, int signature, int numTasks, int numConns) {
+    NodeConfigTemplate t = get(cfgID, signature);
+    if (t != null && (t.getNumTasks() != numTasks || t.getNumConns() != numConns)) {
+      if (DEBUG_MSGS) {
+        System.out.println("NodeConfigCache: signature " + signature + " of config " + cfgID + " matches another size");
+      }
+      return null;
+    }
+    return t;
+  }
+
+  /**
+   * Looks up a template by configuration ID and size only, for
+   * TITANCOMM_CACHE_START messages without signature.
+   *
+   * @return the most recently used matching template, or null
+   */
+  public synchronized NodeConfigTemplate find(int cfgID, int numTasks, int numConns) {
+    NodeConfigTemplate found = null;
+    for (Iterator it = templates.values().iterator(); it.hasNext();) {
+      NodeConfigTemplate t = (NodeConfigTemplate) it.next();
+      if (t.getConfigID() == cfgID && t.getNumTasks() == numTasks && t.getNumConns() == numConns) {
+        found = t;
+      }
+    }
+    if (found != null) {
+      templates.get(new Integer(found.getKey()));  // mark as used
+    }
+    return found;
+  }
+
+  /**
+   * Stores a template, replacing one with the same key and evicting the
+   * least recently used ones if the cache is full.
+   *
+   * @return false if the template is larger than the cache
+   */
+  public synchronized boolean put(NodeConfigTemplate t) {
+    if (t.getSize() > capacity) {
+      return false;
+    }
+
+    NodeConfigTemplate old = (NodeConfigTemplate) templates.put(new Integer(t.getKey()), t);
+    if (old != null) {
+      size -= old.getSize();
+    }
+    size += t.getSize();
+
+    for (Iterator it = templates.values().iterator(); size > capacity && it.hasNext();) {
+      NodeConfigTemplate lru = (NodeConfigTemplate) it.next();
+      if (DEBUG_MSGS) {
+        System.out.println("NodeConfigCache: evicting config " + lru.getConfigID() + " (" + lru.getSignature() + ")");
+      }
+      size -= lru.getSize();
+      it.remove();
+    }
+
+    if (file != null) {
+      save();
+    }
+    return true;
+  }
+
+  /** @return all templates, least recently used first */
+  public synchronized NodeConfigTemplate[] getTemplates() {
+    return (NodeConfigTemplate[]) new ArrayList(templates.values()).toArray(new NodeConfigTemplate[0]);
+  }
+
+  public synchronized void clear() {
+    templates.clear();
+    size = 0;
+    if (file != null) {
+      save();
+    }
+  }
+
+  private void load() {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != FILE_MAGIC) {
+          System.err.println("NodeConfigCache: " + file + " is not a configuration cache");
+          return;
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          NodeConfigTemplate t = NodeConfigTemplate.read(in);
+          templates.put(new Integer(t.getKey()), t);
+          size += t.getSize();
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException ioe) {
+      System.err.println("NodeConfigCache: could not read " + file + ": " + ioe.getMessage());
+    }
+  }
+
+  /** writes all templates to a new file, which then replaces the old one */
+  private void save() {
+    File tmp = new File(file.getPath() + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(templates.size());
+        for (Iterator it = templates.values().iterator(); it.hasNext();) {
+          ((NodeConfigTemplate) it.next()).write(out);
+        }
+      }
+      finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        file.delete();
+        if (!tmp.renameTo(file)) {
+          throw new IOException("could not replace file");
+        }
+      }
+    }
+    catch (IOException ioe) {
+      System.err.println("NodeConfigCache: could not write " + file + ": " + ioe.getMessage());
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package titancommon.node;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The parsed content of a complete, runnable configuration of a local node:
+ * its task descriptions and connections, in the order they have been
+ * received. A template does not hold any tasks, NodeConfig instantiates it
+ * without parsing the configuration messages again.
+ *
+ * Templates are identified by the configuration ID and a signature, a
+ * CRC-16 over the task descriptions and connections as they appear in the
+ * configuration messages. The master computes the same signature from its
+ * TaskNetwork to find out whether a node still holds a configuration. As
+ * the signature is short, a node also compares the number of tasks and
+ * connections announced by the master, see NodeConfigCache.get().
+ */
+public class NodeConfigTemplate {
+  public static final int SIGNATURE_INIT = 0xFFFF;
+
+  private final int cfgID;
+  private final int signature;
+  private final int numTasks;
+  private final int[] taskIDs;   // one entry per task description
+  private final int[] runIDs;
+  private final short[][] params;
+  private final int[] conns;     // 4 entries per connection: out task, out port, in task, in port
+
+  public NodeConfigTemplate(int cid, int sig, int num_tasks, int[] tids, int[] rids, short[][] prm, int[] cns) {
+    cfgID = cid;
+    signature = sig;
+    numTasks = num_tasks;
+    taskIDs = tids;
+    runIDs = rids;
+    params = prm;
+    conns = cns;
+  }
+
+  public int getConfigID()    { return cfgID; }
+  public int getSignature()   { return signature; }
+  public int getNumTasks()    { return numTasks; }
+  public int getNumConns()    { return conns.length / 4; }
+  public int getNumTaskDesc() { return taskIDs.length; }
+
+  public int     getTaskID(int i) { return taskIDs[i]; }
+  public int     getRunID(int i)  { return runIDs[i]; }
+  public short[] getParam(int i)  { return params[i]; }
+  public int[]   getConns()       { return conns; }
+
+  /** @return the key of the template in a NodeConfigCache */
+  public int getKey() {
+    return getKey(cfgID, signature);
+  }
+
+  public static int getKey(int cfgID, int signature) {
+    return ((cfgID & 0xF) << 16) | (signature & 0xFFFF);
+  }
+
+  /** @return approximate number of bytes the template occupies */
+  public int getSize() {
+    int size = 64 + 16 * conns.length / 4;
+    for (int i = 0; i < params.length; i++) {
+      size += 24 + 2 * params[i].length;
+    }
+    return size;
+  }
+
+  /**
+   * adds a byte of a task description or connection to a signature, start
+   * with SIGNATURE_INIT
+   */
+  public static int updateSignature(int sig, int b) {
+    sig ^= (b & 0xFF) << 8;
+    for (int i = 0; i < 8; i++) {
+      sig = ((sig & 0x8000) != 0) ? ((sig << 1) ^ 0x1021) : (sig << 1);
+    }
+    return sig & 0xFFFF;
+  }
+
+  public void write(DataOutputStream out) throws IOException {
+    out.writeByte(cfgID);
+    out.writeShort(signature);
+    out.writeShort(numTasks);
+    out.writeShort(taskIDs.length);
+    for (int i = 0; i < taskIDs.length; i++) {
+      out.writeShort(taskIDs[i]);
+      out.writeByte(runIDs[i]);
+      out.writeByte(params[i].length);
+      for (int p = 0; p < params[i].length; p++) {
+        out.writeByte(params[i][p]);
+      }
+    }
+    out.writeShort(conns.length / 4);
+    for (int i = 0; i < conns.length; i++) {
+      out.writeByte(conns[i]);
+    }
+  }
+
+  public static NodeConfigTemplate read(DataInputStream in) throws IOException {
+    int cid = in.readUnsignedByte();
+    int sig = in.readUnsignedShort();
+    int num_tasks = in.readUnsignedShort();
+    int num_desc = in.readUnsignedShort();
+    int[] tids = new int[num_desc];
+    int[] rids = new int[num_desc];
+    short[][] prm = new short[num_desc][];
+    for (int i = 0; i < num_desc; i++) {
+      tids[i] = in.readUnsignedShort();
+      rids[i] = in.readUnsignedByte();
+      prm[i] = new short[in.readUnsignedByte()];
+      for (int p = 0; p < prm[i].length; p++) {
+        prm[i][p] = (short) in.readUnsignedByte();
+      }
+    }
+    int[] cns = new int[4 * in.readUnsignedShort()];
+    for (int i = 0; i < cns.length; i++) {
+      cns[i] = in.readUnsignedByte();
+    }
+    return new NodeConfigTemplate(cid, sig, num_tasks, tids, rids, prm, cns);
+  }
+}
@@ -0,0 +1,228 @@
+package titancommon.node;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer ring buffer holding the packets
+ * queued on one input port of a TitanTask.
+ *
+ * The ring is preallocated with a power-of-two capacity. Producer and
+ * consumer only communicate through the head and tail counters, so no
+ * lock is taken on the data path. If more than one connection feeds the
+ * same input port, the port is marked as shared and producers are
+ * serialized among themselves; the consumer side stays lock-free.
+ *
+ * When the ring is full, the overflow policy decides what happens:
+ *   POLICY_BLOCK       - the producer parks until the consumer made room
+ *   POLICY_DROP_OLDEST - the oldest queued packet is discarded
+ *   POLICY_DROP_NEWEST - the offered packet is discarded
+ *
+ * Queues drop the oldest packet by default. Producers include the threads
+ * receiving from TCP, bluetooth or the timing wheel, which must not stall
+ * behind a slow task. POLICY_BLOCK gives lossless back-pressure for
+ * pipelines fed only from local threads, see
+ * TitanLocalNode.setPortQueueDefaults() and TitanTask.setPortInQueue().
+ */
+public class PortQueue {
+  public static final int POLICY_BLOCK       = 0;
+  public static final int POLICY_DROP_OLDEST = 1;
+  public static final int POLICY_DROP_NEWEST = 2;
+
+  public static final int DEFAULT_CAPACITY = 256;
+  public static final int DEFAULT_POLICY   = POLICY_DROP_OLDEST;
+
+  // max. time a blocked producer parks before checking the queue again
+  private static final long BLOCK_PARK_NS = 1000000L;
+
+  private final AtomicReferenceArray/*<DataPacket>*/ ring;
+  private final int mask;
+  private final int policy;
+
+  private final AtomicLong head = new AtomicLong(0);  // next slot to read
+  private final AtomicLong tail = new AtomicLong(0);  // next slot to write
+
+  private boolean bShared;
+  private volatile boolean bClosed;
+  private volatile Thread blockedProducer;
+  private final AtomicLong dropped = new AtomicLong(0);  // producers and consumer drop
+
+  public PortQueue() {
+    this(DEFAULT_CAPACITY, DEFAULT_POLICY);
+  }
+
+  public PortQueue(int capacity, int pol) {
+    if (capacity < 1) {
+      capacity = 1;
+    }
+    // round up to power of two
+    int cap = 1;
+    while (cap < capacity) {
+      cap <<= 1;
+    }
+    ring = new AtomicReferenceArray(cap);
+    mask = cap - 1;
+    policy = pol;
+  }
+
+  public int     getCapacity() { return ring.length(); }
+  public int     getPolicy()   { return policy; }
+  public long    getDropped()  { return dropped.get(); }
+  public boolean isShared()    { return bShared; }
+  public boolean isClosed()    { return bClosed; }
+
+  /** number of packets currently queued (approximate while in use) */
+  public int size() {
+    return (int) (tail.get() - head.get());
+  }
+
+  /**
+   * @return number of packets that can still be queued before the overflow
+   *         policy applies, the credits this queue grants its producers
+   */
+  public int getCredits() {
+    return Math.max(0, ring.length() - size());
+  }
+
+  public boolean isEmpty() {
+    return tail.get() == head.get();
+  }
+
+  /** marks the queue as fed by several connections, see class comment */
+  void setShared() {
+    bShared = true;
+  }
+
+  /** releases blocked producers and discards all further packets */
+  void close() {
+    bClosed = true;
+    Thread t = blockedProducer;
+    if (t != null) {
+      LockSupport.unpark(t);
+    }
+  }
+
+  /**
+   * Queues a packet. Must only be called by the producer. The queue takes
+   * over the caller's reference, except if the packet is rejected.
+   * @return false if the packet was discarded
+   */
+  public boolean offer(DataPacket data) {
+    if (bShared) {
+      synchronized (this) {
+        return doOffer(data);
+      }
+    }
+    return doOffer(data);
+  }
+
+  private boolean doOffer(DataPacket data) {
+    if (bClosed) {
+      return false;
+    }
+
+    long t = tail.get();
+    if (t - head.get() >= ring.length()) {
+      switch (policy) {
+        case POLICY_DROP_NEWEST:
+          dropped.incrementAndGet();
+          return false;
+
+        case POLICY_DROP_OLDEST:
+          // advance head ourselves, competing with the consumer
+          while (true) {
+            long h = head.get();
+            if (t - h < ring.length()) {
+              break;
+            }
+            DataPacket old = (DataPacket) ring.get((int) h & mask);
+            if (head.compareAndSet(h, h + 1)) {
+              dropped.incrementAndGet();
+              if (old != null) {
+                old.release();
+              }
+              break;
+            }
+          }
+          break;
+
+        default:
+          if (!awaitSpace(t)) {
+            return false;
+          }
+      }
+    }
+
+    ring.lazySet((int) t & mask, data);
+    tail.set(t + 1);  // volatile write, pairs with the consumer wait check
+    return true;
+  }
+
+  private boolean awaitSpace(final long t) {
+    try {
+      // lets a ForkJoinPool compensate for the blocked worker
+      ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+        public boolean isReleasable() {
+          return bClosed || (t - head.get() < ring.length());
+        }
+
+        public boolean block() {
+          blockedProducer = Thread.currentThread();
+          if (!isReleasable()) {
+            LockSupport.parkNanos(PortQueue.this, BLOCK_PARK_NS);
+          }
+          blockedProducer = null;
+          return isReleasable();
+        }
+      });
+    }
+    catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return !bClosed;
+  }
+
+  /**
+   * Takes the oldest packet. Must only be called by the consumer.
+   * @return the packet, or null if the queue is empty
+   */
+  public DataPacket poll() {
+    DataPacket data;
+
+    if (policy == POLICY_DROP_OLDEST) {
+      // producer may advance head as well
+      while (true) {
+        long h = head.get();
+        if (h == tail.get()) {
+          return null;
+        }
+        int idx = (int) h & mask;
+        data = (DataPacket) ring.get(idx);
+        if (head.compareAndSet(h, h + 1)) {
+          // the producer may already have refilled the slot
+          ring.compareAndSet(idx, data, null);
+          break;
+        }
+      }
+    }
+    else {
+      long h = head.get();
+      if (h == tail.get()) {
+        return null;
+      }
+      int idx = (int) h & mask;
+      data = (DataPacket) ring.get(idx);
+      ring.lazySet(idx, null);
+      head.lazySet(h + 1);
+    }
+
+    Thread t = blockedProducer;
+    if (t != null) {
+      LockSupport.unpark(t);
+    }
+    return data;
+  }
+}
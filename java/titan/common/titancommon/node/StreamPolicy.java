@@ -0,0 +1,111 @@
+package titancommon.node;
+
+/**
+ * Decides for every packet of a source stream whether it is sent, based on
+ * the credits of its output port (see TitanTask.getCredits()). Sources that
+ * cannot be slowed down, like sensors, use it to shed load where the data
+ * is produced instead of filling the queues downstream.
+ *
+ *   POLICY_SEND     - always send, the overflow policy of the queues applies
+ *   POLICY_DROP     - drop packets while the port has no credits
+ *   POLICY_DECIMATE - send only every n-th packet while the credits are low,
+ *                     drop packets while there are none
+ */
+public class StreamPolicy {
+  public static final int POLICY_SEND     = 0;
+  public static final int POLICY_DROP     = 1;
+  public static final int POLICY_DECIMATE = 2;
+
+  public static final int DEFAULT_FACTOR      = 4;
+  public static final int DEFAULT_LOW_CREDITS = 32;
+
+  private final int policy;
+  private final int factor;
+  private final int lowCredits;
+  private int skipped;   // packets skipped since the last one sent while decimating
+  private long dropped;
+
+  public StreamPolicy() {
+    this(POLICY_SEND, DEFAULT_FACTOR);
+  }
+
+  public StreamPolicy(int pol, int fac) {
+    this(pol, fac, DEFAULT_LOW_CREDITS);
+  }
+
+  /**
+   * @param pol  one of the POLICY_* constants
+   * @param fac  decimation factor
+   * @param low  credits below which the stream is decimated
+   */
+  public StreamPolicy(int pol, int fac, int low) {
+    policy = pol;
+    factor = Math.max(1, fac);
+    lowCredits = low;
+    skipped = 0;
+    dropped = 0;
+  }
+
+  public int  getPolicy()  { return policy; }
+  public int  getFactor()  { return factor; }
+  public long getDropped() { return dropped; }
+
+  /**
+   * @return whether the next packet on the output port of the task should
+   *         be sent
+   */
+  public boolean admit(TitanTask task, int port) {
+    if (policy == POLICY_SEND) {
+      return true;
+    }
+
+    int credits = task.getCredits(port);
+    boolean send;
+    if (credits == 0) {
+      send = false;
+    }
+    else if (policy == POLICY_DECIMATE && credits < lowCredits) {
+      send = (++skipped >= factor);
+    }
+    else {
+      send = true;
+    }
+
+    if (send) {
+      skipped = 0;
+    }
+    else {
+      dropped++;
+    }
+    return send;
+  }
+
+  /**
+   * Parses a policy as given in a task configuration: "send", "drop",
+   * "decimate" or "decimate:<factor>".
+   *
+   * @return the policy, or null if the string is not valid
+   */
+  public static StreamPolicy parse(String str) {
+    String s = str.trim().toLowerCase();
+    if (s.equals("send")) {
+      return new StreamPolicy(POLICY_SEND, DEFAULT_FACTOR);
+    }
+    if (s.equals("drop")) {
+      return new StreamPolicy(POLICY_DROP, DEFAULT_FACTOR);
+    }
+    if (s.equals("decimate")) {
+      return new StreamPolicy(POLICY_DECIMATE, DEFAULT_FACTOR);
+    }
+    if (s.startsWith("decimate:")) {
+      try {
+        int fac = Integer.parseInt(s.substring("decimate:".length()));
+        return (fac > 0) ? new StreamPolicy(POLICY_DECIMATE, fac) : null;
+      }
+      catch (NumberFormatException nfe) {
+        return null;
+      }
+    }
+    return null;
+  }
+}
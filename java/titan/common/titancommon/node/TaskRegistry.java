@@ -0,0 +1,193 @@
+package titancommon.node;
+
+import java.lang.reflect.Constructor;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import titancommon.node.tasks.*;
+import titancommon.tasks.Task;
+
+/**
+ * Maps task IDs to the factories of the executable tasks available on the
+ * local nodes.
+ *
+ * The registry is filled once, with the tasks built into Titan and the
+ * TitanTaskFactory implementations found by the ServiceLoader. Looking up a
+ * task is an array access, and creating it does not instantiate any other
+ * task. The registered task IDs are reported in the discovery reply of the
+ * local nodes.
+ */
+public class TaskRegistry {
+  public static final boolean DEBUG_MSGS = false;
+
+  // specifiy available titan tasks, in no specific order
+  private static final Class[] builtinTaskClasses = {
+          ECommunicator.class,
+          ESimpleWriter.class,
+          EGSense.class,
+          EGraphPlot.class,
+          EMagnitude.class,
+          EMax.class,
+          EMean.class,
+          EMin.class,
+          EVariance.class,
+          EZeroCross.class,
+          ESink.class,
+          EDuplicator.class,
+          ERoundTrip.class,
+          ETitanFileWriter.class,
+          EBTSensor.class,
+          ESyncMerger.class,
+          EBTStatusGUI.class,
+          ELabelingGUI.class,
+          EVirtualBTSensor.class,
+          EDecisionTree.class,
+          EDemoGUI.class,
+          ESplitter.class,
+          EStreamSelector.class,
+          EStdDev.class
+  };
+
+  /**
+   * Factory creating the tasks of a class through its constructor without
+   * arguments.
+   */
+  public static class ClassFactory implements TitanTaskFactory {
+    private final Constructor constructor;
+    private final int taskID;
+
+    /**
+     * @param cls class extending Task and implementing ExecutableTitanTask
+     */
+    public ClassFactory(Class cls) throws Exception {
+      constructor = cls.getConstructor(new Class[0]);
+      taskID = ((Task) constructor.newInstance(new Object[0])).getID();
+    }
+
+    public int getTaskID() { return taskID; }
+
+    public ExecutableTitanTask createTask() {
+      try {
+        return (ExecutableTitanTask) constructor.newInstance(new Object[0]);
+      }
+      catch (Exception e) {
+        System.err.println("TaskRegistry: could not create " + constructor.getDeclaringClass().getName() + ": " + e);
+        return null;
+      }
+    }
+  }
+
+  private static TaskRegistry registry = null;
+
+  private volatile TitanTaskFactory[] factories;  // indexed by task ID, copied on write
+
+  public TaskRegistry() {
+    factories = new TitanTaskFactory[0];
+  }
+
+  /**
+   * @return the registry of this VM, filled with the built-in tasks and the
+   *         factories found by the ServiceLoader on first use
+   */
+  public static synchronized TaskRegistry getRegistry() {
+    if (registry == null) {
+      registry = new TaskRegistry();
+      registry.registerBuiltinTasks();
+      registry.loadServices(TaskRegistry.class.getClassLoader());
+    }
+    return registry;
+  }
+
+  public void registerBuiltinTasks() {
+    for (int i = 0; i < builtinTaskClasses.length; i++) {
+      try {
+        register(new ClassFactory(builtinTaskClasses[i]));
+      }
+      catch (Exception e) {
+        System.err.println("TaskRegistry: could not register " + builtinTaskClasses[i].getName() + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * Registers the TitanTaskFactory services visible to the class loader.
+   */
+  public void loadServices(ClassLoader loader) {
+    Iterator it = ServiceLoader.load(TitanTaskFactory.class, loader).iterator();
+    while (true) {
+      try {
+        if (!it.hasNext()) {
+          break;
+        }
+        register((TitanTaskFactory) it.next());
+      }
+      catch (ServiceConfigurationError sce) {
+        System.err.println("TaskRegistry: could not load task factory: " + sce.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Registers a factory, replacing the one registered for the same task ID.
+   */
+  public synchronized void register(TitanTaskFactory factory) {
+    int id = factory.getTaskID();
+    if (id < 0) {
+      System.err.println("TaskRegistry: invalid task ID " + id + " of " + factory.getClass().getName());
+      return;
+    }
+
+    TitanTaskFactory[] f = factories;
+    if (id >= f.length) {
+      TitanTaskFactory[] grown = new TitanTaskFactory[id + 1];
+      System.arraycopy(f, 0, grown, 0, f.length);
+      f = grown;
+    }
+    else {
+      f = (TitanTaskFactory[]) f.clone();
+    }
+    if (f[id] != null) {
+      System.err.println("TaskRegistry: task ID " + id + " registered twice, using " + factory.getClass().getName());
+    }
+    f[id] = factory;
+    factories = f;
+
+    if (DEBUG_MSGS) {
+      System.out.println("TaskRegistry: registered task " + id);
+    }
+  }
+
+  /**
+   * @return a new instance of the task, or null if the task is not available
+   */
+  public ExecutableTitanTask createTask(int taskID) {
+    TitanTaskFactory[] f = factories;
+    if (taskID < 0 || taskID >= f.length || f[taskID] == null) {
+      return null;
+    }
+    return f[taskID].createTask();
+  }
+
+  public boolean contains(int taskID) {
+    TitanTaskFactory[] f = factories;
+    return taskID >= 0 && taskID < f.length && f[taskID] != null;
+  }
+
+  /**
+   * @return the registered task IDs in ascending order
+   */
+  public int[] getTaskIDs() {
+    TitanTaskFactory[] f = factories;
+    int n = 0;
+    for (int i = 0; i < f.length; i++) {
+      if (f[i] != null) n++;
+    }
+    int[] ids = new int[n];
+    n = 0;
+    for (int i = 0; i < f.length; i++) {
+      if (f[i] != null) ids[n++] = i;
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,191 @@
+package titancommon.node;
+
+import java.util.Arrays;
+
+/**
+ * Runtime statistics of one TitanTask: packets handled and sent per port,
+ * the deepest each input queue has been, and how long inDataHandler()
+ * takes. TitanTask only keeps statistics while they are enabled on its
+ * local node, see TitanLocalNode.setStatsEnabled().
+ *
+ * The counters are plain fields written by the thread handling the task's
+ * inputs, or for the output ports by the threads calling send(); readers on
+ * other threads see values that may lag slightly. The output counters have
+ * a slot for every possible port, so they never need to grow. Tasks sending
+ * from several threads at once, e.g. from a timer and from inDataHandler(),
+ * may lose some of their output counts: atomic increments would double the
+ * cost of the statistics on every hop. Packets are all counted,
+ * but only every SERVICE_SAMPLE-th call of inDataHandler() is timed, as
+ * reading the clock costs more than the counting.
+ */
+public class TaskStats implements TaskStatsMBean {
+  public static final int HISTOGRAM_BUCKETS = 32;  // up to 2^32 ns
+  public static final int SERVICE_SAMPLE    = 64;  // power of two
+  public static final int MAX_PORTS         = 256; // one byte in the messages
+
+  private final TitanTask task;
+  private long[] packetsIn;
+  private final long[] packetsOut;
+  private int[] highWater;
+  private int sampleCount;
+  private long serviceCount;
+  private long serviceTotalNs;
+  private long serviceMaxNs;
+  private final long[] serviceHist;
+
+  public TaskStats(TitanTask t) {
+    task = t;
+    packetsIn = new long[0];
+    packetsOut = new long[MAX_PORTS];
+    highWater = new int[0];
+    serviceHist = new long[HISTOGRAM_BUCKETS];
+  }
+
+  /**
+   * accounts a packet handled on an input port
+   * @param depth  packets queued on the port including this one
+   */
+  void recordInput(int port, int depth) {
+    long[] in = packetsIn;
+    int[] hw = highWater;
+    if (port >= in.length || port >= hw.length) {
+      growInputs(port);
+      in = packetsIn;
+      hw = highWater;
+    }
+    in[port]++;
+    if (depth > hw[port]) {
+      hw[port] = depth;
+    }
+  }
+
+  /** @return whether the next call of inDataHandler() should be timed */
+  boolean sampleService() {
+    return (++sampleCount & (SERVICE_SAMPLE - 1)) == 0;
+  }
+
+  /** accounts the time a sampled call of inDataHandler() took */
+  void recordService(long serviceNs) {
+    serviceCount++;
+    serviceTotalNs += serviceNs;
+    if (serviceNs > serviceMaxNs) {
+      serviceMaxNs = serviceNs;
+    }
+    int b = (serviceNs > 0) ? 63 - Long.numberOfLeadingZeros(serviceNs) : 0;
+    serviceHist[Math.min(b, HISTOGRAM_BUCKETS - 1)]++;
+  }
+
+  /** accounts a packet sent on an output port */
+  void recordOutput(int port) {
+    if (port < MAX_PORTS) {
+      packetsOut[port]++;
+    }
+  }
+
+  private void growInputs(int port) {
+    long[] in = new long[port + 1];
+    int[] hw = new int[port + 1];
+    System.arraycopy(packetsIn, 0, in, 0, Math.min(packetsIn.length, in.length));
+    System.arraycopy(highWater, 0, hw, 0, Math.min(highWater.length, hw.length));
+    highWater = hw;
+    packetsIn = in;
+  }
+
+  public int getTaskID() { return task.getTaskID(); }
+  public int getRunID()  { return task.getRunID(); }
+
+  public long[] getPacketsIn()     { return (long[]) packetsIn.clone(); }
+
+  /** @return packets sent per output port, up to the last port used */
+  public long[] getPacketsOut() {
+    int n = MAX_PORTS;
+    while (n > 0 && packetsOut[n - 1] == 0) {
+      n--;
+    }
+    long[] out = new long[n];
+    System.arraycopy(packetsOut, 0, out, 0, n);
+    return out;
+  }
+
+  public int[]  getQueueHighWater() { return (int[]) highWater.clone(); }
+
+  /** packets discarded by the input queues since they have been created */
+  public long[] getPacketsDropped() {
+    long[] dropped = new long[packetsIn.length];
+    for (int p = 0; p < dropped.length; p++) {
+      PortQueue q = task.getPortInQueue(p);
+      dropped[p] = (q != null) ? q.getDropped() : 0;
+    }
+    return dropped;
+  }
+
+  public long getPacketsInTotal()      { return sum(packetsIn); }
+  public long getPacketsOutTotal()     { return sum(getPacketsOut()); }
+  public long getPacketsDroppedTotal() { return sum(getPacketsDropped()); }
+
+  public int getQueueHighWaterMax() {
+    int[] hw = highWater;
+    int max = 0;
+    for (int p = 0; p < hw.length; p++) {
+      max = Math.max(max, hw[p]);
+    }
+    return max;
+  }
+
+  /** @return number of timed calls of inDataHandler() */
+  public long getServiceCount() { return serviceCount; }
+  public long getMaxServiceNs() { return serviceMaxNs; }
+
+  public long getMeanServiceNs() {
+    long n = serviceCount;
+    return (n > 0) ? serviceTotalNs / n : 0;
+  }
+
+  public long getP50ServiceNs() { return getServicePercentile(50); }
+  public long getP99ServiceNs() { return getServicePercentile(99); }
+
+  /**
+   * @return upper bound of the histogram bucket holding the percentile of
+   *         the service times, or 0 if no packet has been handled
+   */
+  public long getServicePercentile(int percent) {
+    long[] hist = getServiceHistogram();
+    long total = sum(hist);
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (total * percent + 99) / 100;
+    long seen = 0;
+    for (int b = 0; b < hist.length; b++) {
+      seen += hist[b];
+      if (seen >= rank) {
+        return Math.min(2L << b, Math.max(serviceMaxNs, 1));
+      }
+    }
+    return serviceMaxNs;
+  }
+
+  public long[] getServiceHistogram() { return (long[]) serviceHist.clone(); }
+
+  /**
+   * clears the counters, in place as the task may be updating them
+   * concurrently
+   */
+  public void reset() {
+    Arrays.fill(packetsIn, 0);
+    Arrays.fill(packetsOut, 0);
+    Arrays.fill(highWater, 0);
+    serviceCount = 0;
+    serviceTotalNs = 0;
+    serviceMaxNs = 0;
+    Arrays.fill(serviceHist, 0);
+  }
+
+  private static long sum(long[] a) {
+    long s = 0;
+    for (int i = 0; i < a.length; i++) {
+      s += a[i];
+    }
+    return s;
+  }
+}
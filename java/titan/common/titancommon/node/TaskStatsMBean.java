@@ -0,0 +1,29 @@
+package titancommon.node;
+
+/**
+ * JMX view of the runtime statistics of a task, see TaskStats.
+ */
+public interface TaskStatsMBean {
+  public int getTaskID();
+  public int getRunID();
+
+  /** packets handled per input port */
+  public long[] getPacketsIn();
+  /** packets sent per output port */
+  public long[] getPacketsOut();
+  /** packets discarded by the queue of each input port */
+  public long[] getPacketsDropped();
+  /** largest number of packets queued on each input port */
+  public int[] getQueueHighWater();
+
+  /** number of timed calls of inDataHandler(), every TaskStats.SERVICE_SAMPLE-th */
+  public long getServiceCount();
+  public long getMeanServiceNs();
+  public long getMaxServiceNs();
+  public long getP50ServiceNs();
+  public long getP99ServiceNs();
+  /** service times of inDataHandler(), bucket i counts [2^i, 2^(i+1)) ns */
+  public long[] getServiceHistogram();
+
+  public void reset();
+}
@@ -0,0 +1,251 @@
+package titancommon.node;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timing wheel running the periodic work of all tasks of one
+ * TitanLocalNode on a single thread, instead of a java.util.Timer thread per
+ * task.
+ *
+ * The wheel has a fixed number of slots, each covering one tick. A task due
+ * in n ticks is put into slot (current + n) mod slots and remembers how many
+ * more turns of the wheel it has to wait. Scheduling and cancelling are O(1),
+ * every tick only looks at the tasks of one slot. Cancelled tasks are dropped
+ * when their slot comes up. The wheel thread sleeps until the next slot that
+ * holds tasks, and while the wheel is empty until a task is scheduled.
+ *
+ * If the node runs its tasks on a TitanTaskPool, due tasks are handed to the
+ * pool, otherwise they run on the wheel thread and must not block.
+ */
+public class TimingWheel implements Runnable {
+  public static final boolean DEBUG_MSGS = false;
+
+  public static final long DEFAULT_TICK_MS = 1;
+  public static final int  DEFAULT_SLOTS   = 512;
+
+  /**
+   * Work scheduled on a timing wheel, the counterpart of java.util.TimerTask.
+   */
+  public static abstract class Task implements Runnable {
+    private volatile boolean bCanceled = false;
+    long period;     // ms, 0 for a single execution
+    long deadline;   // ms, wheel time
+    long rounds;     // turns of the wheel left
+    Task next;       // in slot
+
+    /** Stops further executions, a running execution is not interrupted */
+    public void cancel() { bCanceled = true; }
+
+    public boolean isCanceled() { return bCanceled; }
+  }
+
+  private static TimingWheel shared = null;
+
+  private final long tick;
+  private final Task[] slots;
+  private final int mask;
+  private final long startTime;
+  private long ticks;             // ticks processed so far
+  private int  count;             // tasks on the wheel
+  private TitanTaskPool pool;
+  private Thread thread;
+  private final ArrayList/*<Task>*/ due = new ArrayList();
+
+  public TimingWheel() {
+    this(DEFAULT_TICK_MS, DEFAULT_SLOTS, null);
+  }
+
+  /**
+   * @param tickMs  duration of a tick in ms, the resolution of the wheel
+   * @param nSlots  number of slots, rounded up to a power of two
+   * @param p       pool to run the due tasks on, null to run them on the wheel thread
+   */
+  public TimingWheel(long tickMs, int nSlots, TitanTaskPool p) {
+    int size = 1;
+    while (size < nSlots) {
+      size <<= 1;
+    }
+    tick = (tickMs > 0) ? tickMs : 1;
+    slots = new Task[size];
+    mask = size - 1;
+    startTime = System.currentTimeMillis();
+    ticks = 0;
+    count = 0;
+    pool = p;
+    thread = null;
+  }
+
+  /**
+   * @return a wheel shared by the tasks running without a TitanLocalNode
+   */
+  public static synchronized TimingWheel getShared() {
+    if (shared == null) {
+      shared = new TimingWheel();
+    }
+    return shared;
+  }
+
+  /**
+   * Schedules a task for repeated execution, like Timer.schedule(). A
+   * task must only be scheduled once.
+   * @param task    the task to run
+   * @param delay   ms until the first execution
+   * @param period  ms between executions, 0 to run the task only once
+   */
+  public synchronized void schedule(Task task, long delay, long period) {
+    if (thread == null) {
+      thread = new Thread(this, "TimingWheel");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    task.period = (period > 0) ? period : 0;
+    if (count == 0 && ticks < now() / tick) {
+      ticks = now() / tick;  // nothing to expire in the ticks slept through
+    }
+    task.deadline = now() + ((delay > 0) ? delay : 0);
+    insert(task);
+    notify();  // the thread may sleep past the new deadline
+  }
+
+  /** @return number of tasks on the wheel, including cancelled ones not yet dropped */
+  public synchronized int size() { return count; }
+
+  public synchronized void shutdown() {
+    if (thread != null) {
+      thread.interrupt();
+      thread = null;
+    }
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = null;
+    }
+    count = 0;
+  }
+
+  /** ms since the wheel was created */
+  private long now() {
+    return System.currentTimeMillis() - startTime;
+  }
+
+  private void insert(Task task) {
+    // the slot of the tick the deadline falls into, not before the next tick
+    long target = (task.deadline + tick - 1) / tick;
+    if (target <= ticks) {
+      target = ticks + 1;
+    }
+    long offset = target - ticks - 1;
+    task.rounds = offset / slots.length;
+    int slot = (int) (target & mask);
+    task.next = slots[slot];
+    slots[slot] = task;
+    count++;
+  }
+
+  /** @return the next tick whose slot holds tasks, there must be tasks on the wheel */
+  private long nextTick() {
+    long t = ticks + 1;
+    while (slots[(int) (t & mask)] == null && t < ticks + slots.length) {
+      t++;
+    }
+    return t;
+  }
+
+  /** moves the tasks of a slot that are due in this turn to the due list */
+  private void expire(int slot) {
+    Task prev = null;
+    Task task = slots[slot];
+    while (task != null) {
+      Task next = task.next;
+      if (task.isCanceled() || task.rounds == 0) {
+        if (prev == null) {
+          slots[slot] = next;
+        }
+        else {
+          prev.next = next;
+        }
+        task.next = null;
+        count--;
+        if (!task.isCanceled()) {
+          due.add(task);
+        }
+      }
+      else {
+        task.rounds--;
+        prev = task;
+      }
+      task = next;
+    }
+  }
+
+  public void run() {
+    Thread self = Thread.currentThread();
+    ArrayList/*<Task>*/ run = new ArrayList();
+
+    while (!self.isInterrupted()) {
+      synchronized (this) {
+        if (thread != self) {
+          return;
+        }
+
+        // wait for the end of the next tick with tasks, or for a task
+        long wait = (count == 0) ? 0 : nextTick() * tick - now();
+        if (count == 0 || wait > 0) {
+          try {
+            wait(wait);  // 0 until notified
+          }
+          catch (InterruptedException ie) {
+            return;
+          }
+          continue;
+        }
+
+        // catch up with all ticks that have passed
+        long last = now() / tick;
+        while (ticks < last) {
+          ticks++;
+          expire((int) (ticks & mask));
+        }
+        run.addAll(due);
+        due.clear();
+      }
+
+      for (int i = 0; i < run.size(); i++) {
+        execute((Task) run.get(i));
+      }
+
+      // periodic tasks go back onto the wheel
+      synchronized (this) {
+        if (thread != self) {
+          return;
+        }
+        long time = now();
+        for (int i = 0; i < run.size(); i++) {
+          Task task = (Task) run.get(i);
+          if (task.period == 0 || task.isCanceled()) {
+            continue;
+          }
+          task.deadline += task.period;
+          if (task.deadline < time) {
+            task.deadline = time;  // fell behind, do not execute in bursts
+          }
+          insert(task);
+        }
+      }
+      run.clear();
+    }
+  }
+
+  private void execute(Task task) {
+    if (pool != null) {
+      pool.schedule(task);
+      return;
+    }
+
+    try {
+      task.run();
+    }
+    catch (RuntimeException re) {
+      System.err.println("TimingWheel: task failed: " + re);
+      re.printStackTrace();
+    }
+  }
+}
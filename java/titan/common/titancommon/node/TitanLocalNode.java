@@ -7,6 +7,8 @@ import java.util.List;
 import java.util.ListIterator;
 import titan.messages.SerialMsg;
 import titancommon.TitanCommand;
+import titancommon.node.tasks.ECommunicator;
+import titancommon.node.tasks.ExecutableTitanTask;
 
 /**
  *
@@ -17,26 +19,172 @@ public class TitanLocalNode implements Runnable{
   public static final int LOCAL_NODE_TCP_PORT_BASE = 23000;
   public static final boolean DEBUG_MSGS = false;
 
+  // task execution modes
+  public static final int EXEC_THREADED = 0;  // one thread per task
+  public static final int EXEC_POOLED   = 1;  // tasks share a worker pool
+
+  // handling of a new configuration while another one is running
+  public static final int RECONFIG_FULL         = 0;  // replace all tasks
+  public static final int RECONFIG_DIFFERENTIAL = 1;  // keep unchanged tasks, see NodeConfig.takeOver()
+
   private int node_id;
   private int tcp_port;
+  private int exec_mode;
+  private TitanTaskPool task_pool;
+  private TimingWheel  timing_wheel;
+  private int port_capacity;
+  private int port_policy;
+  private int reconfig_mode;
 
   private ServerSocket server;
   private Thread       thread;
   private TitanTCP     tcpip;
 
   private NodeConfig   node_cfg;
+  private NodeConfig   pending_cfg;  // differential: being configured, node_cfg keeps running
+  private long         swap_pause_ns;
+  private NodeConfigCache cfg_cache;
+  private LinkCredits  link_credits;  // null: senders are not limited
+  private boolean      stats_enabled;
+  private LocalNodeStats node_stats;  // JMX beans, null until statistics are enabled
 
   public TitanLocalNode(int nid, int port) {
+    this(nid, port, EXEC_THREADED);
+  }
+
+  public TitanLocalNode(int nid, int port, int mode) {
     node_id = nid;
     tcp_port = port;
+    exec_mode = mode;
+    task_pool = null;
+    timing_wheel = null;
+    port_capacity = PortQueue.DEFAULT_CAPACITY;
+    port_policy = PortQueue.DEFAULT_POLICY;
+    reconfig_mode = RECONFIG_FULL;
     server = null;
     thread = null;
     tcpip = null;
     node_cfg = null;
+    pending_cfg = null;
+    swap_pause_ns = -1;
+    cfg_cache = new NodeConfigCache();
+    link_credits = new LinkCredits(this, LinkCredits.DEFAULT_WINDOW);
+    stats_enabled = false;
+    node_stats = null;
   }
 
   public int getNodeId()  { return node_id; }
   public int getTcpPort() { return tcp_port; }
+  public int getExecMode() { return exec_mode; }
+
+  /**
+   * Selects how a configuration replaces the running one. In differential
+   * mode tasks with the same run id, task id and parameters keep running
+   * with their state, and the master does not need to clear the node first.
+   */
+  public void setReconfigMode(int mode) { reconfig_mode = mode; }
+  public int  getReconfigMode()         { return reconfig_mode; }
+
+  /**
+   * @return nanoseconds data flow was interrupted by the last differential
+   *         reconfiguration, or -1 if there was none
+   */
+  public long getLastSwapPauseNs() { return swap_pause_ns; }
+
+  /**
+   * Replaces the cache of configuration templates, e.g. by one with a file
+   * to keep the templates across restarts of the node.
+   */
+  public void setConfigCache(NodeConfigCache cache) { cfg_cache = cache; }
+  public NodeConfigCache getConfigCache()           { return cfg_cache; }
+
+  /**
+   * Sets the number of packets other nodes may send to a port of this node
+   * ahead of the consumers, see LinkCredits. 0 turns off flow control.
+   */
+  public synchronized void setCreditWindow(int window) {
+    if (link_credits != null) {
+      link_credits.stop();
+    }
+    link_credits = (window > 0) ? new LinkCredits(this, window) : null;
+  }
+
+  public int getCreditWindow() {
+    LinkCredits lc = link_credits;
+    return (lc != null) ? lc.getWindow() : 0;
+  }
+
+  /** @return the configuration running or last installed, or null */
+  public NodeConfig getRunningConfig() { return node_cfg; }
+
+  TitanTCP getTCP() { return tcpip; }
+
+  /**
+   * Turns the runtime statistics of the tasks on or off, see TaskStats.
+   * While enabled, the node and its tasks are registered as JMX beans, and
+   * the master can query the statistics with TITANCOMM_STATS messages.
+   */
+  public synchronized void setStatsEnabled(boolean enabled) {
+    stats_enabled = enabled;
+    NodeConfig cfg = node_cfg;
+    if (cfg != null) {
+      cfg.setStatsEnabled(enabled);
+    }
+    if (enabled && node_stats == null) {
+      node_stats = new LocalNodeStats(this);
+      node_stats.register();
+    }
+    updateStats();
+  }
+
+  public boolean isStatsEnabled() { return stats_enabled; }
+
+  /** lets the JMX beans follow the tasks of the running configuration */
+  private void updateStats() {
+    LocalNodeStats ns = node_stats;
+    if (ns != null) {
+      ns.updateTasks(node_cfg);
+    }
+  }
+
+  /**
+   * Sets capacity and overflow policy of the task input queues created for
+   * configurations received after this call. With PortQueue.POLICY_BLOCK
+   * a slow task also stalls the thread receiving its data over TCP.
+   */
+  public void setPortQueueDefaults(int capacity, int policy) {
+    port_capacity = capacity;
+    port_policy = policy;
+  }
+
+  public PortQueue createPortQueue() {
+    return new PortQueue(port_capacity, port_policy);
+  }
+
+  /**
+   * @return the worker pool shared by all tasks of this node, or null if
+   *         the node runs one thread per task
+   */
+  public synchronized TitanTaskPool getTaskPool() {
+    if (exec_mode != EXEC_POOLED) {
+      return null;
+    }
+    if (task_pool == null) {
+      task_pool = new TitanTaskPool();
+    }
+    return task_pool;
+  }
+
+  /**
+   * @return the timing wheel running the periodic work of all tasks of this
+   *         node, on the worker pool if the node has one
+   */
+  public synchronized TimingWheel getTimingWheel() {
+    if (timing_wheel == null) {
+      timing_wheel = new TimingWheel(TimingWheel.DEFAULT_TICK_MS, TimingWheel.DEFAULT_SLOTS, getTaskPool());
+    }
+    return timing_wheel;
+  }
 
   public boolean start() {
     try {
@@ -63,6 +211,12 @@ public class TitanLocalNode implements Runnable{
       Socket s = server.accept();
       server.close();
       tcpip = new TitanTCP(s);
+      // data messages skip SerialMsg and go straight to the graph
+      tcpip.setDataReceiver(new TitanTCP.DataReceiver() {
+        public void dataReceived(int port, DataPacket packet) {
+          receiveData(port, packet);
+        }
+      });
       SerialMsg msg;
 
       while (!thread.isInterrupted()
@@ -79,8 +233,29 @@ public class TitanLocalNode implements Runnable{
       node_cfg.stop();
     }
     if (tcpip != null) {
+      try {
+        tcpip.flush();  // data messages still waiting for a batch frame
+      }
+      catch (IOException ioe) { }
       tcpip.disconnect();
     }
+    synchronized (this) {
+      if (link_credits != null) {
+        link_credits.stop();
+      }
+      if (node_stats != null) {
+        node_stats.unregister();
+        node_stats = null;
+      }
+      if (timing_wheel != null) {
+        timing_wheel.shutdown();
+        timing_wheel = null;
+      }
+      if (task_pool != null) {
+        task_pool.shutdown();
+        task_pool = null;
+      }
+    }
 
     if (DEBUG_MSGS) {
       System.out.println("LN(" + node_id + "): local node stopped");
@@ -121,44 +296,92 @@ public class TitanLocalNode implements Runnable{
               node_cfg.stop();
               node_cfg = null;
             }
+            pending_cfg = null;
+            updateStats();
             if (DEBUG_MSGS) {
               System.out.println("LN(" + node_id + "): node config reset");
             }
             break;
           }
 
-          node_cfg = new NodeConfig(this, cfg_id, !bDelayedReconfig, num_tasks, num_conns, master_addr);
+          NodeConfig cfg = new NodeConfig(this, cfg_id, !bDelayedReconfig, num_tasks, num_conns, master_addr);
+          installConfig(cfg);
 
-          int ret = node_cfg.addTasks(msg, 5);
+          int ret = cfg.addTasks(msg, 5);
           if (ret == -1) {
             System.err.println("LN(" + node_id + "): error in configuration message (tasks)");
             break;
           }
 
           if (msg.getElement_data(ret) != 0) {
-            ret = node_cfg.addConnections(msg, ret);
+            ret = cfg.addConnections(msg, ret);
             if (ret == -1) {
               System.err.println("LN(" + node_id + "): error in configuration message (connections)");
               break;
             }
           }
 
-          checkConfigSuccess();
+          checkConfigSuccess(true);
+        }
+        break;
+
+      case TitanCommand.TITANCOMM_CACHE_START:
+        if (DEBUG_MSGS) {
+          System.out.println("LN(" + node_id + "): Cache start message received!");
+        }
+        {
+          boolean bDelayedReconfig = (msg.getElement_data(1) & 0x80) != 0;
+          int num_tasks = msg.getElement_data(1) & 0x7F;
+          int num_conns = msg.getElement_data(2);
+          int master_addr = (msg.getElement_data(3) << 8) + msg.getElement_data(4);
+          int cfg_id = msg.getElement_data(5) >> 4;
+
+          // without a signature, any configuration of the same size matches,
+          // with one the size still has to match
+          NodeConfigTemplate tmpl;
+          if (msg.get_length() >= 9) {
+            tmpl = cfg_cache.get(cfg_id, (msg.getElement_data(7) << 8) + msg.getElement_data(8),
+                                 num_tasks, num_conns);
+          }
+          else {
+            tmpl = cfg_cache.find(cfg_id, num_tasks, num_conns);
+          }
+
+          if (tmpl == null) {
+            sendErrorMsg(master_addr, cfg_id, -2, TitanCommand.ERROR_NO_CACHE_ENTRY);
+            break;
+          }
+
+          installConfig(new NodeConfig(this, tmpl, !bDelayedReconfig, master_addr));
+          checkConfigSuccess(false);
         }
         break;
+
+      case TitanCommand.TITANCOMM_CACHE_STORE:
+        // motes store a configuration message with it, local nodes cache
+        // every configuration they run
+        break;
+
+      case TitanCommand.TITANCOMM_CACHE_REPORT:
+        if (DEBUG_MSGS) {
+          System.out.println("LN(" + node_id + "): Cache query message received!");
+        }
+        // asks for the cached configurations, like a discovery message
+        sendCacheReports((msg.getElement_data(1) << 8) + msg.getElement_data(2));
+        break;
       
       case TitanCommand.TITANCOMM_CFGTASK:
         if (DEBUG_MSGS) {
           System.out.println("LN(" + node_id + "): Task message received!");
         }
         {
-          int ret = node_cfg.addTasks(msg, 1);
+          int ret = configuringCfg().addTasks(msg, 1);
           if (ret == -1) {
             System.err.println("LN(" + node_id + "): error in configuration message (tasks)");
             break;
           }
 
-          checkConfigSuccess();
+          checkConfigSuccess(true);
         }
         break;
 
@@ -167,13 +390,13 @@ public class TitanLocalNode implements Runnable{
           System.out.println("LN(" + node_id + "): Connection message received!");
         }
         {
-          int ret = node_cfg.addConnections(msg, 1);
+          int ret = configuringCfg().addConnections(msg, 1);
           if (ret == -1) {
             System.err.println("LN(" + node_id + "): error in configuration message (connections)");
             break;
           }
 
-          checkConfigSuccess();
+          checkConfigSuccess(true);
         }
         break;
 
@@ -189,6 +412,8 @@ public class TitanLocalNode implements Runnable{
         if (DEBUG_MSGS) {
           System.out.println("LN(" + node_id + "): Discovery message received!");
         }
+        sendDiscoveryReply((msg.getElement_data(1) << 8) + msg.getElement_data(2));
+        sendCacheReports((msg.getElement_data(1) << 8) + msg.getElement_data(2));
         break;
 
       case TitanCommand.TITANCOMM_DICS_REP:
@@ -203,10 +428,32 @@ public class TitanLocalNode implements Runnable{
           int port = msg.getElement_data(1);
           int data_len = msg.getElement_data(2);
           short[] data = new short[data_len];
+          // read the payload bytes directly instead of element by element
+          byte[] raw = msg.dataGet();
+          int off = msg.baseOffset() + SerialMsg.offset_data(3);
           for (int i = 0; i < data_len; i++) {
-            data[i] = msg.getElement_data(i + 3);
+            data[i] = (short) (raw[off + i] & 0xFF);
+          }
+          receiveData(port, new DataPacket(data));
+        }
+        break;
+
+      case TitanCommand.TITANCOMM_BATCH:
+        {
+          int size = (msg.getElement_data(1) << 8) + msg.getElement_data(2);
+          int ms = (msg.getElement_data(3) << 8) + msg.getElement_data(4);
+          if (DEBUG_MSGS) {
+            System.out.println("LN(" + node_id + "): batch frames requested, " + size + " bytes, " + ms + " ms");
+          }
+
+          // confirm first, the reply must still be in single frames
+          if (size == 0) {
+            tcpip.disableBatching();
+          }
+          sendBatchAck(size, ms);
+          if (size > 0) {
+            tcpip.enableBatching(size, ms);
           }
-          node_cfg.getCommTask().send(port, new DataPacket(data));
         }
         break;
 
@@ -214,12 +461,50 @@ public class TitanLocalNode implements Runnable{
         // should not be received
         break;
 
+      case TitanCommand.TITANCOMM_STATS:
+        {
+          int addr = (msg.getElement_data(1) << 8) + msg.getElement_data(2);
+          int runID = (msg.get_length() >= 4) ? msg.getElement_data(3) : 0xFF;
+          if (DEBUG_MSGS) {
+            System.out.println("LN(" + node_id + "): statistics requested for task " + runID);
+          }
+          sendStatsMsgs(addr, runID);
+        }
+        break;
+
+      case TitanCommand.TITANCOMM_CREDIT:
+        {
+          // a node we send data to grants credits on one of its ports
+          int addr = (msg.getElement_data(1) << 8) + msg.getElement_data(2);
+          int port = msg.getElement_data(3);
+          int credits = msg.getElement_data(4);
+          if (DEBUG_MSGS) {
+            System.out.println("LN(" + node_id + "): " + credits + " credits from node " + addr + " port " + port);
+          }
+          NodeConfig cfg = node_cfg;
+          if (cfg != null && cfg.isComplete()) {
+            ExecutableTitanTask comm = cfg.getCommTask().getExecTask();
+            if (comm instanceof ECommunicator) {
+              ((ECommunicator) comm).grantCredits(addr, port, credits);
+            }
+          }
+        }
+        break;
+
       case TitanCommand.TITANCOMM_CFGSTART:
         if (DEBUG_MSGS) {
           System.out.println("LN(" + node_id + "): ConfigStart message received!");
         }
         {
-          if (node_cfg != null) {
+          if (pending_cfg != null) {
+            if (pending_cfg.isRunnable()) {
+              activatePendingConfig();
+            }
+            else {
+              System.err.println("LN(" + node_id + "): config is not executable!");
+            }
+          }
+          else if (node_cfg != null) {
             if (node_cfg.isRunnable()) {
               node_cfg.start();
             }
@@ -240,33 +525,110 @@ public class TitanLocalNode implements Runnable{
     }
   }
 
-  private void checkConfigSuccess() {
-     if (node_cfg.isComplete()) {
-       if (node_cfg.isRunnable()) {
-         sendSuccessMsg();
-         if (node_cfg.isAutoStart()) {
+  /** @return the configuration the CFGTASK and CFGCONN messages belong to */
+  private NodeConfig configuringCfg() {
+    return (pending_cfg != null) ? pending_cfg : node_cfg;
+  }
+
+  /**
+   * makes a new configuration the one being configured, in differential
+   * mode the running one keeps running until the new one is started
+   */
+  private void installConfig(NodeConfig cfg) {
+    if (reconfig_mode == RECONFIG_DIFFERENTIAL && node_cfg != null && node_cfg.isRunning()) {
+      pending_cfg = cfg;  // old tasks run until the new config is started
+    }
+    else {
+      if (node_cfg != null) {
+        node_cfg.stop();
+      }
+      node_cfg = cfg;
+      pending_cfg = null;
+      if (link_credits != null) {
+        link_credits.reset();
+      }
+      updateStats();
+    }
+  }
+
+  /**
+   * @param bCache store the configuration in the cache once it is complete
+   */
+  private void checkConfigSuccess(boolean bCache) {
+     NodeConfig cfg = configuringCfg();
+     if (cfg.isComplete()) {
+       if (cfg.isRunnable()) {
+         if (stats_enabled) {
+           cfg.setStatsEnabled(true);
+         }
+         if (cfg == node_cfg) {
+           updateStats();
+         }
+         if (cfg.isAutoStart()) {
            if (DEBUG_MSGS) {
              System.out.println("LN(" + node_id + "): auto-starting config");
            }
-           node_cfg.start();
+           if (cfg == pending_cfg) {
+             activatePendingConfig();
+           }
+           else {
+             cfg.start();
+           }
+         }
+         sendSuccessMsg(cfg);
+         // the master expects CFGSUCC as the first reply to a configuration
+         if (bCache) {
+           cacheConfig(cfg);
          }
        }
        else {
-         sendErrorMsg(node_cfg.getErrSource(), node_cfg.getErrType());
+         if (cfg == pending_cfg) {
+           pending_cfg = null;  // the running config stays in place
+         }
+         sendErrorMsg(cfg.getMasterAddr(), cfg.getConfigID(), cfg.getErrSource(), cfg.getErrType());
        }
      }
   }
 
-  private void sendSuccessMsg() {
-    final int BODY_SIZE = 4;
+  /**
+   * replaces the running configuration by the pending one, keeping the
+   * tasks both have in common
+   */
+  private void activatePendingConfig() {
+    NodeConfig cfg = pending_cfg;
+    pending_cfg = null;
+    swap_pause_ns = cfg.takeOver(node_cfg);
+    node_cfg = cfg;
+    updateStats();
+
+    if (DEBUG_MSGS) {
+      if (swap_pause_ns >= 0) {
+        System.out.println("LN(" + node_id + "): config " + cfg.getConfigID() + " swapped in, data flow paused for " + (swap_pause_ns / 1000) + " us");
+      }
+    }
+  }
+
+  /**
+   * confirms a configuration, after a differential reconfiguration the
+   * message carries the pause of the data flow in microseconds (3 bytes)
+   */
+  private void sendSuccessMsg(NodeConfig cfg) {
+    boolean bSwapped = (cfg.getSwapPauseNs() >= 0);
+    final int BODY_SIZE = bSwapped ? 7 : 4;
     SerialMsg msg = new SerialMsg(BODY_SIZE + SerialMsg.DEFAULT_MESSAGE_SIZE);
     msg.set_length((short) BODY_SIZE);
-    msg.set_address(node_cfg.getMasterAddr());
+    msg.set_address(cfg.getMasterAddr());
     short[] data = new short[BODY_SIZE];
     data[0] = (short) ((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_CFGSUCC);
-    data[1] = (short) node_cfg.getConfigID();
+    data[1] = (short) cfg.getConfigID();
     data[2] = (short) ((node_id >> 8) & 0xFF);
     data[3] = (short) (node_id & 0xFF);
+    if (bSwapped) {
+      long pause_us = Math.min(cfg.getSwapPauseNs() / 1000, 0xFFFFFF);
+      data[4] = (short) ((pause_us >> 16) & 0xFF);
+      data[5] = (short) ((pause_us >> 8) & 0xFF);
+      data[6] = (short) (pause_us & 0xFF);
+    }
     msg.set_data(data);
 
     if (DEBUG_MSGS) {
@@ -281,16 +643,115 @@ public class TitanLocalNode implements Runnable{
     }
   }
 
-  private void sendErrorMsg(int errSource, int errType) {
+  private void sendBatchAck(int size, int ms) {
+    final int BODY_SIZE = 5;
+    SerialMsg msg = new SerialMsg(BODY_SIZE + SerialMsg.DEFAULT_MESSAGE_SIZE);
+    msg.set_length((short) BODY_SIZE);
+    msg.set_address(0);
+    short[] data = new short[BODY_SIZE];
+    data[0] = (short) ((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_BATCH);
+    data[1] = (short) ((size >> 8) & 0xFF);
+    data[2] = (short) (size & 0xFF);
+    data[3] = (short) ((ms >> 8) & 0xFF);
+    data[4] = (short) (ms & 0xFF);
+    msg.set_data(data);
+
+    try {
+      tcpip.sendMsg(msg);
+    }
+    catch (IOException ioe) {
+      System.err.println("LN(" + node_id + "): could not send BatchMsg");
+    }
+  }
+
+  /**
+   * stores the template of a configuration in the cache and tells the
+   * master that it can be started from there
+   */
+  private void cacheConfig(NodeConfig cfg) {
+    NodeConfigTemplate tmpl = cfg.getTemplate();
+    if (tmpl == null || !cfg_cache.put(tmpl)) {
+      return;
+    }
+    sendCacheReport(cfg.getMasterAddr(), tmpl);
+  }
+
+  /** reports all cached configurations, most recently used last */
+  private void sendCacheReports(int addr) {
+    NodeConfigTemplate[] tmpls = cfg_cache.getTemplates();
+    for (int i = 0; i < tmpls.length; i++) {
+      sendCacheReport(addr, tmpls[i]);
+    }
+  }
+
+  private void sendCacheReport(int addr, NodeConfigTemplate tmpl) {
+    final int BODY_SIZE = 6;
+    SerialMsg msg = new SerialMsg(BODY_SIZE + SerialMsg.DEFAULT_MESSAGE_SIZE);
+    msg.set_length((short) BODY_SIZE);
+    msg.set_address(addr);
+    short[] data = new short[BODY_SIZE];
+    data[0] = (short) ((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_CACHE_REPORT);
+    data[1] = (short) ((node_id >> 8) & 0xFF);
+    data[2] = (short) (node_id & 0xFF);
+    data[3] = (short) tmpl.getConfigID();
+    data[4] = (short) ((tmpl.getSignature() >> 8) & 0xFF);
+    data[5] = (short) (tmpl.getSignature() & 0xFF);
+    msg.set_data(data);
+
+    try {
+      tcpip.sendMsg(msg);
+    }
+    catch (IOException ioe) {
+      System.err.println("LN(" + node_id + "): could not send CacheReport");
+    }
+  }
+
+  /**
+   * answers a discovery message with the tasks of the TaskRegistry, split
+   * over several replies if they do not fit into one message
+   */
+  private void sendDiscoveryReply(int addr) {
+    final int HEADER_SIZE = 4;
+    final int MAX_TASKS = (TitanCommand.TOSH_DATA_LENGTH - HEADER_SIZE) / 2;
+    int[] tasks = TaskRegistry.getRegistry().getTaskIDs();
+
+    for (int first = 0; first == 0 || first < tasks.length; first += MAX_TASKS) {
+      int num = Math.min(MAX_TASKS, tasks.length - first);
+      int body_size = HEADER_SIZE + 2 * num;
+      SerialMsg msg = new SerialMsg(body_size + SerialMsg.DEFAULT_MESSAGE_SIZE);
+      msg.set_length((short) body_size);
+      msg.set_address(addr);
+      short[] data = new short[body_size];
+      data[0] = (short) ((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_DICS_REP);
+      data[1] = (short) ((node_id >> 8) & 0xFF);
+      data[2] = (short) (node_id & 0xFF);
+      data[3] = (short) num;
+      for (int i = 0; i < num; i++) {
+        data[HEADER_SIZE + 2 * i]     = (short) ((tasks[first + i] >> 8) & 0xFF);
+        data[HEADER_SIZE + 2 * i + 1] = (short) (tasks[first + i] & 0xFF);
+      }
+      msg.set_data(data);
+
+      try {
+        tcpip.sendMsg(msg);
+      }
+      catch (IOException ioe) {
+        System.err.println("LN(" + node_id + "): could not send DiscoveryReply");
+        return;
+      }
+    }
+  }
+
+  private void sendErrorMsg(int master_addr, int cfg_id, int errSource, int errType) {
     final int BODY_SIZE = 6;
     SerialMsg msg = new SerialMsg(BODY_SIZE + SerialMsg.DEFAULT_MESSAGE_SIZE);
     msg.set_length((short) BODY_SIZE);
-    msg.set_address(node_cfg.getMasterAddr());
+    msg.set_address(master_addr);
     short[] data = new short[BODY_SIZE];
     data[0] = (short) ((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_ERROR);
     data[1] = (short) ((node_id >> 8) & 0xFF);
     data[2] = (short) (node_id & 0xFF);
-    data[3] = (short) node_cfg.getConfigID();
+    data[3] = (short) cfg_id;
     data[4] = (short) errSource;
     data[5] = (short) errType;
     msg.set_data(data);
@@ -305,27 +766,127 @@ public class TitanLocalNode implements Runnable{
     }
   }
 
+  /**
+   * Answers a statistics request with one message per task (0xFF: all
+   * tasks). Counts are saturated, times given in microseconds:
+   *
+   *   [type, nodeH, nodeL, cfgID, runID, taskIDH, taskIDL,
+   *    packets in (4), packets out (4), packets dropped (4),
+   *    queue high water (2), service mean (3), p99 (3), max (3)]
+   *
+   * Tasks without statistics are reported with the first 7 bytes only.
+   */
+  private void sendStatsMsgs(int addr, int runID) {
+    NodeConfig cfg = node_cfg;
+    if (cfg == null) {
+      return;
+    }
+    TitanTask[] tasks = cfg.getTasks();
+    for (int i = 0; i < tasks.length; i++) {
+      if (runID != 0xFF && tasks[i].getRunID() != runID) {
+        continue;
+      }
+      TaskStats st = tasks[i].getStats();
+      final int BODY_SIZE = (st != null) ? 30 : 7;
+      SerialMsg msg = new SerialMsg(BODY_SIZE + SerialMsg.DEFAULT_MESSAGE_SIZE);
+      msg.set_length((short) BODY_SIZE);
+      msg.set_address(addr);
+      short[] data = new short[BODY_SIZE];
+      data[0] = (short) ((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_STATS);
+      data[1] = (short) ((node_id >> 8) & 0xFF);
+      data[2] = (short) (node_id & 0xFF);
+      data[3] = (short) cfg.getConfigID();
+      data[4] = (short) tasks[i].getRunID();
+      data[5] = (short) ((tasks[i].getTaskID() >> 8) & 0xFF);
+      data[6] = (short) (tasks[i].getTaskID() & 0xFF);
+      if (st != null) {
+        putUnsigned(data, 7, 4, st.getPacketsInTotal());
+        putUnsigned(data, 11, 4, st.getPacketsOutTotal());
+        putUnsigned(data, 15, 4, st.getPacketsDroppedTotal());
+        putUnsigned(data, 19, 2, st.getQueueHighWaterMax());
+        putUnsigned(data, 21, 3, st.getMeanServiceNs() / 1000);
+        putUnsigned(data, 24, 3, st.getP99ServiceNs() / 1000);
+        putUnsigned(data, 27, 3, st.getMaxServiceNs() / 1000);
+      }
+      msg.set_data(data);
+
+      try {
+        tcpip.sendMsg(msg);
+      }
+      catch (IOException ioe) {
+        System.err.println("LN(" + node_id + "): could not send StatsMsg");
+        return;
+      }
+    }
+  }
+
+  /** writes a value big endian, saturated to the number of bytes */
+  private static void putUnsigned(short[] data, int off, int bytes, long value) {
+    long max = (1L << (8 * bytes)) - 1;
+    value = Math.min(Math.max(value, 0), max);
+    for (int b = 0; b < bytes; b++) {
+      data[off + b] = (short) ((value >> (8 * (bytes - 1 - b))) & 0xFF);
+    }
+  }
+
+  /** data message from the master, injected by the communication task */
+  private void receiveData(int port, DataPacket packet) {
+    TitanTask commTask = node_cfg.getCommTask();
+    commTask.send(port, packet);
+
+    LinkCredits lc = link_credits;
+    if (lc != null) {
+      lc.received(port, commTask);
+    }
+  }
+
+  /**
+   * grants the node sending to a port of the communication task credits
+   * for more packets, the master forwards the message to that node
+   */
+  void sendCreditMsg(int port, int credits) {
+    final int BODY_SIZE = 5;
+    SerialMsg msg = new SerialMsg(BODY_SIZE + SerialMsg.DEFAULT_MESSAGE_SIZE);
+    msg.set_length((short) BODY_SIZE);
+    msg.set_address(0);
+    short[] data = new short[BODY_SIZE];
+    data[0] = (short) ((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_CREDIT);
+    data[1] = (short) ((node_id >> 8) & 0xFF);
+    data[2] = (short) (node_id & 0xFF);
+    data[3] = (short) port;
+    data[4] = (short) credits;
+    msg.set_data(data);
+
+    try {
+      tcpip.sendMsg(msg);
+    }
+    catch (IOException ioe) {
+      System.err.println("LN(" + node_id + "): could not send CreditMsg");
+    }
+  }
+
   public void sendDataMsg(int address, int port, short[] dataIn) {
     final int BODY_SIZE = dataIn.length + 3;
-    SerialMsg msg = new SerialMsg(BODY_SIZE + SerialMsg.DEFAULT_MESSAGE_SIZE);
+    // the message is built in its byte array directly
+    byte[] raw = new byte[BODY_SIZE + SerialMsg.DEFAULT_MESSAGE_SIZE];
+    SerialMsg msg = new SerialMsg(raw);
     msg.set_length((short) BODY_SIZE);
     msg.set_address(address);  // should always equal getMasterAddr()
-    
-    short[] data = new short[BODY_SIZE];
-    data[0] = (short) ((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_DATAMSG);
-    data[1] = (short) port;
-    data[2] = (short) dataIn.length;
+
+    int off = SerialMsg.offset_data(0);
+    raw[off]     = (byte) ((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_DATAMSG);
+    raw[off + 1] = (byte) port;
+    raw[off + 2] = (byte) dataIn.length;
     for (int i = 0; i < dataIn.length; i++) {
-      data[i + 3] = dataIn[i];
+      raw[off + 3 + i] = (byte) dataIn[i];
     }
-    msg.set_data(data);
 
     //if (DEBUG_MSGS) {
     //  System.out.println("LN(" + node_id + "): sending DATAMSG to host...");
     //}
     
     try {
-      tcpip.sendMsg(msg);
+      tcpip.queueMsg(msg);  // batched if negotiated with the master
     }
     catch (IOException ioe) {
       System.err.println("LN(" + node_id + "): could not send DataMsg");
@@ -1,26 +1,89 @@
 package titancommon.node;
 
 import titan.messages.SerialMsg;
+import titancommon.TitanCommand;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
+ * Message framing over a TCP connection. Every message is sent as a frame
+ * with a 4 byte header (hop count, length, address high and low byte),
+ * which is the framing used by the motes.
+ *
+ * Once both sides agreed on it (see TitanCommand.TITANCOMM_BATCH), messages
+ * queued with queueMsg() are packed into batch frames instead. A batch frame
+ * has the header (FRAME_BATCH, BATCH_VERSION, length high, length low) and
+ * carries a sequence of records (length, address high, address low, data).
+ * A batch is written when it reaches the flush size, or at the latest after
+ * the flush time. Batch frames are always understood by recvMsg(), so only
+ * the sending side has to be enabled.
+ *
+ * The socket streams are buffered and frames are read and written with
+ * per-connection buffers, so a message costs no allocation besides the
+ * SerialMsg returned by recvMsg(). With a DataReceiver set, data messages
+ * do not even need that: they are decoded straight into a DataPacket.
  *
  * @author Jeremy Constantin <jeremyc@student.ethz.ch>
  */
 public class TitanTCP {
+  public static final int FRAME_BATCH   = 0xFF;  // in place of the hop count
+  public static final int BATCH_VERSION = 1;
+  public static final int BATCH_MAX_SIZE = 0xFFFF;
+  public static final int BATCH_FLUSH_SIZE_DEFAULT = 1400;  // fits one ethernet frame
+  public static final int BATCH_FLUSH_MS_DEFAULT   = 5;
+
+  public static final int HEADER_SIZE = 4;
+  public static final int RECORD_HEADER_SIZE = 3;
+
+  private static final int STREAM_BUFFER_SIZE = 8192;
+
+  /** gets the data messages decoded by recvMsg(), see setDataReceiver() */
+  public interface DataReceiver {
+    void dataReceived(int port, DataPacket packet);
+  }
+
   private String  host;
   private int     port;
   private boolean bConnected;
-  private long sendBytes;
-  private long recvBytes;
+
+  // written by the sending thread (under sendLock) or the receiving thread
+  private volatile long sendBytes;
+  private volatile long recvBytes;
+  private volatile long sendMsgs;
+  private volatile long recvMsgs;
+  private volatile long countStart;  // System.nanoTime() of the last reset
 
   private Socket         socket;
   private InputStream    inStream;
   private OutputStream   outStream;
 
+  // sending side of batch frames, guarded by sendLock
+  private final Object sendLock = new Object();
+  private volatile boolean bBatching;
+  private int     flushSize;
+  private int     flushMs;
+  private byte[]  batch;
+  private int     batchLen;
+  private int     batchMsgs;
+  private Timer   flushTimer;
+
+  // messages of a received batch frame not yet returned by recvMsg()
+  private LinkedList/*<SerialMsg>*/ recvQueue = new LinkedList();
+
+  // only used by the thread calling recvMsg()
+  private final byte[] recvHeader = new byte[HEADER_SIZE];
+  private byte[] recvBuf = new byte[0xFF];
+  private volatile DataReceiver dataReceiver;
+
+  private final byte[] sendHeader = new byte[HEADER_SIZE];  // guarded by sendLock
+
   public TitanTCP() {
     this("", -1);
   }
@@ -29,8 +92,7 @@ public class TitanTCP {
     host = h;
     port = p;
     bConnected = false;
-    sendBytes = 0;
-    recvBytes = 0;
+    resetCounters();
   }
 
   public TitanTCP(Socket sock) {
@@ -45,11 +107,10 @@ public class TitanTCP {
       host = sock.getInetAddress().getHostAddress();
       port = sock.getPort();
       bConnected = true;
-      sendBytes = 0;
-      recvBytes = 0;
+      resetCounters();
 
-      inStream = socket.getInputStream();
-      outStream = socket.getOutputStream();
+      inStream = new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE);
+      outStream = new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE);
     }
     catch (IOException ioe) {
       System.err.println(
@@ -62,20 +123,110 @@ public class TitanTCP {
   public int    getPort()         { return port; }
   public long   getSendBytes()    { return sendBytes; }
   public long   getRecvBytes()    { return recvBytes; }
+  public long   getSendMsgs()     { return sendMsgs; }
+  public long   getRecvMsgs()     { return recvMsgs; }
   public void   setHost(String h) { host = h; }
   public void   setPort(int p)    { port = p; }
 
   public boolean isConnected() { return bConnected; }
 
+  /** restarts all counters and the interval the rates are computed over */
+  public void resetCounters() {
+    sendBytes = 0;
+    recvBytes = 0;
+    sendMsgs = 0;
+    recvMsgs = 0;
+    countStart = System.nanoTime();
+  }
+
+  public double getSendBytesPerSec() { return perSecond(sendBytes); }
+  public double getRecvBytesPerSec() { return perSecond(recvBytes); }
+  public double getSendMsgsPerSec()  { return perSecond(sendMsgs); }
+  public double getRecvMsgsPerSec()  { return perSecond(recvMsgs); }
+
+  /** @return count per second since the connection or the last resetCounters() */
+  private double perSecond(long count) {
+    long ns = System.nanoTime() - countStart;
+    return (ns > 0) ? (count * 1e9 / ns) : 0;
+  }
+
+  /**
+   * Lets recvMsg() pass data messages (TitanCommand.TITANCOMM_DATAMSG)
+   * directly to r instead of returning them. Must be set by the thread
+   * calling recvMsg(), null returns to normal operation.
+   */
+  public void setDataReceiver(DataReceiver r) {
+    dataReceiver = r;
+  }
+
+  public boolean isBatching()    { return bBatching; }
+  public int     getFlushSize()  { return flushSize; }
+  public int     getFlushMs()    { return flushMs; }
+
+  /**
+   * Packs messages passed to queueMsg() into batch frames from now on. Must
+   * only be enabled after the other side confirmed it understands them.
+   * @param size  flush a batch once it holds this many bytes
+   * @param ms    flush a batch at the latest after this time, 0 for never
+   */
+  public void enableBatching(int size, int ms) {
+    if (size < HEADER_SIZE + RECORD_HEADER_SIZE) {
+      size = HEADER_SIZE + RECORD_HEADER_SIZE;
+    }
+    if (size > BATCH_MAX_SIZE) {
+      size = BATCH_MAX_SIZE;
+    }
+
+    synchronized (sendLock) {
+      flushQuietly();
+      flushSize = size;
+      flushMs = ms;
+      // a record can be up to 255 bytes larger than the flush size
+      batch = new byte[HEADER_SIZE + size + RECORD_HEADER_SIZE + 255];
+      batchLen = HEADER_SIZE;
+      bBatching = true;
+
+      if (flushTimer != null) {
+        flushTimer.cancel();
+        flushTimer = null;
+      }
+      if (ms > 0) {
+        flushTimer = new Timer(true);
+        flushTimer.schedule(new TimerTask() {
+          public void run() {
+            try {
+              flush();
+            }
+            catch (IOException ioe) {
+              cancel();
+            }
+          }
+        }, ms, ms);
+      }
+    }
+  }
+
+  /** sends pending messages and returns to one frame per message */
+  public void disableBatching() {
+    synchronized (sendLock) {
+      flushQuietly();
+      bBatching = false;
+      batch = null;
+      if (flushTimer != null) {
+        flushTimer.cancel();
+        flushTimer = null;
+      }
+    }
+  }
+
   public void connect() {
     try {
       socket = new Socket(host, port);
-      inStream = socket.getInputStream();
-      outStream = socket.getOutputStream();
+      inStream = new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE);
+      outStream = new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE);
 
       bConnected = true;
-      sendBytes = 0;
-      recvBytes = 0;
+      resetCounters();
     }
     catch (Exception e) {
       System.err.println(
@@ -84,6 +235,13 @@ public class TitanTCP {
   }
 
   public void disconnect() {
+    synchronized (sendLock) {
+      if (flushTimer != null) {
+        flushTimer.cancel();
+        flushTimer = null;
+      }
+    }
+
     try {
       socket.close();
     }
@@ -95,11 +253,14 @@ public class TitanTCP {
     bConnected = false;
   }
 
-  private void send(byte[] data) throws IOException {
+  /** writes a frame, the caller holds sendLock */
+  private void send(byte[] header, byte[] data, int off, int len, int msgs) throws IOException {
     try {
-      outStream.write(data);
+      outStream.write(header, 0, HEADER_SIZE);
+      outStream.write(data, off, len);
       outStream.flush();
-      sendBytes += data.length;
+      sendBytes += HEADER_SIZE + len;
+      sendMsgs += msgs;
     }
     catch (IOException ioe) {
       System.err.println("TitanTCP: I/O error during send");
@@ -107,45 +268,43 @@ public class TitanTCP {
     }
   }
 
-  private byte[] recv(int len) {
+  /** @return false if the connection was closed before len bytes arrived */
+  private boolean recv(byte[] buf, int off, int len) {
     try {
-      byte[] buf = new byte[len];
-
       int b, r = 0;
       while (r < len) {
-        b = inStream.read(buf, r, len - r);
+        b = inStream.read(buf, off + r, len - r);
         if (b == -1) {
-          //return Arrays.copyOf(buf, r);  //1.6 only...
-          byte[] ret = new byte[r];
-          System.arraycopy(buf, 0, ret, 0, r);
-          return ret;
+          return false;
         }
         r += b;
-        recvBytes += b;
       }
-      return buf;
+      recvBytes += len;
+      return true;
     }
     catch (IOException ioe) {
     }
-    return null;
+    return false;
   }
 
+  /**
+   * Sends a message in a frame of its own. Messages queued for a batch
+   * are sent before, so the order of all messages is kept.
+   */
   public void sendMsg(SerialMsg msg) throws IOException {
     if(bConnected) {
       short len = msg.get_length();
       int addr = msg.get_address();
-      byte[] data = new byte[len + 4];
-
-			data[0] = (byte) 0;   // hop count ?!
-			data[1] = (byte) len;
-      data[2] = (byte) ((addr >> 8) & 0xFF);
-      data[3] = (byte) (addr & 0xFF);
 
-      for (int i = 0; i < len; i++) {
-        data[i + 4] = (byte) msg.getElement_data(i);
+      synchronized (sendLock) {
+        flushPending();
+        sendHeader[0] = (byte) 0;   // hop count ?!
+        sendHeader[1] = (byte) len;
+        sendHeader[2] = (byte) ((addr >> 8) & 0xFF);
+        sendHeader[3] = (byte) (addr & 0xFF);
+        // the payload is stored as bytes in the message already
+        send(sendHeader, msg.dataGet(), msg.baseOffset() + SerialMsg.offset_data(0), len, 1);
       }
-
-      send(data);
     }
 		else {
 			System.err.println("TitanTCP: not connected");
@@ -153,33 +312,188 @@ public class TitanTCP {
 		}
   }
 
+  /**
+   * Queues a message for the next batch frame if batching is enabled,
+   * otherwise the message is sent right away like with sendMsg().
+   */
+  public void queueMsg(SerialMsg msg) throws IOException {
+    if (!bBatching) {
+      sendMsg(msg);
+      return;
+    }
+    if (!bConnected) {
+      System.err.println("TitanTCP: not connected");
+      throw new IOException("TitanTCP: not connected");
+    }
+
+    short len = msg.get_length();
+    int addr = msg.get_address();
+    synchronized (sendLock) {
+      if (batch == null) {  // disabled in the meantime
+        sendMsg(msg);
+        return;
+      }
+      batch[batchLen++] = (byte) len;
+      batch[batchLen++] = (byte) ((addr >> 8) & 0xFF);
+      batch[batchLen++] = (byte) (addr & 0xFF);
+      System.arraycopy(msg.dataGet(), msg.baseOffset() + SerialMsg.offset_data(0), batch, batchLen, len);
+      batchLen += len;
+      batchMsgs++;
+
+      if (batchLen - HEADER_SIZE >= flushSize) {
+        flushPending();
+      }
+    }
+  }
+
+  /** writes the queued messages as one batch frame */
+  public void flush() throws IOException {
+    synchronized (sendLock) {
+      flushPending();
+    }
+  }
+
+  private void flushPending() throws IOException {
+    if (batch == null || batchLen == HEADER_SIZE) {
+      return;
+    }
+
+    int len = batchLen - HEADER_SIZE;
+    int msgs = batchMsgs;
+    sendHeader[0] = (byte) FRAME_BATCH;
+    sendHeader[1] = (byte) BATCH_VERSION;
+    sendHeader[2] = (byte) ((len >> 8) & 0xFF);
+    sendHeader[3] = (byte) (len & 0xFF);
+    batchLen = HEADER_SIZE;
+    batchMsgs = 0;
+    send(sendHeader, batch, HEADER_SIZE, len, msgs);
+  }
+
+  private void flushQuietly() {
+    try {
+      flushPending();
+    }
+    catch (IOException ioe) {
+      // already reported by send()
+    }
+  }
+
+  /** @return msg in a frame of its own, as written by sendMsg() */
+  public static byte[] createFrame(SerialMsg msg) {
+    short len = msg.get_length();
+    int addr = msg.get_address();
+    byte[] data = new byte[len + HEADER_SIZE];
+
+    data[0] = (byte) 0;   // hop count ?!
+    data[1] = (byte) len;
+    data[2] = (byte) ((addr >> 8) & 0xFF);
+    data[3] = (byte) (addr & 0xFF);
+
+    // the payload is stored as bytes in the message already
+    System.arraycopy(msg.dataGet(), msg.baseOffset() + SerialMsg.offset_data(0), data, HEADER_SIZE, len);
+    return data;
+  }
+
+  /**
+   * Builds a message from a record in buf, see SerialMsg for the layout. If
+   * buf is null, the data of the message is left empty.
+   */
+  public static SerialMsg createMsg(int len, int addrHi, int addrLo, byte[] buf, int off) {
+    byte[] raw = new byte[SerialMsg.DEFAULT_MESSAGE_SIZE + len];
+    raw[SerialMsg.offset_length()]      = (byte) len;
+    raw[SerialMsg.offset_address()]     = (byte) addrHi;
+    raw[SerialMsg.offset_address() + 1] = (byte) addrLo;
+    if (buf != null) {
+      System.arraycopy(buf, off, raw, SerialMsg.offset_data(0), len);
+    }
+    return new SerialMsg(raw);
+  }
+
   public SerialMsg recvMsg() {
-    if (bConnected) {
+    while (true) {
+      if (!recvQueue.isEmpty()) {
+        return (SerialMsg) recvQueue.removeFirst();
+      }
+
+      if (!bConnected) {
+        System.err.println("TitanTCP: not connected");
+        return null;
+      }
+
       // get header
-      byte[] data = recv(4);
-      if (data == null || data.length != 4) return null;
+      if (!recv(recvHeader, 0, HEADER_SIZE)) return null;
+
+      if ((recvHeader[0] & 0xFF) == FRAME_BATCH) {
+        if (!recvBatch()) return null;
+        continue;
+      }
 
       // first byte contains message version + type
-      short len = (short) (data[1] & 0xFF);
-      int addr = ((data[2] & 0xFF) << 8) + (data[3] & 0xFF);
-
-      data = recv(len);
-      if (data == null || data.length != len) return null;
-
-      SerialMsg msg = new SerialMsg(len + SerialMsg.DEFAULT_MESSAGE_SIZE);
-      msg.set_length(len);
-      msg.set_address(addr);
-      short[] msgdata = new short[len];
-      for (int i = 0; i < len; i++) {
-        msgdata[i] = (short) (data[i] & 0xFF);
+      int len = recvHeader[1] & 0xFF;
+      recvMsgs++;
+      DataReceiver dr = dataReceiver;
+      if (dr == null) {
+        SerialMsg msg = createMsg(len, recvHeader[2], recvHeader[3], null, 0);
+        if (!recv(msg.dataGet(), msg.baseOffset() + SerialMsg.offset_data(0), len)) return null;
+        return msg;
       }
-      msg.set_data(msgdata);
 
-      return msg;
+      if (!recv(recvBuf, 0, len)) return null;
+      if (!decodeData(dr, recvBuf, 0, len)) {
+        return createMsg(len, recvHeader[2], recvHeader[3], recvBuf, 0);
+      }
     }
-		else {
-			System.err.println("TitanTCP: not connected");
-      return null;
-		}
+  }
+
+  /** reads a batch frame, its messages are added to recvQueue */
+  private boolean recvBatch() {
+    int len = ((recvHeader[2] & 0xFF) << 8) + (recvHeader[3] & 0xFF);
+    if (recvBuf.length < len) {
+      recvBuf = new byte[BATCH_MAX_SIZE];
+    }
+    byte[] data = recvBuf;
+    if (!recv(data, 0, len)) return false;
+
+    if ((recvHeader[1] & 0xFF) != BATCH_VERSION) {
+      System.err.println("TitanTCP: unknown batch frame version " + (recvHeader[1] & 0xFF));
+      return true;
+    }
+
+    DataReceiver dr = dataReceiver;
+    int idx = 0;
+    while (idx + RECORD_HEADER_SIZE <= len) {
+      int mlen = data[idx] & 0xFF;
+      if (idx + RECORD_HEADER_SIZE + mlen > len) {
+        System.err.println("TitanTCP: truncated record in batch frame");
+        break;
+      }
+      recvMsgs++;
+      int off = idx + RECORD_HEADER_SIZE;
+      if ((dr == null) || !decodeData(dr, data, off, mlen)) {
+        recvQueue.add(createMsg(mlen, data[idx + 1], data[idx + 2], data, off));
+      }
+      idx = off + mlen;
+    }
+    return true;
+  }
+
+  /**
+   * Passes the message in buf to dr if it is a data message, the layout is
+   * the one written by TitanLocalNode.sendDataMsg().
+   * @return false if it is not a data message
+   */
+  private static boolean decodeData(DataReceiver dr, byte[] buf, int off, int len) {
+    if ((len < 3) || ((buf[off] & 0xF) != TitanCommand.TITANCOMM_DATAMSG)) {
+      return false;
+    }
+
+    int port = buf[off + 1] & 0xFF;
+    int data_len = Math.min(buf[off + 2] & 0xFF, len - 3);
+    short[] data = new short[data_len];
+    for (int i = 0; i < data_len; i++) {
+      data[i] = (short) (buf[off + 3 + i] & 0xFF);
+    }
+    dr.dataReceived(port, new DataPacket(data));
+    return true;
   }
 }
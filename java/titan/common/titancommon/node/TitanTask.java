@@ -1,58 +1,43 @@
 package titancommon.node;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 import titancommon.node.tasks.*;
-import titancommon.tasks.Task;
 
 /**
  *
  * @author Jeremy Constantin <jeremyc@student.ethz.ch>
  */
 public class TitanTask implements Runnable {
-  // specifiy available titan tasks, in no specific order
-  private static final Class[] execTaskClasses = {
-          ECommunicator.class,
-          ESimpleWriter.class,
-          EGSense.class,
-          EGraphPlot.class,
-          EMagnitude.class,
-          EMax.class,
-          EMean.class,
-          EMin.class,
-          EVariance.class,
-          EZeroCross.class,
-          ESink.class,
-          EDuplicator.class,
-          ERoundTrip.class,
-          ETitanFileWriter.class,
-          EBTSensor.class,
-          ESyncMerger.class,
-          EBTStatusGUI.class,
-          ELabelingGUI.class,
-          EVirtualBTSensor.class,
-          EDecisionTree.class,
-          EDemoGUI.class,
-          ESplitter.class,
-          EStreamSelector.class,
-          EStdDev.class
-  };
-
   public static final boolean DEBUG_MSGS = false;
+
+  // max. number of packets handled per activation in pooled mode,
+  // before the task yields its worker to other tasks
+  public static final int POOLED_BATCH = 32;
   
   private TitanLocalNode localNode;
   private int taskID;
   private int runID;
   private short[] param;
-  private int inBufCount;
-  private final ArrayList/*<TPortBuf>*/ portsIn;
-  private final ArrayList/*<TPort>*/ portsOut;
+  private volatile ArrayList/*<TPortBuf>*/ portsIn;  // swapped as a whole by rewirePorts()
+  private volatile ArrayList/*<TPort>*/ portsOut;
+  private ArrayList/*<TPortBuf>*/ stagedIn;  // connections collected for rewirePorts()
+  private ArrayList/*<TPort>*/ stagedOut;
+  private volatile TPortBuf[][] outWiring;  // [out port][] destination input ports
   private Thread execThread;
+  private final TitanTaskPool taskPool;  // null: one thread per task
+  private final Runnable activation;
+  private final AtomicBoolean bScheduled;  // pooled: activation queued or running
+  private volatile boolean bWaiting;     // threaded: exec thread is parked
+  private boolean bInitialized;
   private ExecutableTitanTask execTask;
+  private boolean bTypedInput;  // execTask accepts packet views
   private boolean bRunnable;
-  private boolean bRunning;
+  private volatile boolean bRunning;
   private boolean bCanceled;
+  private volatile TaskStats stats;  // null: not instrumented
   
   public int errSource;
   public int errType;
@@ -70,30 +55,57 @@ public class TitanTask implements Runnable {
   }
 
   private class TPortBuf extends TPort {
-    public final LinkedList/*<DataPacket>*/ buffer;
+    public PortQueue queue;
+    public volatile boolean bSuspended;  // not polled, see suspendInput()
 
-    TPortBuf(int p, TitanTask rt, int rp) {
+    TPortBuf(int p, TitanTask rt, int rp, PortQueue q) {
       super(p, rt, rp);
-      buffer = new LinkedList/*<DataPacket>*/();
+      queue = q;
+    }
+
+    /**
+     * queues a packet on this input port and wakes up the owning task,
+     * the caller passes on one reference to the packet
+     */
+    void deliver(DataPacket data) {
+      if (queue.offer(data)) {
+        wakeUp();
+      }
+      else {
+        data.release();
+      }
     }
   }
 
+  private static final TPortBuf[] NO_DESTINATIONS = new TPortBuf[0];
+
   public TitanTask(TitanLocalNode lnode, int tID, int rID, short[] pa) {
     localNode = lnode;
     taskID = tID;
     runID = rID;
     param = pa;
-    inBufCount = 0;
     portsIn = new ArrayList/*<TPortBuf>*/();
     portsOut = new ArrayList/*<TPort>*/();
+    stagedIn = null;
+    stagedOut = null;
+    outWiring = null;
     execThread = null;
+    taskPool = (lnode != null) ? lnode.getTaskPool() : null;
+    activation = new Runnable() {
+      public void run() { activate(); }
+    };
+    bScheduled = new AtomicBoolean(false);
+    bWaiting = false;
+    bInitialized = false;
     bRunnable = false;
     bRunning = false;
     bCanceled = false;
     errSource = -1;
     errType = -1;
+    stats = (lnode != null && lnode.isStatsEnabled()) ? new TaskStats(this) : null;
 
     execTask = createExecTask(tID);
+    bTypedInput = execTask instanceof TypedDataTask;
     if (execTask != null) {
       execTask.setTitanTask(this);
       bRunnable = execTask.setExecParameters(param);
@@ -106,27 +118,43 @@ public class TitanTask implements Runnable {
   public boolean isRunnable()     { return bRunnable; }
   public boolean isRunning()      { return bRunning; }
   public boolean isCanceled()     { return bCanceled; }
+  public boolean isPooled()       { return taskPool != null; }
   public int     getErrSource()   { return errSource; }
   public int     getErrType()     { return errType; }
   public int     getPortsInNum()  { return portsIn.size(); }
   public int     getPortsOutNum() { return portsOut.size(); }
+  public ExecutableTitanTask getExecTask() { return execTask; }
+
+  /** @return the runtime statistics of the task, or null if not enabled */
+  public TaskStats getStats() { return stats; }
+
+  public void setStatsEnabled(boolean enabled) {
+    if (enabled && stats == null) {
+      stats = new TaskStats(this);
+    }
+    else if (!enabled) {
+      stats = null;
+    }
+  }
+
+  /**
+   * @return the timing wheel of the local node, or a shared one for tasks
+   *         running without a local node
+   */
+  public TimingWheel getTimingWheel() {
+    return (localNode != null) ? localNode.getTimingWheel() : TimingWheel.getShared();
+  }
 
   public void setExecTask(ExecutableTitanTask tsk) {
     execTask = tsk;
+    bTypedInput = tsk instanceof TypedDataTask;
   }
 
   private ExecutableTitanTask createExecTask(int tID) {
-    try {
-      for (int i = 0; i < execTaskClasses.length; i++) {
-        Class cls = execTaskClasses[i];
-        //Task tsk = (Task) cls.getConstructor().newInstance();  // 1.4++
-        Task tsk = (Task) cls.getConstructor(new Class[0]).newInstance(new Class[0]);  // 1.3
-        if (tsk.getID() == tID) {
-          return (ExecutableTitanTask) tsk;
-        }
-      }
+    ExecutableTitanTask tsk = TaskRegistry.getRegistry().createTask(tID);
+    if (tsk != null) {
+      return tsk;
     }
-    catch (Exception e) { }
 
     errSource = runID;
     errType = 9;  // ERROR_NOT_IMPLEMENTED
@@ -135,18 +163,238 @@ public class TitanTask implements Runnable {
   
   public void addParameters(short[] params) {
      bRunnable = execTask.setExecParameters(params);
+
+     // keep the complete parameter set, to compare configurations
+     short[] all = new short[param.length + params.length];
+     System.arraycopy(param, 0, all, 0, param.length);
+     System.arraycopy(params, 0, all, param.length, params.length);
+     param = all;
   }
 
   public void addPortIn(int p, TitanTask t, int rp) {
-    portsIn.add(new TPortBuf(p, t, rp));
+    ArrayList ports = (stagedIn != null) ? stagedIn : portsIn;
+    PortQueue q = null;
+    for (ListIterator li = ports.listIterator(); li.hasNext();) {
+      TPortBuf tpb = (TPortBuf) li.next();
+      if (tpb.port == p) {
+        // several connections into the same port share its queue
+        tpb.queue.setShared();
+        q = tpb.queue;
+        break;
+      }
+    }
+    if (q == null && stagedIn != null) {
+      // a port that stays connected keeps the packets buffered in its queue
+      TPortBuf tpb = findPortIn(p);
+      if (tpb != null) {
+        q = tpb.queue;
+      }
+    }
+    if (q == null) {
+      q = (localNode != null) ? localNode.createPortQueue() : new PortQueue();
+    }
+    ports.add(new TPortBuf(p, t, rp, q));
+    if (t != null && stagedIn == null) {
+      t.outWiring = null;  // sender has to resolve this port again
+    }
+  }
+
+  /**
+   * Replaces the queue of an input port, e.g. to give a bursty sensor input
+   * a larger buffer or a dropping overflow policy. Must be called before
+   * the task is started.
+   *
+   * @param p        input port
+   * @param capacity number of packets, rounded up to a power of two
+   * @param policy   one of the PortQueue.POLICY_* constants
+   */
+  public void setPortInQueue(int p, int capacity, int policy) {
+    PortQueue q = new PortQueue(capacity, policy);
+    boolean shared = false;
+    for (ListIterator li = portsIn.listIterator(); li.hasNext();) {
+      TPortBuf tpb = (TPortBuf) li.next();
+      if (tpb.port == p) {
+        if (shared) {
+          q.setShared();
+        }
+        tpb.queue = q;
+        shared = true;
+      }
+    }
+  }
+
+  public PortQueue getPortInQueue(int p) {
+    for (ListIterator li = portsIn.listIterator(); li.hasNext();) {
+      TPortBuf tpb = (TPortBuf) li.next();
+      if (tpb.port == p) {
+        return tpb.queue;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Stops handling packets of an input port, they stay in its queue. Once
+   * the queue is full the senders see no more credits on the connection.
+   * Reconnecting the port resumes it.
+   */
+  public void suspendInput(int p) {
+    setSuspended(p, true);
+  }
+
+  public void resumeInput(int p) {
+    setSuspended(p, false);
+    wakeUp();
+  }
+
+  private void setSuspended(int p, boolean suspended) {
+    ArrayList ports = portsIn;
+    for (int i = 0; i < ports.size(); i++) {
+      TPortBuf tpb = (TPortBuf) ports.get(i);
+      if (tpb.port == p) {
+        tpb.bSuspended = suspended;
+      }
+    }
+  }
+
+  /**
+   * @return number of packets that can be sent on an output port before
+   *         the fullest of its destination queues overflows, or
+   *         Integer.MAX_VALUE if the port is not connected
+   */
+  public int getCredits(int port) {
+    TPortBuf[][] wiring = outWiring;
+    if (wiring == null) {
+      wiring = resolveWiring();
+    }
+    if (port < 0 || port >= wiring.length) {
+      return Integer.MAX_VALUE;
+    }
+
+    int credits = Integer.MAX_VALUE;
+    TPortBuf[] dests = wiring[port];
+    for (int i = 0; i < dests.length; i++) {
+      credits = Math.min(credits, dests[i].queue.getCredits());
+    }
+    return credits;
   }
 
   public void addPortOut(int p, TitanTask t, int rp) {
+    if (stagedOut != null) {
+      stagedOut.add(new TPort(p, t, rp));
+      return;
+    }
     portsOut.add(new TPort(p, t, rp));
+    outWiring = null;
+  }
+
+  /**
+   * Starts collecting a new set of connections for this task. Until
+   * rewirePorts() is called, addPortIn() and addPortOut() only record the
+   * connections, the task keeps receiving and sending on its current ports.
+   */
+  public void stagePorts() {
+    stagedIn = new ArrayList/*<TPortBuf>*/();
+    stagedOut = new ArrayList/*<TPort>*/();
+  }
+
+  /**
+   * Replaces the connections of the task by the ones collected since
+   * stagePorts(). This may be done while the task is running: the port
+   * lists are swapped as a whole, and input ports that stay connected keep
+   * their queues. Queues of ports that are no longer connected are closed.
+   * The task keeps sending on its old send table until compileWiring() is
+   * called, which must happen after all receivers have been rewired.
+   */
+  public void rewirePorts() {
+    ArrayList oldIn = portsIn;
+    ArrayList newIn = stagedIn;
+    stagedIn = null;
+    portsIn = newIn;
+    portsOut = stagedOut;
+    stagedOut = null;
+
+    for (int i = 0; i < oldIn.size(); i++) {
+      PortQueue q = ((TPortBuf) oldIn.get(i)).queue;
+      boolean kept = false;
+      for (int j = 0; j < newIn.size() && !kept; j++) {
+        kept = ((TPortBuf) newIn.get(j)).queue == q;
+      }
+      if (!kept) {
+        q.close();
+      }
+    }
+    wakeUp();  // new ports may already hold data
+  }
+
+  private TPortBuf findPortIn(int p) {
+    ArrayList ports = portsIn;
+    for (int i = 0; i < ports.size(); i++) {
+      TPortBuf tpb = (TPortBuf) ports.get(i);
+      if (tpb.port == p) {
+        return tpb;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Resolves all outgoing connections into a table indexed by output port,
+   * holding every destination input port of that output. This is done by
+   * NodeConfig once the configuration is complete; if ports are added later
+   * the table is rebuilt on the next send().
+   */
+  public void compileWiring() {
+    resolveWiring();
+  }
+
+  private TPortBuf[][] resolveWiring() {
+    ArrayList portsOut = this.portsOut;
+    int maxPort = -1;
+    for (int i = 0; i < portsOut.size(); i++) {
+      TPort tp = (TPort) portsOut.get(i);
+      if (tp.port > maxPort) {
+        maxPort = tp.port;
+      }
+    }
+
+    // count destinations per output port
+    int[] fanOut = new int[maxPort + 1];
+    TPortBuf[] dest = new TPortBuf[portsOut.size()];
+    for (int i = 0; i < portsOut.size(); i++) {
+      TPort tp = (TPort) portsOut.get(i);
+      dest[i] = (tp.port >= 0) ? tp.r_task.findPortIn(tp.r_port) : null;
+      if (dest[i] != null) {
+        fanOut[tp.port]++;
+      }
+    }
+
+    TPortBuf[][] wiring = new TPortBuf[maxPort + 1][];
+    for (int p = 0; p < wiring.length; p++) {
+      wiring[p] = (fanOut[p] == 0) ? NO_DESTINATIONS : new TPortBuf[fanOut[p]];
+      fanOut[p] = 0;
+    }
+    for (int i = 0; i < portsOut.size(); i++) {
+      if (dest[i] != null) {
+        int p = ((TPort) portsOut.get(i)).port;
+        wiring[p][fanOut[p]++] = dest[i];
+      }
+    }
+
+    outWiring = wiring;
+    return wiring;
   }
 
   public void start() {
     bRunning = true;
+
+    if (taskPool != null) {
+      // first activation runs init() and handles data queued so far
+      bScheduled.set(true);
+      taskPool.schedule(activation);
+      return;
+    }
+
     execThread = new Thread(this);
     execThread.start();
   }
@@ -154,11 +402,14 @@ public class TitanTask implements Runnable {
   public void stop() {
     bRunning = false;
     bCanceled = true;
+
+    // release producers blocked on our full input queues
+    for (ListIterator li = portsIn.listIterator(); li.hasNext();) {
+      ((TPortBuf) li.next()).queue.close();
+    }
+
     if (execThread != null) {
       execThread.interrupt();
-      synchronized(portsIn) {
-        portsIn.notify();
-      }
     }
   }
 
@@ -169,50 +420,145 @@ public class TitanTask implements Runnable {
       return;
 
     while (!execThread.isInterrupted()) {
-      while (inBufCount > 0) {
-        // handle one packet from each input port, then repeat
-        for (ListIterator li = portsIn.listIterator(); li.hasNext();) {
-          TPortBuf tpb = (TPortBuf) li.next();
-          if (tpb.buffer.size() > 0) {
-            DataPacket data;
-            synchronized (portsIn) {
-              data = (DataPacket) tpb.buffer.removeFirst();
-              inBufCount--;
-            }
-            execTask.inDataHandler(tpb.port, data);
-          }
+      if (handleInputs() == 0) {
+        // wait for new data on input ports
+        bWaiting = true;
+        if (!hasInput() && !execThread.isInterrupted()) {
+          LockSupport.park(this);
         }
+        bWaiting = false;
       }
+    }
+  }
 
-      synchronized (portsIn) {
-        if (inBufCount == 0) {
-          // wait for new data on input ports
-          try {
-            portsIn.wait();
-          }
-          catch (InterruptedException ie) { }
-        }
+  private boolean hasInput() {
+    ArrayList portsIn = this.portsIn;
+    for (int i = 0; i < portsIn.size(); i++) {
+      TPortBuf tpb = (TPortBuf) portsIn.get(i);
+      if (!tpb.bSuspended && !tpb.queue.isEmpty()) {
+        return true;
       }
     }
+    return false;
   }
 
-  public void send(int port, DataPacket data) {
-    for (ListIterator li_out = portsOut.listIterator(); li_out.hasNext();) {
-      TPort tp_out = (TPort) li_out.next();
-      if (tp_out.port == port) {
-        for (ListIterator li_in = tp_out.r_task.portsIn.listIterator(); li_in.hasNext();) {
-          TPortBuf tpb_in = (TPortBuf) li_in.next();
-          if (tpb_in.port == tp_out.r_port) {
-            synchronized(tp_out.r_task.portsIn) {
-              tpb_in.buffer.addLast(data);
-              tp_out.r_task.inBufCount++;
-              tp_out.r_task.portsIn.notify();
+  /**
+   * handles one packet from each input port
+   * @return number of packets handled
+   */
+  private int handleInputs() {
+    ArrayList portsIn = this.portsIn;  // may be replaced by rewirePorts()
+    TaskStats st = stats;
+    int handled = 0;
+    for (int i = 0; i < portsIn.size(); i++) {
+      TPortBuf tpb = (TPortBuf) portsIn.get(i);
+      if (tpb.bSuspended) {
+        continue;
+      }
+      DataPacket data = tpb.queue.poll();
+      if (data != null) {
+        if (!bTypedInput && data.isView()) {
+          data = data.compact();  // task works on the raw sdata array
+        }
+        try {
+          if (st == null) {
+            execTask.inDataHandler(tpb.port, data);
+          }
+          else {
+            st.recordInput(tpb.port, Math.min(tpb.queue.size() + 1, tpb.queue.getCapacity()));
+            if (st.sampleService()) {
+              long t0 = System.nanoTime();
+              execTask.inDataHandler(tpb.port, data);
+              st.recordService(System.nanoTime() - t0);
+            }
+            else {
+              execTask.inDataHandler(tpb.port, data);
             }
-            //Thread.yield();
-            return;
           }
         }
+        catch (RuntimeException e) {
+          // a broken packet must not stop the task or leave it scheduled
+          System.err.println("TitanTask " + runID + ": inDataHandler failed on port " + tpb.port + ": " + e);
+        }
+        data.release();
+        handled++;
+      }
+    }
+    return handled;
+  }
+
+  /**
+   * One run-to-completion step in pooled mode. At most one activation per
+   * task is queued or running at any time, so inDataHandler() is never
+   * entered concurrently.
+   */
+  private void activate() {
+    if (!bInitialized) {
+      bInitialized = true;
+      try {
+        execTask.init();
       }
+      catch (RuntimeException e) {
+        System.err.println("TitanTask " + runID + ": init failed: " + e);
+      }
+    }
+
+    int budget = POOLED_BATCH;
+    int handled = 1;
+    while (bRunning && (handled > 0) && (budget > 0)) {
+      handled = handleInputs();
+      budget -= handled;
+    }
+
+    if (bRunning && (budget <= 0)) {
+      taskPool.schedule(activation);  // still scheduled, yield to other tasks
+      return;
+    }
+
+    bScheduled.set(false);
+    // data may have arrived after the last poll, before the flag was cleared
+    if (bRunning && hasInput() && bScheduled.compareAndSet(false, true)) {
+      taskPool.schedule(activation);
+    }
+  }
+
+  /**
+   * wakes up the task after data has been queued on one of its ports
+   */
+  private void wakeUp() {
+    if (taskPool == null) {
+      if (bWaiting && (execThread != null)) {
+        LockSupport.unpark(execThread);
+      }
+    }
+    else if (bRunning && bScheduled.compareAndSet(false, true)) {
+      taskPool.schedule(activation);
+    }
+  }
+
+  /**
+   * Sends a packet to all input ports connected to the given output port.
+   * The caller keeps its own reference to the packet, i.e. a packet from a
+   * DataPacketPool still has to be released after sending.
+   */
+  public void send(int port, DataPacket data) {
+    TPortBuf[][] wiring = outWiring;
+    if (wiring == null) {
+      wiring = resolveWiring();
+    }
+
+    if (port < 0 || port >= wiring.length) {
+      return;  // not connected
+    }
+
+    TPortBuf[] dests = wiring[port];
+    for (int i = 0; i < dests.length; i++) {
+      dests[i].deliver(data.retain());
+    }
+
+    TaskStats st = stats;
+    if (st != null) {
+      st.recordOutput(port);
     }
   }
 
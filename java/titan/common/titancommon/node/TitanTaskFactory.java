@@ -0,0 +1,19 @@
+package titancommon.node;
+
+import titancommon.node.tasks.ExecutableTitanTask;
+
+/**
+ * Creates the executable tasks of one task ID for the TaskRegistry.
+ *
+ * Tasks not built into TitanTask are plugged in by listing their factory
+ * in META-INF/services/titancommon.node.TitanTaskFactory on the classpath.
+ * Factories found this way need a public constructor without arguments.
+ */
+public interface TitanTaskFactory {
+
+  /** @return the task ID (Task.getID()) of the tasks created */
+  public int getTaskID();
+
+  /** @return a new, unconfigured instance of the task */
+  public ExecutableTitanTask createTask();
+}
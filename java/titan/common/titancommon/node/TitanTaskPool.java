@@ -0,0 +1,59 @@
+package titancommon.node;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Shared worker pool for the tasks of one TitanLocalNode running in pooled
+ * mode. Instead of blocking a thread per task, a TitanTask schedules an
+ * activation on this pool whenever data is queued on one of its input ports
+ * and the task is not already scheduled. An activation handles a bounded
+ * number of packets and reschedules itself if more data is waiting, so one
+ * busy task cannot starve the others.
+ *
+ * The pool is work-stealing and runs in FIFO (async) mode, which suits
+ * event-style tasks that are never joined.
+ */
+public class TitanTaskPool {
+  public static final boolean DEBUG_MSGS = false;
+
+  private final ForkJoinPool pool;
+
+  public TitanTaskPool() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public TitanTaskPool(int parallelism) {
+    pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                            new Thread.UncaughtExceptionHandler() {
+                              public void uncaughtException(Thread t, Throwable e) {
+                                System.err.println("TitanTaskPool: task failed in " + t.getName() + ": " + e);
+                                e.printStackTrace();
+                              }
+                            }, true);
+  }
+
+  public int getParallelism() { return pool.getParallelism(); }
+
+  /**
+   * Queues an activation. Called from inside a worker this goes onto the
+   * worker's local queue, from any other thread onto the submission queue.
+   */
+  public void schedule(Runnable activation) {
+    try {
+      pool.execute(activation);
+    }
+    catch (RejectedExecutionException ree) {
+      // pool has been shut down together with the local node
+      if (DEBUG_MSGS) {
+        System.err.println("TitanTaskPool: activation rejected, pool is shut down");
+      }
+    }
+  }
+
+  public void shutdown() {
+    pool.shutdownNow();
+  }
+
+  public boolean isShutdown() { return pool.isShutdown(); }
+}
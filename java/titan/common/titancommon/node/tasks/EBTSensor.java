@@ -2,6 +2,7 @@ package titancommon.node.tasks;
 
 import titancommon.node.TitanTask;
 import titancommon.node.DataPacket;
+import titancommon.node.StreamPolicy;
 import titancommon.tasks.BTSensor;
 import titancommon.util.StringUtil;
 
@@ -28,6 +29,7 @@ public class EBTSensor extends BTSensor implements ExecutableTitanTask {
     private BTConnectionMonitor m_btmon;
     private BTConnection m_btc;
     private boolean zeroDataSent = false;
+    private StreamPolicy dataPolicy = new StreamPolicy();  // sheds frames if the consumers cannot keep up
 
     public void setTitanTask(TitanTask tsk) {
         tTask = tsk;
@@ -59,6 +61,14 @@ public class EBTSensor extends BTSensor implements ExecutableTitanTask {
                     dxstring = StringUtil.toString(t2);
                     System.out.println("DX String reconverted to " + dxstring);
                     param_nr++;
+                } else if ( param_nr == 2 ) {       // third param is the overload policy
+                    dataPolicy = StreamPolicy.parse(StringUtil.toString(t2));
+                    if (dataPolicy == null) {
+                        tTask.errSource = tTask.getRunID();
+                        tTask.errType = 4;  // ERROR_CONFIG
+                        return false;
+                    }
+                    param_nr++;
                 } else {
                     return false;
                 }
@@ -143,8 +153,8 @@ public class EBTSensor extends BTSensor implements ExecutableTitanTask {
                 zeroDataSent = true;
             }
 
-            fp.addObserver(new BTData());
-            System.out.println("BTData Observer added to FrameParser");
+            fp.addFrameListener(new BTData());
+            System.out.println("BTData FrameListener added to FrameParser");
 
             m_btc = new BTConnection(m_address, fp);
             System.out.println("BTConnection created");
@@ -206,15 +216,20 @@ public class EBTSensor extends BTSensor implements ExecutableTitanTask {
     }
 
     /**
-     * this class observes the FrameParser and sends all packages out on port 0 of the EBTSensor-Task
+     * this class listens to the FrameParser and sends all packages out on port 0 of the EBTSensor-Task
      */
-    private class BTData implements Observer {
+    private class BTData implements FrameParser.FrameListener {
 
-        public void update(Observable obs, Object arg) {
-            //System.out.println("BTData.update called");
+        public void framesDecoded(BTDataPacket[] frames, int count) {
+            //System.out.println("BTData.framesDecoded called");
+
+            for (int i = 0; i < count; i++) {
+                BTDataPacket bdp = frames[i];
 
-            if (arg instanceof BTDataPacket) {
-                BTDataPacket bdp = (BTDataPacket) arg;
+                // the sensor cannot be slowed down, shed frames here instead of downstream
+                if (!dataPolicy.admit(tTask, 0)) {
+                    continue;
+                }
 
                 // convert the DataPacket into a TitanPacket
                 // send the bluetooth packet via port 0 (data port)
@@ -229,10 +244,6 @@ public class EBTSensor extends BTSensor implements ExecutableTitanTask {
                 //System.out.println("EBTSensor send(0, dp): " + dp + " (" + dp.getTimestamp() + ", " + ((Object)dp).hashCode() + ")");
                 //System.out.println();
                 tTask.send(0, dp);
-
-
-            } else {
-                System.out.println("EBTSensor: received unknown packet.");
             }
 
         }
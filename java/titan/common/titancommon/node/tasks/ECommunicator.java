@@ -1,5 +1,6 @@
 package titancommon.node.tasks;
 
+import titancommon.node.LinkCredits;
 import titancommon.node.TitanTask;
 import titancommon.node.DataPacket;
 import titancommon.tasks.Communicator;
@@ -14,6 +15,10 @@ public class ECommunicator extends Communicator implements ExecutableTitanTask {
 
   private int destAddress[];
   private int destPort[];
+  private int credits[];  // granted by the receiving node, -1: link is not limited
+
+  // a node grants at most two windows, see LinkCredits
+  private static final int MAX_CREDITS = 2 * LinkCredits.MAX_GRANT;
 
   public boolean setExecParameters(short[] param) {
     if (param.length % 3 != 0) {
@@ -25,9 +30,11 @@ public class ECommunicator extends Communicator implements ExecutableTitanTask {
     int n = param.length / 3;
     destAddress = new int[n];
     destPort = new int[n];
+    credits = new int[n];
     for (int i = 0; i < n; i++) {
       destAddress[i] = (param[3*i+0] << 8) + param[3*i+1];
       destPort[i] = param[3*i+2];
+      credits[i] = -1;
     }
 
     return true;
@@ -38,5 +45,30 @@ public class ECommunicator extends Communicator implements ExecutableTitanTask {
 
   public void inDataHandler(int port, DataPacket data) {
     tTask.globalSend(destAddress[port], destPort[port], data);
+
+    synchronized (this) {
+      if (credits[port] > 0) {
+        credits[port]--;
+      }
+      if (credits[port] == 0) {
+        // leave further packets in the input queue until new credits arrive
+        tTask.suspendInput(port);
+      }
+    }
+  }
+
+  /**
+   * Adds credits granted by the node receiving on the given port. The
+   * first grant puts the link under flow control.
+   */
+  public synchronized void grantCredits(int address, int port, int n) {
+    for (int i = 0; i < destAddress.length; i++) {
+      if (destAddress[i] == address && destPort[i] == port) {
+        credits[i] = Math.min(Math.max(credits[i], 0) + n, MAX_CREDITS);
+        if (credits[i] > 0) {
+          tTask.resumeInput(i);
+        }
+      }
+    }
   }
 }
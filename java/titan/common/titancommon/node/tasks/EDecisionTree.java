@@ -53,11 +53,11 @@ public class EDecisionTree extends DecisionTree implements ExecutableTitanTask {
      }
      
      int nextNode = 0;
-     while(m_treeNodes[nextNode] != null && nextNode != m_treeNodes.length) nextNode++;
+     while(nextNode != m_treeNodes.length && m_treeNodes[nextNode] != null) nextNode++;
 
-     if (nextNode==m_treeNodes.length) {
-        System.out.println("Error: received too many decision tree nodes");
-        
+     if (nextNode + nodesInMsg > m_treeNodes.length || curIndex + 3*nodesInMsg > param.length) {
+        System.err.println("EDecisionTree: received too many decision tree nodes");
+        return false;
      }
      
      // instantiate nodes
@@ -83,8 +83,16 @@ public class EDecisionTree extends DecisionTree implements ExecutableTitanTask {
            curConfigNode += levelNodes.levelNodes;
         } while( levelNodes.levelChildren != 0 );
         
-        if (prevLevelNodes+levelNodes.levelNodes != m_treeNodes.length) {
+        // every node is placed once, and every comparison has both children
+        boolean bComplete = (prevLevelNodes == m_treeNodes.length);
+        for (int i=0; bComplete && i < m_treeNodes.length; i++) {
+           if (m_treeNodes[i].operator != TDO_SETCLASS) {
+              bComplete = (m_treeNodes[i].nextTrue != null && m_treeNodes[i].nextFalse != null);
+           }
+        }
+        if (!bComplete) {
            System.err.println("EDecisionTree: Tree construction failed");
+           return false;
         }
      }
      
@@ -121,7 +129,7 @@ public class EDecisionTree extends DecisionTree implements ExecutableTitanTask {
      public BuildTreeResult(int ln, int lc) {levelNodes=ln; levelChildren=lc;}
   }
   private BuildTreeResult configConstructTree(int curNode, int prevChildren, int prevLevelNodes, int totalLevelNodes) {
-     if (prevLevelNodes >= totalLevelNodes) {
+     if (prevLevelNodes >= totalLevelNodes || curNode >= m_treeNodes.length) {
         return new BuildTreeResult(0, 0);
      }
      
@@ -131,8 +139,11 @@ public class EDecisionTree extends DecisionTree implements ExecutableTitanTask {
      
      // if we have children, set references
      if (localChildren != 0) {
-        m_treeNodes[curNode].nextTrue  = m_treeNodes[curNode + result.levelNodes + prevChildren+1];
-        m_treeNodes[curNode].nextFalse = m_treeNodes[curNode + result.levelNodes + prevChildren+2];
+        int iTrue = curNode + result.levelNodes + prevChildren+1;
+        if (iTrue+1 < m_treeNodes.length) {
+           m_treeNodes[curNode].nextTrue  = m_treeNodes[iTrue];
+           m_treeNodes[curNode].nextFalse = m_treeNodes[iTrue+1];
+        }
         result.levelChildren += localChildren;
         System.out.println("Node operator: " + m_treeNodes[curNode].operator + " children (" + (curNode + result.levelNodes + prevChildren + 1) + "," +(curNode + result.levelNodes + prevChildren + 2) + ")");
      }
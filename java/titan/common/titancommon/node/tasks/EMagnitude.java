@@ -1,8 +1,8 @@
 package titancommon.node.tasks;
 
-import java.util.ArrayList;
 import titancommon.node.TitanTask;
 import titancommon.node.DataPacket;
+import titancommon.node.DataPacketPool;
 import titancommon.tasks.Magnitude;
 
 /**
@@ -10,7 +10,7 @@ import titancommon.tasks.Magnitude;
  *
  * @author Jeremy Constantin <jeremyc@student.ethz.ch>
  */
-public class EMagnitude extends Magnitude implements ExecutableTitanTask {
+public class EMagnitude extends Magnitude implements TypedDataTask {
   private TitanTask tTask;
   public void setTitanTask(TitanTask tsk) { tTask = tsk; }
 
@@ -19,7 +19,15 @@ public class EMagnitude extends Magnitude implements ExecutableTitanTask {
   private int scaleFactor;
   private int resultShift;
 
-  private ArrayList/*<Short>*/ dataBuffer[];
+  // per coordinate FIFO of values waiting for the other coordinates
+  private short[][] dataBuffer;
+  private int[] bufHead;
+  private int[] bufCount;
+  private int bufReady;  // number of coordinates with at least one value
+  private short[] coval;
+  private DataPacketPool outPool;
+
+  private static final int INITIAL_BUFFER = 8;
 
   public boolean setExecParameters(short[] param) {
     switch (param.length) {
@@ -40,39 +48,50 @@ public class EMagnitude extends Magnitude implements ExecutableTitanTask {
   }
 
   public void init() {
-    dataBuffer = new ArrayList/*<Short>*/[coordNum];
-    for (int i = 0; i < coordNum; i++) {
-      dataBuffer[i] = new ArrayList/*<Short>*/();
-    }
+    dataBuffer = new short[coordNum][INITIAL_BUFFER];
+    bufHead = new int[coordNum];
+    bufCount = new int[coordNum];
+    bufReady = 0;
+    coval = new short[coordNum];
+    outPool = new DataPacketPool(2);
   }
 
   public void inDataHandler(int port, DataPacket data) {
-    if (data.sdata.length % 2 != 0) {
+    int len = data.getLength();
+    if (len % 2 != 0) {
       System.err.println("uneven number of bytes in 16bit array");
       return;
     }
 
-    for (int i = 0; i < data.sdata.length; i+= 2) {
+    for (int i = 0; i < len; i+= 2) {
       // little endian 16 bit value (signed)
-      addValue((short) (data.sdata[i] + (data.sdata[i+1] << 8)), port);
+      addValue(data.getInt16(i), port);
     }
   }
 
   private void addValue(short val, int port) {
-    dataBuffer[port].add(new Short(val));
-
-    boolean doCalc = true;
-    for (int i = 0; i < coordNum; i++) {
-      if (dataBuffer[i].isEmpty()) {
-        doCalc = false;
-        break;
+    short[] buf = dataBuffer[port];
+    if (bufCount[port] == buf.length) {
+      // grow the ring, only happens while one coordinate lags behind
+      short[] nbuf = new short[buf.length * 2];
+      for (int i = 0; i < bufCount[port]; i++) {
+        nbuf[i] = buf[(bufHead[port] + i) % buf.length];
       }
+      dataBuffer[port] = buf = nbuf;
+      bufHead[port] = 0;
+    }
+    buf[(bufHead[port] + bufCount[port]) % buf.length] = val;
+    if (bufCount[port]++ == 0) {
+      bufReady++;
     }
 
-    if (doCalc) {
-      short[] coval = new short[coordNum];
+    if (bufReady == coordNum) {
       for (int i = 0; i < coordNum; i++) {
-        coval[i] = ((Short) dataBuffer[i].remove(0)).shortValue();
+        coval[i] = dataBuffer[i][bufHead[i]];
+        bufHead[i] = (bufHead[i] + 1) % dataBuffer[i].length;
+        if (--bufCount[i] == 0) {
+          bufReady--;
+        }
       }
 
       int magnitude = getMagnitude(coval);
@@ -82,11 +101,10 @@ public class EMagnitude extends Magnitude implements ExecutableTitanTask {
 
 
       // send data packet
-      short[] data = new short[2];
-      data[0] = (short) ( magnitude       & 0xFF);
-      data[1] = (short) ((magnitude >> 8) & 0xFF);
-      //System.out.println("Magnitude is " + (short)(data[0] + (data[1]<<8))); // ATTENTION: + kommt vor << !
-      tTask.send(0, new DataPacket(data));
+      DataPacket out = outPool.obtain();
+      out.setInt16(0, magnitude);
+      tTask.send(0, out);
+      out.release();
 
     }
   }
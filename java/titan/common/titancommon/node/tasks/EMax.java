@@ -2,19 +2,21 @@ package titancommon.node.tasks;
 
 import titancommon.node.TitanTask;
 import titancommon.node.DataPacket;
+import titancommon.node.DataPacketPool;
 import titancommon.tasks.Max;
 
 /**
  * @author Jeremy Constantin <jeremyc@student.ethz.ch>
  */
-public class EMax extends Max implements ExecutableTitanTask {
+public class EMax extends Max implements TypedDataTask {
   private TitanTask tTask;
   public void setTitanTask(TitanTask tsk) { tTask = tsk; }
 
   private int winSize;
   private int winShift;
-  private short dataWindow[];
-  private int idx;
+  private SlidingWindow window;
+  private WindowExtremum maxVal;
+  private DataPacketPool outPool;
 
   public boolean setExecParameters(short[] param) {
     switch (param.length) {
@@ -35,8 +37,9 @@ public class EMax extends Max implements ExecutableTitanTask {
   }
 
   public void init() {
-    idx = 0;
-    dataWindow = new short[winSize];
+    window = new SlidingWindow(winSize, winShift);
+    maxVal = new WindowExtremum(winSize, true);
+    outPool = new DataPacketPool(2);
   }
 
   public void inDataHandler(int port, DataPacket data) {
@@ -45,44 +48,30 @@ public class EMax extends Max implements ExecutableTitanTask {
       return;
     }
 
-    if (data.sdata.length % 2 != 0) {
+    int len = data.getLength();
+    if (len % 2 != 0) {
       System.err.println("uneven number of bytes in 16bit array");
       return;
     }
 
-    for (int i = 0; i < data.sdata.length; i+= 2) {
+    for (int i = 0; i < len; i+= 2) {
       // little endian 16 bit value (signed)
-      addValue((short) (data.sdata[i] + (data.sdata[i+1] << 8)));
+      addValue(data.getInt16(i));
     }
   }
 
   private void addValue(short val) {
-    dataWindow[idx++] = val;
+    boolean due = window.add(val);
+    maxVal.add(window.getSequence() - 1, val);
 
-    if (idx == winSize) {
-      short max = getMaxVal();
+    if (due) {
+      short max = maxVal.get(window.getOldestSequence());
 
       // send data packet
-      short[] data = new short[2];
-      data[0] = (short) ( max       & 0xFF);
-      data[1] = (short) ((max >> 8) & 0xFF);
-      tTask.send(0, new DataPacket(data));
-
-      // copy data, shifted by winShift, set new write index
-      idx = winSize - winShift;
-      for (int i = 0; i < idx; i++) {
-        dataWindow[i] = dataWindow[i + winShift];
-      }
-    }
-  }
-
-  private short getMaxVal() {
-    // calculate max (signed shorts)
-    short max = dataWindow[0];
-    for (int i = 1; i < winSize; i++) {
-      if (max < dataWindow[i])
-        max = dataWindow[i];
+      DataPacket out = outPool.obtain();
+      out.setInt16(0, max);
+      tTask.send(0, out);
+      out.release();
     }
-    return max;
   }
 }
@@ -2,19 +2,20 @@ package titancommon.node.tasks;
 
 import titancommon.node.TitanTask;
 import titancommon.node.DataPacket;
+import titancommon.node.DataPacketPool;
 import titancommon.tasks.Mean;
 
 /**
  * @author Jeremy Constantin <jeremyc@student.ethz.ch>
  */
-public class EMean extends Mean implements ExecutableTitanTask {
+public class EMean extends Mean implements TypedDataTask {
   private TitanTask tTask;
   public void setTitanTask(TitanTask tsk) { tTask = tsk; }
 
   private int winSize;
   private int winShift;
-  private short dataWindow[];
-  private int idx;
+  private SlidingWindow window;
+  private DataPacketPool outPool;
 
   public boolean setExecParameters(short[] param) {
     switch (param.length) {
@@ -35,8 +36,8 @@ public class EMean extends Mean implements ExecutableTitanTask {
   }
 
   public void init() {
-    idx = 0;
-    dataWindow = new short[winSize];
+    window = new SlidingWindow(winSize, winShift);
+    outPool = new DataPacketPool(2);
   }
 
   public void inDataHandler(int port, DataPacket data) {
@@ -45,45 +46,29 @@ public class EMean extends Mean implements ExecutableTitanTask {
       return;
     }
 
-    if (data.sdata.length % 2 != 0) {
+    int len = data.getLength();
+    if (len % 2 != 0) {
       System.err.println("uneven number of bytes in 16bit array");
       return;
     }
 
-    for (int i = 0; i < data.sdata.length; i+= 2) {
+    for (int i = 0; i < len; i+= 2) {
       // little endian 16 bit value (signed)
-      addValue((short) (data.sdata[i] + (data.sdata[i+1] << 8)));
+      addValue(data.getInt16(i));
       //System.out.println("adding value " + ((short) (data.sdata[i] + (data.sdata[i+1] << 8))) );
     }
   }
 
   private void addValue(short val) {
-    dataWindow[idx++] = val;
-
-    if (idx == winSize) {
-      int mean = getMean();
+    if (window.add(val)) {
+      int mean = window.getMean();
 
       // send data packet
-      short[] data = new short[2];
-      data[0] = (short) ( mean       & 0xFF);
-      data[1] = (short) ((mean >> 8) & 0xFF);
-      tTask.send(0, new DataPacket(data));
+      DataPacket out = outPool.obtain();
+      out.setInt16(0, mean);
+      tTask.send(0, out);
+      out.release();
       //System.out.println("Mean is " + data[1] + " " + data [0] );
-
-      // copy data, shifted by winShift, set new write index
-      idx = winSize - winShift;
-      for (int i = 0; i < idx; i++) {
-        dataWindow[i] = dataWindow[i + winShift];
-      }
-    }
-  }
-
-  private int getMean() {
-    // calculate mean
-    int sum = 0;
-    for (int i = 0; i < winSize; i++) {
-      sum += dataWindow[i];
     }
-    return sum / winSize;
   }
 }
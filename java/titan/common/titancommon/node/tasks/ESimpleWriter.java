@@ -1,9 +1,8 @@
 package titancommon.node.tasks;
 
 //import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
 
+import titancommon.node.TimingWheel;
 import titancommon.node.TitanTask;
 import titancommon.node.DataPacket;
 import titancommon.tasks.SimpleWriter;
@@ -39,14 +38,14 @@ public class ESimpleWriter extends SimpleWriter implements ExecutableTitanTask {
   }
 
   public void init() {
-    (new Timer()).schedule(new SWTimerTask(), 0, interval_ms);
+    tTask.getTimingWheel().schedule(new SWTimerTask(), 0, interval_ms);
   }
 
   public void inDataHandler(int port, DataPacket data) {
     // no incoming ports
   }
 
-  private class SWTimerTask extends TimerTask {
+  private class SWTimerTask extends TimingWheel.Task {
     private int counter = 0;
     //private long startTime = (new Date()).getTime();
 
@@ -2,6 +2,7 @@ package titancommon.node.tasks;
 
 import titancommon.node.TitanTask;
 import titancommon.node.DataPacket;
+import titancommon.node.DataPacketPool;
 import titancommon.tasks.StdDev;
 
 /**
@@ -15,15 +16,15 @@ import titancommon.tasks.StdDev;
  * @author Jonas Huber <huberjo@ee.ethz.ch>
  * @author Jeremy Constantin <jeremyc@student.ethz.ch>
  */
-public class EStdDev extends StdDev implements ExecutableTitanTask {
+public class EStdDev extends StdDev implements TypedDataTask {
   private TitanTask tTask;
   public void setTitanTask(TitanTask tsk) { tTask = tsk; }
 
   private int winSize;
   private int winShift;
   private int resultShift = 0;
-  private short dataWindow[];
-  private int idx;
+  private SlidingWindow window;
+  private DataPacketPool outPool;
 
   public boolean setExecParameters(short[] param) {
     switch (param.length) {
@@ -48,8 +49,8 @@ public class EStdDev extends StdDev implements ExecutableTitanTask {
   }
 
   public void init() {
-    idx = 0;
-    dataWindow = new short[winSize];
+    window = new SlidingWindow(winSize, winShift);
+    outPool = new DataPacketPool(2);
   }
 
   public void inDataHandler(int port, DataPacket data) {
@@ -58,58 +59,33 @@ public class EStdDev extends StdDev implements ExecutableTitanTask {
       return;
     }
 
-    if (data.sdata.length % 2 != 0) {
+    int len = data.getLength();
+    if (len % 2 != 0) {
       System.err.println("uneven number of bytes in 16bit array");
       return;
     }
 
-    for (int i = 0; i < data.sdata.length; i+= 2) {
+    for (int i = 0; i < len; i+= 2) {
       // little endian 16 bit value (signed)
-      addValue((short) (data.sdata[i] + (data.sdata[i+1] << 8)));
+      addValue(data.getInt16(i));
     }
   }
 
   private void addValue(short val) {
-    dataWindow[idx++] = val;
-
-    if (idx == winSize) {
-      int sum = getSum();
-      int sumSqr = getSumSqr();
+    if (window.add(val)) {
+      int sum = window.getSum();
+      int sumSqr = window.getSumSqr();
 
       // This line contains the only difference to the variance tasks: sqrt()
       int var = (int)Math.sqrt(((sum * sum) / winSize) - (sumSqr / winSize));
       var >>= resultShift;
 
       // send data packet
-      short[] data = new short[2];
-      data[0] = (short) ( var       & 0xFF);
-      data[1] = (short) ((var >> 8) & 0xFF);
-      tTask.send(0, new DataPacket(data));
+      DataPacket out = outPool.obtain();
+      out.setInt16(0, var);
+      tTask.send(0, out);
+      out.release();
       //System.out.println("Var is " + data[1] + " " + data [0] );
-
-      // copy data, shifted by winShift, set new write index
-      idx = winSize - winShift;
-      for (int i = 0; i < idx; i++) {
-        dataWindow[i] = dataWindow[i + winShift];
-      }
-    }
-  }
-
-  private int getSum() {
-    // calculate sum
-    int sum = 0;
-    for (int i = 0; i < winSize; i++) {
-      sum += dataWindow[i];
-    }
-    return sum;
-  }
-
-  private int getSumSqr() {
-    // calculate squared sum
-    int sum = 0;
-    for (int i = 0; i < winSize; i++) {
-      sum += ((int) dataWindow[i]) * ((int) dataWindow[i]);
     }
-    return sum;
   }
  }
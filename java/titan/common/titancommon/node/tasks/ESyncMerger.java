@@ -1,17 +1,19 @@
 package titancommon.node.tasks;
 
 import titancommon.node.DataPacket;
+import titancommon.node.DataPacketPool;
+import titancommon.node.TimingWheel;
 import titancommon.node.TitanTask;
 import titancommon.tasks.SyncMerger;
 
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.Vector;
-
 /**
  * Merges the data coming in from a number of ports and sends the merged
  * data over the output port.
  *
+ * Every input keeps its samples in a timestamp ordered ring buffer. The
+ * merger is driven by the timing wheel of the local node and interpolates
+ * the inputs into a pooled output packet, without allocating per sample.
+ *
  * @author Jonas Huber <huberjo@ee.ethz.ch>
  * @author Benedikt Köppel <bkoeppel@ee.ethz.ch>
  */
@@ -22,9 +24,12 @@ public class ESyncMerger extends SyncMerger implements ExecutableTitanTask {
     short samplingPeriod;    // sampling period
     long nextSampleTime = System.currentTimeMillis();    // time of last sample
     long outputDelay = 1000;                 // fixed delay. that delay (after the current system time), the next package should be sent. TODO: set this via configuration
-    DataPacketFIFO buffers[];           // contains all FIFO buffers
+    SampleRing buffers[];           // contains all input buffers
     private static final int DEFAULT_VALUES = 0;  // default values to return if not enough data is here
-    SyncMergerProcessor packetProcessor;
+    private static final int INITIAL_CAPACITY = 16; // samples per input buffer, grows if needed
+    private DataPacketPool outPool;  // output packets, recreated if the output length changes
+    private int[] outValues;         // values of every input in the packet being created
+    private SyncMergerTimerTask timerTask;
 
     /**
      * handles incoming data and stores it into the corresponding buffer
@@ -33,32 +38,32 @@ public class ESyncMerger extends SyncMerger implements ExecutableTitanTask {
      */
     public void inDataHandler(int port, DataPacket data) {
 
-        // get the buffer corresponding to port, and add data into it
-        //buffers.get(port).add(data);
-        //if (buffers.length >= port ) {
-            buffers[port].add(data);
-        //}
-
-        // TODO: check, if buffers are huge, and if so, delete them
+        if (port < 0 || port >= buffers.length) {
+            return;
+        }
+        buffers[port].add(data, System.currentTimeMillis());
     }
 
     public void init() {
         // initialize buffers
         // TODO: what happens, if we have more buffers than actual inputs?
-        buffers = new DataPacketFIFO[numInputs];
+        buffers = new SampleRing[numInputs];
         for (int i = 0; i < numInputs; i++) {
-            buffers[i] = new DataPacketFIFO();
+            buffers[i] = new SampleRing();
         }
+        outValues = new int[numInputs];
 
-        // get a packetProcessor, who processes all the packets
-        SyncMergerProcessor packetProc = new SyncMergerProcessor();
-
-        // Starts the timer, which will check the buffer and synchronize the output
-        (new Timer()).schedule(new SyncMergerTimerTask(packetProc), 0, samplingPeriod);
-
+        // the timing wheel will check the buffers and synchronize the output
+        timerTask = new SyncMergerTimerTask();
+        tTask.getTimingWheel().schedule(timerTask, 0, samplingPeriod);
     }
 
     public boolean setExecParameters(short[] param) {
+        if (param.length < 4 || param[1] <= 0) {
+            tTask.errSource = tTask.getRunID();
+            tTask.errType = 4;  // ERROR_CONFIG
+            return false;
+        }
         numInputs = param[0];
         samplingPeriod = param[1];
         outputDelay = param[2] + 256 * param[3];
@@ -69,340 +74,292 @@ public class ESyncMerger extends SyncMerger implements ExecutableTitanTask {
         tTask = tsk;
     }
 
-    private class DataPacketFIFO /*extends Observable*/ {
-
-        Vector elements = new Vector();
-        // number of elements per each packet
-        int numValues = 0;
-
-        public void add(DataPacket e) {
-            elements.add(e);
-
-            if (numValues == 0) {          // haven't set the length before
-                numValues = e.getDataArray().length;
-            }
-
-            // if the buffer is huge, we'll just delete all the values and start from scratch
-            // this should prevent a outOfMemoryError
-            if (isHugeBuffer(samplingPeriod,outputDelay)) {
-                System.out.println("This buffer is huge! Cleaning up, to prevent an outOfMemoryError.");
-                elements.clear();
-            }
-
+    /** @return number of samples of the input that arrived after they were needed */
+    public long getLateSamples(int port) {
+        SampleRing ring = buffers[port];
+        synchronized (ring) {
+            return ring.lateSamples;
         }
+    }
 
-        /**
-         * returns that amount of zeros, as a normal packet would have
-         * @return
-         */
-        public short[] getDefaultValues() {
-            short[] zero = new short[numValues];
-            for (int i = 0; i < numValues; i++) {
-                zero[i] = DEFAULT_VALUES;
-            }
-            return zero;
+    /** @return number of samples of the input dropped because its buffer was full */
+    public long getDroppedSamples(int port) {
+        SampleRing ring = buffers[port];
+        synchronized (ring) {
+            return ring.droppedSamples;
         }
+    }
 
-        /**
-         * interpolates between the last and the following packet of timestamp
-         */
-        public short[] interpolate(long timestamp) /*throws NoPacketException*/ {
-
-            cleanUp(timestamp);
-
-
-            boolean hasOldPacket = false;
-            DataPacket oldPacket = null;
-            try {
-                oldPacket = peekNewestOlderPacket(timestamp);
-                hasOldPacket = true;
-            } catch (NoPacketException e) {
-                hasOldPacket = false;
-            }
-
-            boolean hasNewPacket = false;
-            DataPacket newPacket = null;
-            try {
-                newPacket = peekOldestNewerPacket(timestamp);
-                hasNewPacket = true;
-            } catch (NoPacketException e) {
-                hasNewPacket = false;
-            }
-
+    /** @return the largest time in ms a sample of the input arrived past outputDelay */
+    public long getMaxLateness(int port) {
+        SampleRing ring = buffers[port];
+        synchronized (ring) {
+            return ring.maxLateness;
+        }
+    }
 
+    /** @return the mean time in ms the late samples of the input arrived past outputDelay */
+    public double getMeanLateness(int port) {
+        SampleRing ring = buffers[port];
+        synchronized (ring) {
+            return (ring.lateSamples > 0) ? ((double) ring.totalLateness) / ring.lateSamples : 0;
+        }
+    }
 
-            if (hasNewPacket && hasOldPacket) {
-                // found both needed packets, so we can do the interpolation
+    /**
+     * Ring buffer of the samples of one input, ordered by timestamp. The
+     * values are copied into slots allocated once, so the received packets
+     * are not kept.
+     */
+    private class SampleRing {
 
-                // to interpolate, we need the data and the timestamp
-                short[] newData = newPacket.getDataArray();
-                long newTime = newPacket.getTimestamp();
+        long[] times = new long[INITIAL_CAPACITY];
+        short[][] values = new short[INITIAL_CAPACITY][];
+        int head = 0;          // index of the oldest sample
+        int size = 0;
+        // number of elements per each packet
+        int numValues = 0;
 
-                short[] oldData = oldPacket.getDataArray();
-                long oldTime = oldPacket.getTimestamp();
+        // samples arriving after the merger needed them
+        long lateSamples = 0;
+        long totalLateness = 0;
+        long maxLateness = 0;
 
-                // to calculate the slope, we need deltaValue and deltaTime
-                int[] deltaData = new int[numValues];
-                
-                long deltaTime = newTime - oldTime;
+        // samples dropped because the buffer was full
+        long droppedSamples = 0;
 
-                double slope[] = new double[numValues];
+        private int index(int i) {
+            return (head + i) & (times.length - 1);
+        }
 
-                double value;
-                short[] values = new short[numValues];
+        public synchronized void add(DataPacket e, long arrival) {
 
-                
-                for (int i = 0; i < numValues; i++) {
-                    // calculate deltas
-                    deltaData[i] = newData[i] - oldData[i];
+            if (e.getMode() != DataPacket.DP_SHORT_ARRAY) {
+                return;
+            }
+            if (numValues == 0) {          // haven't set the length before
+                numValues = e.getLength();
+            }
 
+            long timestamp = e.getTimestamp();
 
-                    if (deltaTime == 0) {
-                        // we're interpolating between the same packet and itself, because the timestamp matches exactly
-                        // so the slope does not matter, because the deltaTime will be zero...
-                        slope[i] = 0;
-                    } else {
-                        slope[i] = ((double) deltaData[i]) / ((double) deltaTime);
-                    }
+            // the sample should have been here outputDelay after it was taken
+            long lateness = arrival - timestamp - outputDelay;
+            if (lateness > 0) {
+                lateSamples++;
+                totalLateness += lateness;
+                if (lateness > maxLateness) {
+                    maxLateness = lateness;
+                }
+            }
 
-                    // interpolate linearly
-                    value = oldData[i] + slope[i] * (timestamp - oldTime);
+            // if the input delivers faster than it is merged, drop the oldest
+            // sample, this bounds memory and the delay of the buffered data
+            if (size >= getMaxSamples()) {
+                head = index(1);
+                size--;
+                droppedSamples++;
+            }
 
-                    // check short boundaries
-                    if (value > Short.MAX_VALUE) {
-                        values[i] = Short.MAX_VALUE;
-                    } else if (value < Short.MIN_VALUE) {
-                        values[i] = Short.MIN_VALUE;
-                    } else {
-                        values[i] = (short) value;
-                    }
-                }
-                return values;
+            if (size == times.length) {
+                grow();
+            }
 
-            } else {
-                // not all data found, so we return the default value. we can't wait longer, because this was specified with outputDelay
-                return getDefaultValues();
+            // samples usually arrive in order, otherwise move the newer ones up
+            int pos = size;
+            while (pos > 0 && times[index(pos - 1)] > timestamp) {
+                int from = index(pos - 1);
+                int to = index(pos);
+                short[] free = values[to];
+                times[to] = times[from];
+                values[to] = values[from];
+                values[from] = free;
+                pos--;
             }
 
+            int slot = index(pos);
+            if (values[slot] == null || values[slot].length != numValues) {
+                values[slot] = new short[numValues];
+            }
+            int len = Math.min(e.getLength(), numValues);
+            e.getBytes(0, values[slot], 0, len);
+            for (int i = len; i < numValues; i++) {
+                values[slot][i] = DEFAULT_VALUES;
+            }
+            times[slot] = timestamp;
+            size++;
+        }
 
+        private void grow() {
+            long[] newTimes = new long[times.length * 2];
+            short[][] newValues = new short[times.length * 2][];
+            for (int i = 0; i < size; i++) {
+                newTimes[i] = times[index(i)];
+                newValues[i] = values[index(i)];
+            }
+            times = newTimes;
+            values = newValues;
+            head = 0;
+        }
 
+        public synchronized int getNumOfElements() {
+            return size;
+        }
 
+        /** @return number of values this input contributes to the output packet */
+        public synchronized int getNumValues() {
+            return numValues;
         }
 
         /**
-         * get the newest package, which is older than timestamp, from the selected buffer. without removing it
-         * @param timestamp
-         * @reutrn the newest, older package
-         * TODO: after a cleanUp, we could simply use the newest and the oldest packet... or not?
+         * interpolates between the last and the following packet of timestamp
+         * and writes n values to out starting at off. Writes the default
+         * values if not enough data is here.
+         * @param n number of values to write, at most numValues
          */
-        public DataPacket peekNewestOlderPacket(long timestamp) throws NoPacketException {
-            cleanUp(timestamp);
-            if ( elements.size() > 0 ) {
-                return ((DataPacket)elements.get(0));
-            } else {
-                throw new NoPacketException();
-            }
-        }
-        /*public DataPacket peekNewestOlderPacket(long timestamp) throws NoPacketException {
-
-            // if the oldest element is newer than the parameter timestamp, return null, because there is no packet older
-            if (elements.size() > 0 && ((DataPacket) elements.get(0)).getTimestamp() > timestamp) {
-                throw new NoPacketException();
-            }
+        public synchronized void interpolate(long timestamp, short[] out, int off, int n) {
 
-            // if the newest element is older than the parameter timestam, return the newest
-            if (elements.size() > 0 && ((DataPacket) elements.lastElement()).getTimestamp() <= timestamp) {
-                return ((DataPacket) elements.lastElement());
-            }
+            cleanUp(timestamp);
 
-            // cycle through all elements
-            for (int i = 0; i < elements.size() - 1; i++) {
-                // if this element has an older timestamp, but the next one has a newer timestamp (compared to parameter timestamp), this element is the newest one, which is older than the paraemter timestamp
-                if (((DataPacket) elements.get(i)).getTimestamp() <= timestamp && ((DataPacket) elements.get(i + 1)).getTimestamp() > timestamp) {
-                    return ((DataPacket) elements.get(i));
+            if (size < 2) {
+                // not all data found, so we return the default value. we can't wait longer, because this was specified with outputDelay
+                for (int i = 0; i < n; i++) {
+                    out[off + i] = DEFAULT_VALUES;
                 }
+                return;
             }
 
-            throw new NoPacketException();
-        }*/
+            // after a cleanUp, the interpolation is done with element 0 and element 1
+            short[] oldData = values[index(0)];
+            long oldTime = times[index(0)];
+            short[] newData = values[index(1)];
+            long newTime = times[index(1)];
 
-        public DataPacket peekOldestNewerPacket(long timestamp) throws NoPacketException {
-            cleanUp(timestamp);
-            if ( elements.size() > 1 ) {
-                return ((DataPacket)elements.get(1));
-            } else {
-                throw new NoPacketException();
-            }
-        }
-        /*public DataPacket peekOldestNewerPacket(long timestamp) throws NoPacketException {
+            long deltaTime = newTime - oldTime;
 
-            // if the newest element is older than the parameter timestamp, return null, because there is no packet newer
-            if (elements.size() > 0 && ((DataPacket) elements.lastElement()).getTimestamp() < timestamp) {
-                throw new NoPacketException();
-            }
+            for (int i = 0; i < n; i++) {
+                double slope;
+                if (deltaTime == 0) {
+                    // we're interpolating between the same packet and itself, because the timestamp matches exactly
+                    // so the slope does not matter, because the deltaTime will be zero...
+                    slope = 0;
+                } else {
+                    slope = ((double) (newData[i] - oldData[i])) / ((double) deltaTime);
+                }
 
-            // if the oldest element is newer than the parameter timestamp, return the newest
-            if (elements.size() > 0 && ((DataPacket) elements.get(0)).getTimestamp() >= timestamp) {
-                return ((DataPacket) elements.get(0));
-            }
+                // interpolate linearly
+                double value = oldData[i] + slope * (timestamp - oldTime);
 
-            // cycle through all elements
-            for (int i = 1; i < elements.size(); i++) {
-                // if this element has a newer timestamp, but the previous one has an older timestamp (compared to parameter timestamp), this element is the oldest one, which is newer than the parameter timestamp
-                if (((DataPacket) elements.get(i)).getTimestamp() >= timestamp && ((DataPacket) elements.get(i - 1)).getTimestamp() < timestamp) {
-                    return ((DataPacket) elements.get(i));
+                // check short boundaries
+                if (value > Short.MAX_VALUE) {
+                    out[off + i] = Short.MAX_VALUE;
+                } else if (value < Short.MIN_VALUE) {
+                    out[off + i] = Short.MIN_VALUE;
+                } else {
+                    out[off + i] = (short) value;
                 }
             }
-
-            throw new NoPacketException();
-        }*/
+        }
 
         /**
          * will clean up the buffer. it keeps only one packet older than timestamp, and all packets newer than timestmap
          * so the interpolation should be done with element 0 and element 1
          * @param timestamp
          */
-        public void cleanUp(long timestamp) {
-
-            int i = 0;
+        public synchronized void cleanUp(long timestamp) {
 
             // if the second oldest element is still older than timestamp, we can delete the oldest
-            // get(1), because we're looking at the second-oldest packet
-            while (elements.size() > 1 && ((DataPacket) elements.get(1)).getTimestamp() <= timestamp) {
-                elements.remove(0);
-                i = i + 1;
+            while (size > 1 && times[index(1)] <= timestamp) {
+                head = index(1);
+                size--;
             }
-            //System.out.println("Cleaned up buffer. Removed " + i + " elements. Oldest Timestamp: " + ((DataPacket)elements.firstElement()).getTimestamp() + " Newest Timestamp: " + ((DataPacket)elements.lastElement()).getTimestamp() + " Current Timestamp: " + System.currentTimeMillis() );
         }
 
         /**
-         * checks, if there is 10 times more data in the buffers than normally expected
-         * @return
+         * @return number of samples kept at most, 10 times more than normally
+         *         expected within outputDelay
          */
-        private boolean isHugeBuffer(short samplingPeriod, long outputDelay) {
-            if ( elements.size() >  outputDelay/samplingPeriod*10) {
-                return true;
-            } else {
-                return false;
-            }
+        private int getMaxSamples() {
+            return (int) Math.max(outputDelay / samplingPeriod * 10, INITIAL_CAPACITY);
         }
-
-
     }
 
-    private class NoPacketException extends Exception {
-    }
-
-    private class SyncMergerProcessor {
-
-        private Vector interpolatedData = new Vector();
-
-        public SyncMergerProcessor() { }
-
-        /**
-         *
-         * @return is true, if packet is sent. else it is false
-         */
-        public boolean sendSynchronizedData() {
-
-            // check, if we should generate a packet, that is newer as the (current time)-(fixed delay)
-            // although there might be all needed values already in the FIFO, we don't want to do that, because we want to have (an approximately) constant output rate of the SyncMerger
-            if (nextSampleTime > System.currentTimeMillis() - outputDelay) {
-                //System.out.println("Can't send data for nextSampleTime=" + nextSampleTime + " because nextSampleTime > " + (System.currentTimeMillis() - outputDelay) );
-                return false;
-            }
-
-            // go through all buffers
-            for (int i = 0; i < buffers.length; i++) {
+    /**
+     *
+     * @return is true, if packet is sent. else it is false
+     */
+    private synchronized boolean sendSynchronizedData() {
 
-                short[] interpolatedDataShort = buffers[i].interpolate(nextSampleTime);
+        // check, if we should generate a packet, that is newer as the (current time)-(fixed delay)
+        // although there might be all needed values already in the FIFO, we don't want to do that, because we want to have (an approximately) constant output rate of the SyncMerger
+        long now = System.currentTimeMillis();
+        if (nextSampleTime > now - outputDelay) {
+            return false;
+        }
 
-                // add all values to the interpolatedData vector
-                for (int j = 0; j < interpolatedDataShort.length; j++) {
-                    interpolatedData.add(new Short(interpolatedDataShort[j]));
-                }
+        // first element is the time difference, every input adds its
+        // values and its buffer length
+        int length = 1;
+        for (int i = 0; i < buffers.length; i++) {
+            outValues[i] = buffers[i].getNumValues();
+            length += outValues[i] + 1;
+        }
+        if (outPool == null || outPool.getLength() != length) {
+            outPool = new DataPacketPool(length);
+        }
+        DataPacket dp = outPool.obtain();
+        short[] sendData = dp.sdata;
 
-                // TODO: remove this!
-                // add the buffer length to the output
-                int bl = buffers[i].elements.size();
-                if ( bl >= Short.MAX_VALUE ) {
-                    interpolatedData.add( new Short(Short.MAX_VALUE) );
-                } else if ( bl <= Short.MIN_VALUE ) {
-                    interpolatedData.add( new Short(Short.MIN_VALUE) );
-                } else {
-                    interpolatedData.add( new Short((short)bl) );
-                }
+        // go through all buffers
+        int off = 1;
+        for (int i = 0; i < buffers.length; i++) {
 
-            }
+            buffers[i].interpolate(nextSampleTime, sendData, off, outValues[i]);
+            off += outValues[i];
 
-
-            // convert the vector to a short array
-            // size + 1 because we want to store the time difference as first element
-            short[] sendData = new short[interpolatedData.size() +1];
-            //System.out.print("Sending Packet ");
-            for (int i = 0; i < interpolatedData.size(); i++) {
-                // +1 here for sendData, because the first element is reserved for the time difference
-                // no +1 for the get(i), because the vector interpolatedData is not shiftet
-                // first element of interpolatedData goes to second element of sendData.
-                sendData[i+1] = ((Short) interpolatedData.get(i)).shortValue();
-                //System.out.print(sendData[i] + ", ");
-            }
-            //System.out.println();
-
-            // time difference as first element
-            long diff = nextSampleTime - System.currentTimeMillis();
-            if ( diff >= Short.MAX_VALUE ) {
-                sendData[0] = Short.MAX_VALUE;
-            } else if ( diff <= Short.MIN_VALUE ) {
-                sendData[0] = Short.MIN_VALUE;
+            // TODO: remove this!
+            // add the buffer length to the output
+            int bl = buffers[i].getNumOfElements();
+            if ( bl >= Short.MAX_VALUE ) {
+                sendData[off++] = Short.MAX_VALUE;
             } else {
-                sendData[0] = (short)diff;
+                sendData[off++] = (short)bl;
             }
+        }
 
-            // send the data
-            DataPacket dp = new DataPacket(sendData);
-            dp.setTimestamp(nextSampleTime);
-
-            //System.out.println("Sending Packet with Timestamp " + nextSampleTime + ". Actual Time is " + System.currentTimeMillis() + ". Diff = " + (nextSampleTime - System.currentTimeMillis()));
-
-            tTask.send(0, dp);
-
-            // reset the vector
-            interpolatedData.clear();
+        // time difference as first element
+        long diff = nextSampleTime - now;
+        if ( diff >= Short.MAX_VALUE ) {
+            sendData[0] = Short.MAX_VALUE;
+        } else if ( diff <= Short.MIN_VALUE ) {
+            sendData[0] = Short.MIN_VALUE;
+        } else {
+            sendData[0] = (short)diff;
+        }
 
-            // increase the nextSampleTime
-            nextSampleTime = nextSampleTime + samplingPeriod;
+        // send the data
+        dp.setTimestamp(nextSampleTime);
+        tTask.send(0, dp);
+        dp.release();
 
-            // clean up all buffers
-            for (int i = 0; i < buffers.length; i++) {
-                buffers[i].cleanUp(nextSampleTime);
-                //System.out.println("Cleaned up buffer " + i + ", new size: " + ((DataPacketFIFO)buffers.get(i)).getNumOfElements());
-                }
+        // increase the nextSampleTime
+        nextSampleTime = nextSampleTime + samplingPeriod;
 
-            return true;
+        // clean up all buffers
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i].cleanUp(nextSampleTime);
         }
-    }
 
-    private class SyncMergerTimerTask extends TimerTask {
-
-        SyncMergerProcessor processor;
+        return true;
+    }
 
-        public SyncMergerTimerTask(SyncMergerProcessor p) {
-            processor = p;
-        }
+    private class SyncMergerTimerTask extends TimingWheel.Task {
 
         public void run() {
             if (tTask.isRunning()) {
-                boolean dataSent;
-
                 // try to calculate new data and sent them.
-                // if that was okay (sendSynchronizedData returns true then), try again
                 // sendSynchronizedData will find out, if it is too early to send the next packet and then return with false (and not send a packet of course)
-                do {
-                    //System.out.println("Trying to send Data for timestamp " + nextSampleTime);
-                    dataSent = processor.sendSynchronizedData();
-                } while (dataSent);
-                //System.out.println("Going to sleep.\n");
+                while (sendSynchronizedData());
             } else {
                 cancel();
             }
@@ -11,6 +11,9 @@ import titancommon.tasks.TitanFileWriter;
 
 /**
  * Implements a Titan service which writes incoming Titan datapackges to a file.
+ *
+ * Files named *.trec are written as binary recordings by a RecordingWriter,
+ * which RecordingReader converts back to the text format.
  * 
  * @author Jonas Huber <huberjo@ee.ethz.ch>
  * @author Benedikt Köppel <bkoeppel@ee.ethz.ch>
@@ -19,6 +22,7 @@ public class ETitanFileWriter extends TitanFileWriter implements ExecutableTitan
 
     private static int fwCounter = 0;   // counts number of instances
     private BufferedWriter fout;
+    private RecordingWriter recorder;   // used instead of fout for binary recordings
     private TitanTask tTask;
 
     /**
@@ -42,6 +46,11 @@ public class ETitanFileWriter extends TitanFileWriter implements ExecutableTitan
 
         try {
 
+            if (recorder != null) {
+                recorder.write(data.getTimestamp(), data);
+                return;
+            }
+
             // Write timestamp
             fout.write(data.getTimestamp() + "\t");
 
@@ -106,7 +115,11 @@ public class ETitanFileWriter extends TitanFileWriter implements ExecutableTitan
             }
 
             // Open an output stream
-            fout = new BufferedWriter(new FileWriter(filename));
+            if (isBinary()) {
+                recorder = new RecordingWriter(new File(filename));
+            } else {
+                fout = new BufferedWriter(new FileWriter(filename));
+            }
 
         } catch (IOException e) {
             System.err.println("[EFileWriter] Unable to create/open file:  " + e.getMessage());
@@ -155,8 +168,12 @@ public class ETitanFileWriter extends TitanFileWriter implements ExecutableTitan
         public void run() {
             try {
                 System.out.println("[ETitanFileWriter] Closing file...");
-                fout.flush();
-                fout.close();
+                if (recorder != null) {
+                    recorder.close();
+                } else {
+                    fout.flush();
+                    fout.close();
+                }
                 System.out.println("[ETitanFileWriter] Done!");
             } catch (IOException e) {
                 System.err.println("[ETitanFileWriter] Could *not* close file: " + e.getMessage());
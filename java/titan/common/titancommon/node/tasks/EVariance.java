@@ -2,6 +2,7 @@ package titancommon.node.tasks;
 
 import titancommon.node.TitanTask;
 import titancommon.node.DataPacket;
+import titancommon.node.DataPacketPool;
 import titancommon.tasks.Variance;
 
 /**
@@ -10,15 +11,15 @@ import titancommon.tasks.Variance;
  * 
  * @author Jeremy Constantin <jeremyc@student.ethz.ch>
  */
-public class EVariance extends Variance implements ExecutableTitanTask {
+public class EVariance extends Variance implements TypedDataTask {
   private TitanTask tTask;
   public void setTitanTask(TitanTask tsk) { tTask = tsk; }
 
   private int winSize;
   private int winShift;
   private int resultShift = 0;
-  private short dataWindow[];
-  private int idx;
+  private SlidingWindow window;
+  private DataPacketPool outPool;
 
   public boolean setExecParameters(short[] param) {
     switch (param.length) {
@@ -43,8 +44,8 @@ public class EVariance extends Variance implements ExecutableTitanTask {
   }
 
   public void init() {
-    idx = 0;
-    dataWindow = new short[winSize];
+    window = new SlidingWindow(winSize, winShift);
+    outPool = new DataPacketPool(2);
   }
 
   public void inDataHandler(int port, DataPacket data) {
@@ -53,23 +54,22 @@ public class EVariance extends Variance implements ExecutableTitanTask {
       return;
     }
 
-    if (data.sdata.length % 2 != 0) {
+    int len = data.getLength();
+    if (len % 2 != 0) {
       System.err.println("uneven number of bytes in 16bit array");
       return;
     }
 
-    for (int i = 0; i < data.sdata.length; i+= 2) {
+    for (int i = 0; i < len; i+= 2) {
       // little endian 16 bit value (signed)
-      addValue((short) (data.sdata[i] + (data.sdata[i+1] << 8)));
+      addValue(data.getInt16(i));
     }
   }
 
   private void addValue(short val) {
-    dataWindow[idx++] = val;
-
-    if (idx == winSize) {
-      /*int sum = getSum();
-      int sumSqr = getSumSqr();
+    if (window.add(val)) {
+      /*int sum = window.getSum();
+      int sumSqr = window.getSumSqr();
        */
 
       //int var = ((sum * sum) / winSize) - (sumSqr / winSize);
@@ -82,55 +82,23 @@ public class EVariance extends Variance implements ExecutableTitanTask {
       
 
       // send data packet
-      short[] data = new short[2];
-      data[0] = (short) ( var       & 0xFF);
-      data[1] = (short) ((var >> 8) & 0xFF);
+      DataPacket out = outPool.obtain();
+      out.setInt16(0, var);
 
       if(resultShift == 3) {
-          System.out.println("Variance is " + (short)(data[0] + (data[1]<<8))); // ATTENTION: + kommt vor << !
+          System.out.println("Variance is " + out.getInt16(0));
       }
 
 
-      tTask.send(0, new DataPacket(data));
+      tTask.send(0, out);
+      out.release();
       //System.out.println("Var is " + data[1] + " " + data [0] );
-
-      // copy data, shifted by winShift, set new write index
-      idx = winSize - winShift;
-      for (int i = 0; i < idx; i++) {
-        dataWindow[i] = dataWindow[i + winShift];
-      }
     }
   }
 
   private int getVariance() {
-      int mean=getSum()/winSize;
-
-      int sum = 0;
-      int val = 0;
-      for (int i = 0; i < winSize; i++) {
-          val = dataWindow[i]-mean;
-          sum += val*val;
-      }
-
-      return sum/(winSize-1);
+      int mean = window.getMean();
 
-  }
-
-  private int getSum() {
-    // calculate sum
-    int sum = 0;
-    for (int i = 0; i < winSize; i++) {
-      sum += dataWindow[i];
-    }
-    return sum;
-  }
-
-  private int getSumSqr() {
-    // calculate squared sum
-    int sum = 0;
-    for (int i = 0; i < winSize; i++) {
-      sum += ((int) dataWindow[i]) * ((int) dataWindow[i]);
-    }
-    return sum;
+      return window.getSqrDeviation(mean)/(winSize-1);
   }
  }
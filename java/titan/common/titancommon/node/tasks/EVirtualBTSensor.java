@@ -1,11 +1,11 @@
 package titancommon.node.tasks;
 
 //import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
 
+import titancommon.node.TimingWheel;
 import titancommon.node.TitanTask;
 import titancommon.node.DataPacket;
+import titancommon.node.StreamPolicy;
 import titancommon.tasks.VirtualBTSensor;
 
 import java.util.Random;
@@ -34,16 +34,24 @@ public class EVirtualBTSensor extends VirtualBTSensor implements ExecutableTitan
     private short nodeID = (short) randGen.nextInt(Short.MAX_VALUE);
     private boolean online = true;      // online: true if online, false if offline (change this variable with the debugger to simulate a sensor which is unresponsive)
     private long remainingPackets = Long.MAX_VALUE;
+    private StreamPolicy dataPolicy;    // sheds data packets if the consumers cannot keep up
 
     public boolean setExecParameters(short[] param) {
         switch (param.length) {
             case 0:
                 interval_ms = DEFAULT_INTERVAL_MS;
+                dataPolicy = new StreamPolicy();
                 break;
 
             case 2:
                 interval_ms = (param[0] << 8) + param[1];
+                dataPolicy = new StreamPolicy();
+                break;
 
+            case 4:
+                // overload policy and decimation factor of the data stream
+                interval_ms = (param[0] << 8) + param[1];
+                dataPolicy = new StreamPolicy(param[2], param[3]);
                 break;
 
             default:
@@ -55,7 +63,7 @@ public class EVirtualBTSensor extends VirtualBTSensor implements ExecutableTitan
     }
 
     public void init() {
-        (new Timer()).schedule(new SWTimerTask(), 0, interval_ms);
+        tTask.getTimingWheel().schedule(new SWTimerTask(), 0, interval_ms);
         if( randGen.nextInt(2) == 1) {
             remainingPackets = randGen.nextInt(1000/interval_ms*360) + 1000/interval_ms*30; // within the first 360 seconds, this sensor will go offline, but not within the first 30 seconds
             System.out.println("This sensor goes offline after " + remainingPackets + " Packets sent.");
@@ -80,7 +88,7 @@ public class EVirtualBTSensor extends VirtualBTSensor implements ExecutableTitan
         // no incoming ports
     }
 
-    private class SWTimerTask extends TimerTask {
+    private class SWTimerTask extends TimingWheel.Task {
 
         private int counter = 0;
         //private long startTime = (new Date()).getTime();
@@ -96,6 +104,10 @@ public class EVirtualBTSensor extends VirtualBTSensor implements ExecutableTitan
             }
             remainingPackets--;
 
+            if (!dataPolicy.admit(tTask, 0)) {
+                return;
+            }
+
             short[] data = new short[4];
 
             // Bluetooth generates kind of random data
@@ -2,12 +2,13 @@ package titancommon.node.tasks;
 
 import titancommon.node.TitanTask;
 import titancommon.node.DataPacket;
+import titancommon.node.DataPacketPool;
 import titancommon.tasks.ZeroCross;
 
 /**
  * @author Jeremy Constantin <jeremyc@student.ethz.ch>
  */
-public class EZeroCross extends ZeroCross implements ExecutableTitanTask {
+public class EZeroCross extends ZeroCross implements TypedDataTask {
   private TitanTask tTask;
   public void setTitanTask(TitanTask tsk) { tTask = tsk; }
 
@@ -15,8 +16,9 @@ public class EZeroCross extends ZeroCross implements ExecutableTitanTask {
   private int winShift;
   private short threshLow;
   private short threshUp;
-  private short dataWindow[];
-  private int idx;
+  private SlidingWindow window;
+  private WindowCrossings crossings;
+  private DataPacketPool outPool;
 
   public boolean setExecParameters(short[] param) {
     switch (param.length) {
@@ -40,8 +42,9 @@ public class EZeroCross extends ZeroCross implements ExecutableTitanTask {
   }
 
   public void init() {
-    idx = 0;
-    dataWindow = new short[winSize];
+    window = new SlidingWindow(winSize, winShift);
+    crossings = new WindowCrossings(winSize, threshLow, threshUp);
+    outPool = new DataPacketPool(2);
   }
 
   public void inDataHandler(int port, DataPacket data) {
@@ -50,71 +53,30 @@ public class EZeroCross extends ZeroCross implements ExecutableTitanTask {
       return;
     }
 
-    if (data.sdata.length % 2 != 0) {
+    int len = data.getLength();
+    if (len % 2 != 0) {
       System.err.println("uneven number of bytes in 16bit array");
       return;
     }
 
-    for (int i = 0; i < data.sdata.length; i+= 2) {
+    for (int i = 0; i < len; i+= 2) {
       // little endian 16 bit value (signed)
-      addValue((short) (data.sdata[i] + (data.sdata[i+1] << 8)));
+      addValue(data.getInt16(i));
     }
   }
 
   private void addValue(short val) {
-    dataWindow[idx++] = val;
+    boolean due = window.add(val);
+    crossings.add(window.getSequence() - 1, val);
 
-    if (idx == winSize) {
-      int cnt = getCrossings(getMean());
+    if (due) {
+      int cnt = crossings.get(window, window.getMean());
 
       // send data packet
-      short[] data = new short[2];
-      data[0] = (short) ( cnt       & 0xFF);
-      data[1] = (short) ((cnt >> 8) & 0xFF);
-      tTask.send(0, new DataPacket(data));
-
-      // copy data, shifted by winShift, set new write index
-      idx = winSize - winShift;
-      for (int i = 0; i < idx; i++) {
-        dataWindow[i] = dataWindow[i + winShift];
-      }
-    }
-  }
-
-  private int getMean() {
-    // calculate mean
-    int sum = 0;
-    for (int i = 0; i < winSize; i++) {
-      sum += dataWindow[i];
-    }
-    return sum / winSize;
-  }
-
-  private int getCrossings(int mean) {
-    int cnt = 0;
-    int pos = getPosition(mean, dataWindow[0]);
-    int newpos;
-    for (int i = 1; i < winSize; i++) {
-      newpos = getPosition(mean, dataWindow[i]);
-      if ((pos * newpos) == -1) {
-        cnt++;
-        pos = newpos;
-      }
-      else if (pos == 0) {
-        pos = newpos;
-      }
+      DataPacket out = outPool.obtain();
+      out.setInt16(0, cnt);
+      tTask.send(0, out);
+      out.release();
     }
-
-    return cnt;
-  }
-
-  private int getPosition(int mean, int val) {
-    if (val > (mean + threshUp))
-      return 1;
-
-    if (val < (mean - threshLow))
-      return -1;
-
-    return 0;
   }
 }
@@ -14,5 +14,6 @@ public abstract interface ExecutableTitanTask {
 
   public abstract void init();
 
+  // data is only valid until the handler returns, unless it is retain()ed
   public abstract void inDataHandler(int port, DataPacket data);
 }
@@ -0,0 +1,348 @@
+package titancommon.node.tasks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the binary recordings written by RecordingWriter record by record.
+ *
+ * The block offsets are taken from the index at the end of the file. If the
+ * recording was not closed properly, the blocks are found by walking their
+ * headers instead. Only the block holding the current record is inflated.
+ *
+ * Called from the command line, it converts a recording to the tab separated
+ * text written by ETitanFileWriter:
+ * <pre>
+ *   java titancommon.node.tasks.RecordingReader recording.trec [output.txt]
+ * </pre>
+ */
+public class RecordingReader {
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+
+    // index
+    private long[] blockOffsets;
+    private long[] blockStarts;
+    private int[]  blockRecords;
+    private int    blocks;
+
+    // current block
+    private int block = -1;
+    private ByteBuffer header = ByteBuffer.allocate(RecordingWriter.BLOCK_HEADER_SIZE);
+    private byte[] deflated = new byte[0];
+    private byte[] raw = new byte[0];
+    private ByteBuffer data;
+    private int recordsLeft = 0;
+    private Inflater inflater = new Inflater();
+
+    // current record
+    private long timestamp;
+    private short[] values = new short[0];
+    private int width = 0;
+    private boolean bPeeked = false;  // current record not returned by next() yet
+
+    public RecordingReader(File f) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        channel = file.getChannel();
+
+        ByteBuffer fileHeader = ByteBuffer.allocate(RecordingWriter.FILE_HEADER_SIZE);
+        readFully(fileHeader, 0);
+        if (fileHeader.getInt() != RecordingWriter.MAGIC) {
+            close();
+            throw new IOException(f.getName() + " is not a Titan recording");
+        }
+        if (fileHeader.getShort() != RecordingWriter.VERSION) {
+            close();
+            throw new IOException(f.getName() + " has an unknown recording version");
+        }
+
+        if (!readIndex()) {
+            System.err.println("[RecordingReader] No index in " + f.getName() + ", scanning blocks");
+            scanBlocks();
+        }
+    }
+
+    /** @return number of blocks in the recording */
+    public int getBlockCount() {
+        return blocks;
+    }
+
+    /** @return number of records in the recording */
+    public long getRecordCount() {
+        long count = 0;
+        for (int i = 0; i < blocks; i++) {
+            count += blockRecords[i];
+        }
+        return count;
+    }
+
+    /**
+     * Moves to the next record.
+     * @return false if there are no more records
+     */
+    public boolean next() throws IOException {
+        if (bPeeked) {
+            bPeeked = false;
+            return true;
+        }
+
+        while (recordsLeft == 0) {
+            if (block + 1 >= blocks) {
+                return false;
+            }
+            loadBlock(block + 1);
+        }
+
+        timestamp += data.getInt();
+        for (int i = 0; i < width; i++) {
+            values[i] = data.getShort();
+        }
+        recordsLeft--;
+        return true;
+    }
+
+    /**
+     * Positions the reader such that next() returns the first record at or
+     * after the given time. The records are expected to be ordered by time.
+     */
+    public void seek(long time) throws IOException {
+        // last block starting at or before the time
+        int b = 0;
+        for (int i = 0; i < blocks; i++) {
+            if (blockStarts[i] <= time) {
+                b = i;
+            } else {
+                break;
+            }
+        }
+        if (blocks == 0) {
+            return;
+        }
+
+        loadBlock(b);
+        bPeeked = false;
+        while (next()) {
+            if (timestamp >= time) {
+                bPeeked = true;
+                return;
+            }
+        }
+    }
+
+    /** @return timestamp of the current record */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /** @return number of values of the current record */
+    public int getValueCount() {
+        return width;
+    }
+
+    public short getValue(int idx) {
+        if (idx >= width) {
+            throw new IndexOutOfBoundsException("value " + idx + " of " + width);
+        }
+        return values[idx];
+    }
+
+    /**
+     * @return the values of the current record, the array is reused for the
+     * next record and may be longer than getValueCount()
+     */
+    public short[] getValues() {
+        return values;
+    }
+
+    /**
+     * Writes all remaining records in the text format of ETitanFileWriter.
+     */
+    public void toText(Writer out) throws IOException {
+        BufferedWriter bw = (out instanceof BufferedWriter) ? (BufferedWriter) out : new BufferedWriter(out);
+        StringBuffer line = new StringBuffer();
+        while (next()) {
+            line.setLength(0);
+            line.append(timestamp).append('\t');
+            for (int i = 0; i < width; i++) {
+                line.append(values[i]).append('\t');
+            }
+            bw.write(line.toString());
+            bw.newLine();
+        }
+        bw.flush();
+    }
+
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+        file.close();
+    }
+
+    /** reads the index at the end of the file, false if there is none */
+    private boolean readIndex() throws IOException {
+        long size = channel.size();
+        if (size < RecordingWriter.FILE_HEADER_SIZE + RecordingWriter.TRAILER_SIZE) {
+            return false;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(RecordingWriter.TRAILER_SIZE);
+        readFully(trailer, size - RecordingWriter.TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        int count = trailer.getInt();
+        if (trailer.getInt() != RecordingWriter.INDEX_MAGIC
+                || count < 0
+                || indexOffset + (long) count * RecordingWriter.INDEX_ENTRY_SIZE != size - RecordingWriter.TRAILER_SIZE) {
+            return false;
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(count * RecordingWriter.INDEX_ENTRY_SIZE);
+        readFully(index, indexOffset);
+        allocIndex(count);
+        for (int i = 0; i < count; i++) {
+            blockOffsets[i] = index.getLong();
+            blockStarts[i]  = index.getLong();
+            blockRecords[i] = index.getInt();
+        }
+        blocks = count;
+        return true;
+    }
+
+    /** finds the complete blocks by their headers */
+    private void scanBlocks() throws IOException {
+        long size = channel.size();
+        long pos = RecordingWriter.FILE_HEADER_SIZE;
+        allocIndex(16);
+        blocks = 0;
+
+        while (pos + RecordingWriter.BLOCK_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, pos);
+            if (header.getInt() != RecordingWriter.BLOCK_MAGIC) {
+                break;
+            }
+            long start = header.getLong();
+            int records = header.getInt();
+            header.getInt();  // width
+            header.getInt();  // raw length
+            int length = header.getInt();
+            if (pos + RecordingWriter.BLOCK_HEADER_SIZE + length > size) {
+                break;        // incomplete block
+            }
+
+            if (blocks == blockOffsets.length) {
+                long[] offsets = blockOffsets;
+                long[] starts = blockStarts;
+                int[] counts = blockRecords;
+                allocIndex(blocks * 2);
+                System.arraycopy(offsets, 0, blockOffsets, 0, blocks);
+                System.arraycopy(starts, 0, blockStarts, 0, blocks);
+                System.arraycopy(counts, 0, blockRecords, 0, blocks);
+            }
+            blockOffsets[blocks] = pos;
+            blockStarts[blocks]  = start;
+            blockRecords[blocks] = records;
+            blocks++;
+
+            pos += RecordingWriter.BLOCK_HEADER_SIZE + length;
+        }
+    }
+
+    private void allocIndex(int count) {
+        blockOffsets = new long[count];
+        blockStarts  = new long[count];
+        blockRecords = new int[count];
+    }
+
+    /** inflates a block and positions before its first record */
+    private void loadBlock(int b) throws IOException {
+        header.clear();
+        readFully(header, blockOffsets[b]);
+        if (header.getInt() != RecordingWriter.BLOCK_MAGIC) {
+            throw new IOException("corrupt block " + b);
+        }
+        long start = header.getLong();
+        int records = header.getInt();
+        int w = header.getInt();
+        int rawLength = header.getInt();
+        int length = header.getInt();
+
+        if (deflated.length < length) {
+            deflated = new byte[length];
+        }
+        readFully(ByteBuffer.wrap(deflated, 0, length), blockOffsets[b] + RecordingWriter.BLOCK_HEADER_SIZE);
+
+        if (raw.length < rawLength) {
+            raw = new byte[rawLength];
+        }
+        inflater.reset();
+        inflater.setInput(deflated, 0, length);
+        try {
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int r = inflater.inflate(raw, n, rawLength - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != rawLength) {
+                throw new IOException("truncated block " + b);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt block " + b + ": " + e.getMessage());
+        }
+
+        data = ByteBuffer.wrap(raw, 0, rawLength);
+        block = b;
+        recordsLeft = records;
+        width = w;
+        if (values.length < w) {
+            values = new short[w];
+        }
+        timestamp = start;  // the first record has a delta of 0
+    }
+
+    /** fills the remaining space of buf from the file position and flips it */
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        int start = buf.position();
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos + buf.position() - start);
+            if (n < 0) {
+                throw new IOException("unexpected end of recording");
+            }
+        }
+        buf.flip();
+    }
+
+    /**
+     * Converts a recording to text
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: RecordingReader <recording> [<textfile>]");
+            return;
+        }
+
+        try {
+            RecordingReader reader = new RecordingReader(new File(args[0]));
+            Writer out = (args.length == 2) ? (Writer) new FileWriter(args[1])
+                                            : (Writer) new OutputStreamWriter(System.out);
+            reader.toText(out);
+            if (args.length == 2) {
+                out.close();
+            }
+            reader.close();
+        } catch (IOException e) {
+            System.err.println("[RecordingReader] Could not convert recording: " + e.getMessage());
+        }
+    }
+}
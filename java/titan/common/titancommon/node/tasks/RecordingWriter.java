@@ -0,0 +1,336 @@
+package titancommon.node.tasks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+import titancommon.node.DataPacket;
+
+/**
+ * Writes DataPackets to a binary recording file, as read by RecordingReader.
+ *
+ * The records are collected in blocks. Within a block, every record has the
+ * same number of values and takes the same number of bytes: the time since
+ * the previous record (int, ms) followed by the values of the packet
+ * (short each). A block is deflated on its own and written behind a header
+ * with its start time, so a reader only needs to inflate the blocks it
+ * reads. The offsets of all blocks are written as an index at the end of
+ * the file.
+ *
+ * Two block buffers are used: while one is filled by write(), the other one
+ * is compressed and written to the FileChannel by a background thread. If
+ * the background thread has not finished with the previous block when the
+ * next one is full, write() waits for it.
+ *
+ * File layout (big endian):
+ * <pre>
+ *   header:  int MAGIC, short VERSION, short 0
+ *   block:   int BLOCK_MAGIC, long first timestamp, int records,
+ *            int values per record, int raw length, int deflated length,
+ *            deflated records
+ *   ...
+ *   index:   per block: long file offset, long first timestamp, int records
+ *   trailer: long index offset, int blocks, int INDEX_MAGIC
+ * </pre>
+ * A file without trailer, e.g. after a crash, can still be read up to the
+ * last complete block.
+ */
+public class RecordingWriter implements Runnable {
+
+    public static final int   MAGIC       = 0x54524543;  // "TREC"
+    public static final int   BLOCK_MAGIC = 0x54424C4B;  // "TBLK"
+    public static final int   INDEX_MAGIC = 0x54494458;  // "TIDX"
+    public static final short VERSION     = 1;
+
+    public static final int FILE_HEADER_SIZE  = 8;
+    public static final int BLOCK_HEADER_SIZE = 28;
+    public static final int INDEX_ENTRY_SIZE  = 20;
+    public static final int TRAILER_SIZE      = 16;
+
+    /** raw bytes of records per block by default */
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /** records of one block */
+    private static class Block {
+        ByteBuffer data;
+        int  records;
+        int  width;        // values per record
+        long first;        // timestamp of the first record
+
+        Block(int size) {
+            data = ByteBuffer.allocate(size);
+        }
+    }
+
+    private FileOutputStream stream;
+    private FileChannel channel;
+    private int blockSize;
+
+    private Block fill;             // filled by write()
+    private Block pending;          // written by the background thread
+    private boolean bPending = false;
+    private boolean bClosed = false;
+    private IOException error;      // error of the background thread
+    private Thread thread;
+
+    private long lastTimestamp;
+    private short[] recordValues = new short[0];
+
+    // used by the background thread only
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] deflated = new byte[0];
+    private ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+    private ByteArrayOutputStream index = new ByteArrayOutputStream();
+    private DataOutputStream indexOut = new DataOutputStream(index);
+    private int blocks = 0;
+
+    public RecordingWriter(File file) throws IOException {
+        this(file, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates or truncates the file and writes the file header.
+     * @param blockSize raw bytes of records per block
+     */
+    public RecordingWriter(File file, int blockSize) throws IOException {
+        this.blockSize = blockSize;
+        fill    = new Block(blockSize);
+        pending = new Block(blockSize);
+
+        stream  = new FileOutputStream(file);
+        channel = stream.getChannel();
+        ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        fileHeader.putInt(MAGIC).putShort(VERSION).putShort((short) 0);
+        fileHeader.flip();
+        writeFully(fileHeader);
+
+        thread = new Thread(this, "RecordingWriter " + file.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Appends the values of a packet to the recording.
+     * @param timestamp time of the record
+     * @param data      packet, its bytes are stored as values
+     */
+    public synchronized void write(long timestamp, DataPacket data) throws IOException {
+        int width = data.getLength();
+        if (recordValues.length < width) {
+            recordValues = new short[width];
+        }
+        data.getBytes(0, recordValues, 0, width);
+        write(timestamp, recordValues, width);
+    }
+
+    /**
+     * Appends a record.
+     * @param timestamp time of the record
+     * @param values    values of the record
+     * @param count     number of values to store
+     */
+    public synchronized void write(long timestamp, short[] values, int count) throws IOException {
+        if (bClosed) {
+            throw new IOException("recording closed");
+        }
+        checkError();
+
+        long delta = timestamp - lastTimestamp;
+        int recordSize = 4 + 2 * count;
+
+        // a record that does not fit the block starts a new one
+        if (fill.records > 0 && (count != fill.width
+                || delta > Integer.MAX_VALUE || delta < Integer.MIN_VALUE
+                || fill.data.remaining() < recordSize)) {
+            flushBlock();
+        }
+
+        if (fill.records == 0) {
+            if (fill.data.capacity() < recordSize) {
+                fill.data = ByteBuffer.allocate(recordSize);
+            }
+            fill.width = count;
+            fill.first = timestamp;
+            delta = 0;
+        }
+
+        ByteBuffer buf = fill.data;
+        buf.putInt((int) delta);
+        for (int i = 0; i < count; i++) {
+            buf.putShort(values[i]);
+        }
+        fill.records++;
+        lastTimestamp = timestamp;
+    }
+
+    /**
+     * Hands the records written so far to the background thread, without
+     * waiting for them to be on disk.
+     */
+    public synchronized void flush() throws IOException {
+        if (fill.records > 0) {
+            flushBlock();
+        }
+        checkError();
+    }
+
+    /**
+     * Writes the remaining records and the index, and closes the file.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (bClosed) {
+                return;
+            }
+            if (fill.records > 0) {
+                flushBlock();
+            }
+            bClosed = true;
+            notifyAll();
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            checkError();
+            writeIndex();
+        } finally {
+            deflater.end();
+            channel.close();
+            stream.close();
+        }
+    }
+
+    /** @return number of blocks written so far */
+    public synchronized int getBlockCount() {
+        return blocks;
+    }
+
+    /** swaps the block buffers, waits for the previous block to be written */
+    private void flushBlock() throws IOException {
+        while (bPending && error == null) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                throw new IOException("interrupted while writing recording");
+            }
+        }
+        checkError();
+
+        Block full = fill;
+        fill = pending;
+        pending = full;
+        fill.data.clear();
+        fill.records = 0;
+        if (fill.data.capacity() < blockSize) {
+            fill.data = ByteBuffer.allocate(blockSize);
+        }
+        bPending = true;
+        notifyAll();
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Background thread writing the blocks handed over by flushBlock().
+     */
+    public void run() {
+        while (true) {
+            Block block;
+            synchronized (this) {
+                while (!bPending && !bClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                if (!bPending) {
+                    return;  // closed and nothing left
+                }
+                block = pending;
+            }
+
+            // the block is not touched by write() while pending
+            try {
+                writeBlock(block);
+            } catch (IOException e) {
+                System.err.println("[RecordingWriter] Error while writing file: " + e.getMessage());
+                synchronized (this) {
+                    error = e;
+                }
+            }
+
+            synchronized (this) {
+                bPending = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeBlock(Block block) throws IOException {
+        int rawLength = block.data.position();
+
+        // deflate the records
+        deflater.reset();
+        deflater.setInput(block.data.array(), 0, rawLength);
+        deflater.finish();
+        if (deflated.length < rawLength + 64) {
+            deflated = new byte[rawLength + 64];
+        }
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == deflated.length) {
+                byte[] grown = new byte[deflated.length * 2];
+                System.arraycopy(deflated, 0, grown, 0, length);
+                deflated = grown;
+            }
+            length += deflater.deflate(deflated, length, deflated.length - length);
+        }
+
+        long offset = channel.position();
+        header.clear();
+        header.putInt(BLOCK_MAGIC).putLong(block.first).putInt(block.records)
+                .putInt(block.width).putInt(rawLength).putInt(length);
+        header.flip();
+        writeFully(header);
+        writeFully(ByteBuffer.wrap(deflated, 0, length));
+
+        indexOut.writeLong(offset);
+        indexOut.writeLong(block.first);
+        indexOut.writeInt(block.records);
+        synchronized (this) {
+            blocks++;
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        long offset = channel.position();
+        indexOut.flush();
+        writeFully(ByteBuffer.wrap(index.toByteArray()));
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        trailer.putLong(offset).putInt(blocks).putInt(INDEX_MAGIC);
+        trailer.flip();
+        writeFully(trailer);
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package titancommon.node.tasks;
+
+/**
+ * Circular window over the last winSize 16 bit samples of a stream, as used
+ * by the windowed tasks (Mean, Variance, StdDev, Min, Max, ZeroCross).
+ *
+ * A window is complete for the first time after winSize samples, and after
+ * every further winShift samples. The sum and the sum of squares of the
+ * window are updated with each sample instead of being recomputed when a
+ * window is complete, so adding a sample costs the same for any window size.
+ *
+ * All sums use int arithmetic, just like the per-window loops they replace.
+ * Since int overflow wraps around, the running sums are always identical to
+ * the sums the loops would have computed, which keeps the results of the
+ * tasks bit-exact.
+ */
+public class SlidingWindow {
+  private final short[] window;
+  private final int winShift;
+
+  private int head;       // slot of the oldest sample
+  private int count;      // number of valid samples, up to winSize
+  private int untilDue;   // samples missing until the next complete window
+  private long seq;       // number of samples added so far
+
+  private int sum;
+  private int sumSqr;
+
+  public SlidingWindow(int size, int shift) {
+    window = new short[size];
+    winShift = shift;
+    untilDue = size;
+  }
+
+  /**
+   * Adds a sample, dropping the oldest one if the window is full.
+   * @return true if a window is complete and a result is due
+   */
+  public boolean add(short val) {
+    int tail;
+    if (count == window.length) {
+      short old = window[head];
+      sum    -= old;
+      sumSqr -= old * old;
+      tail = head;
+      head = (head + 1 == window.length) ? 0 : head + 1;
+    }
+    else {
+      tail = head + count;
+      if (tail >= window.length) {
+        tail -= window.length;
+      }
+      count++;
+    }
+
+    window[tail] = val;
+    sum    += val;
+    sumSqr += val * val;
+    seq++;
+
+    if (--untilDue == 0) {
+      untilDue = winShift;
+      return true;
+    }
+    return false;
+  }
+
+  public int  getSize()  { return window.length; }
+  public int  getShift() { return winShift; }
+  public int  getCount() { return count; }
+  public int  getSum()   { return sum; }
+
+  /** sum of squared samples, see class comment about overflow */
+  public int  getSumSqr() { return sumSqr; }
+
+  /** total number of samples added, the newest one has sequence number getSequence()-1 */
+  public long getSequence() { return seq; }
+
+  /** sequence number of the oldest sample in the window */
+  public long getOldestSequence() { return seq - count; }
+
+  /** mean over a complete window, truncated like the integer division in the tasks */
+  public int getMean() {
+    return sum / window.length;
+  }
+
+  /**
+   * Sum of the squared deviations from mean, sum((x - mean)^2), computed
+   * from the running sums as sumSqr - 2*mean*sum + n*mean^2. In int
+   * arithmetic this equals the value of the loop over the window.
+   */
+  public int getSqrDeviation(int mean) {
+    return sumSqr - 2 * mean * sum + count * mean * mean;
+  }
+
+  /** i-th oldest sample in the window, 0 <= i < getCount() */
+  public short get(int i) {
+    int idx = head + i;
+    if (idx >= window.length) {
+      idx -= window.length;
+    }
+    return window[idx];
+  }
+}
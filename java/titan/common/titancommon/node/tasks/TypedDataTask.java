@@ -0,0 +1,10 @@
+package titancommon.node.tasks;
+
+/**
+ * Marker for executable tasks that read incoming packets only through the
+ * typed accessors of DataPacket (getLength(), getInt16(), ...) and never
+ * through the sdata array directly. Such tasks get slice views handed over
+ * as they are, all other tasks receive a compacted copy.
+ */
+public interface TypedDataTask extends ExecutableTitanTask {
+}
@@ -0,0 +1,114 @@
+package titancommon.node.tasks;
+
+/**
+ * Number of zero crossings in a SlidingWindow, with a hysteresis around the
+ * window mean as used by ZeroCross.
+ *
+ * A sample is above the mean if it exceeds mean+threshUp, below if it is
+ * less than mean-threshLow, and in between otherwise. The crossings of a
+ * window are the number of changes between above and below, with samples in
+ * between ignored.
+ *
+ * The samples that are above or below are kept in a queue, together with
+ * the number of neighbouring pairs on different sides. Adding and removing
+ * a sample then only looks at its neighbour in the queue. This holds as
+ * long as the mean does not change; samples are classified against the
+ * mean of the previous window, and the queue is only rebuilt from the
+ * window if the new mean is different.
+ *
+ * A rebuild costs O(window size), so for inputs whose mean changes from
+ * window to window a sample still costs O(size/shift), as with the full
+ * recomputation. Only inputs with a stable mean get the O(1) updates.
+ */
+public class WindowCrossings {
+  private final int threshLow;
+  private final int threshUp;
+
+  private final byte[] sides;  // +1 above, -1 below
+  private final long[] seqs;
+  private final int mask;
+  private int front;
+  private int len;
+
+  private int crossings;
+  private int mean;
+
+  public WindowCrossings(int size, int thrLow, int thrUp) {
+    threshLow = thrLow;
+    threshUp = thrUp;
+    int cap = 1;
+    while (cap < size) {
+      cap <<= 1;
+    }
+    sides = new byte[cap];
+    seqs = new long[cap];
+    mask = cap - 1;
+  }
+
+  private int getSide(int val) {
+    if (val > (mean + threshUp))
+      return 1;
+
+    if (val < (mean - threshLow))
+      return -1;
+
+    return 0;
+  }
+
+  /** adds the sample with sequence number seq, must be called for every sample of the window */
+  public void add(long seq, short val) {
+    int side = getSide(val);
+    if (side == 0) {
+      return;
+    }
+
+    if (len == sides.length) {
+      // see WindowExtremum.add(), the front entry is outside the window
+      expireFront();
+    }
+
+    if ((len > 0) && (sides[(front + len - 1) & mask] != side)) {
+      crossings++;
+    }
+
+    int idx = (front + len) & mask;
+    sides[idx] = (byte) side;
+    seqs[idx] = seq;
+    len++;
+  }
+
+  private void expireFront() {
+    byte side = sides[front];
+    front = (front + 1) & mask;
+    len--;
+    if ((len > 0) && (sides[front] != side)) {
+      crossings--;
+    }
+  }
+
+  /**
+   * @param win   window the samples have been added from
+   * @param wmean mean of the complete window
+   * @return number of crossings in the window
+   */
+  public int get(SlidingWindow win, int wmean) {
+    if (wmean != mean) {
+      // classification changes, rebuild from the window
+      mean = wmean;
+      front = 0;
+      len = 0;
+      crossings = 0;
+      long seq = win.getOldestSequence();
+      for (int i = 0; i < win.getCount(); i++) {
+        add(seq + i, win.get(i));
+      }
+      return crossings;
+    }
+
+    long oldestSeq = win.getOldestSequence();
+    while ((len > 0) && (seqs[front] < oldestSeq)) {
+      expireFront();
+    }
+    return crossings;
+  }
+}
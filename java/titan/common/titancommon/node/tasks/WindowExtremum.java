@@ -0,0 +1,71 @@
+package titancommon.node.tasks;
+
+/**
+ * Minimum or maximum of a SlidingWindow, kept in a monotonic deque.
+ *
+ * The deque holds the samples that can still become the extremum of a later
+ * window: for the minimum, each entry is smaller than all entries behind it.
+ * A new sample removes all entries from the back that it dominates, and
+ * entries leaving the window are removed from the front. Every sample enters
+ * and leaves the deque once, so the cost per sample is constant on average.
+ */
+public class WindowExtremum {
+  private final boolean bMax;
+  private final short[] vals;
+  private final long[] seqs;
+  private final int mask;
+
+  private int front;      // oldest entry
+  private int len;
+
+  /**
+   * @param size  window size of the SlidingWindow this extremum belongs to
+   * @param max   true to track the maximum, false for the minimum
+   */
+  public WindowExtremum(int size, boolean max) {
+    bMax = max;
+    int cap = 1;
+    while (cap < size) {
+      cap <<= 1;
+    }
+    vals = new short[cap];
+    seqs = new long[cap];
+    mask = cap - 1;
+  }
+
+  /** adds the sample with sequence number seq, must be called for every sample of the window */
+  public void add(long seq, short val) {
+    // drop dominated entries, keep equal ones behind the new sample
+    while (len > 0) {
+      short last = vals[(front + len - 1) & mask];
+      if (bMax ? (last >= val) : (last <= val)) {
+        break;
+      }
+      len--;
+    }
+
+    if (len == vals.length) {
+      // only happens if samples are added without calling get(), the
+      // front entry has then left the window already
+      front = (front + 1) & mask;
+      len--;
+    }
+
+    int idx = (front + len) & mask;
+    vals[idx] = val;
+    seqs[idx] = seq;
+    len++;
+  }
+
+  /**
+   * @param oldestSeq  sequence number of the oldest sample in the window
+   * @return extremum of the samples with sequence number >= oldestSeq
+   */
+  public short get(long oldestSeq) {
+    while (seqs[front] < oldestSeq) {
+      front = (front + 1) & mask;
+      len--;
+    }
+    return vals[front];
+  }
+}
@@ -0,0 +1,799 @@
+package titancommon.node.tasks.test;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import titan.messages.SerialMsg;
+import titancommon.TitanCommand;
+import titancommon.node.DataPacket;
+import titancommon.node.NodeConfig;
+import titancommon.node.PortQueue;
+import titancommon.node.TitanLocalNode;
+import titancommon.node.TitanTCP;
+import titancommon.node.TitanTask;
+import titancommon.node.TitanTaskPool;
+import titancommon.node.tasks.EDecisionTree;
+import titancommon.node.tasks.EMean;
+import titancommon.node.tasks.ESink;
+import titancommon.node.tasks.ESyncMerger;
+import titancommon.node.tasks.EVariance;
+import titancommon.node.tasks.EZeroCross;
+import titancommon.node.tasks.ExecutableTitanTask;
+import titancommon.tasks.Communicator;
+import titancommon.tasks.Duplicator;
+import titancommon.tasks.Sink;
+
+/**
+ * Benchmark suite for the node task runtime.
+ *
+ * Every benchmark is measured in two modes:
+ *   thrpt  - operations per second, packets are injected back to back
+ *   sample - time per operation in us, one packet at a time, with percentiles
+ *
+ * An operation is one injected packet, and it is complete when all results
+ * it causes have arrived. The benchmarks are:
+ *
+ *   task.*   single execution tasks (EMean, EVariance, EZeroCross,
+ *            EDecisionTree, ESyncMerger), called directly on the benchmark
+ *            thread. ESyncMerger emits from its own timer, so only the cost
+ *            of accepting a packet is measured.
+ *   chain    Communicator -> Duplicator(1) x length -> Sink, built from
+ *            configuration messages through NodeConfig
+ *   fanout   Communicator -> Duplicator(width) -> width x Sink
+ *   tcp      round trip of a data message through TitanTCP and a
+ *            TitanLocalNode running Communicator -> Duplicator(1) x length
+ *            -> Communicator, with and without negotiated batch frames
+ *
+ * With -stats, chain, fanout and tcp additionally run with task statistics
+ * enabled (stats=on, see TaskStats), right after the run without, so the
+ * overhead of the statistics is the difference of each pair.
+ *
+ * Each benchmark runs a number of warmup and measurement iterations of a
+ * fixed duration. Results are printed as a table and can be written in the
+ * JSON format of JMH (-json), so the files can be compared with the usual
+ * JMH tooling. scoreError is the standard deviation over the measurement
+ * iterations.
+ *
+ * usage: NodeBenchmark [-wi n] [-i n] [-r ms] [-json file] [-stats] [filter]
+ *        filter selects the benchmarks whose name contains the given string
+ */
+public class NodeBenchmark {
+  public static final int WARMUP_ITERATIONS_DEFAULT = 2;
+  public static final int ITERATIONS_DEFAULT = 3;
+  public static final int ITERATION_MS_DEFAULT = 1000;
+
+  private static final int MAX_SAMPLES = 200000;
+  private static final int BATCH = 256;         // throughput ops between clock checks
+  private static final int CFG_ID = 1;
+  private static final int MASTER_ADDR = 0;
+  private static final int WIN_SIZE = 16;
+
+  private static final String[] MODES = { "thrpt", "sample" };
+
+  private int warmupIterations = WARMUP_ITERATIONS_DEFAULT;
+  private int iterations = ITERATIONS_DEFAULT;
+  private int iterationMs = ITERATION_MS_DEFAULT;
+  private ArrayList/*<String>*/ results = new ArrayList();
+
+  //////////////////////////////////////////////////////////////////////////
+  // benchmark definitions
+
+  private static abstract class Benchmark {
+    String name;
+    String[][] params;  // { name, value } pairs
+
+    Benchmark(String n, String[][] p) {
+      name = n;
+      params = p;
+    }
+
+    abstract void setUp() throws IOException;
+
+    /** injects the packet of operation i */
+    abstract void inject(int i);
+
+    /** results caused by one operation */
+    abstract long resultsPerOp();
+
+    /** blocks until at least the given number of results arrived */
+    abstract void await(long results);
+
+    abstract void tearDown();
+
+    String getLabel() {
+      String label = name;
+      for (int i = 0; i < params.length; i++) {
+        label += ((i == 0) ? " (" : ", ") + params[i][0] + "=" + params[i][1];
+      }
+      return label + ((params.length > 0) ? ")" : "");
+    }
+  }
+
+  /** adds the stats parameter to the label of runs with statistics */
+  private static String[][] statsParams(String[][] p, boolean bStats) {
+    if (!bStats) {
+      return p;
+    }
+    String[][] sp = new String[p.length + 1][];
+    System.arraycopy(p, 0, sp, 0, p.length);
+    sp[p.length] = new String[] { "stats", "on" };
+    return sp;
+  }
+
+  /** sample packets with 16 bit values of a noisy sine, one sample per packet */
+  private static DataPacket[] getInputPackets() {
+    Random rnd = new Random(1);
+    DataPacket[] packets = new DataPacket[1024];
+    for (int i = 0; i < packets.length; i++) {
+      int val = (int) (200.0 * Math.sin(i / 8.0)) + rnd.nextInt(32) - 16;
+      short[] data = { (short) (val & 0xFF), (short) ((val >> 8) & 0xFF) };
+      packets[i] = new DataPacket(data);
+    }
+    return packets;
+  }
+
+  /** collects results by counting the packets a task sends */
+  private static class CountingTask extends TitanTask {
+    volatile long sent;
+
+    CountingTask() {
+      super(null, Sink.TASKID, 0, new short[0]);
+    }
+
+    public void send(int port, DataPacket data) {
+      sent++;
+    }
+  }
+
+  /** a single execution task, called synchronously */
+  private static class TaskBenchmark extends Benchmark {
+    private Class cls;
+    private short[] param;
+    private boolean bTimestamp;
+    private ExecutableTitanTask task;
+    private CountingTask out;
+    private DataPacket[] packets;
+
+    TaskBenchmark(String n, Class c, short[] p) {
+      this(n, c, p, false);
+    }
+
+    /** @param timestamp  stamp the packets with the current time, as sensor tasks do */
+    TaskBenchmark(String n, Class c, short[] p, boolean timestamp) {
+      super("task." + n, new String[0][]);
+      cls = c;
+      param = p;
+      bTimestamp = timestamp;
+    }
+
+    void setUp() throws IOException {
+      try {
+        task = (ExecutableTitanTask) cls.newInstance();
+      }
+      catch (Exception e) {
+        throw new IOException("could not instantiate " + cls.getName() + ": " + e);
+      }
+      out = new CountingTask();
+      task.setTitanTask(out);
+      if (!task.setExecParameters(param)) {
+        throw new IOException("parameters rejected by " + cls.getName());
+      }
+      task.init();
+      packets = getInputPackets();
+    }
+
+    void inject(int i) {
+      DataPacket p = packets[i & (packets.length - 1)];
+      if (bTimestamp) {
+        p.setTimestamp(System.currentTimeMillis());
+      }
+      task.inDataHandler(0, p);
+    }
+
+    long resultsPerOp()     { return 0; }
+    void await(long results) { }
+    void tearDown()          { }
+  }
+
+  /** counts the packets arriving at the sinks of a graph */
+  private static class Counter {
+    private long received;
+    private long waitingFor = Long.MAX_VALUE;
+
+    synchronized void add() {
+      received++;
+      if (received >= waitingFor) {
+        notifyAll();
+      }
+    }
+
+    synchronized void await(long results) {
+      waitingFor = results;
+      while (received < results) {
+        try { wait(); }
+        catch (InterruptedException ie) { }
+      }
+      waitingFor = Long.MAX_VALUE;
+    }
+
+  }
+
+  private static class ECountingSink extends ESink {
+    private Counter counter;
+
+    ECountingSink(Counter c) { counter = c; }
+
+    public void init() { }
+
+    public void inDataHandler(int port, DataPacket data) {
+      counter.add();
+    }
+  }
+
+  /**
+   * Builds the configuration messages for one node, in the format sent by
+   * TaskNetwork: a CONFIG header, followed by CFGTASK and CFGCONN messages
+   * carrying at most 15 tasks or connections each.
+   */
+  private static class GraphConfig {
+    private ArrayList/*<short[]>*/ tasks = new ArrayList();
+    private ArrayList/*<short[]>*/ conns = new ArrayList();
+
+    void addTask(int taskID, int runID, short[] param) {
+      short[] t = new short[4 + param.length];
+      t[0] = (short) ((taskID >> 8) & 0xFF);
+      t[1] = (short) (taskID & 0xFF);
+      t[2] = (short) runID;
+      t[3] = (short) param.length;
+      System.arraycopy(param, 0, t, 4, param.length);
+      tasks.add(t);
+    }
+
+    void connect(int fromRunID, int fromPort, int toRunID, int toPort) {
+      short[] c = { (short) fromRunID, (short) fromPort, (short) toRunID, (short) toPort };
+      conns.add(c);
+    }
+
+    int getTaskCount() { return tasks.size(); }
+    int getConnCount() { return conns.size(); }
+
+    short[] getConfigMsg() {
+      short[] data = {
+        (short) ((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_CONFIG),
+        (short) tasks.size(), (short) conns.size(),
+        (short) ((MASTER_ADDR >> 8) & 0xFF), (short) (MASTER_ADDR & 0xFF),
+        (short) (CFG_ID << 4), 0 };  // no tasks, no connections
+      return data;
+    }
+
+    ArrayList/*<short[]>*/ getTaskMsgs() {
+      return getMsgs(tasks, TitanCommand.TITANCOMM_CFGTASK);
+    }
+
+    ArrayList/*<short[]>*/ getConnMsgs() {
+      return getMsgs(conns, TitanCommand.TITANCOMM_CFGCONN);
+    }
+
+    private ArrayList getMsgs(ArrayList items, int type) {
+      ArrayList msgs = new ArrayList();
+      for (int first = 0; first < items.size(); first += 15) {
+        int cnt = Math.min(15, items.size() - first);
+        int len = 2;
+        for (int i = first; i < first + cnt; i++) {
+          len += ((short[]) items.get(i)).length;
+        }
+        short[] data = new short[len];
+        data[0] = (short) ((TitanCommand.TC_VERSION << 4) | type);
+        data[1] = (short) ((CFG_ID << 4) | cnt);
+        int idx = 2;
+        for (int i = first; i < first + cnt; i++) {
+          short[] item = (short[]) items.get(i);
+          System.arraycopy(item, 0, data, idx, item.length);
+          idx += item.length;
+        }
+        msgs.add(data);
+      }
+      return msgs;
+    }
+  }
+
+  private static SerialMsg toSerialMsg(short[] data) {
+    SerialMsg msg = new SerialMsg(data.length + SerialMsg.DEFAULT_MESSAGE_SIZE);
+    msg.set_length((short) data.length);
+    msg.set_address(MASTER_ADDR);
+    msg.set_data(data);
+    return msg;
+  }
+
+  private static String getModeName(int execMode) {
+    return (execMode == TitanLocalNode.EXEC_POOLED) ? "pooled" : "threaded";
+  }
+
+  /** a task graph on a NodeConfig, fed through the Communicator task */
+  private static class GraphBenchmark extends Benchmark {
+    private int execMode;
+    private int length;   // Duplicator(1) hops for chain, 0 for fan-out
+    private int width;    // sinks
+    private boolean bStats;
+    private TitanLocalNode lnode;
+    private NodeConfig nodeCfg;
+    private TitanTask comm;
+    private Counter counter;
+    private DataPacket[] packets;
+
+    GraphBenchmark(String n, int mode, int len, int wid, boolean stats) {
+      super(n, statsParams(new String[][] { { "exec", getModeName(mode) },
+                                            { (len > 0) ? "length" : "width", "" + ((len > 0) ? len : wid) } }, stats));
+      execMode = mode;
+      length = len;
+      width = wid;
+      bStats = stats;
+    }
+
+    void setUp() throws IOException {
+      GraphConfig cfg = new GraphConfig();
+      cfg.addTask(Communicator.TASKID, 0, new short[0]);
+      if (length > 0) {
+        for (int i = 1; i <= length; i++) {
+          cfg.addTask(Duplicator.TASKID, i, new short[] { 1 });
+          cfg.connect(i - 1, 0, i, 0);
+        }
+        cfg.addTask(Sink.TASKID, length + 1, new short[0]);
+        cfg.connect(length, 0, length + 1, 0);
+      }
+      else {
+        cfg.addTask(Duplicator.TASKID, 1, new short[] { (short) width });
+        cfg.connect(0, 0, 1, 0);
+        for (int i = 0; i < width; i++) {
+          cfg.addTask(Sink.TASKID, 2 + i, new short[0]);
+          cfg.connect(1, i, 2 + i, 0);
+        }
+      }
+
+      lnode = new TitanLocalNode(TitanLocalNode.LOCAL_NODE_ID_BASE, -1, execMode);
+      lnode.setPortQueueDefaults(PortQueue.DEFAULT_CAPACITY, PortQueue.POLICY_BLOCK);  // awaits every result
+      nodeCfg = new NodeConfig(lnode, CFG_ID, true, cfg.getTaskCount(), cfg.getConnCount(), MASTER_ADDR);
+      ArrayList msgs = cfg.getTaskMsgs();
+      for (int i = 0; i < msgs.size(); i++) {
+        nodeCfg.addTasks(toSerialMsg((short[]) msgs.get(i)), 1);
+      }
+      msgs = cfg.getConnMsgs();
+      for (int i = 0; i < msgs.size(); i++) {
+        nodeCfg.addConnections(toSerialMsg((short[]) msgs.get(i)), 1);
+      }
+      if (!nodeCfg.isRunnable()) {
+        throw new IOException("configuration is not runnable");
+      }
+
+      counter = new Counter();
+      int firstSink = (length > 0) ? (length + 1) : 2;
+      int sinks = (length > 0) ? 1 : width;
+      for (int i = 0; i < sinks; i++) {
+        TitanTask sink = nodeCfg.getTask(firstSink + i);
+        ECountingSink cs = new ECountingSink(counter);
+        cs.setTitanTask(sink);
+        sink.setExecTask(cs);
+      }
+
+      comm = nodeCfg.getCommTask();
+      packets = getInputPackets();
+      nodeCfg.setStatsEnabled(bStats);
+      nodeCfg.start();
+    }
+
+    void inject(int i) {
+      comm.send(0, packets[i & (packets.length - 1)]);
+    }
+
+    long resultsPerOp()      { return (length > 0) ? 1 : width; }
+    void await(long results) { counter.await(results); }
+
+    void tearDown() {
+      nodeCfg.stop();
+      TitanTaskPool pool = lnode.getTaskPool();
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /** round trip through TitanTCP and a TitanLocalNode */
+  private static class TcpBenchmark extends Benchmark {
+    private int execMode;
+    private int length;
+    private int batchSize;
+    private boolean bStats;
+    private TitanLocalNode lnode;
+    private TitanTCP tcp;
+    private Thread receiver;
+    private Counter counter;
+    private SerialMsg[] dataMsgs;
+
+    TcpBenchmark(int mode, int len, int batch, boolean stats) {
+      super("tcp", statsParams(new String[][] { { "exec", getModeName(mode) }, { "length", "" + len },
+                                                { "batch", "" + batch } }, stats));
+      execMode = mode;
+      length = len;
+      batchSize = batch;
+      bStats = stats;
+    }
+
+    void setUp() throws IOException {
+      // find a free port for the local node
+      ServerSocket ss = new ServerSocket(0);
+      int port = ss.getLocalPort();
+      ss.close();
+
+      lnode = new TitanLocalNode(TitanLocalNode.LOCAL_NODE_ID_BASE, port, execMode);
+      lnode.setPortQueueDefaults(PortQueue.DEFAULT_CAPACITY, PortQueue.POLICY_BLOCK);  // awaits every result
+      lnode.setStatsEnabled(bStats);
+      if (!lnode.start()) {
+        throw new IOException("could not start local node");
+      }
+      tcp = new TitanTCP("localhost", port);
+      tcp.connect();
+      if (!tcp.isConnected()) {
+        throw new IOException("could not connect to local node");
+      }
+
+      // results are sent back to the master, port 0
+      GraphConfig cfg = new GraphConfig();
+      cfg.addTask(Communicator.TASKID, 0, new short[] { (short) ((MASTER_ADDR >> 8) & 0xFF), (short) (MASTER_ADDR & 0xFF), 0 });
+      for (int i = 1; i <= length; i++) {
+        cfg.addTask(Duplicator.TASKID, i, new short[] { 1 });
+        cfg.connect(i - 1, 0, i, 0);
+      }
+      cfg.connect(length, 0, 0, 0);
+
+      tcp.sendMsg(toSerialMsg(cfg.getConfigMsg()));
+      ArrayList msgs = cfg.getTaskMsgs();
+      msgs.addAll(cfg.getConnMsgs());
+      for (int i = 0; i < msgs.size(); i++) {
+        tcp.sendMsg(toSerialMsg((short[]) msgs.get(i)));
+      }
+      SerialMsg reply = recvMsg(TitanCommand.TITANCOMM_CFGSUCC);
+      if (reply == null) {
+        throw new IOException("local node did not accept the configuration");
+      }
+      if (batchSize > 0) {
+        negotiateBatching();
+      }
+
+      DataPacket[] packets = getInputPackets();
+      dataMsgs = new SerialMsg[packets.length];
+      for (int i = 0; i < packets.length; i++) {
+        short[] sdata = packets[i].sdata;
+        short[] data = new short[3 + sdata.length];
+        data[0] = (short) ((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_DATAMSG);
+        data[1] = 0;  // port
+        data[2] = (short) sdata.length;
+        System.arraycopy(sdata, 0, data, 3, sdata.length);
+        dataMsgs[i] = toSerialMsg(data);
+      }
+
+      counter = new Counter();
+      receiver = new Thread(new Receiver(tcp, counter));
+      receiver.setDaemon(true);
+      receiver.start();
+    }
+
+    private void negotiateBatching() throws IOException {
+      short[] req = { (short) ((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_BATCH),
+                      (short) ((batchSize >> 8) & 0xFF), (short) (batchSize & 0xFF),
+                      0, (short) TitanTCP.BATCH_FLUSH_MS_DEFAULT };
+      tcp.sendMsg(toSerialMsg(req));
+      SerialMsg ack = recvMsg(TitanCommand.TITANCOMM_BATCH);
+      if (ack == null) {
+        throw new IOException("local node did not confirm batch frames");
+      }
+      tcp.enableBatching(batchSize, TitanTCP.BATCH_FLUSH_MS_DEFAULT);
+    }
+
+    /**
+     * @return the next message of the given type, skipping other replies
+     *         of the node such as cache reports, or null if the connection
+     *         closed or an error came back
+     */
+    private SerialMsg recvMsg(int type) throws IOException {
+      SerialMsg msg;
+      while ((msg = tcp.recvMsg()) != null) {
+        int t = msg.getElement_data(0) & 0xF;
+        if (t == type) {
+          return msg;
+        }
+        if (t == TitanCommand.TITANCOMM_ERROR) {
+          return null;
+        }
+      }
+      return null;
+    }
+
+    void inject(int i) {
+      try {
+        tcp.queueMsg(dataMsgs[i & (dataMsgs.length - 1)]);
+      }
+      catch (IOException ioe) {
+        System.err.println("NodeBenchmark: could not send data message");
+      }
+    }
+
+    long resultsPerOp()      { return 1; }
+    void await(long results) { counter.await(results); }
+
+    void tearDown() {
+      tcp.disconnect();
+      lnode.stop();
+      try {
+        receiver.join();
+      }
+      catch (InterruptedException ie) { }
+    }
+  }
+
+  /** counts the data messages coming back over one connection */
+  private static class Receiver implements Runnable {
+    private TitanTCP tcp;
+    private Counter counter;
+
+    Receiver(TitanTCP t, Counter c) {
+      tcp = t;
+      counter = c;
+    }
+
+    public void run() {
+      SerialMsg msg;
+      while (tcp.isConnected() && (msg = tcp.recvMsg()) != null) {
+        if ((msg.getElement_data(0) & 0xF) == TitanCommand.TITANCOMM_DATAMSG) {
+          counter.add();
+        }
+      }
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////
+  // measurement
+
+  private double measureThroughput(Benchmark b, int[] op) {
+    long base = op[0];
+    long start = System.nanoTime();
+    long end = start + iterationMs * 1000000L;
+    long now;
+    do {
+      for (int i = 0; i < BATCH; i++) {
+        b.inject(op[0]++);
+      }
+      now = System.nanoTime();
+    } while (now < end);
+    b.await(op[0] * b.resultsPerOp());
+    now = System.nanoTime();
+    return (op[0] - base) * 1e9 / (now - start);
+  }
+
+  private int measureSamples(Benchmark b, int[] op, long[] samples) {
+    long end = System.nanoTime() + iterationMs * 1000000L;
+    int n = 0;
+    long now;
+    do {
+      long start = System.nanoTime();
+      b.inject(op[0]++);
+      b.await(op[0] * b.resultsPerOp());
+      now = System.nanoTime();
+      samples[n++] = now - start;
+    } while (now < end && n < samples.length);
+    return n;
+  }
+
+  private void run(Benchmark b, String mode) throws IOException {
+    b.setUp();
+    int[] op = { 0 };
+    double[] scores = new double[iterations];
+    long[] samples = new long[MAX_SAMPLES];
+    long[] all = new long[0];
+
+    for (int it = -warmupIterations; it < iterations; it++) {
+      if (mode.equals("thrpt")) {
+        double s = measureThroughput(b, op);
+        if (it >= 0) {
+          scores[it] = s;
+        }
+      }
+      else {
+        int n = measureSamples(b, op, samples);
+        if (it >= 0) {
+          double sum = 0;
+          for (int i = 0; i < n; i++) {
+            sum += samples[i];
+          }
+          scores[it] = sum / n / 1000.0;
+          long[] tmp = new long[all.length + n];
+          System.arraycopy(all, 0, tmp, 0, all.length);
+          System.arraycopy(samples, 0, tmp, all.length, n);
+          all = tmp;
+        }
+      }
+    }
+    b.tearDown();
+
+    double mean = 0;
+    for (int i = 0; i < iterations; i++) {
+      mean += scores[i];
+    }
+    mean /= iterations;
+    double var = 0;
+    for (int i = 0; i < iterations; i++) {
+      var += (scores[i] - mean) * (scores[i] - mean);
+    }
+    double error = (iterations > 1) ? Math.sqrt(var / (iterations - 1)) : 0.0;
+    String unit = mode.equals("thrpt") ? "ops/s" : "us/op";
+
+    String line = b.getLabel() + "                                                  ";
+    line = line.substring(0, Math.max(50, b.getLabel().length() + 1)) + mode + "\t" + format(mean) + " +- " + format(error) + " " + unit;
+    if (all.length > 0) {
+      Arrays.sort(all);
+      line += "\t(p50 " + format(percentile(all, 50.0)) + ", p99 " + format(percentile(all, 99.0)) + ")";
+    }
+    System.out.println(line);
+
+    results.add(toJson(b, mode, mean, error, unit, scores, all));
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+    idx = Math.max(0, Math.min(sorted.length - 1, idx));
+    return sorted[idx] / 1000.0;
+  }
+
+  private static String format(double d) {
+    return "" + (Math.round(d * 1000.0) / 1000.0);
+  }
+
+  //////////////////////////////////////////////////////////////////////////
+  // JSON output, compatible with JMH's result format
+
+  private String toJson(Benchmark b, String mode, double score, double error, String unit,
+                        double[] scores, long[] samples) {
+    StringBuffer sb = new StringBuffer();
+    sb.append("  {\n");
+    sb.append("    \"benchmark\" : \"").append(NodeBenchmark.class.getName()).append('.').append(b.name).append("\",\n");
+    sb.append("    \"mode\" : \"").append(mode).append("\",\n");
+    sb.append("    \"threads\" : 1,\n");
+    sb.append("    \"forks\" : 1,\n");
+    sb.append("    \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+    sb.append("    \"warmupTime\" : \"").append(iterationMs).append(" ms\",\n");
+    sb.append("    \"measurementIterations\" : ").append(iterations).append(",\n");
+    sb.append("    \"measurementTime\" : \"").append(iterationMs).append(" ms\",\n");
+    if (b.params.length > 0) {
+      sb.append("    \"params\" : {\n");
+      for (int i = 0; i < b.params.length; i++) {
+        sb.append("      \"").append(b.params[i][0]).append("\" : \"").append(b.params[i][1]).append('"');
+        sb.append((i < b.params.length - 1) ? ",\n" : "\n");
+      }
+      sb.append("    },\n");
+    }
+    sb.append("    \"primaryMetric\" : {\n");
+    sb.append("      \"score\" : ").append(score).append(",\n");
+    sb.append("      \"scoreError\" : ").append(error).append(",\n");
+    sb.append("      \"scoreUnit\" : \"").append(unit).append("\",\n");
+    if (samples.length > 0) {
+      double[] pcts = { 0.0, 50.0, 90.0, 99.0, 99.9, 100.0 };
+      sb.append("      \"scorePercentiles\" : {\n");
+      for (int i = 0; i < pcts.length; i++) {
+        sb.append("        \"").append(pcts[i]).append("\" : ").append(percentile(samples, pcts[i]));
+        sb.append((i < pcts.length - 1) ? ",\n" : "\n");
+      }
+      sb.append("      },\n");
+    }
+    sb.append("      \"rawData\" : [\n        [ ");
+    for (int i = 0; i < scores.length; i++) {
+      sb.append(scores[i]).append((i < scores.length - 1) ? ", " : " ");
+    }
+    sb.append("]\n      ]\n");
+    sb.append("    },\n");
+    sb.append("    \"secondaryMetrics\" : {\n    }\n");
+    sb.append("  }");
+    return sb.toString();
+  }
+
+  private void writeJson(String file) throws IOException {
+    PrintWriter pw = new PrintWriter(new FileWriter(file));
+    pw.println("[");
+    for (int i = 0; i < results.size(); i++) {
+      pw.print((String) results.get(i));
+      pw.println((i < results.size() - 1) ? "," : "");
+    }
+    pw.println("]");
+    pw.close();
+  }
+
+  //////////////////////////////////////////////////////////////////////////
+
+  private static ArrayList/*<Benchmark>*/ getBenchmarks(boolean bStats) {
+    ArrayList list = new ArrayList();
+    list.add(new TaskBenchmark("EMean", EMean.class, new short[] { WIN_SIZE, 1 }));
+    list.add(new TaskBenchmark("EVariance", EVariance.class, new short[] { WIN_SIZE, 1, 0 }));
+    list.add(new TaskBenchmark("EZeroCross", EZeroCross.class, new short[] { WIN_SIZE, 1, 0, 3, 0, 8 }));
+    // feature 0 < 0 ? class 1 : class 2
+    list.add(new TaskBenchmark("EDecisionTree", EDecisionTree.class,
+                               new short[] { 0x80 | 3, 3, 1, 0x00, 0, 0, 0x30, 0, 1, 0x30, 0, 2 }));
+    // one input, 1ms sampling period, max. output delay, so buffered
+    // packets are not cleaned up while the benchmark runs
+    list.add(new TaskBenchmark("ESyncMerger", ESyncMerger.class, new short[] { 1, 1, 0xFF, 0xFF }, true));
+
+    int[] modes = { TitanLocalNode.EXEC_THREADED, TitanLocalNode.EXEC_POOLED };
+    boolean[] stats = bStats ? new boolean[] { false, true } : new boolean[] { false };
+    for (int m = 0; m < modes.length; m++) {
+      for (int s = 0; s < stats.length; s++) {
+        list.add(new GraphBenchmark("chain", modes[m], 8, 0, stats[s]));
+      }
+      for (int s = 0; s < stats.length; s++) {
+        list.add(new GraphBenchmark("fanout", modes[m], 0, 16, stats[s]));
+      }
+      for (int s = 0; s < stats.length; s++) {
+        list.add(new TcpBenchmark(modes[m], 4, 0, stats[s]));
+      }
+      for (int s = 0; s < stats.length; s++) {
+        list.add(new TcpBenchmark(modes[m], 4, TitanTCP.BATCH_FLUSH_SIZE_DEFAULT, stats[s]));
+      }
+    }
+    return list;
+  }
+
+  public static void main(String[] args) throws IOException {
+    NodeBenchmark nb = new NodeBenchmark();
+    String json = null;
+    String filter = null;
+    boolean bStats = false;
+
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-wi") && i + 1 < args.length) {
+        nb.warmupIterations = Integer.parseInt(args[++i], 10);
+      }
+      else if (args[i].equals("-i") && i + 1 < args.length) {
+        nb.iterations = Integer.parseInt(args[++i], 10);
+      }
+      else if (args[i].equals("-r") && i + 1 < args.length) {
+        nb.iterationMs = Integer.parseInt(args[++i], 10);
+      }
+      else if (args[i].equals("-json") && i + 1 < args.length) {
+        json = args[++i];
+      }
+      else if (args[i].equals("-stats")) {
+        bStats = true;
+      }
+      else {
+        filter = args[i];
+      }
+    }
+    if (nb.iterations < 1) {
+      nb.iterations = 1;
+    }
+
+    ArrayList list = getBenchmarks(bStats);
+    for (int i = 0; i < list.size(); i++) {
+      Benchmark b = (Benchmark) list.get(i);
+      if (filter != null && b.getLabel().indexOf(filter) == -1) {
+        continue;
+      }
+      for (int m = 0; m < MODES.length; m++) {
+        try {
+          nb.run(b, MODES[m]);
+        }
+        catch (IOException ioe) {
+          System.err.println(b.getLabel() + ": " + ioe.getMessage());
+        }
+      }
+    }
+
+    if (json != null) {
+      nb.writeJson(json);
+      System.out.println("results written to " + json);
+    }
+
+    // the timer of ESyncMerger is not a daemon
+    System.exit(0);
+  }
+}
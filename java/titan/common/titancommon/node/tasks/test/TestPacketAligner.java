@@ -0,0 +1,87 @@
+package titancommon.node.tasks.test;
+
+import java.util.Random;
+import titancommon.bluetooth.BTDataPacket;
+import titancommon.bluetooth.FrameParser;
+import titancommon.bluetooth.PacketAligner;
+
+/**
+ * Checks that the PacketAligner follows the sequence numbers of sensor
+ * frames over their wraps. The frames are decoded by a FrameParser, so
+ * signed counters arrive sign extended as they do from the sensors:
+ *
+ *   DX4;c-s  8 bit counter, as sent by the DX4 motion sensors
+ *   DX4;-s   signed 16 bit counter, which goes negative at its wrap
+ *
+ * The arrival times are simulated with a drifting sensor clock and bursty
+ * transmission. The alignment must never restart, i.e. the period must be
+ * estimated for every packet after the first few.
+ *
+ * usage: TestPacketAligner [seed]
+ */
+public class TestPacketAligner {
+  public static final double PERIOD = 10.0;   // ms between two packets
+  public static final double DRIFT  = 1.001;  // sensor clock against the local one
+  public static final int    JITTER = 30;     // ms a packet may be late
+
+  private static class Replay implements FrameParser.FrameListener {
+    PacketAligner aligner = new PacketAligner();
+    Random rnd;
+    int packets;
+    int unfitted;
+
+    Replay(long seed) {
+      rnd = new Random(seed);
+    }
+
+    public void framesDecoded(BTDataPacket[] frames, int count) {
+      for (int i = 0; i < count; i++) {
+        long arrival = 1000 + Math.round(packets * PERIOD * DRIFT) + rnd.nextInt(JITTER);
+        frames[i].setTimestamp(arrival);
+        aligner.align(frames[i]);
+        if (packets >= 3 && aligner.getPeriod() == 0) {
+          unfitted++;
+        }
+        packets++;
+      }
+    }
+  }
+
+  /**
+   * replays frames with a counter of the given width through a FrameParser
+   * @return whether the alignment never restarted
+   */
+  private static boolean replay(String format, int bytes, int packets, long seed) {
+    FrameParser fp = new FrameParser("sensor", format, new String[] { "seq", "value" });
+    Replay r = new Replay(seed);
+    fp.addFrameListener(r);
+
+    for (int i = 0; i < packets; i++) {
+      byte[] frame = new byte[3 + bytes + 2];
+      frame[0] = 'D';
+      frame[1] = 'X';
+      frame[2] = '4';
+      frame[3] = (byte) i;
+      if (bytes == 2) {
+        frame[4] = (byte) (i >> 8);
+      }
+      frame[3 + bytes] = (byte) i;
+      fp.read(frame);
+    }
+
+    double period = r.aligner.getPeriod();
+    boolean ok = (r.packets == packets) && (r.unfitted == 0) && Math.abs(period - PERIOD * DRIFT) < 0.1;
+    System.out.println(format + ": " + r.packets + " packets, " + r.unfitted + " without estimate, period "
+                       + period + " ms" + (ok ? "" : " FAILED"));
+    return ok;
+  }
+
+  public static void main(String[] args) {
+    long seed = (args.length > 0) ? Long.parseLong(args[0], 10) : 1;
+
+    boolean ok = replay("DX4;c-s", 1, 1000, seed);
+    ok &= replay("DX4;-s-s", 2, 70000, seed);
+
+    System.exit(ok ? 0 : 1);
+  }
+}
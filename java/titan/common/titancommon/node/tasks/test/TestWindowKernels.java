@@ -0,0 +1,281 @@
+package titancommon.node.tasks.test;
+
+import java.util.Random;
+import titancommon.node.DataPacket;
+import titancommon.node.TitanTask;
+import titancommon.node.tasks.EMax;
+import titancommon.node.tasks.EMean;
+import titancommon.node.tasks.EMin;
+import titancommon.node.tasks.EStdDev;
+import titancommon.node.tasks.EVariance;
+import titancommon.node.tasks.EZeroCross;
+import titancommon.node.tasks.ExecutableTitanTask;
+import titancommon.tasks.Sink;
+
+/**
+ * Checks that the windowed tasks built on SlidingWindow, WindowExtremum and
+ * WindowCrossings produce exactly the same results as the original
+ * implementations, which recomputed each window with a loop over a shifted
+ * array. The original computations are kept below as reference.
+ *
+ * The tasks are called directly, their results are collected by a TitanTask
+ * that records what is sent instead of forwarding it.
+ *
+ * usage: TestWindowKernels [samples [seed]]
+ */
+public class TestWindowKernels {
+  public static final int SAMPLES_DEFAULT = 20000;
+
+  private static final int MEAN = 0;
+  private static final int VARIANCE = 1;
+  private static final int STDDEV = 2;
+  private static final int MIN = 3;
+  private static final int MAX = 4;
+  private static final int ZEROCROSS = 5;
+  private static final String[] NAMES = { "Mean", "Variance", "StdDev", "Min", "Max", "ZeroCross" };
+
+  private static final int[][] WINDOWS = {
+    { 1, 1 }, { 2, 1 }, { 4, 2 }, { 7, 3 }, { 11, 11 }, { 16, 5 }, { 64, 1 }, { 100, 37 }, { 128, 128 }
+  };
+
+  private static final int THRESH_LOW = 3;
+  private static final int THRESH_UP = 8;
+
+  /** records all 16 bit results sent on port 0 */
+  private static class CaptureTask extends TitanTask {
+    short[] results;
+    int count;
+
+    CaptureTask(int size) {
+      super(null, Sink.TASKID, 0, new short[0]);
+      results = new short[size];
+    }
+
+    public void send(int port, DataPacket data) {
+      results[count++] = data.getInt16(0);
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////
+  // reference implementations
+
+  private static short[] reference(int kind, short[] in, int winSize, int winShift, int resultShift) {
+    short[] out = new short[in.length];
+    int n = 0;
+    short[] dataWindow = new short[winSize];
+    int idx = 0;
+
+    for (int s = 0; s < in.length; s++) {
+      dataWindow[idx++] = in[s];
+      if (idx < winSize) {
+        continue;
+      }
+
+      int sum = 0;
+      int sumSqr = 0;
+      for (int i = 0; i < winSize; i++) {
+        sum += dataWindow[i];
+        sumSqr += ((int) dataWindow[i]) * ((int) dataWindow[i]);
+      }
+
+      int res;
+      switch (kind) {
+        case MEAN:
+          res = sum / winSize;
+          break;
+
+        case VARIANCE: {
+          int mean = sum / winSize;
+          int dev = 0;
+          for (int i = 0; i < winSize; i++) {
+            int val = dataWindow[i] - mean;
+            dev += val * val;
+          }
+          res = dev / (winSize - 1);
+          res >>= resultShift;
+          res = ((res >= Short.MAX_VALUE) ? Short.MAX_VALUE : res);
+          break;
+        }
+
+        case STDDEV:
+          res = (int) Math.sqrt(((sum * sum) / winSize) - (sumSqr / winSize));
+          res >>= resultShift;
+          break;
+
+        case MIN:
+          res = dataWindow[0];
+          for (int i = 1; i < winSize; i++) {
+            if (res > dataWindow[i])
+              res = dataWindow[i];
+          }
+          break;
+
+        case MAX:
+          res = dataWindow[0];
+          for (int i = 1; i < winSize; i++) {
+            if (res < dataWindow[i])
+              res = dataWindow[i];
+          }
+          break;
+
+        default:
+          res = referenceCrossings(dataWindow, sum / winSize);
+      }
+      out[n++] = (short) res;
+
+      idx = winSize - winShift;
+      for (int i = 0; i < idx; i++) {
+        dataWindow[i] = dataWindow[i + winShift];
+      }
+    }
+
+    short[] ret = new short[n];
+    System.arraycopy(out, 0, ret, 0, n);
+    return ret;
+  }
+
+  private static int referenceCrossings(short[] dataWindow, int mean) {
+    int cnt = 0;
+    int pos = referencePosition(mean, dataWindow[0]);
+    int newpos;
+    for (int i = 1; i < dataWindow.length; i++) {
+      newpos = referencePosition(mean, dataWindow[i]);
+      if ((pos * newpos) == -1) {
+        cnt++;
+        pos = newpos;
+      }
+      else if (pos == 0) {
+        pos = newpos;
+      }
+    }
+    return cnt;
+  }
+
+  private static int referencePosition(int mean, int val) {
+    if (val > (mean + THRESH_UP))
+      return 1;
+
+    if (val < (mean - THRESH_LOW))
+      return -1;
+
+    return 0;
+  }
+
+  //////////////////////////////////////////////////////////////////////////
+  // tasks under test
+
+  private static short[] execute(int kind, short[] in, int winSize, int winShift, int resultShift) {
+    ExecutableTitanTask task;
+    short[] param;
+    switch (kind) {
+      case MEAN:      task = new EMean();     break;
+      case VARIANCE:  task = new EVariance(); break;
+      case STDDEV:    task = new EStdDev();   break;
+      case MIN:       task = new EMin();      break;
+      case MAX:       task = new EMax();      break;
+      default:        task = new EZeroCross();
+    }
+
+    if (kind == ZEROCROSS) {
+      param = new short[] { (short) winSize, (short) winShift,
+                            (short) (THRESH_LOW >> 8), (short) (THRESH_LOW & 0xFF),
+                            (short) (THRESH_UP >> 8),  (short) (THRESH_UP & 0xFF) };
+    }
+    else if (kind == VARIANCE || kind == STDDEV) {
+      param = new short[] { (short) winSize, (short) winShift, (short) resultShift };
+    }
+    else {
+      param = new short[] { (short) winSize, (short) winShift };
+    }
+
+    CaptureTask capture = new CaptureTask(in.length);
+    task.setTitanTask(capture);
+    if (!task.setExecParameters(param)) {
+      System.err.println(NAMES[kind] + ": parameters rejected");
+      return new short[0];
+    }
+    task.init();
+
+    // feed the samples in packets of varying length
+    int pos = 0;
+    int len = 1;
+    while (pos < in.length) {
+      int cnt = Math.min(len, in.length - pos);
+      short[] sdata = new short[2 * cnt];
+      for (int i = 0; i < cnt; i++) {
+        sdata[2 * i]     = (short) ( in[pos + i]       & 0xFF);
+        sdata[2 * i + 1] = (short) ((in[pos + i] >> 8) & 0xFF);
+      }
+      task.inDataHandler(0, new DataPacket(sdata));
+      pos += cnt;
+      len = (len % 13) + 1;
+    }
+
+    short[] ret = new short[capture.count];
+    System.arraycopy(capture.results, 0, ret, 0, capture.count);
+    return ret;
+  }
+
+  //////////////////////////////////////////////////////////////////////////
+
+  private static short[][] getInputs(int samples, long seed) {
+    Random rnd = new Random(seed);
+    short[][] inputs = new short[5][samples];
+    for (int i = 0; i < samples; i++) {
+      inputs[0][i] = (short) rnd.nextInt();                        // full range, overflows sums
+      inputs[1][i] = (short) (rnd.nextInt(256) - 128);             // sensor like
+      inputs[2][i] = (short) (20.0 * Math.sin(i / 5.0) + rnd.nextInt(7) - 3);  // crossings
+      inputs[3][i] = (short) ((i / 17) % 2 == 0 ? 42 : -42);       // plateaus, equal values
+      inputs[4][i] = (short) ((rnd.nextInt(4) == 0) ? Short.MIN_VALUE : Short.MAX_VALUE);
+    }
+    return inputs;
+  }
+
+  private static boolean compare(int kind, short[] in, int winSize, int winShift, int resultShift) {
+    short[] exp = reference(kind, in, winSize, winShift, resultShift);
+    short[] res = execute(kind, in, winSize, winShift, resultShift);
+
+    if (exp.length != res.length) {
+      System.out.println(NAMES[kind] + " (" + winSize + "," + winShift + "): " + res.length
+                         + " results instead of " + exp.length);
+      return false;
+    }
+    for (int i = 0; i < exp.length; i++) {
+      if (exp[i] != res[i]) {
+        System.out.println(NAMES[kind] + " (" + winSize + "," + winShift + "): result " + i
+                           + " is " + res[i] + " instead of " + exp[i]);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static void main(String[] args) {
+    int samples = (args.length > 0) ? Integer.parseInt(args[0], 10) : SAMPLES_DEFAULT;
+    long seed = (args.length > 1) ? Long.parseLong(args[1], 10) : 1;
+
+    short[][] inputs = getInputs(samples, seed);
+    int failed = 0;
+    int checks = 0;
+
+    for (int kind = MEAN; kind <= ZEROCROSS; kind++) {
+      for (int w = 0; w < WINDOWS.length; w++) {
+        int winSize = WINDOWS[w][0];
+        int winShift = WINDOWS[w][1];
+        if ((winSize == 1) && (kind == VARIANCE)) {
+          continue;  // divides by winSize-1
+        }
+        for (int in = 0; in < inputs.length; in++) {
+          int resultShift = (kind == VARIANCE || kind == STDDEV) ? (in % 3) : 0;
+          checks++;
+          if (!compare(kind, inputs[in], winSize, winShift, resultShift)) {
+            failed++;
+          }
+        }
+      }
+    }
+
+    System.out.println(checks + " checks, " + failed + " failed");
+    System.exit((failed == 0) ? 0 : 1);
+  }
+}
@@ -0,0 +1,188 @@
+package titancommon.node.tasks.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import titan.ConfigReader;
+import titancommon.Connection;
+import titancommon.TitanCommand;
+import titancommon.execution.TaskNetwork;
+import titancommon.node.DataPacket;
+import titancommon.node.PortQueue;
+import titancommon.node.TitanLocalNode;
+import titancommon.node.TitanTask;
+import titancommon.node.tasks.ESink;
+import titancommon.tasks.Duplicator;
+import titancommon.tasks.Sink;
+import titancommon.tasks.Task;
+
+/**
+ * Measures the per-hop cost of TitanTask.send() on the task graph of
+ * StressTest.getConfig(n), with all tasks placed on one local node.
+ *
+ * The SimpleWriter source is replaced by packets injected from the main
+ * thread, and the sinks count what they receive. A hop is one packet
+ * delivered from an output port to an input port.
+ *
+ * With "fanout", the n Duplicator(3) branches are replaced by counting
+ * sinks as well, which leaves only the wide fan-out of Duplicator(n) and
+ * isolates the cost of resolving many output ports.
+ *
+ * For stable numbers run it pinned to one core (e.g. taskset -c 0) in
+ * pooled mode, otherwise thread hand-offs dominate the measurement.
+ *
+ * usage: WiringBenchmark [n [packets [pooled] [fanout]]]
+ */
+public class WiringBenchmark {
+  public static final int N_DEFAULT = 50;
+  public static final int PACKETS_DEFAULT = 20000;
+
+  private TitanTask[] tasks;
+  private int n;
+  private boolean bFanOut;
+  private long received;
+
+  private class ECountingSink extends ESink {
+    public void init() { }
+
+    public void inDataHandler(int port, DataPacket data) {
+      synchronized (WiringBenchmark.this) {
+        received++;
+        WiringBenchmark.this.notify();
+      }
+    }
+  }
+
+  public WiringBenchmark(int branches, int execMode, boolean fanOut) throws IOException {
+    n = branches;
+    bFanOut = fanOut;
+
+    // parse the stress test configuration like "titan stress" does
+    File cfg = File.createTempFile("stress", ".txt");
+    cfg.deleteOnExit();
+    FileWriter fw = new FileWriter(cfg);
+    fw.write(StressTest.getConfig(n));
+    fw.close();
+
+    ConfigReader reader = new ConfigReader(cfg.getPath());
+    TaskNetwork.NodeConfiguration nc = (TaskNetwork.NodeConfiguration) reader.getTaskNetwork().m_Nodes.get(0);
+
+    // instantiate all tasks on a single node
+    TitanLocalNode lnode = new TitanLocalNode(TitanLocalNode.LOCAL_NODE_ID_BASE, -1, execMode);
+    lnode.setPortQueueDefaults(PortQueue.DEFAULT_CAPACITY, PortQueue.POLICY_BLOCK);  // counts every packet
+    tasks = new TitanTask[nc.tasks.length];
+    for (int i = 0; i < nc.tasks.length; i++) {
+      Task t = nc.tasks[i];
+      if (i == 0) {
+        // injection point instead of SimpleWriter
+        tasks[i] = new TitanTask(lnode, Sink.TASKID, i, new short[0]);
+        continue;
+      }
+
+      short[][] cfgBytes = t.getConfigBytes(TitanCommand.TITAN_PACKET_SIZE);
+      if (cfgBytes == null || cfgBytes.length == 0) {
+        cfgBytes = new short[][] { new short[0] };
+      }
+      tasks[i] = new TitanTask(lnode, t.getID(), i, cfgBytes[0]);
+      for (int c = 1; c < cfgBytes.length; c++) {
+        tasks[i].addParameters(cfgBytes[c]);
+      }
+
+      if ((t.getID() == Sink.TASKID) || (bFanOut && (i > 1) && (t.getID() == Duplicator.TASKID))) {
+        ECountingSink cs = new ECountingSink();
+        cs.setTitanTask(tasks[i]);
+        tasks[i].setExecTask(cs);
+      }
+    }
+
+    for (int i = 0; i < nc.connections.length; i++) {
+      Connection c = nc.connections[i];
+      tasks[c.StartTask].addPortOut(c.StartPort, tasks[c.EndTask], c.EndPort);
+      tasks[c.EndTask].addPortIn(c.EndPort, tasks[c.StartTask], c.StartPort);
+    }
+
+    for (int i = 0; i < tasks.length; i++) {
+      tasks[i].start();
+    }
+  }
+
+  /** window outputs of one Mean/Variance/ZeroCross for p single samples */
+  private static long windowOutputs(long p) {
+    if (p < StressTest.WIN_SIZE) {
+      return 0;
+    }
+    return (p - StressTest.WIN_SIZE) / StressTest.WIN_SHIFT + 1;
+  }
+
+  /**
+   * injects packets and waits until all results reached the sinks
+   * @return elapsed time in ns per hop
+   */
+  public double run(int packets) {
+    synchronized (this) {
+      received = 0;
+    }
+    long expected;
+    long hops;
+    if (bFanOut) {
+      expected = (long) n * packets;
+      hops = packets + expected;
+    }
+    else {
+      expected = 3L * n * windowOutputs(packets);
+      hops = packets + (long) n * packets + 3L * n * packets + expected;
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < packets; i++) {
+      short[] data = { (short) (i & 0x7F), 0 };
+      tasks[0].send(0, new DataPacket(data));
+    }
+    synchronized (this) {
+      while (received < expected) {
+        try { this.wait(); }
+        catch (InterruptedException ie) { }
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+
+    return ((double) elapsed) / hops;
+  }
+
+  public void close() {
+    for (int i = 0; i < tasks.length; i++) {
+      tasks[i].stop();
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    int n = (args.length > 0) ? Integer.parseInt(args[0], 10) : N_DEFAULT;
+    int packets = (args.length > 1) ? Integer.parseInt(args[1], 10) : PACKETS_DEFAULT;
+    int mode = TitanLocalNode.EXEC_THREADED;
+    boolean fanOut = false;
+    for (int i = 2; i < args.length; i++) {
+      if (args[i].compareToIgnoreCase("pooled") == 0) {
+        mode = TitanLocalNode.EXEC_POOLED;
+      }
+      else if (args[i].compareToIgnoreCase("fanout") == 0) {
+        fanOut = true;
+      }
+    }
+
+    // warm up on a separate graph, windows keep state between runs
+    WiringBenchmark warmup = new WiringBenchmark(n, mode, fanOut);
+    warmup.run(packets);
+    warmup.close();
+
+    WiringBenchmark bench = new WiringBenchmark(n, mode, fanOut);
+    double perHop = bench.run(packets);
+    bench.close();
+
+    System.out.println("branches: " + n + ", tasks: " + bench.tasks.length
+                       + ", packets: " + packets + ", mode: "
+                       + ((mode == TitanLocalNode.EXEC_POOLED) ? "pooled" : "threaded")
+                       + (fanOut ? ", fan-out only" : ""));
+    System.out.println("per hop: " + perHop + " ns");
+    System.exit(0);
+  }
+}
@@ -18,13 +18,13 @@ public class TitanCommunicateRouter extends TitanCommunicateTCP {
   // | extended TitanCommunicateTCP methods for Routing
   // =================================================
   
-  public boolean send(int moteId, SerialMsg m) {
+  public boolean send(int moteId, SerialMsg m, boolean bDelay) {
     int dest_net = m.get_address() >> TitanRouter.CLIENT_BITS;
 
     if (router == null) { // this must be simulation
-       return super.send(moteId, m);
+       return super.send(moteId, m, bDelay);
     } if (dest_net == router.getNetID()) {
-      return super.send(moteId, m);
+      return super.send(moteId, m, bDelay);
     }
 
     // use messageReceived to send extern, since dest_net != net_id
@@ -33,6 +33,6 @@ public class TitanCommunicateRouter extends TitanCommunicateTCP {
   }
 
   public boolean sendIntern(int moteId, SerialMsg m) {
-    return super.send(moteId, m);
+    return super.send(moteId, m, true);
   }
 }
@@ -1,12 +1,13 @@
 package titancommon.route;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.CopyOnWriteArrayList;
 import net.tinyos.message.MessageListener;
 import titan.TitanCommunicate;
 import titan.messages.SerialMsg;
+import titancommon.TitanCommand;
 import titancommon.node.TitanTCP;
 
 /**
@@ -15,7 +16,8 @@ import titancommon.node.TitanTCP;
  */
 public class TitanCommunicateTCP extends TitanCommunicate {
   // TCPIP connection interfaces
-  private List/*<TitanTCPCon>*/ tcpConns = new ArrayList/*<TitanTCPCon>*/();
+  // copy on write, send() is called by the routers without a lock
+  private List/*<TitanTCPCon>*/ tcpConns = new CopyOnWriteArrayList/*<TitanTCPCon>*/();
   private MessageListener tcpListener = null;
 
   private class TitanTCPCon {
@@ -38,6 +40,16 @@ public class TitanCommunicateTCP extends TitanCommunicate {
   }
 
   public void TCPConnect(int node_id, String host, int port) {
+    TCPConnect(node_id, host, port, 0, 0);
+  }
+
+  /**
+   * Connects to a local node. If batch_size is greater than 0, batch frames
+   * are negotiated with the node (see TitanTCP), and data messages in both
+   * directions are packed into frames of up to batch_size bytes, sent at
+   * the latest after batch_ms.
+   */
+  public void TCPConnect(int node_id, String host, int port, int batch_size, int batch_ms) {
     if (tcpListener == null) {
       System.err.println("TCP Listener not registered!");
       return;
@@ -64,6 +76,10 @@ public class TitanCommunicateTCP extends TitanCommunicate {
           SerialMsg msg;
           while (!tcon.tcpRecvThread.isInterrupted()
                   && (msg = tcon.tcpIp.recvMsg()) != null) {
+            if ((msg.getElement_data(0) & 0xF) == TitanCommand.TITANCOMM_BATCH) {
+              batchConfirmed(tcon, msg);
+              continue;
+            }
             tcpListener.messageReceived(tcon.nodeID, msg);
           }
         }
@@ -72,6 +88,40 @@ public class TitanCommunicateTCP extends TitanCommunicate {
     tcon.tcpRecvThread.start();
 
     tcpConns.add(tcon);
+
+    if (batch_size > 0) {
+      requestBatching(tcon, batch_size, batch_ms);
+    }
+  }
+
+  private void requestBatching(TitanTCPCon tcon, int size, int ms) {
+    short[] data = {
+      (short) ((TitanCommand.TC_VERSION << 4) | TitanCommand.TITANCOMM_BATCH),
+      (short) ((size >> 8) & 0xFF), (short) (size & 0xFF),
+      (short) ((ms >> 8) & 0xFF), (short) (ms & 0xFF) };
+    SerialMsg msg = new SerialMsg(data.length + SerialMsg.DEFAULT_MESSAGE_SIZE);
+    msg.set_length((short) data.length);
+    msg.set_address(tcon.nodeID);
+    msg.set_data(data);
+
+    try {
+      tcon.tcpIp.sendMsg(msg);
+    }
+    catch (IOException ioe) {
+      System.err.println("TCP ERROR: Could not request batch frames from node " + tcon.nodeID);
+    }
+  }
+
+  /** the node sends batch frames from now on, so can we */
+  private void batchConfirmed(TitanTCPCon tcon, SerialMsg msg) {
+    int size = (msg.getElement_data(1) << 8) + msg.getElement_data(2);
+    int ms = (msg.getElement_data(3) << 8) + msg.getElement_data(4);
+    if (size > 0) {
+      tcon.tcpIp.enableBatching(size, ms);
+    }
+    else {
+      tcon.tcpIp.disableBatching();
+    }
   }
 
   public void TCPDisconnect(int node_id) {
@@ -99,7 +149,7 @@ public class TitanCommunicateTCP extends TitanCommunicate {
   // | extended TitanCommunicate methods for TCP
   // =================================================
   
-  public boolean send(int moteId, SerialMsg m) {
+  public boolean send(int moteId, SerialMsg m, boolean bDelay) {
     try {
       short addr = (short) m.get_address();
       for (ListIterator li = tcpConns.listIterator(); li.hasNext(); ) {
@@ -108,7 +158,12 @@ public class TitanCommunicateTCP extends TitanCommunicate {
           tcon.tcpIp.sendMsg(m);
         }
         else if (tcon.nodeID == addr) {
-          tcon.tcpIp.sendMsg(m);
+          if ((m.getElement_data(0) & 0xF) == TitanCommand.TITANCOMM_DATAMSG) {
+            tcon.tcpIp.queueMsg(m);  // batched if negotiated
+          }
+          else {
+            tcon.tcpIp.sendMsg(m);
+          }
           return true;
         }
       }
@@ -119,7 +174,7 @@ public class TitanCommunicateTCP extends TitanCommunicate {
       return false;
     }
     
-    return super.send(moteId, m);
+    return super.send(moteId, m, bDelay);
   }
   
   synchronized public void registerListener(SerialMsg template, MessageListener listener) {
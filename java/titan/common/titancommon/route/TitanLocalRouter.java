@@ -16,12 +16,58 @@ public class TitanLocalRouter extends TitanRouter {
   private TitanTCP tcpip;
   private boolean bStopped;
 
+  // NIO mode, the connection to the master is served by a TitanNioReactor
+  private boolean bNio;
+  private TitanNioReactor reactor;
+  private volatile TitanNioLink master;
+
+  private class nioHandler implements TitanNioReactor.Handler {
+    public void linkOpened(TitanNioLink link) {
+      if (master != null) {
+        System.out.println("TitanLocalRouter: replacing connection to MasterRouter");
+        reactor.close(master);
+      }
+      master = link;
+      System.out.println("TitanLocalRouter: connection to MasterRouter established");
+    }
+
+    public void messageReceived(TitanNioLink link, SerialMsg msg) {
+      if (!tcom.sendIntern(/*msg.get_address()*/0, msg)) {
+        reactor.close(link);
+      }
+    }
+
+    public void linkClosed(TitanNioLink link) {
+      System.out.println("TitanLocalRouter: closing connection to MasterRouter");
+      if (master == link) {
+        master = null;
+      }
+    }
+  }
+
   public TitanLocalRouter(int net_id, int mode) {
+    this(net_id, mode, false);
+  }
+
+  /**
+   * @param nio  serve the connection to the master with a TitanNioReactor,
+   *             see run()
+   */
+  public TitanLocalRouter(int net_id, int mode, boolean nio) {
     super(net_id, mode);
+    bNio = nio;
     tcom.registerListener(new SerialMsg(), this);
   }
 
+  /**
+   * Waits for connections from the master and forwards its messages, until
+   * stop() is called.
+   */
   public boolean run() {
+    if (bNio) {
+      return runNio();
+    }
+
     bStopped = false;
     while (!bStopped) {
       ServerSocket server;
@@ -63,11 +109,42 @@ public class TitanLocalRouter extends TitanRouter {
     return true;
   }
 
+  private boolean runNio() {
+    try {
+      reactor = new TitanNioReactor(new nioHandler());
+      reactor.listen(LISTEN_PORT, 0);
+    }
+    catch (IOException ioe) {
+      System.err.println("TitanLocalRouter: could not start local router on port " + LISTEN_PORT);
+      return false;
+    }
+
+    System.out.println("TitanLocalRouter: waiting for connection from MasterRouter... ");
+    reactor.run();
+    return true;
+  }
+
   public void stop() {
     bStopped = true;
+    if (reactor != null) {
+      reactor.stop();
+    }
   }
 
   protected void sendExtern(int dest_net, SerialMsg msg) {
+    if (bNio) {
+      TitanNioLink link = master;
+      if ((link != null) && link.isConnected()) {
+        try {
+          link.sendMsg(msg);
+        }
+        catch (IOException ioe) {
+          System.err.println("TitanLocalRouter: external send failed");
+        }
+      }
+      return;
+    }
+
     if (tcpip.isConnected()) {
       try {
         tcpip.sendMsg(msg);
@@ -86,6 +163,15 @@ public class TitanLocalRouter extends TitanRouter {
 
     int net_id = Integer.parseInt(args[0], 10);
 
+    boolean nio = false;
+    if (args[args.length - 1].compareToIgnoreCase("nio") == 0) {
+      System.out.println("Creating TitanLocalRouter with NIO connections");
+      nio = true;
+      String[] a = new String[args.length - 1];
+      System.arraycopy(args, 0, a, 0, a.length);
+      args = a;
+    }
+
     if (net_id < 1) {
       System.err.println("TitanLocalRouter net_id smaller than 1");
       return null;
@@ -114,7 +200,7 @@ public class TitanLocalRouter extends TitanRouter {
       System.out.println("Creating TitanLocalRouter in default mode: TCP_ONLY");
     }
 
-    return new TitanLocalRouter(net_id, mode);
+    return new TitanLocalRouter(net_id, mode, nio);
   }
 
   private TitanLocalNode startNewLocalNode(int node_id, int tcp_port) {
@@ -9,14 +9,22 @@ import titancommon.node.TitanTCP;
  * @author Jeremy Constantin <jeremyc@student.ethz.ch>
  */
 public class TitanMasterRouter extends TitanRouter {
-  private static final TitanTCP[] localRouters = {
-    null,                                       // netID: 0 - MasterRouter itself
-    new TitanTCP("cphones.test", LISTEN_PORT),  // netID: 1 - ?
-    new TitanTCP("cphones.test2", LISTEN_PORT)  // netID: 2 - ?
+  private static final long NIO_CONNECT_TIMEOUT = 10000;  // ms
+
+  private static final String[] localRouterHosts = {
+    null,              // netID: 0 - MasterRouter itself
+    "cphones.test",    // netID: 1 - ?
+    "cphones.test2"    // netID: 2 - ?
   };
 
+  // one thread per connection
+  private TitanTCP[] localRouters;
   private Thread[] conRecv;
 
+  // or all connections on one TitanNioReactor
+  private TitanNioReactor reactor;
+  private TitanNioLink[] links;
+
   private class conReceiver implements Runnable {
     private int net_id;
     private TitanTCP tcpip;
@@ -42,20 +50,49 @@ public class TitanMasterRouter extends TitanRouter {
     }
   }
 
+  private class nioHandler implements TitanNioReactor.Handler {
+    public void linkOpened(TitanNioLink link) {
+      System.out.println("Connection to LocalRouter " + link.getID() + " established!");
+    }
+
+    public void messageReceived(TitanNioLink link, SerialMsg msg) {
+      TitanMasterRouter.this.messageReceived(link.getID() << CLIENT_BITS, msg);
+    }
+
+    public void linkClosed(TitanNioLink link) {
+      System.out.println("Connection to LocalRouter " + link.getID() + " closed!");
+    }
+  }
+
   public TitanMasterRouter(int mode) {
+    this(mode, false);
+  }
+
+  /**
+   * @param nio  serve the connections to the local routers from a single
+   *             selector thread instead of one receive thread each
+   */
+  public TitanMasterRouter(int mode, boolean nio) {
     super(0, mode);
-    conRecv = new Thread[localRouters.length];
-    initConnections();
+    if (nio) {
+      initNioConnections();
+    }
+    else {
+      initConnections();
+    }
   }
-  
+
   private boolean initConnections() {
     boolean bSuccess = true;
-    for (int i = 0; i < localRouters.length; i++) {
-      if (localRouters[i] == null)
+    localRouters = new TitanTCP[localRouterHosts.length];
+    conRecv = new Thread[localRouterHosts.length];
+    for (int i = 0; i < localRouterHosts.length; i++) {
+      if (localRouterHosts[i] == null)
         continue;
-      
+
+      localRouters[i] = new TitanTCP(localRouterHosts[i], LISTEN_PORT);
       localRouters[i].connect();
-      
+
       if (localRouters[i].isConnected()) {
         conRecv[i] = new Thread(new conReceiver(i));
         conRecv[i].start();
@@ -68,7 +105,53 @@ public class TitanMasterRouter extends TitanRouter {
     return bSuccess;
   }
 
+  private boolean initNioConnections() {
+    try {
+      reactor = new TitanNioReactor(new nioHandler());
+    }
+    catch (IOException ioe) {
+      System.err.println("TitanMasterRouter: could not open selector: " + ioe.getLocalizedMessage());
+      return false;
+    }
+
+    boolean bSuccess = true;
+    links = new TitanNioLink[localRouterHosts.length];
+    for (int i = 0; i < localRouterHosts.length; i++) {
+      if (localRouterHosts[i] == null)
+        continue;
+
+      links[i] = reactor.connect(i, localRouterHosts[i], LISTEN_PORT);
+      if (links[i] == null) {
+        bSuccess = false;
+      }
+    }
+    reactor.start();
+
+    // the connections are only established by the reactor thread
+    for (int i = 0; i < links.length; i++) {
+      if (links[i] == null)
+        continue;
+
+      try {
+        if (!links[i].awaitConnected(NIO_CONNECT_TIMEOUT)) {
+          System.err.println("TitanMasterRouter: connection to LocalRouter " + i + " failed");
+          bSuccess = false;
+        }
+      }
+      catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return bSuccess;
+  }
+
   protected void sendExtern(int dest_net, SerialMsg msg) {
+    if (reactor != null) {
+      sendExternNio(dest_net, msg);
+      return;
+    }
+
     if (dest_net != -1) {
       if ((localRouters.length <= dest_net) || (localRouters[dest_net] == null)) {
         System.err.println("TitanMasterRouter Error: unknown destination net " + dest_net);
@@ -98,4 +181,27 @@ public class TitanMasterRouter extends TitanRouter {
       }
     }
   }
+
+  private void sendExternNio(int dest_net, SerialMsg msg) {
+    if ((dest_net != -1) && ((links.length <= dest_net) || (links[dest_net] == null))) {
+      System.err.println("TitanMasterRouter Error: unknown destination net " + dest_net);
+      return;
+    }
+
+    // framed once, also for broadcasts
+    byte[] frame = TitanTCP.createFrame(msg);
+    for (int i = 0; i < links.length; i++) {
+      if ((dest_net != -1) && (i != dest_net))
+        continue;
+      if ((links[i] == null) || (!links[i].isConnected()))
+        continue;
+
+      try {
+        links[i].sendFrame(frame);
+      }
+      catch (IOException ioe) {
+        System.err.println("TitanMasterRouter: external send failed (" + dest_net + ")");
+      }
+    }
+  }
 }
@@ -0,0 +1,238 @@
+package titancommon.route;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import titan.messages.SerialMsg;
+import titancommon.node.TitanTCP;
+
+/**
+ * One connection of the NIO routing layer, served by a TitanNioReactor. It
+ * uses the frame format of TitanTCP (including batch frames on receive), so
+ * the other side can be a TitanTCP as well.
+ *
+ * Messages can be sent from any thread: they are framed by the caller and
+ * put in the write queue of the link. The reactor thread copies queued
+ * frames into a direct buffer and writes as many of them at once as the
+ * channel takes. All other methods are only called by the reactor thread.
+ *
+ * The write queue holds at most WRITE_QUEUE_MAX_BYTES. Frames sent while a
+ * slow peer keeps it full are dropped and counted, so the senders, e.g. the
+ * reactor thread forwarding from another link, never wait for this one.
+ */
+public class TitanNioLink {
+  private static final int WRITE_BUFFER_SIZE = 0x10000;
+  public  static final int WRITE_QUEUE_MAX_BYTES = 4 * WRITE_BUFFER_SIZE;
+
+  private final TitanNioReactor reactor;
+  private final int id;
+  private final SocketChannel channel;
+  private SelectionKey key;
+  private volatile boolean bConnected;
+  private boolean bClosed;
+
+  private final ByteBuffer readBuf = ByteBuffer.allocateDirect(TitanTCP.HEADER_SIZE + TitanTCP.BATCH_MAX_SIZE);
+  private final ByteBuffer writeBuf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+  private final ConcurrentLinkedQueue/*<byte[]>*/ writeQueue = new ConcurrentLinkedQueue();
+  private final AtomicInteger queuedBytes = new AtomicInteger(0);
+  private final AtomicLong droppedFrames = new AtomicLong(0);
+  private final AtomicBoolean bWriteScheduled = new AtomicBoolean(false);
+  private byte[] partFrame;  // frame that did not fit into writeBuf completely
+  private int    partOff;
+
+  private volatile long sendBytes;
+  private volatile long recvBytes;
+
+  TitanNioLink(TitanNioReactor r, int link_id, SocketChannel ch) {
+    reactor = r;
+    id = link_id;
+    channel = ch;
+  }
+
+  /** @return the id given to connect() or listen() of the reactor */
+  public int     getID()         { return id; }
+  public boolean isConnected()   { return bConnected; }
+  public long    getSendBytes()  { return sendBytes; }
+  public long    getRecvBytes()  { return recvBytes; }
+
+  /** @return frames dropped because the write queue was full */
+  public long    getDroppedFrames() { return droppedFrames.get(); }
+
+  SocketChannel getChannel()           { return channel; }
+  SelectionKey  getKey()               { return key; }
+  void          setKey(SelectionKey k) { key = k; }
+
+  /** set by the reactor once the connection is established, or closed */
+  synchronized void setConnected(boolean c) {
+    bConnected = c;
+    if (!c) {
+      bClosed = true;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Waits until the connection started by TitanNioReactor.connect() has
+   * been established, or has failed.
+   * @return whether the link is connected
+   */
+  public synchronized boolean awaitConnected(long timeoutMs) throws InterruptedException {
+    long end = System.currentTimeMillis() + timeoutMs;
+    long wait = timeoutMs;
+    while (!bConnected && !bClosed && wait > 0) {
+      wait(wait);
+      wait = end - System.currentTimeMillis();
+    }
+    return bConnected;
+  }
+
+  public void sendMsg(SerialMsg msg) throws IOException {
+    sendFrame(TitanTCP.createFrame(msg));
+  }
+
+  /**
+   * Queues a frame created by TitanTCP.createFrame(). The frame is not
+   * copied, so the same frame can be sent over several links. If the write
+   * queue is full, the frame is dropped, see getDroppedFrames().
+   */
+  public void sendFrame(byte[] frame) throws IOException {
+    if (!bConnected) {
+      System.err.println("TitanNioLink: not connected");
+      throw new IOException("TitanNioLink: not connected");
+    }
+
+    if (queuedBytes.addAndGet(frame.length) > WRITE_QUEUE_MAX_BYTES) {
+      queuedBytes.addAndGet(-frame.length);
+      droppedFrames.incrementAndGet();
+      return;
+    }
+    writeQueue.add(frame);
+    if (bWriteScheduled.compareAndSet(false, true)) {
+      reactor.scheduleWrite(this);
+    }
+  }
+
+  /**
+   * Writes queued frames until the queue is empty or the channel is full.
+   * @return false if the channel is full and the link has to wait for
+   *         OP_WRITE, true if everything has been written
+   */
+  boolean flush() throws IOException {
+    while (true) {
+      if (!write()) {
+        return false;
+      }
+      bWriteScheduled.set(false);
+      // a frame queued after the last poll would not schedule another write
+      if (writeQueue.isEmpty() || !bWriteScheduled.compareAndSet(false, true)) {
+        return true;
+      }
+    }
+  }
+
+  private boolean write() throws IOException {
+    do {
+      fillWriteBuffer();
+      writeBuf.flip();
+      int n = channel.write(writeBuf);
+      sendBytes += n;
+      boolean bDone = !writeBuf.hasRemaining();
+      writeBuf.compact();
+      if (!bDone) {
+        return false;
+      }
+    } while ((partFrame != null) || !writeQueue.isEmpty());
+    return true;
+  }
+
+  private void fillWriteBuffer() {
+    while (writeBuf.hasRemaining()) {
+      if (partFrame == null) {
+        partFrame = (byte[]) writeQueue.poll();
+        partOff = 0;
+        if (partFrame == null) {
+          return;
+        }
+        queuedBytes.addAndGet(-partFrame.length);
+      }
+
+      int n = Math.min(writeBuf.remaining(), partFrame.length - partOff);
+      writeBuf.put(partFrame, partOff, n);
+      partOff += n;
+      if (partOff == partFrame.length) {
+        partFrame = null;
+      }
+    }
+  }
+
+  /**
+   * Reads what is available and passes all complete messages to handler.
+   * @return false if the connection has been closed by the other side
+   */
+  boolean read(TitanNioReactor.Handler handler) throws IOException {
+    int n = channel.read(readBuf);
+    if (n == -1) {
+      return false;
+    }
+    recvBytes += n;
+
+    readBuf.flip();
+    while (readBuf.remaining() >= TitanTCP.HEADER_SIZE) {
+      int pos = readBuf.position();
+      boolean bBatch = (readBuf.get(pos) & 0xFF) == TitanTCP.FRAME_BATCH;
+      int len;
+      if (bBatch) {
+        len = ((readBuf.get(pos + 2) & 0xFF) << 8) + (readBuf.get(pos + 3) & 0xFF);
+      }
+      else {
+        len = readBuf.get(pos + 1) & 0xFF;
+      }
+      if (readBuf.remaining() < TitanTCP.HEADER_SIZE + len) {
+        break;  // rest of the frame has not arrived yet
+      }
+
+      if (!bBatch) {
+        handler.messageReceived(this, getMsg(pos + TitanTCP.HEADER_SIZE, len,
+                                             readBuf.get(pos + 2), readBuf.get(pos + 3)));
+      }
+      else if ((readBuf.get(pos + 1) & 0xFF) != TitanTCP.BATCH_VERSION) {
+        System.err.println("TitanNioLink: unknown batch frame version " + (readBuf.get(pos + 1) & 0xFF));
+      }
+      else {
+        readBatch(handler, pos + TitanTCP.HEADER_SIZE, len);
+      }
+      readBuf.position(pos + TitanTCP.HEADER_SIZE + len);
+    }
+    readBuf.compact();
+    return true;
+  }
+
+  private void readBatch(TitanNioReactor.Handler handler, int pos, int len) {
+    int end = pos + len;
+    while (pos + TitanTCP.RECORD_HEADER_SIZE <= end) {
+      int mlen = readBuf.get(pos) & 0xFF;
+      if (pos + TitanTCP.RECORD_HEADER_SIZE + mlen > end) {
+        System.err.println("TitanNioLink: truncated record in batch frame");
+        return;
+      }
+      handler.messageReceived(this, getMsg(pos + TitanTCP.RECORD_HEADER_SIZE, mlen,
+                                           readBuf.get(pos + 1), readBuf.get(pos + 2)));
+      pos += TitanTCP.RECORD_HEADER_SIZE + mlen;
+    }
+  }
+
+  /** copies a message out of the read buffer, leaves the position alone */
+  private SerialMsg getMsg(int pos, int len, int addrHi, int addrLo) {
+    SerialMsg msg = TitanTCP.createMsg(len, addrHi, addrLo, null, 0);
+    int oldPos = readBuf.position();
+    readBuf.position(pos);
+    readBuf.get(msg.dataGet(), msg.baseOffset() + SerialMsg.offset_data(0), len);
+    readBuf.position(oldPos);
+    return msg;
+  }
+}
@@ -0,0 +1,255 @@
+package titancommon.route;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import titan.messages.SerialMsg;
+
+/**
+ * Serves any number of TitanNioLinks from a single thread with a Selector.
+ * Reads are non-blocking, received messages are passed to the Handler on
+ * the reactor thread. Writes are queued per link and done by the reactor
+ * thread as well, so a slow link never blocks the sender or other links.
+ *
+ * Links are opened with connect() or accepted on a port given to listen().
+ * Both can be called from any thread, the channels are registered with the
+ * selector by the reactor thread.
+ */
+public class TitanNioReactor implements Runnable {
+
+  /** called on the reactor thread */
+  public interface Handler {
+    void linkOpened(TitanNioLink link);
+    void messageReceived(TitanNioLink link, SerialMsg msg);
+    void linkClosed(TitanNioLink link);
+  }
+
+  private final Selector selector;
+  private final Handler handler;
+  private Thread thread;
+  private volatile boolean bStopped;
+
+  // handed over to the reactor thread
+  private final ConcurrentLinkedQueue/*<Object>*/ newChannels = new ConcurrentLinkedQueue();
+  private final ConcurrentLinkedQueue/*<TitanNioLink>*/ writeLinks = new ConcurrentLinkedQueue();
+
+  private static class Listener {
+    private ServerSocketChannel server;
+    private int linkID;
+  }
+
+  public TitanNioReactor(Handler h) throws IOException {
+    handler = h;
+    selector = Selector.open();
+  }
+
+  /** runs the reactor on a thread of its own */
+  public void start() {
+    thread = new Thread(this, "TitanNioReactor");
+    thread.start();
+  }
+
+  public void stop() {
+    bStopped = true;
+    selector.wakeup();
+  }
+
+  /**
+   * Starts to connect to host:port. The link can be used once the handler
+   * has been told it is open, see also TitanNioLink.awaitConnected().
+   * @return the new link, null if the connection could not be started
+   */
+  public TitanNioLink connect(int link_id, String host, int port) {
+    try {
+      SocketChannel ch = SocketChannel.open();
+      ch.configureBlocking(false);
+      ch.socket().setTcpNoDelay(true);  // frames are collected in writeBuf already
+      TitanNioLink link = new TitanNioLink(this, link_id, ch);
+      ch.connect(new InetSocketAddress(host, port));
+      newChannels.add(link);
+      selector.wakeup();
+      return link;
+    }
+    catch (Exception e) {  // includes UnresolvedAddressException
+      System.err.println("TitanNioReactor: connection failed (" + host + "): " + e.getLocalizedMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Accepts connections on port, they are reported to the handler as links
+   * with the given id.
+   */
+  public void listen(int port, int link_id) throws IOException {
+    Listener l = new Listener();
+    l.linkID = link_id;
+    l.server = ServerSocketChannel.open();
+    l.server.configureBlocking(false);
+    l.server.socket().setReuseAddress(true);
+    l.server.socket().bind(new InetSocketAddress(port));
+    newChannels.add(l);
+    selector.wakeup();
+  }
+
+  void scheduleWrite(TitanNioLink link) {
+    writeLinks.add(link);
+    selector.wakeup();
+  }
+
+  public void run() {
+    while (!bStopped) {
+      try {
+        selector.select();
+      }
+      catch (IOException ioe) {
+        System.err.println("TitanNioReactor: select failed: " + ioe.getLocalizedMessage());
+        break;
+      }
+
+      registerChannels();
+
+      TitanNioLink wl;
+      while ((wl = (TitanNioLink) writeLinks.poll()) != null) {
+        if (wl.getKey() != null && wl.getKey().isValid()) {
+          flush(wl);
+        }
+      }
+
+      for (Iterator it = selector.selectedKeys().iterator(); it.hasNext();) {
+        SelectionKey key = (SelectionKey) it.next();
+        it.remove();
+
+        if (!key.isValid()) {
+          continue;
+        }
+        if (key.isAcceptable()) {
+          accept((Listener) key.attachment());
+          continue;
+        }
+
+        TitanNioLink link = (TitanNioLink) key.attachment();
+        try {
+          if (key.isConnectable()) {
+            if (!link.getChannel().finishConnect()) {
+              continue;  // still pending
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            opened(link);
+          }
+          if (key.isValid() && key.isReadable() && !link.read(handler)) {
+            close(link);
+            continue;
+          }
+          if (key.isValid() && key.isWritable()) {
+            flush(link);
+          }
+        }
+        catch (IOException ioe) {
+          System.err.println("TitanNioReactor: I/O error on link " + link.getID() + ": " + ioe.getLocalizedMessage());
+          close(link);
+        }
+      }
+    }
+
+    closeAll();
+  }
+
+  private void registerChannels() {
+    Object o;
+    while ((o = newChannels.poll()) != null) {
+      try {
+        if (o instanceof Listener) {
+          Listener l = (Listener) o;
+          l.server.register(selector, SelectionKey.OP_ACCEPT, l);
+        }
+        else {
+          TitanNioLink link = (TitanNioLink) o;
+          link.setKey(link.getChannel().register(selector, SelectionKey.OP_CONNECT, link));
+        }
+      }
+      catch (ClosedChannelException cce) {
+        System.err.println("TitanNioReactor: channel closed before it was registered");
+      }
+    }
+  }
+
+  private void accept(Listener l) {
+    try {
+      SocketChannel ch = l.server.accept();
+      if (ch == null) {
+        return;
+      }
+      ch.configureBlocking(false);
+      ch.socket().setTcpNoDelay(true);
+      TitanNioLink link = new TitanNioLink(this, l.linkID, ch);
+      link.setKey(ch.register(selector, SelectionKey.OP_READ, link));
+      opened(link);
+    }
+    catch (IOException ioe) {
+      System.err.println("TitanNioReactor: could not accept() connection properly");
+    }
+  }
+
+  private void opened(TitanNioLink link) {
+    link.setConnected(true);
+    handler.linkOpened(link);
+  }
+
+  private void flush(TitanNioLink link) {
+    try {
+      if (link.flush()) {
+        link.getKey().interestOps(SelectionKey.OP_READ);
+      }
+      else {
+        link.getKey().interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+    catch (IOException ioe) {
+      System.err.println("TitanNioReactor: I/O error during send on link " + link.getID());
+      close(link);
+    }
+  }
+
+  /** closes the link, only to be called on the reactor thread */
+  void close(TitanNioLink link) {
+    boolean bWasConnected = link.isConnected();
+    link.setConnected(false);
+    if (link.getKey() != null) {
+      link.getKey().cancel();
+    }
+    try {
+      link.getChannel().close();
+    }
+    catch (IOException ioe) {
+      System.err.println("TitanNioReactor: unable to close channel properly");
+    }
+    if (bWasConnected) {
+      handler.linkClosed(link);
+    }
+  }
+
+  private void closeAll() {
+    for (Iterator it = selector.keys().iterator(); it.hasNext();) {
+      SelectionKey key = (SelectionKey) it.next();
+      if (key.attachment() instanceof TitanNioLink) {
+        close((TitanNioLink) key.attachment());
+      }
+      else {
+        try {
+          key.channel().close();
+        }
+        catch (IOException ioe) { }
+      }
+    }
+    try {
+      selector.close();
+    }
+    catch (IOException ioe) { }
+  }
+}
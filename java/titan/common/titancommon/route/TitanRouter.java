@@ -27,7 +27,13 @@ public abstract class TitanRouter implements MessageListener {
   public int                    getNetID() { return net_id; }
   public TitanCommunicateRouter getTCom()  { return tcom; }
 
-  synchronized public void messageReceived(int addr, Message msg) {
+  /**
+   * Routes msg, received from addr. Not synchronized: the decision only
+   * depends on the addresses, and the connections a message is forwarded
+   * to are safe to use from several threads. Messages for the master are
+   * handed to TitanCommand, which handles them one at a time.
+   */
+  public void messageReceived(int addr, Message msg) {
     SerialMsg smsg = (SerialMsg) msg;
     
     int dest_addr = smsg.get_address();
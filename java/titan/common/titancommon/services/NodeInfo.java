@@ -43,6 +43,20 @@ public class NodeInfo {
         bForeign = false;
     }
     
+    /**
+     * Copies the node information, replacing the list of tasks. The value 
+     * is shared with the original.
+     */
+    public NodeInfo(NodeInfo ni, int[] iTasks) {
+        address  = ni.address;
+        hops     = ni.hops;
+        path     = ni.path;
+        tasks    = iTasks;
+        value    = ni.value;
+        bForeign = ni.bForeign;
+        nodeType = ni.nodeType;
+    }
+    
     /**
      * Returns the processing capabilities of the node, which are used to compute 
      * whether it can run all the required tasks.
@@ -30,6 +30,7 @@ package titancommon.services;
 import java.util.*;
 
 import titancommon.TitanCommand;
+import titancommon.compiler.CompilationCache;
 import titan.TitanCommunicate;
 import titan.messages.SerialMsg;
 import titancommon.route.TitanRouter;
@@ -47,10 +48,40 @@ public class ServiceDirectory extends TimerTask {
     
     TitanCommunicate m_Comm; ///< Connector to the network. Used to send messages
     Timer  m_Timer;  ///< Periodic timer for issuing service discovery messages
-    HashMap    m_NodeInfo = new HashMap();  ///< Service database linking nodeAddress->information class  //CHANGE_MR: Map...
+    
+    /**
+     * Content of the service database. A snapshot is never changed, updates 
+     * copy it and replace it as a whole. Readers therefore do not need to lock 
+     * and see a consistent state for as long as they keep the reference.
+     */
+    private static class Snapshot {
+        final HashMap/*<Integer,NodeInfo>*/ nodeInfo;  ///< nodeAddress->information class
+        final HashMap/*<Integer,int[]>*/    taskNodes; ///< taskID->sorted addresses of the nodes providing it
+        final NodeInfo[] nodes;
+        
+        Snapshot(HashMap ni, HashMap tn) {
+            nodeInfo  = ni;
+            taskNodes = tn;
+            nodes = (NodeInfo[])ni.values().toArray(new NodeInfo[ni.size()]);
+        }
+        
+        int[] getTaskNodes(int iTaskID) {
+            int[] addrs = (int[])taskNodes.get(new Integer(iTaskID));
+            return (addrs != null) ? addrs : NO_NODES;
+        }
+    }
+    private static final int[] NO_NODES = new int[0];
+    
+    private volatile Snapshot m_Snapshot = new Snapshot(new HashMap(), new HashMap());
  //   @SuppressWarnings("unused")
 //    private static int INQUIRE_PERIOD = 1000;
     
+    /** nodeAddress->keys (config ID, signature) of the configurations the node has cached */
+    private HashMap/*<Integer,HashSet<Integer>>*/ m_CachedConfigs = new HashMap();
+    
+    /** allocations compiled onto this directory, see CompilationCache.getSharedCache() */
+    private CompilationCache m_CompilationCache;
+    
     // adding observers to ServiceDirectory changes
     private ServiceNotices m_Observers = new ServiceNotices();  ///< Observable object that notifies clients of changes
     
@@ -66,44 +97,52 @@ public class ServiceDirectory extends TimerTask {
             /* **********************************************/
             
           int[] testtasks = { 1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23,24,25,26,27,28,29,30,31,32,33,34,35,36,37,38,39,40,41,42,43 };
-          m_NodeInfo.put( new Integer( 0), new NodeInfo( 0,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer( 1), new NodeInfo( 1,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer( 2), new NodeInfo( 2,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer( 3), new NodeInfo( 3,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer( 4), new NodeInfo( 4,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer( 5), new NodeInfo( 5,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer( 6), new NodeInfo( 6,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer( 7), new NodeInfo( 7,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer( 8), new NodeInfo( 8,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer( 9), new NodeInfo( 9,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer(10), new NodeInfo(10,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer(11), new NodeInfo(11,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer( 12), new NodeInfo( 12,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer( 13), new NodeInfo( 13,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer( 14), new NodeInfo( 14,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer( 15), new NodeInfo( 15,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer(16), new NodeInfo(16,0, testtasks,1 ) );
-          m_NodeInfo.put( new Integer(17), new NodeInfo(17,0, testtasks,1 ) ); 
+          HashMap testinfo = new HashMap();
+          testinfo.put( new Integer( 0), new NodeInfo( 0,0, testtasks,1 ) );
+          testinfo.put( new Integer( 1), new NodeInfo( 1,0, testtasks,1 ) );
+          testinfo.put( new Integer( 2), new NodeInfo( 2,0, testtasks,1 ) );
+          testinfo.put( new Integer( 3), new NodeInfo( 3,0, testtasks,1 ) );
+          testinfo.put( new Integer( 4), new NodeInfo( 4,0, testtasks,1 ) );
+          testinfo.put( new Integer( 5), new NodeInfo( 5,0, testtasks,1 ) );
+          testinfo.put( new Integer( 6), new NodeInfo( 6,0, testtasks,1 ) );
+          testinfo.put( new Integer( 7), new NodeInfo( 7,0, testtasks,1 ) );
+          testinfo.put( new Integer( 8), new NodeInfo( 8,0, testtasks,1 ) );
+          testinfo.put( new Integer( 9), new NodeInfo( 9,0, testtasks,1 ) );
+          testinfo.put( new Integer(10), new NodeInfo(10,0, testtasks,1 ) );
+          testinfo.put( new Integer(11), new NodeInfo(11,0, testtasks,1 ) );
+          testinfo.put( new Integer( 12), new NodeInfo( 12,0, testtasks,1 ) );
+          testinfo.put( new Integer( 13), new NodeInfo( 13,0, testtasks,1 ) );
+          testinfo.put( new Integer( 14), new NodeInfo( 14,0, testtasks,1 ) );
+          testinfo.put( new Integer( 15), new NodeInfo( 15,0, testtasks,1 ) );
+          testinfo.put( new Integer(16), new NodeInfo(16,0, testtasks,1 ) );
+          testinfo.put( new Integer(17), new NodeInfo(17,0, testtasks,1 ) ); 
 
           // local nodes, id 100++
-          m_NodeInfo.put( new Integer(100), new NodeInfo(100,0, testtasks, 1 ) );
-          m_NodeInfo.put( new Integer(101), new NodeInfo(101,0, testtasks, 1 ) );
-          m_NodeInfo.put( new Integer(102), new NodeInfo(102,0, testtasks, 1 ) );
+          testinfo.put( new Integer(100), new NodeInfo(100,0, testtasks, 1 ) );
+          testinfo.put( new Integer(101), new NodeInfo(101,0, testtasks, 1 ) );
+          testinfo.put( new Integer(102), new NodeInfo(102,0, testtasks, 1 ) );
           for (int i = 103; i < (1 << TitanRouter.CLIENT_BITS); i++ ) {
-            m_NodeInfo.put( new Integer(i), new NodeInfo(i,0, testtasks, 1 ) );
+            testinfo.put( new Integer(i), new NodeInfo(i,0, testtasks, 1 ) );
           }
 
           int net_id = 1 << TitanRouter.CLIENT_BITS;
-          m_NodeInfo.put( new Integer(net_id + 1),   new NodeInfo(net_id + 1, 0, testtasks, 1) );
-          m_NodeInfo.put( new Integer(net_id + 2),   new NodeInfo(net_id + 2, 0, testtasks, 1) );
-          m_NodeInfo.put( new Integer(net_id + 100), new NodeInfo(net_id + 100, 0, testtasks, 1) );
-          m_NodeInfo.put( new Integer(net_id + 101), new NodeInfo(net_id + 101, 0, testtasks, 1) );
+          testinfo.put( new Integer(net_id + 1),   new NodeInfo(net_id + 1, 0, testtasks, 1) );
+          testinfo.put( new Integer(net_id + 2),   new NodeInfo(net_id + 2, 0, testtasks, 1) );
+          testinfo.put( new Integer(net_id + 100), new NodeInfo(net_id + 100, 0, testtasks, 1) );
+          testinfo.put( new Integer(net_id + 101), new NodeInfo(net_id + 101, 0, testtasks, 1) );
 
           net_id = 2 << TitanRouter.CLIENT_BITS;
-          m_NodeInfo.put( new Integer(net_id + 1),   new NodeInfo(net_id + 1, 0, testtasks, 1) );
-          m_NodeInfo.put( new Integer(net_id + 2),   new NodeInfo(net_id + 2, 0, testtasks, 1) );
-          m_NodeInfo.put( new Integer(net_id + 100), new NodeInfo(net_id + 100, 0, testtasks, 1) );
-          m_NodeInfo.put( new Integer(net_id + 101), new NodeInfo(net_id + 101, 0, testtasks, 1) );
+          testinfo.put( new Integer(net_id + 1),   new NodeInfo(net_id + 1, 0, testtasks, 1) );
+          testinfo.put( new Integer(net_id + 2),   new NodeInfo(net_id + 2, 0, testtasks, 1) );
+          testinfo.put( new Integer(net_id + 100), new NodeInfo(net_id + 100, 0, testtasks, 1) );
+          testinfo.put( new Integer(net_id + 101), new NodeInfo(net_id + 101, 0, testtasks, 1) );
+
+          HashMap testindex = new HashMap();
+          for (Iterator it = testinfo.values().iterator(); it.hasNext(); ) {
+              NodeInfo ni = (NodeInfo)it.next();
+              indexTasks(testindex, ni.address, ni.tasks);
+          }
+          m_Snapshot = new Snapshot(testinfo, testindex);
         }
         
     }
@@ -143,42 +182,63 @@ public class ServiceDirectory extends TimerTask {
      */
     public void updateNodeInfo( int nodeAddr, int nodeType, int[] tasks ) {
         
-        NodeInfo ni = (NodeInfo)m_NodeInfo.get( new Integer(nodeAddr));
-        
-        // check whether data is available
-        if ( ni == null ) {
-            // node does not yet exist - create node
-            m_NodeInfo.put( new Integer(nodeAddr), new NodeInfo(nodeAddr, nodeType, tasks, m_curInquirySequenceNumber ));
-            m_Observers.notifyObservers(nodeAddr, NoticeReason.NODE_ADDED);
-        } else {
+        synchronized (this) {
+            Snapshot snap = m_Snapshot;
+            Integer key = new Integer(nodeAddr);
+            NodeInfo ni = (NodeInfo)snap.nodeInfo.get(key);
             
-            // fuse data
-            // for every entry check whether it already exists
-            for (int i=0; i<tasks.length; i++ ) {
-                boolean bFound = false;
-                for (int j=0; j<ni.tasks.length; j++ ) {
-                    if ( ni.tasks[j] == tasks[i] ) {
-                        bFound = true;
-                        break;
+            // check whether data is available
+            if ( ni != null ) {
+                
+                // fuse data
+                // for every entry check whether it already exists
+                int [] newTasks = ni.tasks;
+                for (int i=0; i<tasks.length; i++ ) {
+                    boolean bFound = false;
+                    for (int j=0; j<newTasks.length; j++ ) {
+                        if ( newTasks[j] == tasks[i] ) {
+                            bFound = true;
+                            break;
+                        }
                     }
-                }
-                if (bFound == false ) {
-                    int [] temp = new int[ni.tasks.length+1];
-                    for (int j=0; j< ni.tasks.length; j++ ){
-                        temp[j] = ni.tasks[j];
+                    if (bFound == false ) {
+                        int [] temp = new int[newTasks.length+1];
+                        System.arraycopy(newTasks, 0, temp, 0, newTasks.length);
+                        temp[temp.length-1] = tasks[i];
+                        newTasks = temp;
                     }
-                    temp[temp.length-1] = tasks[i];
-                    ni.tasks = temp;
                 }
+                
+                // update value
+                ni.value.updateValue( m_curInquirySequenceNumber );
+                
+                boolean bNewType = (ni.nodeType!=nodeType && nodeType!=-1);
+                if (newTasks == ni.tasks && !bNewType) return;
+                
+                // published NodeInfos are not changed, replace it
+                NodeInfo newNI = new NodeInfo(ni, newTasks);
+                if (bNewType) {
+                    newNI.nodeType = nodeType;
+                }
+                
+                HashMap nodeInfo = (HashMap)snap.nodeInfo.clone();
+                HashMap taskNodes = (HashMap)snap.taskNodes.clone();
+                nodeInfo.put(key, newNI);
+                indexTasks(taskNodes, nodeAddr, newTasks);
+                m_Snapshot = new Snapshot(nodeInfo, taskNodes);
+                return;
             }
             
-            if (ni.nodeType!=nodeType && nodeType!=-1) {
-                ni.nodeType = nodeType;
-            }
-            
-            // update value
-            ni.value.updateValue( m_curInquirySequenceNumber );
+            // node does not yet exist - create node
+            tasks = (int[])tasks.clone();
+            HashMap nodeInfo = (HashMap)snap.nodeInfo.clone();
+            HashMap taskNodes = (HashMap)snap.taskNodes.clone();
+            nodeInfo.put(key, new NodeInfo(nodeAddr, nodeType, tasks, m_curInquirySequenceNumber ));
+            indexTasks(taskNodes, nodeAddr, tasks);
+            m_Snapshot = new Snapshot(nodeInfo, taskNodes);
         }
+        
+        m_Observers.notifyObservers(nodeAddr, NoticeReason.NODE_ADDED);
     }
     
     /**
@@ -187,8 +247,84 @@ public class ServiceDirectory extends TimerTask {
      * @return Whether the node could successfully be removed
      */
     public boolean removeNodeInfo( int nodeAddr ) {
-        NodeInfo ni = (NodeInfo)m_NodeInfo.remove(new Integer(nodeAddr));
-        return (ni != null);
+        return removeNodes(new int[] { nodeAddr }) == 1;
+    }
+    
+    /** Removes the nodes from the database in one update, returns how many have been found */
+    private synchronized int removeNodes( int[] nodeAddrs ) {
+        Snapshot snap = m_Snapshot;
+        HashMap nodeInfo = (HashMap)snap.nodeInfo.clone();
+        HashMap taskNodes = (HashMap)snap.taskNodes.clone();
+        
+        int iRemoved = 0;
+        for (int i=0; i<nodeAddrs.length; i++) {
+            NodeInfo ni = (NodeInfo)nodeInfo.remove(new Integer(nodeAddrs[i]));
+            if (ni == null) continue;
+            unindexTasks(taskNodes, ni.address, ni.tasks);
+            iRemoved++;
+        }
+        
+        if (iRemoved > 0) {
+            m_Snapshot = new Snapshot(nodeInfo, taskNodes);
+        }
+        for (int i=0; i<nodeAddrs.length; i++) {
+            m_CachedConfigs.remove(new Integer(nodeAddrs[i]));
+        }
+        return iRemoved;
+    }
+    
+    /**
+     * Adds the node to the index entries of the tasks. The entries are 
+     * replaced, as they might be shared with older snapshots.
+     */
+    private static void indexTasks( HashMap taskNodes, int nodeAddr, int[] tasks ) {
+        for (int i=0; i<tasks.length; i++) {
+            Integer key = new Integer(tasks[i]);
+            int[] addrs = (int[])taskNodes.get(key);
+            if (addrs == null) addrs = NO_NODES;
+            
+            int pos = Arrays.binarySearch(addrs, nodeAddr);
+            if (pos >= 0) continue;
+            pos = -pos-1;
+            
+            int[] temp = new int[addrs.length+1];
+            System.arraycopy(addrs, 0, temp, 0, pos);
+            temp[pos] = nodeAddr;
+            System.arraycopy(addrs, pos, temp, pos+1, addrs.length-pos);
+            taskNodes.put(key, temp);
+        }
+    }
+    
+    /** Removes the node from the index entries of the tasks */
+    private static void unindexTasks( HashMap taskNodes, int nodeAddr, int[] tasks ) {
+        for (int i=0; i<tasks.length; i++) {
+            Integer key = new Integer(tasks[i]);
+            int[] addrs = (int[])taskNodes.get(key);
+            if (addrs == null) continue;
+            
+            int pos = Arrays.binarySearch(addrs, nodeAddr);
+            if (pos < 0) continue;
+            
+            if (addrs.length == 1) {
+                taskNodes.remove(key);
+                continue;
+            }
+            int[] temp = new int[addrs.length-1];
+            System.arraycopy(addrs, 0, temp, 0, pos);
+            System.arraycopy(addrs, pos+1, temp, pos, addrs.length-pos-1);
+            taskNodes.put(key, temp);
+        }
+    }
+    
+    /**
+     * Returns a service directory containing the current state of this one. 
+     * It is not updated anymore, so that a compiler using it works on a 
+     * consistent view of the network. Creating it does not copy any data.
+     */
+    public ServiceDirectory getSnapshot() {
+        ServiceDirectory sd = new ServiceDirectory((TitanCommunicate)null);
+        sd.m_Snapshot = m_Snapshot;
+        return sd;
     }
     
     //////////////////////////////////////////////////////////////////////////
@@ -238,20 +374,12 @@ public class ServiceDirectory extends TimerTask {
      * @return A List of node descriptors that contain the task asked for
      */
     public Collection queryTaskCollection(int iTaskID) {
-        NodeInfo[] nodeinfo = (NodeInfo[])m_NodeInfo.values().toArray( new NodeInfo[m_NodeInfo.size()]);
+        Snapshot snap = m_Snapshot;
+        int[] addrs = snap.getTaskNodes(iTaskID);
         
-        ArrayList resNodes = new ArrayList();
-        
-        
-        // search through all saved nodes
-        for (int i=0; i<nodeinfo.length; i++) {
-            
-            // search through all registered tasks
-            for (int j=0; j<nodeinfo[i].tasks.length; j++ ) {
-                if ( nodeinfo[i].tasks[j] == iTaskID ) {
-                    resNodes.add( nodeinfo[i] );
-                }
-            }
+        ArrayList resNodes = new ArrayList(addrs.length);
+        for (int i=0; i<addrs.length; i++) {
+            resNodes.add( snap.nodeInfo.get(new Integer(addrs[i])) );
         }
         
 /*        // add nodes from foreign directories
@@ -276,14 +404,11 @@ public class ServiceDirectory extends TimerTask {
      * @return A map of tasks to nodes
      */
     public int[][] queryTasksToNodeMap(int[] taskIDs) {
+        Snapshot snap = m_Snapshot;
         int[][] result = new int[taskIDs.length][];
         
         for(int i=0; i<taskIDs.length; i++ ) {
-            NodeInfo[] nis = queryTask(taskIDs[i]);
-            result[i] = new int[nis.length];
-            for(int j=0; j<nis.length; j++) {
-                result[i][j] = nis[j].address;
-            }
+            result[i] = (int[])snap.getTaskNodes(taskIDs[i]).clone();
         }
         
         return result;
@@ -310,7 +435,13 @@ public class ServiceDirectory extends TimerTask {
 
         //NodeInfo[] nodeinfo = (NodeInfo[])m_NodeInfo.values().toArray( new NodeInfo[m_NodeInfo.size()]);
     	
-    	NodeInfo[] nodeinfo = transformNodeInfoToArray(m_NodeInfo);
+    	Snapshot snap = m_Snapshot;
+    	NodeInfo[] nodeinfo = snap.nodes;
+    	
+    	int[][] taskNodes = new int[taskIDs.length][];
+    	for (int k=0;k<taskIDs.length;k++) {
+    	    taskNodes[k] = snap.getTaskNodes(taskIDs[k]);
+    	}
         
         int iMaxTasks = 0;
         int iNodeAddress = -1;
@@ -318,15 +449,12 @@ public class ServiceDirectory extends TimerTask {
         // search through all saved nodes
         for (int i=0; i<nodeinfo.length; i++) {
             int iNodeTasks=0;
-            // search through all registered tasks on the nodes
-            for (int j=0; j<nodeinfo[i].tasks.length; j++ ) {
-                // compare to the task list
-                for (int k=0;k<taskIDs.length;k++) {
-                    if ( nodeinfo[i].tasks[j] == taskIDs[k] ) {
-                        iNodeTasks++;
-                    }
-                } // for k
-            } // for j
+            // look the node up in the index of every task
+            for (int k=0;k<taskIDs.length;k++) {
+                if ( Arrays.binarySearch(taskNodes[k], nodeinfo[i].address) >= 0 ) {
+                    iNodeTasks++;
+                }
+            } // for k
             if (iNodeTasks > iMaxTasks) {
                 iNodeAddress = nodeinfo[i].address;
                 iMaxTasks = iNodeTasks;
@@ -347,10 +475,10 @@ public class ServiceDirectory extends TimerTask {
      */
     public boolean hasTask( int iNodeAddress, int iTaskID ) {
         
-        NodeInfo ni = (NodeInfo) m_NodeInfo.get(new Integer(iNodeAddress));
+        Snapshot snap = m_Snapshot;
 
         // locally available?
-        if (ni == null) {
+        if (!snap.nodeInfo.containsKey(new Integer(iNodeAddress))) {
             // check foreign directories
 //            for(int i=0; i<m_ForeignDirectories.size();i++){
 //                if (m_ForeignDirectories.get(i).hasTask(iNodeAddress,iTaskID)) {
@@ -362,11 +490,7 @@ public class ServiceDirectory extends TimerTask {
         	return false;
         }
         
-        for(int i=0; i < ni.tasks.length; i++) {
-            if ( ni.tasks[i] == iTaskID ) return true;
-        }
-        
-        return false;
+        return Arrays.binarySearch(snap.getTaskNodes(iTaskID), iNodeAddress) >= 0;
     }
     
     /** 
@@ -375,7 +499,7 @@ public class ServiceDirectory extends TimerTask {
      * @return the NodeInfo structure for the given node ID 
      */
     public NodeInfo getNodeInfo( int nodeAddr ) {
-        NodeInfo ni = (NodeInfo)m_NodeInfo.get(new Integer(nodeAddr));
+        NodeInfo ni = (NodeInfo)m_Snapshot.nodeInfo.get(new Integer(nodeAddr));
         
         // maybe try other service directories
 //        if (ni == null) {
@@ -398,7 +522,7 @@ public class ServiceDirectory extends TimerTask {
      * received by this particular node, or similar.
      */
     public void nodeIsAlive( int nodeAddr ) {
-        NodeInfo ni = (NodeInfo)m_NodeInfo.get( new Integer(nodeAddr));
+        NodeInfo ni = (NodeInfo)m_Snapshot.nodeInfo.get( new Integer(nodeAddr));
         if ( ni != null ) {
             ni.value.isAlive();
         } else {
@@ -406,11 +530,56 @@ public class ServiceDirectory extends TimerTask {
         }
     }
     
+    public synchronized CompilationCache getCompilationCache() {
+        return m_CompilationCache;
+    }
+
+    public synchronized void setCompilationCache( CompilationCache cache ) {
+        m_CompilationCache = cache;
+    }
+
+    /**
+     * Notes that a node has reported to hold a configuration in its cache 
+     * (TITANCOMM_CACHE_REPORT message).
+     * @param nodeAddr  Address of the node
+     * @param configID  Configuration ID, only the lower 4 bits are kept by the nodes
+     * @param signature Signature of the configuration, see TaskNetwork.getConfigSignature()
+     */
+    public synchronized void nodeCachedConfig( int nodeAddr, int configID, int signature ) {
+        Integer key = new Integer(nodeAddr);
+        HashSet configs = (HashSet)m_CachedConfigs.get(key);
+        if (configs == null) {
+            configs = new HashSet();
+            m_CachedConfigs.put(key, configs);
+        }
+        configs.add(new Integer(((configID & 0xF) << 16) | (signature & 0xFFFF)));
+    }
+    
+    /**
+     * Forgets the cached configurations with the given ID of a node, e.g. 
+     * after it could not find one in its cache.
+     */
+    public synchronized void nodeUncachedConfig( int nodeAddr, int configID ) {
+        HashSet configs = (HashSet)m_CachedConfigs.get(new Integer(nodeAddr));
+        if (configs == null) return;
+        for (Iterator it = configs.iterator(); it.hasNext(); ) {
+            if ((((Integer)it.next()).intValue() >> 16) == (configID & 0xF)) it.remove();
+        }
+    }
+    
+    /**
+     * @return whether the node has reported to hold the configuration in its cache
+     */
+    public synchronized boolean hasCachedConfig( int nodeAddr, int configID, int signature ) {
+        HashSet configs = (HashSet)m_CachedConfigs.get(new Integer(nodeAddr));
+        return configs != null && configs.contains(new Integer(((configID & 0xF) << 16) | (signature & 0xFFFF)));
+    }
+    
     /**
      * Checks whether a given node exists in the service directory
      */
     public boolean nodeExists(int nodeAddr) {
-        return m_NodeInfo.containsKey( new Integer(nodeAddr) );
+        return m_Snapshot.nodeInfo.containsKey( new Integer(nodeAddr) );
     }
     
 //    public Set getAllNodeAddr() {
@@ -507,8 +676,9 @@ public class ServiceDirectory extends TimerTask {
      */
     private void CheckDatabaseEntries() {
         
-        // Transform NodeInfo into a list for easy iteration
-        NodeInfo[] nodeinfo = transformNodeInfoToArray(m_NodeInfo);
+        NodeInfo[] nodeinfo = m_Snapshot.nodes;
+        int[] removed = new int[nodeinfo.length];
+        int iRemoved = 0;
         for (int i=0; i<nodeinfo.length; i++) {
             
             if ( ! nodeinfo[i].value.checkValue(m_curInquirySequenceNumber) ) {
@@ -517,17 +687,24 @@ public class ServiceDirectory extends TimerTask {
             	if (nodeinfo[i].address == 0 ) continue;
                 
                 // this information lost its value - the node is probably dead/gone
-                m_NodeInfo.remove(new Integer(nodeinfo[i].address));
-                
-                // give notice to anybody interested
-                m_Observers.notifyObservers( nodeinfo[i].address, NoticeReason.NODE_REMOVED );
-                
-                System.out.println("ServiceDirectory: Removing node "+ nodeinfo[i].address + " from database");
-                
+                removed[iRemoved++] = nodeinfo[i].address;
             }
             
         } // foreach nodeinfo
         
+        if (iRemoved == 0) return;
+        
+        // remove them with a single update
+        int [] temp = new int[iRemoved];
+        System.arraycopy(removed, 0, temp, 0, iRemoved);
+        removeNodes(temp);
+        
+        // give notice to anybody interested
+        for (int i=0; i<iRemoved; i++) {
+            m_Observers.notifyObservers( removed[i], NoticeReason.NODE_REMOVED );
+            System.out.println("ServiceDirectory: Removing node "+ removed[i] + " from database");
+        }
+        
     }
     
     /**
@@ -554,7 +731,7 @@ public class ServiceDirectory extends TimerTask {
     public void printInfo(java.io.PrintStream out) {
         out.println("Service directory contents:\n");
         
-        NodeInfo[] nodeinfo = transformNodeInfoToArray(m_NodeInfo);
+        NodeInfo[] nodeinfo = m_Snapshot.nodes;
         
         // go through all nodes //wor
         for (int i=0; i<nodeinfo.length; i++) {
@@ -582,21 +759,4 @@ public class ServiceDirectory extends TimerTask {
         	System.out.println("Task 1 found on node "+ni[i].address);
         }
     }
-
-    private NodeInfo[] transformNodeInfoToArray(HashMap ndInfo) { //ChangeMR: (Map ndInfo)
-
-        return (NodeInfo[])ndInfo.values().toArray( new NodeInfo[m_NodeInfo.size()]);       
-
-/*        NodeInfo[] nodeinfo = new NodeInfo[ndInfo.size()];
-        
-        int a=0;
-        ndInfo.keySet().iterator();
-        for(Iterator i = ndInfo.keysIterator(); i.hasNext();) {
-        	nodeinfo[a] = (NodeInfo) ndInfo.get(i.next());
-        	a++;
-        }
-        
-    	return nodeinfo;
- */
-    }
 }
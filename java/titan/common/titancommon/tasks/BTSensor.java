@@ -36,6 +36,7 @@ public class BTSensor extends Task {
 
     private String address;
     private String dxstring;
+    private String policy;
 
 
     public BTSensor() {}
@@ -44,6 +45,7 @@ public class BTSensor extends Task {
     	super(bs);
         address = bs.address;
         dxstring = bs.dxstring;
+        policy = bs.policy;
     }
 
 
@@ -79,6 +81,8 @@ public class BTSensor extends Task {
      * the configuration is as follows
      *  * first parameter: mac address (withouth spaces or dashes)
      *  * second parameter: DX-string (e.g. DX3;cc-s-s-s-s-s-s), see titancommon.bluetooth.FrameParser
+     *  * third parameter (optional): what to do with frames the consumers cannot keep up with,
+     *    "send", "drop", "decimate" or "decimate:<factor>", see titancommon.node.StreamPolicy
      */
     public boolean setConfiguration(String[] strConfig) {
 
@@ -94,6 +98,11 @@ public class BTSensor extends Task {
                 address = strConfig[0].toString();
                 dxstring = strConfig[1].toString();
                 
+            } else if ( strConfig.length == 3 ) {
+                address = strConfig[0].toString();
+                dxstring = strConfig[1].toString();
+                policy = strConfig[2].toString();
+
             } else {
                 System.out.println("Too many arguments for BTSensor");
                 return false;
@@ -123,6 +132,13 @@ public class BTSensor extends Task {
             temp.add(new Short(config_dxstring[i]));
         }
         temp.add(new Short((short)'\0'));
+        if ( policy != null ) {
+            short[] config_policy = StringUtil.toShortArray(policy);
+            for( int i=0; i<config_policy.length; i++ ) {
+                temp.add(new Short(config_policy[i]));
+            }
+            temp.add(new Short((short)'\0'));
+        }
         
         short[] config_both = new short[ temp.size() ];
         for( int i=0; i<temp.size(); i++) {
@@ -105,6 +105,11 @@ public abstract class Task {
         return (String)m_Attributes.get(strName);
     }
     
+    /** Retrieves the names of all attributes set */
+    public Set/*<String>*/ getAttributeNames() {
+        return Collections.unmodifiableSet(m_Attributes.keySet());
+    }
+    
     public Task() {
     }
     
@@ -20,7 +20,8 @@ package titancommon.tasks;
  *
  * TODO for a new task:
  *  1) find a free task ID in "int[] testtasks" in titancommon/services/ServiceDirectory.java
- *  2) make an entry of this task in "private static final Class[] execTaskClasses" in titancommon/node/TitanTask.java
+ *  2) make an entry of this task in "private static final Class[] builtinTaskClasses" in titancommon/node/TaskRegistry.java,
+ *     or register a TitanTaskFactory for it in META-INF/services/titancommon.node.TitanTaskFactory
  *  3) make an entry of this task in "public ConfigReader( String strFilename ) throws FileNotFoundException" in titan(titanmobile)/ConfigReader.java
  *  4) implement all methods here
  *  5) create a ETemplateTask in titancommon/node/tasks and continue there with the implementation
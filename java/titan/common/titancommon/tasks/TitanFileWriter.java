@@ -25,6 +25,8 @@ import java.text.SimpleDateFormat;
 /**
  * Filewriter acts similar as the Sink task but it writes the received data
  * into a file. The file is named like "20091012-161954.txt".
+ * If the configured filename ends with BINARY_SUFFIX, the data is recorded in
+ * the binary format of RecordingWriter instead of text.
  * 
  * @author Benedikt Köppel <bkoeppel@ee.ethz.ch>
  * @author Jonas Huber <huberjo@ee.ethz.ch>
@@ -34,6 +36,9 @@ public class TitanFileWriter extends Task {
 	public final static String NAME = "titanfilewriter";
 	public final static int    TASKID = 34;
 	
+	/** files ending with this suffix are written as binary recordings */
+	public final static String BINARY_SUFFIX = ".trec";
+	
 	protected String filename;
 	
 	public TitanFileWriter() {}
@@ -120,5 +125,12 @@ public class TitanFileWriter extends Task {
 	public String getFilename() {
 		return filename;
 	}
+	
+	/**
+	 * @return true if the data is written as binary recording
+	 */
+	public boolean isBinary() {
+		return filename != null && filename.endsWith(BINARY_SUFFIX);
+	}
         
 }
\ No newline at end of file
@@ -32,12 +32,16 @@ public class VirtualBTSensor extends Task {
     public final static int    TASKID = 39;
 
     private int m_Period = -1; //< Period to wait between two samples
+    private int m_Policy = -1; //< Overload policy of the data stream, see titancommon.node.StreamPolicy
+    private int m_Factor = 0;  //< Decimation factor
 
     public VirtualBTSensor() {}
 
     public VirtualBTSensor(VirtualBTSensor bt) {
     	super(bt);
         m_Period = bt.m_Period;
+        m_Policy = bt.m_Policy;
+        m_Factor = bt.m_Factor;
     }
 
     /* (non-Javadoc)
@@ -81,13 +85,26 @@ public class VirtualBTSensor extends Task {
     public boolean setConfiguration(String[] strConfig) {
 
         if (strConfig == null) return true;
-        if (strConfig.length != 1 ) return false;
+        if (strConfig.length != 1 && strConfig.length != 3) return false;
 
         m_Period = Integer.parseInt(strConfig[0]);
 
         // range check
         if ( (m_Period <= 0) || ((1<<16)<= m_Period)) m_Period = -1;
 
+        // what to do with samples the consumers cannot keep up with:
+        // send, drop or decimate by a factor
+        if (strConfig.length == 3) {
+            String policy = strConfig[1].trim().toLowerCase();
+            if (policy.equals("send")) m_Policy = 0;
+            else if (policy.equals("drop")) m_Policy = 1;
+            else if (policy.equals("decimate")) m_Policy = 2;
+            else return false;
+
+            m_Factor = Integer.parseInt(strConfig[2]);
+            if ( (m_Factor <= 0) || (256 <= m_Factor)) return false;
+        }
+
         return (m_Period != -1);
     }
 
@@ -96,7 +113,8 @@ public class VirtualBTSensor extends Task {
      */
     public int getConfigBytesNum() {
 
-        return (m_Period != -1)? 2 : 0;
+        if (m_Period == -1) return 0;
+        return (m_Policy != -1)? 4 : 2;
     }
 
     /* (non-Javadoc)
@@ -106,6 +124,10 @@ public class VirtualBTSensor extends Task {
         if (m_Period == -1 ) return null;
 
         // parse value
+        if (m_Policy != -1) {
+            short[][] config = {{ (short)((m_Period>>8)&0xFF), (short)(m_Period&0xFF), (short)m_Policy, (short)m_Factor }};
+            return config;
+        }
         short[][] config = {{ (short)((m_Period>>8)&0xFF), (short)(m_Period&0xFF) }};
         return config;
     }
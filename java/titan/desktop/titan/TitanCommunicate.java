@@ -60,6 +60,15 @@ public class TitanCommunicate implements Observer{
     MessageListener m_Listener = null;
 
     private int m_Mode;
+
+    /** time to wait after a message has been sent to a mote, in ms */
+    public static final int SEND_DELAY = 50;
+
+    /** minimum time between two messages to a mote, also when not delayed, in ms */
+    public static final int MOTE_MIN_GAP = 10;
+
+    /** time the last message has been sent to a mote, in ms */
+    private long m_lLastMoteSend = 0;
     
     public static final int TMOTE = 0;
     public static final int SIM = 1;
@@ -118,6 +127,11 @@ public class TitanCommunicate implements Observer{
             m_Simulation.runFor(fSeconds);
     }
     
+    /** @return whether messages are delivered to a TOSSIM simulation */
+    public boolean isSimulation() {
+        return m_Simulation != null;
+    }
+
     public void SimAddChannel(String strChannel ) {
         if ( m_Tossim == null )
             System.err.println("ERROR: no simulation running");
@@ -131,7 +145,21 @@ public class TitanCommunicate implements Observer{
      * @param m message
      * @exception IOException thrown if message could not be sent
      */
-    synchronized public boolean send(int moteId, SerialMsg m) {
+    public boolean send(int moteId, SerialMsg m) {
+        return send(moteId, m, true);
+    }
+
+    /**
+     * Send m to moteId via this mote interface. Messages to motes are 
+     * delayed by SEND_DELAY, which paces senders that do not wait for 
+     * answers themselves. Senders doing their own pacing skip the delay, 
+     * but the mote link still takes no more than one message every 
+     * MOTE_MIN_GAP.
+     * @param moteId message destination
+     * @param m message
+     * @param bDelay whether to wait SEND_DELAY after sending to a mote
+     */
+    synchronized public boolean send(int moteId, SerialMsg m, boolean bDelay) {
         // remove net_id from destination addr. for mote / bt communication
         int addr = m.get_address();
         if ((addr != 0xFFFF) && (addr != -1)) {
@@ -140,8 +168,11 @@ public class TitanCommunicate implements Observer{
         
         try {
             if (m_MoteIF != null ) {
+                long lWait = m_lLastMoteSend + MOTE_MIN_GAP - System.currentTimeMillis();
+                if (lWait > 0) Thread.sleep(lWait);
                 m_MoteIF.send(addr,m);
-                Thread.sleep(50);
+                if (bDelay) Thread.sleep(SEND_DELAY);
+                m_lLastMoteSend = System.currentTimeMillis();
             } else if (m_Simulation != null ) {
                 m_Simulation.deliverMsg(m);
                 m_Simulation.runFor(0.050f);
@@ -18,6 +18,12 @@
 package titan.compiler;
 
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
 import org.jgap.*;
 import org.jgap.impl.DefaultConfiguration;
 
@@ -25,6 +31,7 @@ import titan.ConfigReader;
 import titancommon.execution.TaskNetwork;
 import titancommon.services.NodeInfo;
 import titancommon.services.ServiceDirectory;
+import titancommon.compiler.AllocationProblem;
 import titancommon.compiler.Compiler;
 
 /**
@@ -35,14 +42,47 @@ import titancommon.compiler.Compiler;
 
 public class EvolutionCompiler implements Compiler {
 
-    Configuration conf = new DefaultConfiguration();
     ServiceDirectory m_ServiceDirectory;
     
     private static final int POPULATION_SIZE = 500;
     private static final int ITERATIONS      = 150;
     
+    private static final int MIN_ISLAND_SIZE    = 50; ///< smallest population evolving on its own
+    private static final int MIGRATION_INTERVAL = 10; ///< generations between two migrations
+    private static final int MIGRANTS           = 2;  ///< chromosomes sent to the next island
+    
+    private int m_iThreads;
+    
+    /**
+     * A part of the population evolving independently. Its fittest chromosomes
+     * regularly migrate to the next island.
+     */
+    private static class Island implements Callable {
+        Configuration conf;
+        Genotype      population;
+        int           generations;
+        
+        public Object call() {
+            for (int i=0; i<generations; i++) {
+                population.evolve();
+            }
+            return null;
+        }
+    }
+    
     public EvolutionCompiler(ServiceDirectory sd) {
+        this(sd, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * @param sd       Service directory describing the network
+     * @param iThreads Number of threads evaluating the populations. The
+     *                 population is split into as many islands as long as
+     *                 they have at least MIN_ISLAND_SIZE chromosomes.
+     */
+    public EvolutionCompiler(ServiceDirectory sd, int iThreads) {
         m_ServiceDirectory = sd;
+        m_iThreads = Math.max(1, iThreads);
     }
     
     public TaskNetwork compileNetwork(TaskNetwork templateNetwork) {
@@ -58,84 +98,90 @@ public class EvolutionCompiler implements Compiler {
         
         if (tnet.tasks.length == 0) return null;
 
-        // initialize JGAP library - follow the example on
-        // http://jgap.sourceforge.net/doc/tutorial.html
+        // work on a fixed view of the network while discovery goes on
+        ServiceDirectory sd = m_ServiceDirectory.getSnapshot();
+
+        AllocationProblem ap;
         try {
-            
-            // set configuration
-            Configuration.reset();
-            EvolutionFitnessFunction eff = new EvolutionFitnessFunction(m_ServiceDirectory, templateNetwork); 
-            conf.setFitnessFunction(eff);
-
-            // construct genes - all possible locations of a task
-            Gene[] sampleGenes = new Gene[tnet.tasks.length];
-            double searchSpaceSize = 1;
-            for(int i=0; i<tnet.tasks.length; i++) {
-
-                int [] allnodes;
-                // check whether this is a fixed task
-                if (tnet.tasks[i].getAttribute("nodeID") != null) {
-                    if (m_ServiceDirectory.hasTask( Integer.parseInt(tnet.tasks[i].getAttribute("nodeID")), tnet.tasks[i].getID()) == false ) {
-                        return null;
-                    }
-                    
-                    allnodes = new int[1];
-                    allnodes[0] = Integer.parseInt(tnet.tasks[i].getAttribute("nodeID"));
-                    
-                    //System.out.println("Task "+tnet.tasks[i].getID()+" fixed to node " + tnet.tasks[i].getAttribute("nodeID"));
-                }  else {
-                
-                    NodeInfo[] nis = m_ServiceDirectory.queryTask( tnet.tasks[i].getID() );
-    
-                    // task must be available somewhere
-                    if (nis== null) {
-                        return null;
-                    }
-    
-                    //System.out.print("Task "+tnet.tasks[i].getID()+" available on nodes:");
-                    allnodes = new int[nis.length];
-                    for(int j=0;j<nis.length;j++) {
-                        allnodes[j] = nis[j].address;
-                        //System.out.print(" "+allnodes[j]);
-                    }
-                    //System.out.println("");
+            ap = new AllocationProblem(sd, templateNetwork);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        // collect all possible locations of every task
+        int [][] allnodes = new int[tnet.tasks.length][];
+        double searchSpaceSize = 1;
+        for(int i=0; i<tnet.tasks.length; i++) {
+
+            // check whether this is a fixed task
+            if (ap.getForcedNode(i) != -1) {
+                if (ap.isPlaceable(i, ap.getForcedNode(i)) == false ) {
+                    return null;
                 }
                 
-                sampleGenes[i] = new EvolutionNodeGene(conf,allnodes);
-                searchSpaceSize *= allnodes.length;
-            }
+                allnodes[i] = new int[1];
+                allnodes[i][0] = ap.getForcedNode(i);
+            }  else {
             
-            Chromosome sampleChromosome = new Chromosome( conf, sampleGenes );
+                NodeInfo[] nis = ap.getCandidates(i);
+
+                // task must be available somewhere
+                if (nis== null) {
+                    return null;
+                }
+
+                allnodes[i] = new int[nis.length];
+                for(int j=0;j<nis.length;j++) {
+                    allnodes[i][j] = nis[j].address;
+                }
+            }
             
-            conf.setSampleChromosome(sampleChromosome );
-            conf.setPopulationSize(POPULATION_SIZE);
+            searchSpaceSize *= allnodes[i].length;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(m_iThreads);
+        try {
+            ParallelFitnessFunction pff = new ParallelFitnessFunction(sd, templateNetwork, ap, pool);
             
-            Genotype population = Genotype.randomInitialGenotype(conf);
+            // initialize JGAP library - follow the example on
+            // http://jgap.sourceforge.net/doc/tutorial.html
+            int iIslands = Math.max(1, Math.min(m_iThreads, POPULATION_SIZE/MIN_ISLAND_SIZE));
+            Island[] islands = new Island[iIslands];
+            for (int i=0; i<iIslands; i++) {
+                islands[i] = createIsland(i, pff, allnodes, POPULATION_SIZE/iIslands);
+            }
             
             String strEvaluations = "";
-            for(int i=0; i<ITERATIONS; i++) {
-                population.evolve();
-
-                IChromosome bestSolution = population.getFittestChromosome();
-                double dResult = eff.evaluate(bestSolution);
-                if (dResult > 100000) {
-                    dResult = eff.evaluate(bestSolution);
+            for(int i=0; i<ITERATIONS; i+=MIGRATION_INTERVAL) {
+                
+                // evolve the islands concurrently
+                List/*<Island>*/ tasks = new ArrayList();
+                for (int j=0; j<iIslands; j++) {
+                    islands[j].generations = Math.min(MIGRATION_INTERVAL, ITERATIONS-i);
+                    tasks.add(islands[j]);
                 }
-                strEvaluations += " "+(100/eff.evaluate(bestSolution));
+                List/*<Future>*/ results = pool.invokeAll(tasks);
+                for (int j=0; j<results.size(); j++) {
+                    ((Future)results.get(j)).get();
+                }
+                
+                migrate(islands);
+                
+                strEvaluations += " "+(100/getFittestChromosome(islands).getFitnessValue());
             }
-            System.out.println("Compiled " + eff.getEvaluations() + " of " + searchSpaceSize + " possible configurations during " + ITERATIONS + " iterations. Best values:" + strEvaluations);
+            System.out.println("Compiled " + pff.getEvaluations() + " of " + searchSpaceSize + " possible configurations during " + ITERATIONS + " iterations on " + iIslands + " islands (" + pff.getCacheHits() + " cached). Best values:" + strEvaluations);
 
-            IChromosome bestSolution = population.getFittestChromosome();
-            
-            //eff.printChromosome(bestSolution);
-            //System.out.println( eff.evaluate(bestSolution) );
+            IChromosome bestSolution = getFittestChromosome(islands);
             
-            return eff.getTaskNetwork(bestSolution);
+            return pff.getTaskNetwork(bestSolution);
             
 
         } catch (Exception e) {
             // Catch any exceptions during compilation
             e.printStackTrace();
+        } finally {
+            pool.shutdown();
         }
 
         return null;
@@ -146,6 +192,75 @@ public class EvolutionCompiler implements Compiler {
 
 
 
+    /**
+     * Creates an island with its own JGAP configuration and a random initial
+     * population evaluated in parallel.
+     */
+    private Island createIsland(int iIsland, ParallelFitnessFunction pff, int[][] allnodes, int iPopulationSize) throws InvalidConfigurationException {
+        String strID = "EvolutionCompiler" + iIsland;
+        
+        Configuration.reset(strID);
+        Configuration conf = new DefaultConfiguration(strID, "Island " + iIsland);
+        conf.setFitnessFunction(pff);
+        conf.setBreeder(new ParallelFitnessFunction.Breeder(pff));
+
+        // construct genes - all possible locations of a task
+        Gene[] sampleGenes = new Gene[allnodes.length];
+        for(int i=0; i<allnodes.length; i++) {
+            sampleGenes[i] = new EvolutionNodeGene(conf,allnodes[i]);
+        }
+        
+        conf.setSampleChromosome(new Chromosome( conf, sampleGenes ));
+        conf.setPopulationSize(iPopulationSize);
+        
+        Island island = new Island();
+        island.conf = conf;
+        island.population = Genotype.randomInitialGenotype(conf);
+        pff.evaluate(island.population.getPopulation().getChromosomes());
+        return island;
+    }
+    
+    /**
+     * Copies the fittest chromosomes of every island over the least fit ones
+     * of the next island.
+     */
+    private void migrate(Island[] islands) {
+        if (islands.length < 2) return;
+        
+        List[] migrants = new List[islands.length];
+        for (int i=0; i<islands.length; i++) {
+            // copy, the list is a view on the population sorted below
+            migrants[i] = new ArrayList(islands[i].population.getFittestChromosomes(MIGRANTS));
+        }
+        
+        for (int i=0; i<islands.length; i++) {
+            Island dest = islands[(i+1)%islands.length];
+            Population pop = dest.population.getPopulation();
+            pop.sortByFitness();
+            
+            for (int j=0; j<migrants[i].size(); j++) {
+                IChromosome src  = (IChromosome)migrants[i].get(j);
+                IChromosome copy = (IChromosome)dest.conf.getSampleChromosome().clone();
+                for (int k=0; k<src.size(); k++) {
+                    copy.getGene(k).setAllele(src.getGene(k).getAllele());
+                }
+                copy.setFitnessValueDirectly(src.getFitnessValueDirectly());
+                pop.setChromosome(pop.size()-1-j, copy);
+            }
+        }
+    }
+    
+    private IChromosome getFittestChromosome(Island[] islands) {
+        IChromosome best = null;
+        for (int i=0; i<islands.length; i++) {
+            IChromosome chrom = islands[i].population.getFittestChromosome();
+            if (best == null || chrom.getFitnessValue() > best.getFitnessValue()) {
+                best = chrom;
+            }
+        }
+        return best;
+    }
+
     public TaskNetwork updateNetwork(TaskNetwork templateNetwork, TaskNetwork currentNetwork) {
         // TODO Work with updates - figure out what went wrong and reevalute network. Here it would be interesting to keep the last population and insert it again.
         return null;
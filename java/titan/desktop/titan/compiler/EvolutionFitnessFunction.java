@@ -41,24 +41,51 @@ public class EvolutionFitnessFunction extends FitnessFunction {
     protected TaskNetwork m_TaskNetwork;
     protected TaskNetworkConverter m_TNC;
     protected NetworkEvaluator m_NetworkEvaluator;
+    protected DeltaEvaluator m_DeltaEvaluator; ///< only evaluates the nodes changed since the last chromosome
     protected int m_iEvaluationCount = 0;
     
     EvolutionFitnessFunction(ServiceDirectory sd, TaskNetwork tn) {
+        this(sd, tn, null);
+    }
+    
+    /**
+     * @param ap Allocation problem of the task network shared with other 
+     *           fitness functions, null to create one
+     */
+    EvolutionFitnessFunction(ServiceDirectory sd, TaskNetwork tn, AllocationProblem ap) {
         m_ServiceDirectory = sd;
         m_TaskNetwork = tn;
         m_TNC = new TaskNetworkConverter(sd);
         m_NetworkEvaluator = new NetworkEvaluator(sd);
+        try {
+            if (ap == null) ap = new AllocationProblem(sd, tn);
+            m_DeltaEvaluator = new DeltaEvaluator(m_NetworkEvaluator, ap);
+        } catch (Exception e) {
+            // evaluate the converted task networks instead
+            m_DeltaEvaluator = null;
+        }
     }
     
     /**
      * Returns the fitness of the chromosome, the higher, the better!
      */
     protected double evaluate(IChromosome tasknet) {
+        return evaluate(getAllocVector(tasknet));
+    }
+    
+    /**
+     * Returns the fitness of the allocation vector, the higher, the better!
+     */
+    double evaluate(int[] taskvector) {
         
     	m_iEvaluationCount++;
 
-        TaskNetwork tn = getTaskNetwork(tasknet);
-        double dResult = m_NetworkEvaluator.evaluateNet(tn);
+        double dResult;
+        if (m_DeltaEvaluator != null) {
+            dResult = m_DeltaEvaluator.evaluate(taskvector);
+        } else {
+            dResult = m_NetworkEvaluator.evaluateNet(getTaskNetwork(taskvector));
+        }
         
         if ( dResult > 10e100 ) {
         	//System.out.println("Too high value");
@@ -69,13 +96,20 @@ public class EvolutionFitnessFunction extends FitnessFunction {
         return (dResult>=Double.MAX_VALUE)? 0 : 100/dResult;
     }
     
-    public TaskNetwork getTaskNetwork(IChromosome tasknet) {
-
-        // copy genes to task vector, ignoring fixed tasks
+    /** copies the genes to a task vector */
+    static int[] getAllocVector(IChromosome tasknet) {
         int [] taskvector = new int[tasknet.getGenes().length];
         for ( int i=0; i<taskvector.length; i++ ) {
             taskvector[i] = (Integer)tasknet.getGene(i).getAllele();
         }
+        return taskvector;
+    }
+    
+    public TaskNetwork getTaskNetwork(IChromosome tasknet) {
+        return getTaskNetwork(getAllocVector(tasknet));
+    }
+    
+    TaskNetwork getTaskNetwork(int[] taskvector) {
         
         try{
 
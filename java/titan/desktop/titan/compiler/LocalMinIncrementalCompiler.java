@@ -24,7 +24,6 @@ import titan.ConfigReader;
 import titancommon.execution.TaskNetwork;
 import titancommon.compiler.Compiler;
 import titancommon.compiler.GreedyCompiler;
-import titancommon.compiler.TaskNetworkConverter;
 import titancommon.compiler.*;
 import titancommon.services.ServiceDirectory;
 
@@ -62,11 +61,12 @@ public class LocalMinIncrementalCompiler implements Compiler {
      */
     public TaskNetwork compileNetwork(TaskNetwork templateNetwork) throws Exception {
 
+        AllocationProblem ap = new AllocationProblem(m_ServiceDirectory, templateNetwork);
+        
         // get an initial configuration by another compiler
-        Compiler comp = new GreedyCompiler(m_ServiceDirectory);
-        TaskNetwork tn = comp.compileNetwork(templateNetwork);
+        GreedyCompiler comp = new GreedyCompiler(m_ServiceDirectory);
         
-        return localMinSearchRandom(templateNetwork,tn.getAllocVector());
+        return localMinSearchRandom(ap, comp.allocate(ap));
     }
 
     public TaskNetwork updateNetwork(TaskNetwork templateNetwork, TaskNetwork currentNetwork) throws Exception {
@@ -92,15 +92,15 @@ public class LocalMinIncrementalCompiler implements Compiler {
 
     /**
      * Shifts random tasks around to find the local minimum
-     * @param tn The current task network. Must contain an allocVector
+     * @param ap          The task network to distribute
+     * @param allocVector The current allocation
      * @return The optimized task network.
      * @throws Exception 
      */
-    private TaskNetwork localMinSearchRandom(TaskNetwork templateNetwork, int [] allocVector) throws Exception {
+    private TaskNetwork localMinSearchRandom(AllocationProblem ap, int [] allocVector) throws Exception {
         if (allocVector == null ) throw new Exception("Allocation vector missing");
         
-        TaskNetworkConverter tnc = new TaskNetworkConverter(m_ServiceDirectory);
-        NetworkEvaluator     ne = new NetworkEvaluator(m_ServiceDirectory);
+        DeltaEvaluator       de = new DeltaEvaluator(new NetworkEvaluator(m_ServiceDirectory), ap);
 
         // tasks get only shifted between participatin nodes. Get participating nodes
         Vector<Integer> partNodes = new Vector<Integer>();
@@ -110,35 +110,27 @@ public class LocalMinIncrementalCompiler implements Compiler {
             }
         }
         
-        double   bestValue = Double.MAX_VALUE;
-        TaskNetwork bestTN = tnc.VectorToTaskNetwork(templateNetwork, allocVector);
-        int []      bestAV = allocVector.clone();
+        // the evaluator keeps the best distribution found so far
+        double   bestValue = de.evaluate(allocVector);
         for (int i=0; i < 100; i++ ) {
             
-            // create new distribution
+            // move a single task of the best distribution
             int taskIndex = (int)Math.floor(Math.random()*allocVector.length);
             int nodeIndex = partNodes.get((int)Math.floor(Math.random()*partNodes.size()));
-            int [] newAlloc = bestAV.clone();
-            newAlloc[taskIndex] = nodeIndex;
 
             // evaluate distribution
-            System.out.print("Evaluating ("+taskIndex+","+nodeIndex+") [");
-            for(int j=0;j<allocVector.length;j++) System.out.print(" "+allocVector[j]+" ");
-            System.out.println("]");
-            TaskNetwork tn = tnc.VectorToTaskNetwork(templateNetwork, allocVector);
-            double value = ne.evaluateNet(tn); 
+            System.out.println("Evaluating ("+taskIndex+","+nodeIndex+")");
+            double value = de.evaluateMove(taskIndex, nodeIndex); 
             
             if ( value < bestValue ) {
-                bestValue = value; 
-                bestTN = tn;
-                bestAV = newAlloc;
+                bestValue = de.applyMove(taskIndex, nodeIndex); 
                 
                 System.out.println("New value: " + value );
             }
         }
         
         
-        return bestTN;
+        return ap.materialize(de.getAllocVector());
     }
 
     
@@ -0,0 +1,214 @@
+/*
+    This file is part of Titan.
+
+    Titan is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of
+    the License, or (at your option) any later version.
+
+    Titan is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Titan. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package titan.compiler;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jgap.Configuration;
+import org.jgap.FitnessFunction;
+import org.jgap.IChromosome;
+import org.jgap.Population;
+import org.jgap.impl.GABreeder;
+
+import titancommon.compiler.AllocationProblem;
+import titancommon.execution.TaskNetwork;
+import titancommon.services.ServiceDirectory;
+
+/**
+ * Fitness function of the EvolutionCompiler evaluating whole populations on
+ * a fork-join pool.
+ *
+ * The converters and evaluators keep state between two evaluations, so every
+ * thread evaluates with its own EvolutionFitnessFunction. They share the
+ * AllocationProblem, which is not changed anymore. The fitness of each
+ * allocation vector is cached: the genetic operators recreate many vectors
+ * and the islands exchange their best chromosomes.
+ */
+public class ParallelFitnessFunction extends FitnessFunction {
+
+    // required for serialization
+    private static final long serialVersionUID = 1L;
+
+    /** number of chromosomes evaluated by a single pool task */
+    private static final int BATCH_SIZE = 16;
+
+    /**
+     * Breeder evaluating the offspring in parallel before the natural
+     * selectors query their fitness one by one.
+     */
+    static class Breeder extends GABreeder {
+
+        private static final long serialVersionUID = 1L;
+
+        private ParallelFitnessFunction m_Fitness;
+
+        Breeder(ParallelFitnessFunction pff) {
+            m_Fitness = pff;
+        }
+
+        protected Population applyNaturalSelectors(Configuration conf, Population pop, boolean bBeforeOperators) {
+            if (!bBeforeOperators) {
+                m_Fitness.evaluate(pop.getChromosomes());
+            }
+            return super.applyNaturalSelectors(conf, pop, bBeforeOperators);
+        }
+
+        public Object clone() {
+            return new Breeder(m_Fitness);
+        }
+    }
+
+    /** allocation vector as key of the fitness cache */
+    private static class AllocKey {
+        private int[] m_Alloc;
+        private int   m_iHash;
+
+        AllocKey(int[] alloc) {
+            m_Alloc = alloc;
+            m_iHash = Arrays.hashCode(alloc);
+        }
+
+        public int hashCode() {
+            return m_iHash;
+        }
+
+        public boolean equals(Object obj) {
+            return (obj instanceof AllocKey) && Arrays.equals(m_Alloc, ((AllocKey)obj).m_Alloc);
+        }
+    }
+
+    /** evaluates a range of a chromosome list, splitting it up if too large */
+    private class EvaluateAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private List/*<IChromosome>*/ m_Chromosomes;
+        private int m_iFrom;
+        private int m_iTo;
+
+        EvaluateAction(List chromosomes, int iFrom, int iTo) {
+            m_Chromosomes = chromosomes;
+            m_iFrom = iFrom;
+            m_iTo = iTo;
+        }
+
+        protected void compute() {
+            if (m_iTo - m_iFrom > BATCH_SIZE) {
+                int iMiddle = (m_iFrom + m_iTo) >>> 1;
+                invokeAll(new EvaluateAction(m_Chromosomes, m_iFrom, iMiddle),
+                          new EvaluateAction(m_Chromosomes, iMiddle, m_iTo));
+                return;
+            }
+
+            for (int i=m_iFrom; i<m_iTo; i++) {
+                IChromosome chrom = (IChromosome)m_Chromosomes.get(i);
+                if (chrom.getFitnessValueDirectly() < 0) {
+                    chrom.setFitnessValueDirectly(evaluate(chrom));
+                }
+            }
+        }
+    }
+
+    protected ServiceDirectory m_ServiceDirectory;
+    protected TaskNetwork m_TaskNetwork;
+    protected AllocationProblem m_Problem;
+
+    private transient ForkJoinPool m_Pool;
+    private transient ThreadLocal/*<EvolutionFitnessFunction>*/ m_Functions;
+    private transient ConcurrentHashMap/*<AllocKey,Double>*/ m_Cache = new ConcurrentHashMap();
+    private AtomicInteger m_iEvaluationCount = new AtomicInteger();
+    private AtomicInteger m_iCacheHits = new AtomicInteger();
+
+    /**
+     * @param sd   Fixed view of the network, read by all threads
+     * @param tn   Template task network to distribute
+     * @param ap   Allocation problem of the template network
+     * @param pool Pool evaluating the populations
+     */
+    ParallelFitnessFunction(ServiceDirectory sd, TaskNetwork tn, AllocationProblem ap, ForkJoinPool pool) {
+        m_ServiceDirectory = sd;
+        m_TaskNetwork = tn;
+        m_Problem = ap;
+        m_Pool = pool;
+        m_Functions = new ThreadLocal() {
+            protected Object initialValue() {
+                return new EvolutionFitnessFunction(m_ServiceDirectory, m_TaskNetwork, m_Problem);
+            }
+        };
+    }
+
+    /** the evaluator confined to the calling thread */
+    private EvolutionFitnessFunction getFunction() {
+        return (EvolutionFitnessFunction)m_Functions.get();
+    }
+
+    /**
+     * Returns the fitness of the chromosome, the higher, the better!
+     */
+    protected double evaluate(IChromosome tasknet) {
+        AllocKey key = new AllocKey(EvolutionFitnessFunction.getAllocVector(tasknet));
+
+        Double fitness = (Double)m_Cache.get(key);
+        if (fitness != null) {
+            m_iCacheHits.incrementAndGet();
+            return fitness.doubleValue();
+        }
+
+        m_iEvaluationCount.incrementAndGet();
+        double dFitness = getFunction().evaluate(key.m_Alloc);
+        m_Cache.putIfAbsent(key, new Double(dFitness));
+        return dFitness;
+    }
+
+    /**
+     * Evaluates all chromosomes of the list without a fitness value in
+     * parallel.
+     */
+    public void evaluate(List/*<IChromosome>*/ chromosomes) {
+        EvaluateAction action = new EvaluateAction(chromosomes, 0, chromosomes.size());
+
+        // islands evolving on the pool evaluate their populations in place
+        if (ForkJoinTask.getPool() == m_Pool) {
+            action.invoke();
+        } else {
+            m_Pool.invoke(action);
+        }
+    }
+
+    public TaskNetwork getTaskNetwork(IChromosome tasknet) {
+        return m_Problem.materialize(EvolutionFitnessFunction.getAllocVector(tasknet));
+    }
+
+    /** Returns the number of evaluations performed
+     */
+    public int getEvaluations() {
+        return m_iEvaluationCount.get();
+    }
+
+    /** Returns the number of evaluations answered from the cache
+     */
+    public int getCacheHits() {
+        return m_iCacheHits.get();
+    }
+}
@@ -71,6 +71,14 @@ public class TitanCommunicate implements Observer{
         
     }
 
+    /**
+     * This method is only included for compatibility to the desktop
+     * @return false, there is no simulation on the mobile
+     */
+    public boolean isSimulation() {
+        return false;
+    }
+
     /**
      * This method is only included for compatibility to the desktop
      * @param strChannel Channel name to monitor
@@ -92,6 +100,15 @@ public class TitanCommunicate implements Observer{
      * @exception IOException thrown if message could not be sent
      */
     public boolean send(int moteId, SerialMsg m) {
+        return send(moteId, m, true);
+    }
+
+    /**
+     * Send m to moteId via this mote interface. Messages are never delayed
+     * on the mobile, bDelay is only included for compatibility to the 
+     * desktop.
+     */
+    public boolean send(int moteId, SerialMsg m, boolean bDelay) {
         
         Performance.begin( "WSNSend message to " + moteId + " size: [" + m.get_length() + "]");
 